@@ -0,0 +1,12 @@
+// Tests AliasTest.asm on the CPU emulator: that 0 & static 0 are both RAM[16].
+
+load AliasTest.asm,
+output-file AliasTest.out,
+compare-to AliasTest.cmp,
+output-list RAM[16]%D1.6.1 RAM[17]%D1.6.1;
+
+repeat 1000 {     // enough cycles to complete the execution
+  ticktock;
+}
+
+output;
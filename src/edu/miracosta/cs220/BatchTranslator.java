@@ -0,0 +1,259 @@
+/************************************************************************************
+ *
+ * Class name:    BatchTranslator
+ * Description:   Translates many VM projects unattended. Each project is a directory
+ *                holding .vm files, found either by walking a tree of directories or
+ *                by reading a manifest. Projects are translated on a bounded pool of
+ *                worker threads, each into its own .asm file; a project that fails
+ *                does not stop the others. A summary is printed at the end.
+ *
+ * History:       Oct. 19, J, author, -batch & -manifest modes
+ *                Oct. 19, J, pass Options through to translateProgram()
+ *
+ * Methods:       Public:   run(Options)
+ *
+ *                Private:  findProjects(File), readManifest(File),
+ *                          translateProject(File, Options), printSummary(List, long)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class BatchTranslator {
+
+    /**
+     * The outcome of translating a single project.
+     */
+    private static class Result {
+        File project;       //  the project directory
+        int files;          //  number of .vm files translated
+        long nanos;         //  time spent translating
+        String error;       //  why translation failed, or null on success
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Translates every project named by the batch options, then prints a summary.
+     *
+     * PRECONDITION:    options.isBatch() is true
+     * POSTCONDITION:   every project has been translated or reported as failed
+     *
+     * @param   options -   the parsed command-line options
+     * @return          -   true if every project was translated, false otherwise
+     */
+    static boolean run(final Options options) {
+        long start = System.nanoTime();
+        List<File> projects;
+        try {
+            if (options.getManifest() != null) {
+                projects = readManifest(options.getManifest());
+            } else {
+                projects = findProjects(options.getBatchRoot());
+            }
+        } catch (IOException e) {
+            System.err.println("Could not gather projects: " + e.getMessage());
+            return false;
+        }
+        System.out.println("Translating " + projects.size() + " project(s) on "
+                + options.getThreads() + " thread(s)...");
+
+        //  One task per project, bounded by the pool size
+        ExecutorService pool = Executors.newFixedThreadPool(options.getThreads());
+        List<Future<Result>> futures = new ArrayList<>();
+        for( final File project : projects ) {
+            futures.add(pool.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return translateProject(project, options);
+                }
+            }));
+        }
+        pool.shutdown();
+
+        //  Collect in submission order, so the summary is stable
+        List<Result> results = new ArrayList<>();
+        for(int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                //  translateProject() catches all Exceptions; Errors still land here
+                Result result = new Result();
+                result.project = projects.get(i);
+                result.error = e.getCause().toString();
+                results.add(result);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.println("Batch interrupted.");
+                pool.shutdownNow();
+                return false;
+            }
+        }
+        return printSummary(results, System.nanoTime() - start);
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Walks the tree under root, collecting every directory that directly
+     * holds at least one .vm file [same filter as VirtualMachine.VMFilter].
+     *
+     * PRECONDITION:    root is not null
+     * POSTCONDITION:   the project directories have been returned in sorted order
+     *
+     * @param   root    -   the root of the tree to walk
+     * @return          -   the project directories found
+     *
+     * @throws  IOException -   if root cannot be walked
+     */
+    private static List<File> findProjects(File root) throws IOException {
+        if (!root.isDirectory()) {
+            throw new FileNotFoundException("\"" + root.getPath() + "\" is not a directory");
+        }
+        final List<File> projects = new ArrayList<>();
+        final VirtualMachine.VMFilter filter = new VirtualMachine.VMFilter();
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                File[] vmFiles = dir.toFile().listFiles(filter);
+                if (vmFiles != null && vmFiles.length > 0) {
+                    projects.add(dir.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                //  An unreadable directory is skipped, not fatal
+                System.err.println("Skipping \"" + file + "\": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(projects);
+        return projects;
+    }
+
+    /**
+     * Reads a manifest listing one project directory per line. Blank lines
+     * and lines starting with # are ignored; relative paths are relative to
+     * the manifest's own directory.
+     *
+     * PRECONDITION:    manifest is not null
+     * POSTCONDITION:   the listed project directories have been returned in manifest order
+     *
+     * @param   manifest    -   the manifest file
+     * @return              -   the project directories listed
+     *
+     * @throws  IOException -   if the manifest cannot be read
+     */
+    private static List<File> readManifest(File manifest) throws IOException {
+        File base = manifest.getAbsoluteFile().getParentFile();
+        List<File> projects = new ArrayList<>();
+        for( String line : Files.readAllLines(manifest.toPath(), Charset.defaultCharset()) ) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            File project = new File(line);
+            projects.add(project.isAbsolute() ? project : new File(base, line));
+        }
+        return projects;
+    }
+
+    /**
+     * Translates a single project into dir/dirName.asm. Any failure is caught
+     * and recorded, so that it only affects this project.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the project has been translated, or the result holds the
+     *                  error and no partial .asm file has been left behind
+     *
+     * @param   project -   the project directory
+     * @param   options -   the parsed command-line options
+     * @return          -   the outcome of the translation
+     */
+    private static Result translateProject(File project, Options options) {
+        Result result = new Result();
+        result.project = project;
+        long start = System.nanoTime();
+        try {
+            File[] filesToTranslate = VirtualMachine.getFileArray(project.getPath());
+            if (filesToTranslate == null || filesToTranslate.length == 0) {
+                throw new FileNotFoundException("No .vm files found");
+            }
+            //  listFiles() order is unspecified; keep the output reproducible
+            Arrays.sort(filesToTranslate);
+            result.files = filesToTranslate.length;
+            VirtualMachine.translateProgram(filesToTranslate, project,
+                    VirtualMachine.hasBootstrap(filesToTranslate), options, null);
+        } catch (Exception e) {
+            //  Malformed VM code shows up as e.g. a NumberFormatException
+            result.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+            File partial = new File(project, VirtualMachine.convertFileName(project.getName()));
+            if (partial.exists() && !partial.delete()) {
+                result.error += " [could not delete partial " + partial.getName() + "]";
+            }
+        }
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Prints every failure, followed by the totals and throughput of the batch.
+     *
+     * PRECONDITION:    results holds one Result per project
+     * POSTCONDITION:   the summary has been printed to the console
+     *
+     * @param   results     -   the outcome of each project
+     * @param   wallNanos   -   the wall-clock time of the whole batch
+     * @return              -   true if no project failed, false otherwise
+     */
+    private static boolean printSummary(List<Result> results, long wallNanos) {
+        int failed = 0;
+        int files = 0;
+        long busyNanos = 0;
+        for( Result result : results ) {
+            busyNanos += result.nanos;
+            if (result.error != null) {
+                failed++;
+                System.err.println("FAILED " + result.project.getPath() + " - " + result.error);
+            } else {
+                files += result.files;
+            }
+        }
+        double seconds = wallNanos / 1e9;
+        System.out.println();
+        System.out.println("Projects:   " + results.size() + " total, "
+                + (results.size() - failed) + " translated, " + failed + " failed");
+        System.out.println("Files:      " + files + " .vm file(s) translated");
+        System.out.printf("Time:       %.2f s wall, %.2f s in workers%n", seconds, busyNanos / 1e9);
+        if (seconds > 0) {
+            System.out.printf("Throughput: %.1f projects/s, %.1f files/s%n",
+                    results.size() / seconds, files / seconds);
+        }
+        return failed == 0;
+    }
+}
+
@@ -0,0 +1,396 @@
+/************************************************************************************
+ *
+ * Class name:    Benchmark
+ * Description:   The generated-code quality benchmark: translates a fixed corpus of
+ *                VM programs at every optimization level and measures what matters to
+ *                the programs themselves - their size [ROM words, as counted by
+ *                CodeWriter] and their speed [instructions executed until they halt,
+ *                run headlessly on HackCompiler].
+ *
+ *                The corpus is listed in a manifest, one program directory per line,
+ *                relative to the manifest, with the RAM its test script would set up:
+ *
+ *                  <directory> [address=value ...]
+ *
+ *                A program with a Sys.vm gets bootstrap code; one without starts with
+ *                SP = 256 and then the listed RAM. Lines starting with # are comments.
+ *
+ *                The measurements are compared against baseline.txt next to the
+ *                manifest, one "program level rom cycles" record per line. The run
+ *                fails [exit status 1] if either number grows by more than the
+ *                threshold, or a program no longer halts. -update rewrites the baseline
+ *                from the current measurements instead.
+ *
+ *                Either way, the run fails if a program is larger at -Os than at -O2:
+ *                the size level must never cost ROM.
+ *
+ * History:       Oct. 19, J, author, corpus manifest, measurements & baseline file
+ *                Oct. 19, J, -Os must not be larger than -O2 [checkSizeLevel]
+ *
+ * Methods:       Public:   main(String[])
+ *
+ *                Private:  measureCorpus(File, long), measure(String, File[], int[][],
+ *                          Options.Level, long), readBaseline(File),
+ *                          writeBaseline(File, List), compare(List, Map, double, PrintStream),
+ *                          isRegression(long, long, double), checkSizeLevel(List, PrintStream)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+class Benchmark {
+
+    /**
+     * The size & speed of one program at one optimization level.
+     */
+    private static class Result {
+        final String program;
+        final Options.Level level;
+        final long rom;             //  instructions in ROM
+        final long cycles;          //  instructions executed until the program halted
+
+        Result(String program, Options.Level level, long rom, long cycles) {
+            this.program = program;
+            this.level = level;
+            this.rom = rom;
+            this.cycles = cycles;
+        }
+
+        /**
+         * @return  -   the key of the result's baseline record
+         */
+        String getKey() {
+            return program + " " + level;
+        }
+    }
+
+    /*************
+     * Constants *
+     *************/
+    private static final String BASELINE_FILE = "baseline.txt";
+
+    //  Growth, in percent, that counts as a regression
+    private static final double DEFAULT_THRESHOLD = 2.0;
+    private static final long DEFAULT_CYCLES = 10000000;
+
+    //  Initial stack pointer of a program without bootstrap code
+    private static final int STACK_BASE = 256;
+    private static final int SP = 0;
+
+    private static final String USAGE =
+            "Usage: Benchmark <manifest> [-threshold <percent>] [-cycles <n>] [-update]\n" +
+            "\n" +
+            "  <manifest>             the corpus, e.g. bench/corpus.txt\n" +
+            "  -threshold <percent>   growth in ROM size or cycles that fails the run [default: 2]\n" +
+            "  -cycles <n>            most instructions to run each program [default: 10000000]\n" +
+            "  -update                write the measurements to the baseline instead of comparing";
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Measures the corpus and compares it against [or saves it as] the baseline.
+     *
+     * PRECONDITION:    args holds a manifest and, optionally, the options in USAGE
+     * POSTCONDITION:   the measurements have been reported to standard output, and the
+     *                  program has exited with status 1 if any of them regressed
+     *
+     * @param   args    -   the supplied command-line arguments
+     */
+    public static void main(String[] args) {
+        File manifest = null;
+        double threshold = DEFAULT_THRESHOLD;
+        long maxCycles = DEFAULT_CYCLES;
+        boolean update = false;
+        try {
+            for(int i = 0; i < args.length; i++) {
+                if (args[i].equals("-threshold") && i + 1 < args.length) {
+                    threshold = Double.parseDouble(args[++i]);
+                } else if (args[i].equals("-cycles") && i + 1 < args.length) {
+                    maxCycles = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-update")) {
+                    update = true;
+                } else if (!args[i].startsWith("-") && manifest == null) {
+                    manifest = new File(args[i]);
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            //  also a NumberFormatException
+            System.err.println(e.getMessage());
+            manifest = null;
+        }
+        if (manifest == null) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        try {
+            List<Result> results = measureCorpus(manifest, maxCycles);
+            File baselineFile = new File(manifest.getAbsoluteFile().getParentFile(), BASELINE_FILE);
+            if (update) {
+                writeBaseline(baselineFile, results);
+                System.out.println("Wrote " + results.size() + " measurements to " + baselineFile.getPath());
+                if (checkSizeLevel(results, System.out) > 0) {
+                    System.exit(1);
+                }
+                return;
+            }
+            Map<String, long[]> baseline = baselineFile.exists() ? readBaseline(baselineFile)
+                    : new LinkedHashMap<String, long[]>();
+            int regressions = compare(results, baseline, threshold, System.out);
+            int oversized = checkSizeLevel(results, System.out);
+            if (regressions > 0) {
+                System.out.println(regressions + " regression(s) beyond " + threshold + "%");
+            } else {
+                System.out.println("No regressions beyond " + threshold + "%");
+            }
+            if (regressions > 0 || oversized > 0) {
+                System.exit(1);
+            }
+        } catch (IOException | IllegalStateException e) {
+            //  an unreadable corpus or baseline, or a program that failed to run
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Measures every program of the corpus at every optimization level.
+     *
+     * @param   manifest    -   the file listing the corpus
+     * @param   maxCycles   -   the most instructions to run each program
+     * @return              -   the measurements, in manifest & level order
+     *
+     * @throws  IOException -   if the manifest or a .vm file cannot be read, or the
+     *                          manifest is malformed
+     */
+    private static List<Result> measureCorpus(File manifest, long maxCycles) throws IOException {
+        File corpus = manifest.getAbsoluteFile().getParentFile();
+        List<Result> results = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(manifest))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                File[] vmFiles = VirtualMachine.getFileArray(new File(corpus, parts[0]).getPath());
+                if (vmFiles == null || vmFiles.length == 0) {
+                    throw new IOException("No .vm files for " + manifest.getPath() + ":" + lineNumber
+                            + ": " + parts[0]);
+                }
+                Arrays.sort(vmFiles);       //  the same ROM layout every run
+                int[][] setup = new int[parts.length - 1][];
+                try {
+                    for(int i = 1; i < parts.length; i++) {
+                        String[] assignment = parts[i].split("=");
+                        setup[i - 1] = new int[] {Integer.parseInt(assignment[0]), Integer.parseInt(assignment[1])};
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new IOException("Malformed RAM setup at " + manifest.getPath() + ":" + lineNumber
+                            + ": " + line);
+                }
+                for( Options.Level level : Options.Level.values() ) {
+                    results.add(measure(parts[0], vmFiles, setup, level, maxCycles));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Translates, assembles & runs one program in memory.
+     *
+     * @param   program     -   the program's name in the corpus
+     * @param   vmFiles     -   the .vm files making up the program
+     * @param   setup       -   {address, value} pairs to set before a program without
+     *                          bootstrap code starts
+     * @param   level       -   the optimization level
+     * @param   maxCycles   -   the most instructions to run
+     * @return              -   the program's size & speed
+     *
+     * @throws  IOException -   if a .vm file cannot be read
+     * @throws  IllegalStateException   -   if the program does not halt, accesses RAM out
+     *                                      of range, or CodeWriter miscounted its size
+     */
+    private static Result measure(String program, File[] vmFiles, int[][] setup, Options.Level level,
+                                  long maxCycles) throws IOException {
+        boolean bootstrap = VirtualMachine.hasBootstrap(vmFiles);
+        ByteArrayOutputStream asm = new ByteArrayOutputStream();
+        CodeWriter codeWriter = new CodeWriter(asm, program, bootstrap);
+        codeWriter.setLevel(level);
+        try {
+            VirtualMachine.translate(vmFiles, codeWriter, null);
+        } finally {
+            codeWriter.close();
+        }
+        short[] rom = HackAssembler.assemble(Arrays.asList(asm.toString().split("\\r?\\n"))).getRom();
+        if (rom.length != codeWriter.getRomSize()) {
+            //  Return addresses are computed from romAddress, so this would be a bug
+            throw new IllegalStateException(program + " " + level + ": CodeWriter counted "
+                    + codeWriter.getRomSize() + " instructions, but wrote " + rom.length);
+        }
+
+        HackCompiler.Program run = HackCompiler.compile(rom);
+        if (!bootstrap) {
+            run.poke(SP, STACK_BASE);
+            for( int[] assignment : setup ) {
+                run.poke(assignment[0], assignment[1]);
+            }
+        }
+        try {
+            run.run(maxCycles);
+        } catch (IllegalStateException e) {
+            throw new IllegalStateException(program + " " + level + ": " + e.getMessage(), e);
+        }
+        if (!run.isHalted() && run.getPC() < rom.length) {
+            throw new IllegalStateException(program + " " + level + " did not halt within "
+                    + maxCycles + " instructions");
+        }
+        return new Result(program, level, rom.length, run.getCycles());
+    }
+
+    /**
+     * Loads the baseline measurements.
+     *
+     * @param   baselineFile    -   the file to read
+     * @return                  -   "program level" -> {rom, cycles}
+     *
+     * @throws  IOException -   if baselineFile cannot be read or is malformed
+     */
+    private static Map<String, long[]> readBaseline(File baselineFile) throws IOException {
+        Map<String, long[]> baseline = new LinkedHashMap<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(baselineFile))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                try {
+                    if (parts.length != 4) {
+                        throw new NumberFormatException();
+                    }
+                    baseline.put(parts[0] + " " + parts[1],
+                            new long[] {Long.parseLong(parts[2]), Long.parseLong(parts[3])});
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed baseline record at " + baselineFile.getPath()
+                            + ":" + lineNumber + ": " + line);
+                }
+            }
+        }
+        return baseline;
+    }
+
+    /**
+     * Saves measurements as the new baseline.
+     *
+     * @param   baselineFile    -   the file to write
+     * @param   results         -   the measurements
+     *
+     * @throws  IOException -   if baselineFile cannot be written
+     */
+    private static void writeBaseline(File baselineFile, List<Result> results) throws IOException {
+        try (PrintWriter out = new PrintWriter(baselineFile)) {
+            out.println("# program level rom cycles [written by Benchmark -update]");
+            for( Result result : results ) {
+                out.println(result.getKey() + " " + result.rom + " " + result.cycles);
+            }
+            if (out.checkError()) {
+                throw new IOException("Could not write " + baselineFile.getPath());
+            }
+        }
+    }
+
+    /**
+     * Reports each measurement next to its baseline.
+     *
+     * @param   results     -   the measurements
+     * @param   baseline    -   "program level" -> {rom, cycles}
+     * @param   threshold   -   growth, in percent, that counts as a regression
+     * @param   out         -   where to report
+     * @return              -   the number of measurements that regressed
+     */
+    private static int compare(List<Result> results, Map<String, long[]> baseline, double threshold,
+                               PrintStream out) {
+        int regressions = 0;
+        out.println(String.format("%-18s %-4s %8s %8s %10s %10s", "program", "level", "rom", "was",
+                "cycles", "was"));
+        for( Result result : results ) {
+            long[] base = baseline.get(result.getKey());
+            String verdict = "";
+            if (base == null) {
+                verdict = "  [new]";
+            } else if (isRegression(result.rom, base[0], threshold)
+                    || isRegression(result.cycles, base[1], threshold)) {
+                verdict = "  REGRESSION";
+                regressions++;
+            }
+            out.println(String.format("%-18s %-4s %8d %8s %10d %10s%s", result.program, result.level,
+                    result.rom, base == null ? "-" : String.valueOf(base[0]),
+                    result.cycles, base == null ? "-" : String.valueOf(base[1]), verdict));
+        }
+        return regressions;
+    }
+
+    /**
+     * Checks that no program is larger at -Os than at -O2, reporting each one that is.
+     *
+     * @param   results -   the measurements
+     * @param   out     -   where to report
+     * @return          -   the number of programs larger at -Os
+     */
+    private static int checkSizeLevel(List<Result> results, PrintStream out) {
+        Map<String, Long> o2 = new LinkedHashMap<>();
+        for( Result result : results ) {
+            if (result.level == Options.Level.O2) {
+                o2.put(result.program, result.rom);
+            }
+        }
+        int oversized = 0;
+        for( Result result : results ) {
+            Long rom = o2.get(result.program);
+            if (result.level == Options.Level.OS && rom != null && result.rom > rom) {
+                out.println(result.program + ": " + result.rom + " instructions at " + result.level
+                        + ", more than the " + rom + " at " + Options.Level.O2);
+                oversized++;
+            }
+        }
+        return oversized;
+    }
+
+    /**
+     * @param   current     -   the measured number
+     * @param   baseline    -   its baseline
+     * @param   threshold   -   growth, in percent, that counts as a regression
+     * @return              -   true if current exceeds baseline by more than threshold
+     */
+    private static boolean isRegression(long current, long baseline, double threshold) {
+        return current > baseline * (1 + threshold / 100);
+    }
+}
@@ -0,0 +1,587 @@
+/************************************************************************************
+ *
+ * Class name:    CallGraph
+ * Description:   The whole-program call graph of a VM program: which functions call
+ *                which. Functions on a recursion cycle [a strongly connected component
+ *                of two or more functions, or one that calls itself] are found with
+ *                Tarjan's algorithm.
+ *
+ *                A function that is never on a cycle can't be active twice at once, so
+ *                its arguments and locals can live at fixed RAM addresses [a static
+ *                frame] instead of on the stack. Frames are laid out after the static
+ *                variables in RAM[16..255]:
+ *
+ *                  argument 0..n-1, local 0..k-1, return address, entry SP,
+ *                  saved THIS & THAT [only if the function sets pointer 0/1]
+ *
+ *                Two functions that can never be active together share addresses: each
+ *                frame starts above the frames of every function that can be active
+ *                while it is [its callers, and theirs]. A function only gets a frame
+ *                if it is called with the same number of arguments everywhere, is not
+ *                an entry point [Sys.init, or the first function without bootstrap
+ *                code], and its frame fits below the stack.
+ *
+ *                The graph also records which temp slots a function may read before
+ *                storing to them itself [the shared temps]: only those can carry a
+ *                value from one function into another [see FlowGraph].
+ *
+ *                Finally, it records which of THIS & THAT each function sets, so that a
+ *                call only saves the pointers its callee can clobber. A call's callee
+ *                restores whatever it saved before returning to its caller, so calls
+ *                don't pass clobbers on - but a tail call returns on behalf of its
+ *                caller: functions linked by tail calls [in either direction] form a
+ *                chain, which is treated as one function clobbering what any of them sets.
+ *
+ *                The same pass over the commands feeds the worst-case stack depth
+ *                analysis [see StackDepth], and lists the commands cold code may
+ *                translate as a jump to a shared routine [getSites()]: calls, returns
+ *                that don't end a tail call, and eq/lt/gt comparisons.
+ *
+ * History:       Oct. 19, J, author, recursion analysis & static frame layout
+ *                Oct. 19, J, shared temps, for dead store elimination
+ *                Oct. 19, J, pointers clobbered by each tail call chain, for call/return
+ *                Oct. 19, J, stack depth analysis [getStackDepth]
+ *                Oct. 19, J, shared routine sites [getSites]
+ *
+ * Methods:       Public:   build(File[]), allocateFrames(boolean), isRecursive(String),
+ *                          getFrame(String), getFrameBase(),
+ *                          isSharedTemp(int), getClobberedPointers(String), getStackDepth(),
+ *                          getSites()
+ *
+ *                Private:  CallGraph(), scan(File), function(String), findCycles(Function),
+ *                          findTailChains(), allocate(List, boolean)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+class CallGraph {
+
+    /**
+     * The fixed RAM addresses of a function's arguments, locals & linkage.
+     */
+    static class Frame {
+        final int base;             //  address of argument 0
+        final int numArgs;
+        final int numLocals;
+        final boolean savesPointers;    //  THIS & THAT are saved on entry, restored on return
+
+        Frame(int base, int numArgs, int numLocals, boolean savesPointers) {
+            this.base = base;
+            this.numArgs = numArgs;
+            this.numLocals = numLocals;
+            this.savesPointers = savesPointers;
+        }
+
+        int argument(int index) {
+            return base + index;
+        }
+
+        int local(int index) {
+            return base + numArgs + index;
+        }
+
+        int returnAddress() {
+            return base + numArgs + numLocals;
+        }
+
+        int entrySP() {
+            return returnAddress() + 1;
+        }
+
+        /**
+         * @param   pointer -   0 for THIS, 1 for THAT
+         * @return          -   where the caller's pointer is saved
+         */
+        int savedPointer(int pointer) {
+            return entrySP() + 1 + pointer;
+        }
+
+        int size() {
+            return numArgs + numLocals + (savesPointers ? 4 : 2);
+        }
+    }
+
+    /**
+     * A command that cold code may translate as a jump to a shared routine [see
+     * CodeWriter.setProgram()].
+     */
+    static class Site {
+        final String function;      //  "" for top-level code
+        final String file;          //  the .vm file holding the command
+        final VMCommand command;    //  a call, a return, or eq/lt/gt
+        final int constant;         //  for a call, the constant pushed right before it, or -1
+
+        Site(String function, String file, VMCommand command, int constant) {
+            this.function = function;
+            this.file = file;
+            this.command = command;
+            this.constant = constant;
+        }
+    }
+
+    /**
+     * What the analysis knows about a single function.
+     */
+    private static class Function {
+        final String name;
+        boolean defined;            //  false for functions that are called but not in the program
+        int numLocals;
+        int numArgs = -1;           //  from its call sites, -1 until called
+        boolean argsAgree = true;   //  false if call sites disagree on numArgs
+        int maxArgument = -1;       //  highest argument / local index used
+        int maxLocal = -1;
+        HashSet<String> pointersSet = new HashSet<>();      //  pops into pointer 0/1: THIS, THAT
+        LinkedHashSet<String> callees = new LinkedHashSet<>();
+        LinkedHashSet<String> tailCallees = new LinkedHashSet<>();  //  called right before a return
+
+        //  Tarjan's algorithm
+        int index = -1;
+        int lowLink;
+        boolean onStack;
+        boolean recursive;
+
+        //  Frame layout: the first address free while the function is active
+        int inherited;
+
+        Function(String name) {
+            this.name = name;
+        }
+    }
+
+    /*************
+     * Constants *
+     *************/
+    //  Static variables start here; the stack starts where the static segment ends
+    private static final int STATIC_BASE = 16;
+    private static final int STACK_BASE = 256;
+
+    private static final String ENTRY_FUNCTION = "Sys.init";
+
+    //  The pointers a pop into pointer 0/1 sets
+    private static final String[] POINTERS = { "THIS", "THAT" };
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private LinkedHashMap<String, Function> functions;     //  in program order
+    private HashSet<String> staticVariables;                //  File.i
+    private HashSet<Integer> sharedTemps;       //  temp slots read before this code stores to them
+    private HashMap<String, Frame> frames;
+    private HashMap<String, Set<String>> clobbers;      //  function -> what its tail call chain sets
+    private StackDepth stackDepth;
+    private List<Site> sites;                   //  in program order
+
+    //  Tarjan's algorithm
+    private Deque<Function> stack;
+    private int nextIndex;
+    private List<List<Function>> components;    //  callees before callers
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Creates an empty call graph.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the graph holds no functions
+     */
+    private CallGraph() {
+        functions = new LinkedHashMap<>();
+        staticVariables = new HashSet<>();
+        sharedTemps = new HashSet<>();
+        frames = new HashMap<>();
+        clobbers = new HashMap<>();
+        stackDepth = new StackDepth();
+        sites = new ArrayList<>();
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Builds the call graph of a program and finds its recursion cycles.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   vmFiles -   the .vm files making up the program
+     * @return          -   the call graph, without frames [see allocateFrames()]
+     *
+     * @throws  FileNotFoundException   -   if a file cannot be opened
+     * @throws  NumberFormatException   -   if a command's second argument is not a number
+     */
+    static CallGraph build(File[] vmFiles) throws FileNotFoundException {
+        CallGraph graph = new CallGraph();
+        for( File vmFile : vmFiles ) {
+            graph.scan(vmFile);
+        }
+        graph.stack = new ArrayDeque<>();
+        graph.nextIndex = 0;
+        graph.components = new ArrayList<>();
+        for( Function function : graph.functions.values() ) {
+            if (function.index == -1) {
+                graph.findCycles(function);
+            }
+        }
+        graph.findTailChains();
+        return graph;
+    }
+
+    /**
+     * Gives every function that can do without the stack a static frame.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   getFrame() returns the frame of each such function
+     *
+     * @param   bootstrap   -   true if the program starts by calling Sys.init, false if
+     *                          it starts at its first function instead
+     */
+    void allocateFrames(boolean bootstrap) {
+        frames.clear();
+        //  Tarjan's algorithm finds callees first; lay out callers first
+        List<List<Function>> order = new ArrayList<>(components);
+        Collections.reverse(order);
+        allocate(order, bootstrap);
+    }
+
+    /**
+     * @param   function    -   the name of a VM function
+     * @return              -   true if function can call itself, directly or not
+     */
+    boolean isRecursive(String function) {
+        Function f = functions.get(function);
+        return f != null && f.recursive;
+    }
+
+    /**
+     * @param   function    -   the name of a VM function
+     * @return              -   its static frame, or null if it keeps its frame on the stack
+     */
+    Frame getFrame(String function) {
+        return frames.get(function);
+    }
+
+    /**
+     * Determines whether a temp slot can carry a value between functions: some push
+     * from it is not preceded, within its basic block, by a pop to it.
+     *
+     * @param   index   -   the temp slot
+     * @return          -   true if code may read the slot before storing to it
+     */
+    boolean isSharedTemp(int index) {
+        return sharedTemps.contains(index);
+    }
+
+    /**
+     * Determines which pointers a call to a function must save: those its tail call
+     * chain may set [see the class description].
+     *
+     * @param   function    -   the name of a VM function
+     * @return              -   "THIS" and/or "THAT", or null if function is not in the
+     *                          program [it may set either]
+     */
+    Set<String> getClobberedPointers(String function) {
+        return clobbers.get(function);
+    }
+
+    /**
+     * @return  -   the worst-case stack depth analysis of the program
+     */
+    StackDepth getStackDepth() {
+        return stackDepth;
+    }
+
+    /**
+     * @return  -   the calls [except tail calls], returns & comparisons of the program,
+     *              in program order
+     */
+    List<Site> getSites() {
+        return Collections.unmodifiableList(sites);
+    }
+
+    /**
+     * @return  -   the first address after the static variables, where frames start
+     */
+    int getFrameBase() {
+        return STATIC_BASE + staticVariables.size();
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Records the functions of a .vm file, their calls, and the segments they use.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   every function in vmFile is in the graph
+     *
+     * @param   vmFile  -   the file to scan
+     *
+     * @throws  FileNotFoundException   -   if the file cannot be opened
+     */
+    private void scan(File vmFile) throws FileNotFoundException {
+        String fileName = vmFile.getName();
+        int extIndex = fileName.indexOf(".");
+        if (extIndex != -1) {
+            fileName = fileName.substring(0, extIndex);
+        }
+        Parser parser = new Parser(vmFile.getPath());
+        Function current = null;        //  null = top-level code
+        String lastCallee = null;       //  the previous command's, if it was a call
+        VMCommand previous = null;
+        HashSet<Integer> tempsStored = new HashSet<>();     //  so far in the basic block
+        while (parser.hasMoreCommands()) {
+            parser.advance();
+            if (parser.getCommandType() == Parser.Command.C_NONE) {
+                continue;
+            }
+            VMCommand command = new VMCommand(parser);
+            stackDepth.add(command);
+            if (command.type != Parser.Command.C_PUSH && command.type != Parser.Command.C_POP
+                    && command.type != Parser.Command.C_ARITHMETIC) {
+                tempsStored.clear();        //  a new block, or a call
+            }
+            switch (command.type) {
+                case C_FUNCTION:
+                    current = function(command.arg1);
+                    current.defined = true;
+                    current.numLocals = command.arg2;
+                    break;
+                case C_CALL:
+                    Function callee = function(command.arg1);
+                    if (callee.numArgs == -1) {
+                        callee.numArgs = command.arg2;
+                    } else if (callee.numArgs != command.arg2) {
+                        callee.argsAgree = false;
+                    }
+                    if (current != null) {
+                        current.callees.add(command.arg1);
+                    }
+                    boolean constant = previous != null && previous.type == Parser.Command.C_PUSH
+                            && previous.arg1.equalsIgnoreCase("constant");
+                    sites.add(new Site(current == null ? "" : current.name, fileName + ".vm", command,
+                            constant ? previous.arg2 : -1));
+                    lastCallee = command.arg1;
+                    previous = command;
+                    continue;
+                case C_RETURN:
+                    if (lastCallee != null) {
+                        //  A tail call: neither the call nor the return is written
+                        sites.remove(sites.size() - 1);
+                        if (current != null) {
+                            current.tailCallees.add(lastCallee);
+                        }
+                    } else {
+                        sites.add(new Site(current == null ? "" : current.name, fileName + ".vm", command, -1));
+                    }
+                    break;
+                case C_ARITHMETIC:
+                    String operator = command.command.toLowerCase();
+                    if (operator.equals("eq") || operator.equals("lt") || operator.equals("gt")) {
+                        sites.add(new Site(current == null ? "" : current.name, fileName + ".vm", command, -1));
+                    }
+                    break;
+                case C_PUSH:
+                case C_POP:
+                    String segment = command.arg1.toLowerCase();
+                    if (segment.equals("static")) {
+                        staticVariables.add(fileName + "." + command.arg2);
+                    } else if (segment.equals("temp")) {
+                        if (command.type == Parser.Command.C_POP) {
+                            tempsStored.add(command.arg2);
+                        } else if (!tempsStored.contains(command.arg2)) {
+                            sharedTemps.add(command.arg2);
+                        }
+                    } else if (current == null) {
+                        break;
+                    } else if (segment.equals("argument")) {
+                        current.maxArgument = Math.max(current.maxArgument, command.arg2);
+                    } else if (segment.equals("local")) {
+                        current.maxLocal = Math.max(current.maxLocal, command.arg2);
+                    } else if (segment.equals("pointer") && command.type == Parser.Command.C_POP
+                            && command.arg2 < POINTERS.length) {
+                        current.pointersSet.add(POINTERS[command.arg2]);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            lastCallee = null;
+            previous = command;
+        }
+        stackDepth.endFile();
+    }
+
+    /**
+     * @param   name    -   the name of a VM function
+     * @return          -   its node, created on first use
+     */
+    private Function function(String name) {
+        Function f = functions.get(name);
+        if (f == null) {
+            f = new Function(name);
+            functions.put(name, f);
+        }
+        return f;
+    }
+
+    /**
+     * Tarjan's algorithm: finds the strongly connected components reachable from a
+     * function, marking those that form a cycle as recursive.
+     *
+     * PRECONDITION:    function has not been visited
+     * POSTCONDITION:   components holds every component reachable from function,
+     *                  each after the components it calls into
+     *
+     * @param   function    -   the function to start from
+     */
+    private void findCycles(Function function) {
+        function.index = nextIndex;
+        function.lowLink = nextIndex;
+        nextIndex++;
+        stack.push(function);
+        function.onStack = true;
+
+        for( String name : function.callees ) {
+            Function callee = functions.get(name);
+            if (callee.index == -1) {
+                findCycles(callee);
+                function.lowLink = Math.min(function.lowLink, callee.lowLink);
+            } else if (callee.onStack) {
+                function.lowLink = Math.min(function.lowLink, callee.index);
+            }
+        }
+
+        if (function.lowLink == function.index) {
+            //  function is the root of a component: pop it off
+            List<Function> component = new ArrayList<>();
+            Function member;
+            do {
+                member = stack.pop();
+                member.onStack = false;
+                component.add(member);
+            } while (member != function);
+            for( Function f : component ) {
+                f.recursive = component.size() > 1 || f.callees.contains(f.name);
+            }
+            components.add(component);
+        }
+    }
+
+    /**
+     * Finds the pointers each tail call chain sets: the chains are the connected
+     * components of the tail calls between functions in the program, direction ignored.
+     *
+     * PRECONDITION:    every file has been scanned
+     * POSTCONDITION:   clobbers holds the pointers of every function in the program
+     */
+    private void findTailChains() {
+        //  Tail calls in both directions
+        HashMap<String, Set<String>> linked = new HashMap<>();
+        for( Function f : functions.values() ) {
+            linked.put(f.name, new HashSet<String>());
+        }
+        for( Function f : functions.values() ) {
+            for( String name : f.tailCallees ) {
+                if (functions.get(name).defined) {
+                    linked.get(f.name).add(name);
+                    linked.get(name).add(f.name);
+                }
+            }
+        }
+
+        for( Function f : functions.values() ) {
+            if (!f.defined || clobbers.containsKey(f.name)) {
+                continue;
+            }
+            //  Collect the chain of f, and what its functions set
+            List<String> chain = new ArrayList<>();
+            HashSet<String> pointers = new HashSet<>();
+            Deque<String> work = new ArrayDeque<>();
+            HashSet<String> found = new HashSet<>();
+            work.push(f.name);
+            found.add(f.name);
+            while (!work.isEmpty()) {
+                String name = work.pop();
+                chain.add(name);
+                pointers.addAll(functions.get(name).pointersSet);
+                for( String next : linked.get(name) ) {
+                    if (found.add(next)) {
+                        work.push(next);
+                    }
+                }
+            }
+            Set<String> clobbered = Collections.unmodifiableSet(pointers);
+            for( String name : chain ) {
+                clobbers.put(name, clobbered);
+            }
+        }
+    }
+
+    /**
+     * Lays out static frames, one component at a time.
+     *
+     * PRECONDITION:    order holds every component, each before the components it calls into
+     * POSTCONDITION:   frames holds the frame of every function that gets one
+     *
+     * @param   order       -   the components of the graph, callers first
+     * @param   bootstrap   -   true if the program starts by calling Sys.init
+     */
+    private void allocate(List<List<Function>> order, boolean bootstrap) {
+        String first = null;       //  entered without a call
+        if (!bootstrap) {
+            for( Function f : functions.values() ) {
+                if (f.defined) {
+                    first = f.name;
+                    break;
+                }
+            }
+        }
+        for( Function f : functions.values() ) {
+            f.inherited = getFrameBase();
+        }
+
+        for( List<Function> component : order ) {
+            int inherited = getFrameBase();
+            for( Function f : component ) {
+                inherited = Math.max(inherited, f.inherited);
+            }
+            int live = inherited;
+            Function f = component.get(0);
+            if (f.defined && !f.recursive && f.numArgs != -1 && f.argsAgree
+                    && f.maxArgument < f.numArgs && f.maxLocal < f.numLocals
+                    && !f.name.equals(ENTRY_FUNCTION) && !f.name.equals(first)) {
+                Frame frame = new Frame(inherited, f.numArgs, f.numLocals, !f.pointersSet.isEmpty());
+                if (inherited + frame.size() <= STACK_BASE) {
+                    frames.put(f.name, frame);
+                    live = inherited + frame.size();
+                }
+            }
+            //  Whatever this component calls can be active at the same time
+            for( Function member : component ) {
+                for( String name : member.callees ) {
+                    Function callee = functions.get(name);
+                    if (!component.contains(callee)) {
+                        callee.inherited = Math.max(callee.inherited, live);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/************************************************************************************
+ *
+ * Class name:    ClassFileWriter
+ * Description:   Builds a JVM class file in memory, just enough of the format for
+ *                HackCompiler: a constant pool, and methods holding bytecode with
+ *                forward & backward jumps to labels. Class files are written as
+ *                version 49 (Java 5), which the JVM verifies by type inference,
+ *                so no stack map frames have to be computed.
+ *
+ * History:       Oct. 19, J, author
+ *
+ * Methods:       Public:   ClassFileWriter(String, String), newCode(int, int),
+ *                          addMethod(int, String, String, Code), classRef(String),
+ *                          fieldRef(String, String, String), methodRef(String, String, String),
+ *                          toByteArray()
+ *
+ *                Private:  utf8(String), nameAndType(String, String), integer(int),
+ *                          entry(String, int, byte[]), u2Bytes(int...)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+class ClassFileWriter {
+
+    /**
+     * A jump target within a method's bytecode.
+     */
+    static class Label {
+        int position = -1;      //  bytecode offset, -1 until marked
+    }
+
+    /**
+     * The bytecode of a single method, with helpers for the instructions HackCompiler uses.
+     * Branch offsets to labels are patched in by finish().
+     */
+    static class Code {
+        private final ClassFileWriter owner;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final List<int[]> fixups = new ArrayList<>();       //  {opcode offset, field offset, width}
+        private final List<Label> fixupLabels = new ArrayList<>();
+        final int maxStack;
+        final int maxLocals;
+
+        Code(ClassFileWriter owner, int maxStack, int maxLocals) {
+            this.owner = owner;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        /**
+         * @return  -   the offset of the next instruction
+         */
+        int position() {
+            return bytes.size();
+        }
+
+        /**
+         * Writes a single byte [an opcode or operand].
+         */
+        Code op(int value) {
+            bytes.write(value);
+            return this;
+        }
+
+        /**
+         * Writes a 2-byte operand.
+         */
+        Code u2(int value) {
+            bytes.write(value >>> 8);
+            bytes.write(value);
+            return this;
+        }
+
+        /**
+         * Writes a 4-byte operand.
+         */
+        Code u4(int value) {
+            u2(value >>> 16);
+            return u2(value);
+        }
+
+        /**
+         * Pushes an int constant, using the shortest form available.
+         */
+        Code pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                return op(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                return op(BIPUSH).op(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                return op(SIPUSH).u2(value);
+            }
+            return op(LDC_W).u2(owner.integer(value));
+        }
+
+        /**
+         * Writes an instruction taking a local variable index [iload, istore, ...].
+         */
+        Code local(int opcode, int index) {
+            return op(opcode).op(index);
+        }
+
+        /**
+         * Writes an instruction taking a constant pool index [getfield, invoke*, ...].
+         */
+        Code ref(int opcode, int poolIndex) {
+            return op(opcode).u2(poolIndex);
+        }
+
+        /**
+         * Writes a branch to label. Conditional branches reach +/- 32K;
+         * goto_w reaches anywhere within the method.
+         */
+        Code jump(int opcode, Label label) {
+            int start = position();
+            op(opcode);
+            int width = opcode == GOTO_W ? 4 : 2;
+            fixups.add(new int[] {start, position(), width});
+            fixupLabels.add(label);
+            return width == 4 ? u4(0) : u2(0);
+        }
+
+        /**
+         * Writes a tableswitch over [low, low + targets.length).
+         */
+        Code tableSwitch(int low, Label defaultLabel, Label[] targets) {
+            int start = position();
+            op(TABLESWITCH);
+            while (position() % 4 != 0) {
+                op(0);      //  operands are 4-byte aligned
+            }
+            fixups.add(new int[] {start, position(), 4});
+            fixupLabels.add(defaultLabel);
+            u4(0);
+            u4(low);
+            u4(low + targets.length - 1);
+            for( Label target : targets ) {
+                fixups.add(new int[] {start, position(), 4});
+                fixupLabels.add(target);
+                u4(0);
+            }
+            return this;
+        }
+
+        /**
+         * Marks label as the position of the next instruction.
+         */
+        Code mark(Label label) {
+            label.position = position();
+            return this;
+        }
+
+        /**
+         * @return  -   the bytecode, with every branch offset filled in
+         *
+         * @throws  IllegalStateException   -   if a label was never marked or is out of reach
+         */
+        byte[] finish() {
+            byte[] code = bytes.toByteArray();
+            for(int i = 0; i < fixups.size(); i++) {
+                int[] fixup = fixups.get(i);
+                Label label = fixupLabels.get(i);
+                if (label.position < 0) {
+                    throw new IllegalStateException("Unmarked label in generated code");
+                }
+                int offset = label.position - fixup[0];
+                if (fixup[2] == 2 && (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)) {
+                    throw new IllegalStateException("Branch out of reach in generated code");
+                }
+                for(int b = 0; b < fixup[2]; b++) {
+                    code[fixup[1] + b] = (byte) (offset >> (8 * (fixup[2] - 1 - b)));
+                }
+            }
+            return code;
+        }
+    }
+
+    /*************
+     * Constants *
+     *************/
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    //  Opcodes
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int LLOAD = 0x16;
+    static final int ALOAD = 0x19;
+    static final int SALOAD = 0x35;
+    static final int ISTORE = 0x36;
+    static final int LSTORE = 0x37;
+    static final int SASTORE = 0x56;
+    static final int IADD = 0x60;
+    static final int LADD = 0x61;
+    static final int ISUB = 0x64;
+    static final int INEG = 0x74;
+    static final int IAND = 0x7e;
+    static final int IOR = 0x80;
+    static final int IXOR = 0x82;
+    static final int I2L = 0x85;
+    static final int I2S = 0x93;
+    static final int LCMP = 0x94;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int TABLESWITCH = 0xaa;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int GOTO_W = 0xc8;
+
+    //  Class file format
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int VERSION = 49;
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private final String thisClass;         //  internal names, e.g. java/lang/Object
+    private final String superClass;
+    private ByteArrayOutputStream pool;     //  constant pool entries
+    private int poolCount;                  //  next constant pool index
+    private HashMap<String, Integer> poolIndex;
+    private ByteArrayOutputStream methods;
+    private int methodCount;
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Starts a public class.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the class has no methods yet
+     *
+     * @param   thisClass   -   the internal name of the class [slashes, not dots]
+     * @param   superClass  -   the internal name of its superclass
+     */
+    ClassFileWriter(String thisClass, String superClass) {
+        this.thisClass = thisClass;
+        this.superClass = superClass;
+        pool = new ByteArrayOutputStream();
+        poolCount = 1;
+        poolIndex = new HashMap<>();
+        methods = new ByteArrayOutputStream();
+        methodCount = 0;
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Starts the bytecode of a method; pass it to addMethod() once written.
+     *
+     * @param   maxStack    -   the deepest the operand stack gets
+     * @param   maxLocals   -   the number of local variable slots [incl. this & parameters]
+     * @return              -   an empty Code
+     */
+    Code newCode(int maxStack, int maxLocals) {
+        return new Code(this, maxStack, maxLocals);
+    }
+
+    /**
+     * Adds a method to the class.
+     *
+     * PRECONDITION:    every label used in code has been marked
+     * POSTCONDITION:   the method is part of the class
+     *
+     * @param   access      -   ACC_* flags
+     * @param   name        -   the method name
+     * @param   descriptor  -   the method descriptor, e.g. (I)V
+     * @param   code        -   the method's bytecode
+     */
+    void addMethod(int access, String name, String descriptor, Code code) {
+        byte[] bytecode = code.finish();
+        if (bytecode.length > 65535) {
+            throw new IllegalStateException("Generated method " + name + " is too large");
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(methods);
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);                      //  attributes: Code
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + bytecode.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(bytecode.length);
+            out.write(bytecode);
+            out.writeShort(0);                      //  exception table
+            out.writeShort(0);                      //  attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);     //  not thrown by ByteArrayOutputStream
+        }
+        methodCount++;
+    }
+
+    /**
+     * @param   name    -   the internal name of a class
+     * @return          -   the constant pool index of the class
+     */
+    int classRef(String name) {
+        return entry("C" + name, CONSTANT_CLASS, u2Bytes(utf8(name)));
+    }
+
+    /**
+     * @return  -   the constant pool index of the field owner.name:descriptor
+     */
+    int fieldRef(String owner, String name, String descriptor) {
+        return entry("F" + owner + "." + name + ":" + descriptor, CONSTANT_FIELDREF,
+                u2Bytes(classRef(owner), nameAndType(name, descriptor)));
+    }
+
+    /**
+     * @return  -   the constant pool index of the method owner.name:descriptor
+     */
+    int methodRef(String owner, String name, String descriptor) {
+        return entry("M" + owner + "." + name + ":" + descriptor, CONSTANT_METHODREF,
+                u2Bytes(classRef(owner), nameAndType(name, descriptor)));
+    }
+
+    /**
+     * @return  -   the complete class file
+     */
+    byte[] toByteArray() {
+        int thisIndex = classRef(thisClass);
+        int superIndex = classRef(superClass);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(0);                      //  interfaces
+            out.writeShort(0);                      //  fields
+            out.writeShort(methodCount);
+            methods.writeTo(out);
+            out.writeShort(0);                      //  attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);     //  not thrown by ByteArrayOutputStream
+        }
+        return bytes.toByteArray();
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * @return  -   the constant pool index of the UTF-8 string text
+     */
+    private int utf8(String text) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            new DataOutputStream(bytes).writeUTF(text);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return entry("U" + text, CONSTANT_UTF8, bytes.toByteArray());
+    }
+
+    /**
+     * @return  -   the constant pool index of the name & type pair
+     */
+    private int nameAndType(String name, String descriptor) {
+        return entry("N" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE,
+                u2Bytes(utf8(name), utf8(descriptor)));
+    }
+
+    /**
+     * @return  -   the constant pool index of the int constant value
+     */
+    private int integer(int value) {
+        return entry("I" + value, CONSTANT_INTEGER,
+                new byte[] {(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value});
+    }
+
+    /**
+     * Adds a constant pool entry, unless an equal one exists.
+     *
+     * @param   key     -   identifies the entry
+     * @param   tag     -   the CONSTANT_* tag
+     * @param   body    -   the bytes following the tag
+     * @return          -   the index of the entry
+     */
+    private int entry(String key, int tag, byte[] body) {
+        Integer index = poolIndex.get(key);
+        if (index == null) {
+            index = poolCount++;
+            pool.write(tag);
+            pool.write(body, 0, body.length);
+            poolIndex.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * @return  -   the given values as big-endian 2-byte values
+     */
+    private static byte[] u2Bytes(int... values) {
+        byte[] bytes = new byte[values.length * 2];
+        for(int i = 0; i < values.length; i++) {
+            bytes[2 * i] = (byte) (values[i] >> 8);
+            bytes[2 * i + 1] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
+
@@ -11,49 +11,155 @@
  *				  Mar. 18, J, filled in stubs - 1st attempt at Part 2 translation
  *				  Mar. 20, J, finalized write methods & label translation/handling
  *				  Mar. 27, J, added badly-needed comments, updated documentation
+ *				  Oct. 19, J, added tail calls (writeTailCall) & the shared $TAILCALL routine
+ *				  Oct. 19, J, made translator & labelCounter per instance for batch translation
+ *				  Oct. 19, J, added stream constructors (OutputStream, WritableByteChannel)
+ *				  Oct. 19, J, added source map recording (setSourceMap, setSourceLine)
+ *				  Oct. 19, J, added profile-guided translation (setProfile): cold code jumps to the
+ *							, shared $CALL, $RETURN & $EQ/$LT/$GT routines
+ *				  Oct. 19, J, added compact labels (LabelTable), every label goes through symbol()
+ *				  Oct. 19, J, added optimization levels (setLevel, setOptimizedFunctions, getLevel):
+ *							, -Os sends all code to the shared routines, -O0 none
+ *				  Oct. 19, J, added the virtual stack pointer at -O2: a pushed value stays pending
+ *							, at RAM[SP] until popped or a block boundary, call or return
+ *							, commits it; compact function prologues
+ *				  Oct. 19, J, added static frames at -O2 (setProgram): functions that never
+ *							, recurse keep their arguments & locals at fixed addresses [CallGraph]
+ *				  Oct. 19, J, -Os holds the output back until close() and outlines repeated
+ *							, sequences [Outliner]; return points are loaded by label then
+ *				  Oct. 19, J, added intrinsics (writeIntrinsic): Math.multiply & Math.divide by
+ *							, a constant, Memory.peek & Memory.poke are written inline
+ *				  Oct. 19, J, added in-RAM execution counters (setCounters): functions, call
+ *							, sites & optionally labels increment a counter [Counters]
+ *				  Oct. 19, J, added getRomSize() for the benchmark suite [Benchmark]
+ *				  Oct. 19, J, added writeDiscard() for stores removed by dead store
+ *							, elimination; the call graph is built from -O1 on [getCallGraph]
+ *				  Oct. 19, J, calls only save THIS & THAT if the callee's tail call chain can
+ *							, set them, and returns only restore what was saved [savedPointers]
+ *				  Oct. 19, J, loops keep segment addresses in R13 & R14 [writeAddressCache]
+ *				  Oct. 19, J, added writeArrayRead() & writeArrayWrite() for the Jack compiler's
+ *							, array access idioms
+ *				  Oct. 19, J, the call graph is built at every level, for the stack depth bound
+ *				  Oct. 19, J, common pushes, pops & operators are written from pre-rendered
+ *							, text [TemplateCache]
+ *				  Oct. 19, J, added setRelocatable(): return points are loaded by label, so
+ *							, the code can be moved [see ObjectFile]
+ *				  Oct. 19, J, with a profile, a shared routine is only used if two or more cold
+ *							, sites would jump to it [countSharedSites, shares]
+ *				  Oct. 19, J, likewise at -Os
+ *				  Oct. 19, J, -Os also uses the virtual stack pointer, static frames & loop
+ *							, address caches, which shrink the code before it is outlined
  *
  * Methods:       Public:   CodeWriter(File, String, boolean),
- *                          setFileName(String), close(),
+ *                          CodeWriter(File, String, boolean, LabelTable),
+ *                          CodeWriter(OutputStream, String, boolean),
+ *                          CodeWriter(OutputStream, String, boolean, LabelTable),
+ *                          CodeWriter(WritableByteChannel, String, boolean),
+ *                          setFileName(String), close(), checkError(),
+ *                          setSourceMap(SourceMap), setSourceLine(int), setProfile(Profile),
+ *                          setLevel(Options.Level), setOptimizedFunctions(Set), getLevel(String),
+ *                          getRomSize(), setRelocatable(boolean),
  *                          writeArithmetic(String),
  *                          writePushPop(Parser.Command, String, int),
  * 							writeLabel(String), writeGoto(String),
  * 							writeIfGoto(String), writeCall(String, int),
- * 							writeReturn(), writeFunction(String, int)
+ * 							writeReturn(), writeFunction(String, int),
+ * 							writeTailCall(String, int), setIntrinsics(boolean),
+ * 							writeIntrinsic(String, int), writeIntrinsic(String, int, int),
+ * 							setCounters(Counters, boolean), writeDiscard(),
+ * 							setProgram(File[]), getCallGraph(), hasStaticFrame(String),
+ * 							writeAddressCache(Map), clearAddressCache(),
+ * 							writeArrayRead(boolean), writeArrayWrite(boolean, boolean)
  *
- *                Private:  initTranslator(),
- *							getBranchLabel(), getStaticLabel(int), getProperLabel(String),
- *							writeBootstrap(), writeIndexOffset(String, int),
+ *                Private:  initialize(boolean, LabelTable), initTranslator(), initTemplates(),
+ *							writeOperator(String), writeSegment(Parser.Command, String, int),
+ *							render(Parser.Command, String, int), writeTemplate(TemplateCache.Template),
+ *							markSource(), isCold(), isColdFunction(String), shares(String),
+ *							countSharedSites(), returnRoutine(String),
+ *							isVirtualSP(), staticFrame(String), returnPoint(int), writeOutlined(),
+ *							getBranchLabel(), getStaticLabel(int), getProperLabel(String), symbol(String),
+ *							writeBootstrap(), writeStaticCall(String, CallGraph.Frame, int),
+ *							writeStaticReturn(CallGraph.Frame), writeStaticPrologue(CallGraph.Frame),
+ *							writeTailCallRoutine(), writeTailCallSetup(),
+ *							writeTailCallCopy(String, String), writeSharedRoutines(),
+ *							savedPointers(String), writeCallRoutine(), writeReturnBody(Set),
+ *							writeInequalityRoutine(String),
+ *							writeIndexOffset(String, int),
  *							writePushPointer(String), writeRestorePointer(String),
- *                          writePopD(), writePopToMem(String, int), writePopToStatic(int),
+ *                          writePopD(), writePopToMem(String, int), writePopToVariable(String),
  *                          writePushD(), writePushConstant(int),
- *                          writePushMemory(String, int), writePushStatic(int),
- *                          writeBinaryOp(String), writeUnaryOp(), writeInequality(String)
+ *                          writePushMemory(String, int), writePushVariable(String),
+ *                          writeBinaryOp(String), writeUnaryOp(), writeInequality(String),
+ *                          writeStackPushD(), writeStackPopD(), writeVirtualPush(String),
+ *                          writeVirtualPopD(), writeCommitSP(), writeVirtualPrologue(int),
+ *                          writeTopAddress(), writeMultiply(int),
+ *                          writeCounter(String, String), writeCallCounter(String)
  *
  ************************************************************************************/
 package edu.miracosta.cs220;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.io.StringWriter;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 class CodeWriter {
     /*******************************
      * Class Variables & Constants *
      *******************************/
-    //  Stores VM commands & memory segments as keys and their assembly translations as values
-    private static HashMap<String, String> translator;
-
-    //  Used in generating branch labels (_#)
-    private static int labelCounter = 1;
-
     //	Starting memory addresses for the temp and pointer virtual segments
     private static final String POINTER_LOC = "3";
     private static final String TEMP_LOC = "5";
 
+    //	Size (in chars) of the output buffer when writing to a stream
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    //	Entry label of the shared routine that performs tail calls
+    private static final String TAIL_CALL_LABEL = "$TAILCALL";
+
+    //	Entry labels of the shared routines used by cold code [see setProfile()]
+    private static final String CALL_LABEL = "$CALL";
+    private static final String RETURN_LABEL = "$RETURN";
+
+    //	The pointers a call saves in the frame, besides LCL & ARG [see savedPointers()]
+    private static final Set<String> FRAME_POINTERS =
+            Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList("THIS", "THAT")));
+
+    //	Jack OS functions that can be written inline [see writeIntrinsic()] -> their numArgs
+    private static final HashMap<String, Integer> INTRINSICS = new HashMap<>();
+    static {
+        INTRINSICS.put("Math.multiply", 2);
+        INTRINSICS.put("Math.divide", 2);
+        INTRINSICS.put("Memory.peek", 1);
+        INTRINSICS.put("Memory.poke", 2);
+    }
+
     /**********************
      * Instance Variables *
      **********************/
+    //  Stores VM commands & memory segments as keys and their assembly translations as values
+    //  NOTE:   per instance, so several CodeWriters can translate on separate threads
+    private HashMap<String, String> translator;
+
+    //	Pre-rendered text of common commands [see TemplateCache]
+    private TemplateCache templates;
+
+    //  Used in generating branch labels (_#)
+    private int labelCounter;
+
     private PrintWriter outputFile;
     private String curVMfileName;   //  name of current .vm file being translated
     private String curFunction;		//	name of the current function
@@ -62,6 +168,59 @@ class CodeWriter {
     //	NOTE:	only increment for A & C-Instructions!
     private int romAddress;
 
+    //	true once a tail call has been written -> the $TAILCALL routine is needed
+    private boolean tailCallWritten;
+
+    //	Records where each instruction came from, or null if not wanted
+    private SourceMap sourceMap;
+    private int sourceLine;			//	line of the VM command being translated
+
+    //	Execution counts deciding hot vs. cold code, or null to treat all code as hot
+    private Profile profile;
+
+    //	Shared routines needed by cold code so far: $CALL, $RETURN, $EQ, $LT, $GT
+    private LinkedHashSet<String> routinesNeeded;
+    private boolean shareCalls;		//	cold call sites use $CALL
+    private boolean shareFunctions;	//	cold functions use $RETURN & $EQ/$LT/$GT
+    private Set<String> sharedRoutines;	//	those with two or more cold sites [null = not counted]
+
+    //	Short names for all labels, or null to write labels in full
+    private LabelTable labelTable;
+
+    //	Optimization level, and the only functions it applies to [null = all; others get -O0]
+    private Options.Level level;
+    private Set<String> optimizedFunctions;
+
+    //	Virtual stack pointer [-O2 & -Os]: the top of the stack is at RAM[SP] + spOffset, 0 or 1
+    //	[a pushed value not yet counted in SP]. Each further step away from RAM[SP] would
+    //	cost an instruction to address, as Hack has no indexed addressing.
+    //	NOTE:	always 0 at labels, jumps, calls & returns, and below -O2
+    private int spOffset;
+
+    //	Addresses kept in a register while a loop runs [see LoopCache]: "segment index" -> register
+    private HashMap<String, String> cachedAddresses;
+
+    //	The program's call graph [-O1 & up], or null for none
+    private CallGraph callGraph;
+    private boolean bootstrap;		//	the program starts by calling Sys.init
+
+    //	Trivial OS calls are written inline, except at -O0
+    private boolean intrinsics;
+
+    //	In-RAM execution counters, or null for none; labels are only counted if countLabels
+    private Counters counters;
+    private boolean countLabels;
+
+    //	-Os: the output is held back in outlineBuffer until close(), then outlined
+    private PrintWriter finalOutput;	//	where the outlined program goes, or null if not outlining
+    private StringWriter outlineBuffer;
+    private int outlineStart;			//	romAddress of the first held back instruction
+    private BitSet keepInPlace;			//	held back instructions of functions not at -Os
+    private int keepFrom;				//	romAddress where the current run of them began, or -1
+
+    //	Code addresses are only ever loaded by label [the code will be moved, see ObjectFile]
+    private boolean relocatable;
+
     /****************
      * Constructors *
      ****************/
@@ -81,6 +240,28 @@ class CodeWriter {
      * @throws  FileNotFoundException   -   if outFileName could not be opened or == null
      */
     CodeWriter(File dir, String outFileName, boolean bootstrap) throws FileNotFoundException {
+        this(dir, outFileName, bootstrap, null);
+    }
+
+    /**
+     * Opens output file and prepares to write to it, giving every label [function,
+     * branch, return point & shared routine] a short generated name from labelTable
+     * instead of its full name.
+     *
+     * PRECONDITION:    outFileName's extension is .asm
+     * POSTCONDITION:   the file stream for outFileName is ready to be written to
+     *                  or a FileNotFoundException has been thrown
+     *
+     * @param	dir		-	the name of the directory to write the file to
+     * @param   outFileName -   the name of the file to be opened and written to
+     * @param	bootstrap	-	true to include bootstrap code in outFileName,
+     *							false to not include it
+     * @param	labelTable	-	the table to intern labels into, or null to write labels in full
+     *
+     * @throws  FileNotFoundException   -   if outFileName could not be opened or == null
+     */
+    CodeWriter(File dir, String outFileName, boolean bootstrap, LabelTable labelTable)
+            throws FileNotFoundException {
         if (outFileName == null) {
             throw new FileNotFoundException("File name not specified in CodeWriter constructor.");
         } else {
@@ -88,9 +269,93 @@ class CodeWriter {
             outputFile = new PrintWriter(new File(dir, outFileName));
             curVMfileName = outFileName;
         }
+        initialize(bootstrap, labelTable);
+    }
+
+    /**
+     * Prepares to write to an already open output stream, such as stdout.
+     * ->	Output is buffered in a bounded buffer and written out as it fills,
+     * 		so the stream receives code while translation is still going on.
+     *
+     * PRECONDITION:    out is not null
+     * POSTCONDITION:   the stream is ready to be written to
+     *
+     * @param   out         -   the stream to write assembly code to
+     * @param   programName -   the name of the program being translated
+     * @param	bootstrap	-	true to include bootstrap code, false to not include it
+     */
+    CodeWriter(OutputStream out, String programName, boolean bootstrap) {
+        this(out, programName, bootstrap, null);
+    }
+
+    /**
+     * Prepares to write to an already open output stream, giving every label a
+     * short generated name from labelTable instead of its full name.
+     *
+     * PRECONDITION:    out is not null
+     * POSTCONDITION:   the stream is ready to be written to
+     *
+     * @param   out         -   the stream to write assembly code to
+     * @param   programName -   the name of the program being translated
+     * @param	bootstrap	-	true to include bootstrap code, false to not include it
+     * @param	labelTable	-	the table to intern labels into, or null to write labels in full
+     */
+    CodeWriter(OutputStream out, String programName, boolean bootstrap, LabelTable labelTable) {
+        outputFile = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out), STREAM_BUFFER_SIZE));
+        curVMfileName = programName;
+        initialize(bootstrap, labelTable);
+    }
+
+    /**
+     * Prepares to write to an already open channel.
+     *
+     * PRECONDITION:    channel is not null
+     * POSTCONDITION:   the channel is ready to be written to
+     *
+     * @param   channel     -   the channel to write assembly code to
+     * @param   programName -   the name of the program being translated
+     * @param	bootstrap	-	true to include bootstrap code, false to not include it
+     */
+    CodeWriter(WritableByteChannel channel, String programName, boolean bootstrap) {
+        this(Channels.newOutputStream(channel), programName, bootstrap);
+    }
+
+    /**
+     * Sets up the state shared by all constructors.
+     *
+     * PRECONDITION:    outputFile has been opened
+     * POSTCONDITION:   the code writer is ready to translate, and bootstrap code
+     *                  has been written if requested
+     *
+     * @param	bootstrap	-	true to include bootstrap code, false to not include it
+     * @param	labelTable	-	the table to intern labels into, or null to write labels in full
+     */
+    private void initialize(boolean bootstrap, LabelTable labelTable) {
         curFunction = "";
         romAddress = 0;
+        labelCounter = 1;
+        tailCallWritten = false;
+        sourceMap = null;
+        sourceLine = 0;
+        profile = null;
+        routinesNeeded = new LinkedHashSet<>();
+        shareCalls = false;
+        shareFunctions = false;
+        sharedRoutines = null;
+        this.labelTable = labelTable;
+        level = Options.Level.O1;
+        optimizedFunctions = null;
+        spOffset = 0;
+        cachedAddresses = new HashMap<>();
+        callGraph = null;
+        this.bootstrap = bootstrap;
+        finalOutput = null;
+        intrinsics = true;
+        counters = null;
+        countLabels = false;
+        relocatable = false;
         initTranslator();   //  Build VM commands/segments -> assembly variants
+        initTemplates();
         if (bootstrap) {
             writeBootstrap();
         }
@@ -118,11 +383,26 @@ class CodeWriter {
 
     /**
      * Closes the output file.
+     * ->	If any tail calls or cold code were written, the shared routines they
+     * 		jump to are appended first. (They are only ever reached by a jump.)
      *
      * PRECONDITION:    N/A
      * POSTCONDITION:   outputFile has been closed or was already closed
      */
     void close() {
+        writeCommitSP();
+        if (tailCallWritten || !routinesNeeded.isEmpty()) {
+            sourceLine = 0;			//	generated code
+            curFunction = "";
+            markSource();
+            writeSharedRoutines();
+        }
+        if (sourceMap != null) {
+            sourceMap.finish(romAddress);
+        }
+        if (finalOutput != null) {
+            writeOutlined();
+        }
         try {
             outputFile.close();
         } catch (IllegalStateException e) {
@@ -130,6 +410,205 @@ class CodeWriter {
         }
     }
 
+    /**
+     * Reports whether writing the output has failed. [PrintWriter never throws]
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the output has been flushed, unless it was closed
+     *
+     * @return  -   true if an error occurred while writing, false otherwise
+     */
+    boolean checkError() {
+        return outputFile.checkError() || (finalOutput != null && finalOutput.checkError());
+    }
+
+    /**
+     * Starts recording the VM file, line, and function each instruction is translated
+     * from into the given source map. Anything already written [bootstrap code]
+     * is recorded as generated code.
+     *
+     * PRECONDITION:    map is not null
+     * POSTCONDITION:   instructions written from now on are recorded in map, which is
+     *                  complete once close() has been called
+     *
+     * @param   map -   the source map to fill in
+     */
+    void setSourceMap(SourceMap map) {
+        sourceMap = map;
+        sourceMap.mark(0, "", 0, "");
+        markSource();
+    }
+
+    /**
+     * Informs the code writer of the line the next VM command comes from.
+     *
+     * PRECONDITION:    setFileName() has been called for the current .vm file
+     * POSTCONDITION:   if a source map is being recorded, the next instructions are
+     *                  attributed to line of the current file and function
+     *
+     * @param   line    -   the 1-based line number of the next VM command
+     */
+    void setSourceLine(int line) {
+        sourceLine = line;
+        markSource();
+    }
+
+    /**
+     * Translates according to the given execution profile [see Profiler].
+     * ->	Hot call sites & functions keep their inline translation, which is fastest.
+     * 		Cold ones - including code that never ran - are translated for size:
+     * 		calls, returns, and eq/lt/gt comparisons jump to shared routines
+     * 		[$CALL, $RETURN, $EQ, $LT, $GT] written once by close(). A routine is
+     * 		only used if two or more cold sites in the program would jump to it
+     * 		[see setProgram()]; without the program, if the profile holds two or more
+     * 		cold call sites [functions], or at -Os.
+     * 		Not used for functions translated at -O0.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   VM commands written from now on are translated according to profile
+     *
+     * @param   profile -   the execution counts of an earlier run of the program
+     */
+    void setProfile(Profile profile) {
+        this.profile = profile;
+        //	A shared routine only pays for itself once it replaces two or more copies
+        shareCalls = level == Options.Level.OS || profile.countColdCalls() >= 2;
+        shareFunctions = level == Options.Level.OS || profile.countColdFunctions() >= 2;
+    }
+
+    /**
+     * Sets the optimization level [see Options.Level]. At -Os, all code without
+     * a profile is treated as cold, i.e. uses the shared routines [those with two or
+     * more users, see setProgram()], and the output is held back until close() to
+     * outline repeated sequences [see Outliner].
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   VM commands written from now on are translated at level
+     *
+     * @param   level   -   the optimization level
+     */
+    void setLevel(Options.Level level) {
+        this.level = level;
+        if (level == Options.Level.OS) {
+            shareCalls = true;
+            shareFunctions = true;
+            if (finalOutput == null) {
+                finalOutput = outputFile;
+                outlineBuffer = new StringWriter();
+                outputFile = new PrintWriter(outlineBuffer);
+                outlineStart = romAddress;
+                keepInPlace = new BitSet();
+                keepFrom = -1;
+            }
+        }
+    }
+
+    /**
+     * Restricts the optimization level to the given functions; all other
+     * functions are translated at -O0. Used to find which function's
+     * optimized translation misbehaves [see Verifier].
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   only functions in optimizedFunctions are optimized
+     *
+     * @param   optimizedFunctions  -   the names of the functions to optimize, or null for all
+     */
+    void setOptimizedFunctions(Set<String> optimizedFunctions) {
+        this.optimizedFunctions = optimizedFunctions;
+    }
+
+    /**
+     * Getter for the optimization level of a function.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   function    -   the name of a VM function, or "" for code outside of any function
+     * @return              -   the level function is translated at
+     */
+    Options.Level getLevel(String function) {
+        if (optimizedFunctions == null || optimizedFunctions.contains(function)) {
+            return level;
+        }
+        return Options.Level.O0;
+    }
+
+    /**
+     * Getter for the size of the translation.
+     *
+     * PRECONDITION:    close() has been called, for the size of the whole program
+     * POSTCONDITION:   N/A
+     *
+     * @return  -   the number of instructions written [romAddress]
+     */
+    int getRomSize() {
+        return romAddress;
+    }
+
+    /**
+     * Loads every return point by its label rather than by its ROM address, so that
+     * the code can be placed anywhere in ROM by a linker [see ObjectFile]. Bootstrap
+     * code written before this is called still loads its return point by address.
+     *
+     * PRECONDITION:    no call has been written yet
+     * POSTCONDITION:   code written from now on holds no ROM address as a number
+     *
+     * @param   relocatable -   true to load return points by label
+     */
+    void setRelocatable(boolean relocatable) {
+        this.relocatable = relocatable;
+    }
+
+    /**
+     * Informs the code writer of the whole program before it is translated, building
+     * its call graph [which also bounds its stack, see StackDepth].
+     * From -O1 on, the call graph tells dead store elimination which temp slots other
+     * functions may read [see CallGraph.isSharedTemp()]. At -O2 & -Os, functions that never recurse get static frames [see CallGraph]:
+     * their arguments & locals are accessed directly [@address], and calls to them
+     * only pass the arguments and the return address.
+     * With a profile, or at -Os, it also tells which shared routines [$CALL, $RETURN,
+     * $EQ, $LT, $GT] have two or more cold sites to replace: only those are used.
+     *
+     * PRECONDITION:    setLevel(), setProfile() & setOptimizedFunctions() have been
+     *                  called as needed, and vmFiles are the files about to be
+     *                  translated [all of them]
+     * POSTCONDITION:   functions with a static frame are translated with it, and cold
+     *                  code only uses the shared routines worth sharing
+     *
+     * @param   vmFiles -   the .vm files making up the program
+     *
+     * @throws  FileNotFoundException   -   if a file cannot be opened
+     */
+    void setProgram(File[] vmFiles) throws FileNotFoundException {
+        callGraph = CallGraph.build(vmFiles);
+        if (level == Options.Level.O2 || level == Options.Level.OS) {
+            callGraph.allocateFrames(bootstrap);
+        }
+        if (profile != null || level == Options.Level.OS) {
+            //	A shared routine only pays for itself once it replaces two or more copies
+            shareCalls = true;
+            shareFunctions = true;
+            sharedRoutines = countSharedSites();
+        }
+    }
+
+    /**
+     * @return  -   the call graph of the program, or null if setProgram() has not
+     *              built one [a single input from standard input]
+     */
+    CallGraph getCallGraph() {
+        return callGraph;
+    }
+
+    /**
+     * @param   function    -   the name of a VM function
+     * @return              -   true if function keeps its arguments & locals at fixed
+     *                          addresses [see setProgram()]
+     */
+    boolean hasStaticFrame(String function) {
+        return staticFrame(function) != null;
+    }
+
     /**************************
      * Public Writing Methods *
      **************************/
@@ -145,6 +624,26 @@ class CodeWriter {
     void writeArithmetic(String command) {
         //  Command is not case-sensitive
         command = command.toLowerCase();
+        if (!isVirtualSP()) {
+            TemplateCache.Template template = templates.get(
+                    TemplateCache.key(Parser.Command.C_ARITHMETIC, command, 0));
+            if (template != null) {
+                writeTemplate(template);
+                return;
+            }
+        }
+        writeOperator(command);
+    }
+
+    /**
+     * Writes the assembly code of an arithmetic command in full.
+     *
+     * PRECONDITION:    command is a C_ARITHMETIC command, in lower case
+     * POSTCONDITION:   the translated assembly code has been written to the output file
+     *
+     * @param   command -   the given arithmetic command
+     */
+    private void writeOperator(String command) {
         switch(command) {
             case "add":
             case "sub":
@@ -170,7 +669,20 @@ class CodeWriter {
                 //			  since assembly translation subtracts the top two elements on the stack "in reverse"
                 //
                 //	** Again, binary ops = same translation except for the symbol!
-                writeInequality(translator.get(command));
+                String routine = "$" + command.toUpperCase();
+                if (isCold() && shares(routine)) {
+                    //	Share the comparison: pass the return address in D
+                    writeCommitSP();
+                    outputFile.println("@" + returnPoint(romAddress + 4));
+                    outputFile.println("D=A");
+                    outputFile.println("@" + symbol(routine));
+                    outputFile.println("0;JMP");
+                    romAddress += 4;
+                    outputFile.println("(" + symbol("RIP" + romAddress) + ")");
+                    routinesNeeded.add(routine);
+                } else {
+                    writeInequality(translator.get(command));
+                }
                 break;
         }
     }
@@ -188,13 +700,78 @@ class CodeWriter {
      */
     void writePushPop(Parser.Command command, String segment, int index) {
         segment = segment.toLowerCase();
+        String register = cachedAddresses.get(segment + " " + index);
+        if (register != null) {
+            //	The address is already in register
+            if (command == Parser.Command.C_PUSH) {
+                outputFile.println("@" + register);
+                outputFile.println("A=M");
+                outputFile.println("D=M");
+                romAddress += 3;
+                writeStackPushD();
+            } else {
+                writeStackPopD();
+                outputFile.println("@" + register);
+                outputFile.println("A=M");
+                outputFile.println("M=D");
+                romAddress += 3;
+            }
+            return;
+        }
+        CallGraph.Frame frame = staticFrame(curFunction);
+        if (frame != null && (segment.equals("local") || segment.equals("argument"))) {
+            //	Static frame: the segment is at a fixed address
+            String address = String.valueOf(segment.equals("local") ? frame.local(index) : frame.argument(index));
+            if (command == Parser.Command.C_PUSH) {
+                writePushVariable(address);
+            } else {
+                writePopToVariable(address);
+            }
+            return;
+        }
+        long key = isVirtualSP() ? TemplateCache.NO_KEY : TemplateCache.key(command, segment, index);
+        if (key != TemplateCache.NO_KEY) {
+            //	The text depends on nothing but the command itself
+            TemplateCache.Template template = templates.get(key);
+            if (template == null) {
+                template = render(command, segment, index);
+                templates.put(key, template);
+            }
+            writeTemplate(template);
+            return;
+        }
+        writeSegment(command, segment, index);
+    }
+
+    /**
+     * Writes the assembly code of a push or pop in full, through the segment's base
+     * address [or the static variable].
+     *
+     * PRECONDITION:    the VM command is C_PUSH or C_POP, and segment is in lower case
+     * POSTCONDITION:   the translated assembly code has been written to the output file
+     *
+     * @param   command -   a Command of type C_PUSH or C_POP
+     * @param   segment -   a virtual memory segment
+     * @param   index   -   determines which address to access within segment
+     */
+    private void writeSegment(Parser.Command command, String segment, int index) {
         if (command == Parser.Command.C_PUSH) {
             switch(segment) {
                 case "constant":
-                    writePushConstant(index);
+                    if (!isVirtualSP()) {
+                        writePushConstant(index);
+                    } else if (index <= 1) {
+                        //	0 & 1 can be stored directly [constants are never negative]
+                        writeVirtualPush(String.valueOf(index));
+                    } else {
+                        outputFile.println("@" + index);
+                        outputFile.println("D=A");
+                        romAddress += 2;
+                        writeVirtualPush("D");
+                    }
                     break;
                 case "static":
-                    writePushStatic(index);
+                    writePushVariable(getStaticLabel(index));
                     break;
                 default:
                     //  Catches memory segments: local, argument, this, that, pointer, & temp
@@ -206,7 +783,7 @@ class CodeWriter {
         } else {
             //  C_POP
             if (segment.equals("static")) {
-                writePopToStatic(index);
+                writePopToVariable(getStaticLabel(index));
             } else {
                 //  Catches memory segments: local, argument, this, that, pointer, & temp
                 //  REMINDER:   translator HashMap handles pointer vs. address notation
@@ -216,6 +793,65 @@ class CodeWriter {
         }
     }
 
+    /**
+     * Writes assembly code that loads segment addresses into registers before a loop,
+     * and from then on accesses them through the registers [see LoopCache].
+     *
+     * PRECONDITION:    the loop's label is the next command; nothing but the loop's
+     *                  commands is written before clearAddressCache() is called
+     * POSTCONDITION:   each register holds its address, and pushes & pops of the
+     *                  addresses use it
+     *
+     * @param   addresses   -   "segment index" [local, argument, this or that] -> register
+     */
+    void writeAddressCache(Map<String, String> addresses) {
+        for( Map.Entry<String, String> entry : addresses.entrySet() ) {
+            String[] parts = entry.getKey().split(" ");
+            int index = Integer.parseInt(parts[1]);
+            outputFile.println("@" + translator.get(parts[0]));
+            if (index <= 1) {
+                outputFile.println(index == 0 ? "D=M" : "D=M+1");
+                romAddress += 2;
+            } else {
+                outputFile.println("D=M");
+                outputFile.println("@" + index);
+                outputFile.println("D=D+A");
+                romAddress += 4;
+            }
+            outputFile.println("@" + entry.getValue());
+            outputFile.println("M=D");				//	register = base + index
+            romAddress += 2;
+        }
+        cachedAddresses.putAll(addresses);
+    }
+
+    /**
+     * Ends the loop begun by writeAddressCache(): the addresses are computed again.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   no address is cached
+     */
+    void clearAddressCache() {
+        cachedAddresses.clear();
+    }
+
+    /**
+     * Writes assembly code that throws away the top of the stack: a store that is never
+     * read [see VMCommand.discard()]. A pending value is simply forgotten.
+     *
+     * PRECONDITION:    the stack holds at least one value
+     * POSTCONDITION:   the top of the stack has been removed
+     */
+    void writeDiscard() {
+        if (isVirtualSP() && spOffset == 1) {
+            spOffset = 0;
+            return;
+        }
+        outputFile.println("@SP");
+        outputFile.println("M=M-1");
+        romAddress += 2;
+    }
+
     /**
      * Writes assembly code that effects the VM label command (label).
      *
@@ -225,8 +861,12 @@ class CodeWriter {
      * @param	label	-	the symbol/label to use in assembly
      */
     void writeLabel(String label) {
+        writeCommitSP();		//	Every way into the label agrees on SP
         //	Don't update romAddress!
         outputFile.println("(" + getProperLabel(label) + ")");
+        if (countLabels) {
+            writeCounter(Counters.LABEL, (curFunction.isEmpty() ? "-" : curFunction) + " " + label);
+        }
     }
 
     /**
@@ -240,6 +880,7 @@ class CodeWriter {
      * @param	label	-	the symbol/label to jump to in assembly
      */
     void writeGoto(String label) {
+        writeCommitSP();
         outputFile.println("@" + getProperLabel(label));
         outputFile.println("0;JMP");
         romAddress += 2;
@@ -257,7 +898,7 @@ class CodeWriter {
      * 						the top of the stack is true
      */
     void writeIfGoto(String label) {
-        writePopD();
+        writeStackPopD();	//	Leaves nothing pending
         outputFile.println("@" + getProperLabel(label));
         outputFile.println("D;JNE");	//	0 = false = jump if not 0
         romAddress += 2;
@@ -277,50 +918,1088 @@ class CodeWriter {
      * @param	numArgs			-	the number of arguments that functionName
      * 								needs [pushed onto stack by compiler]
      */
-    void writeCall(String functionName, int numArgs) {
-		/*	The return address should equal the romAddress after the call
-		 *	setup and control transfer has been completed. [Represented by
-		 *	the ending (RIP##) label]. This is the value pushed onto the stack.
-		 *
-		 *	->	1.	writePushConstant & writePushPointer contain 6 commands each;
-		 *			add the 10 commands written afterwards = (romAddress + 40)
-		 *		2.	All write methods update romAddress, so only update actual
-		 *			saved value (+ 10) after retAddr is pushed onto the stack
-		 *			and all needed write methods have been called.
-		 */
-        writePushConstant(romAddress + 40);	//	Push RIP (Return Insertion Point)
+    void writeCall(String functionName, int numArgs) {
+        writeCallCounter(functionName);
+        CallGraph.Frame callee = staticFrame(functionName);
+        if (callee != null) {
+            writeStaticCall(functionName, callee, numArgs);
+            return;
+        }
+        writeCommitSP();		//	The frame is saved through the real SP
+        if (shareCalls && shares(CALL_LABEL) && sourceLine != 0 && getLevel(curFunction) != Options.Level.O0
+                && (profile == null || !profile.isHotCall(curVMfileName + ".vm", sourceLine))) {
+            //	Cold call site: load R13 = numArgs, R14 = functionName, D = RIP
+            //	and let the shared $CALL routine save the frame [12 commands]
+            outputFile.println("@" + numArgs);
+            outputFile.println("D=A");
+            outputFile.println("@R13");
+            outputFile.println("M=D");
+            outputFile.println("@" + symbol(functionName));
+            outputFile.println("D=A");
+            outputFile.println("@R14");
+            outputFile.println("M=D");
+            outputFile.println("@" + returnPoint(romAddress + 12));
+            outputFile.println("D=A");
+            outputFile.println("@" + symbol(CALL_LABEL));
+            outputFile.println("0;JMP");
+            romAddress += 12;
+            outputFile.println("(" + symbol("RIP" + romAddress) + ")");
+            routinesNeeded.add(CALL_LABEL);
+            return;
+        }
+        //	THIS & THAT are only saved if the callee may set them; their slots are kept
+        Set<String> saved = getLevel(curFunction) == Options.Level.O0 ? FRAME_POINTERS
+                : savedPointers(functionName);
+        boolean saveThis = saved.contains("THIS");
+        boolean saveThat = saved.contains("THAT");
+		/*	The return address should equal the romAddress after the call
+		 *	setup and control transfer has been completed. [Represented by
+		 *	the ending (RIP##) label]. This is the value pushed onto the stack.
+		 *
+		 *	->	1.	pushing RIP & writePushPointer contain 6 commands each;
+		 *			add the 10 commands written afterwards = (romAddress + 40)
+		 *			when all four pointers are saved. A slot skipped before THAT
+		 *			costs 2 more commands, and skipping both 1 more.
+		 *		2.	All write methods update romAddress, so only update actual
+		 *			saved value (+ 10) after retAddr is pushed onto the stack
+		 *			and all needed write methods have been called.
+		 */
+        int size = 28 + (saveThis ? 6 : 0) + (saveThat ? 6 : (saveThis ? 0 : 1))
+                + (saveThat && !saveThis ? 2 : 0);
+        outputFile.println("@" + returnPoint(romAddress + size));	//	Push RIP (Return Insertion Point)
+        outputFile.println("D=A");
+        romAddress += 2;
+        writePushD();
+        writePushPointer("LCL");			//	Save the current frame's state
+        writePushPointer("ARG");
+        if (saveThis) {
+            writePushPointer("THIS");
+        }
+        if (saveThat) {
+            if (!saveThis) {
+                outputFile.println("@SP");
+                outputFile.println("M=M+1");		//	Skip the THIS slot
+                romAddress += 2;
+            }
+            writePushPointer("THAT");
+        }
+        outputFile.println("@SP");
+        if (saveThat) {
+            outputFile.println("D=M");				//	D = SP (address)
+        } else {
+            if (!saveThis) {
+                outputFile.println("M=M+1");
+                romAddress++;
+            }
+            outputFile.println("MD=M+1");			//	Skip the THAT slot, D = SP (address)
+        }
+        outputFile.println("@LCL");
+        outputFile.println("M=D");					//	Reposition LCL [LCL = SP]
+        outputFile.println("@" + (numArgs + 5));	//	A = ARG adjustment [retAddr + frame + #args]
+        outputFile.println("D=D-A");				//	D = SP - ARG adjustment
+        outputFile.println("@ARG");
+        outputFile.println("M=D");					//	ARG = SP - (numArgs + 5)
+        outputFile.println("@" + symbol(functionName));
+        outputFile.println("0;JMP");				//	Transfer control to functionName
+        //	Now, update romAddress
+        romAddress += 10;
+        //	But don't count this label in the update
+        outputFile.println("(" + symbol("RIP" + romAddress) + ")");
+    }
+
+    /**
+     * Writes assembly code that effects a call VM command that is immediately
+     * followed by a return VM command (a tail call).
+     * ->	Instead of saving a new frame only to tear it down again, the CURRENT
+     * 		function's frame is reused: the arguments on the stack are moved into
+     * 		the current ARG slots and control transfers (goto/jumps) directly to
+     * 		the called function. When it returns, it returns straight to our caller.
+     *
+     * 		The move itself lives in the shared $TAILCALL routine [written by close()],
+     * 		so each call site only loads R13 = numArgs & R14 = functionName.
+     *
+     * PRECONDITION:	the VM command is C_CALL, and the next VM command is C_RETURN
+     * POSTCONDITION:	assembly code to transfer control to the CALLED function
+     * 					in place of the current one has been written to the output file
+     *
+     * @param	functionName	-	the name of the function being CALLED
+     * @param	numArgs			-	the number of arguments that functionName
+     * 								needs [pushed onto stack by compiler]
+     */
+    void writeTailCall(String functionName, int numArgs) {
+        if (staticFrame(curFunction) != null || staticFrame(functionName) != null
+                || !savedPointers(curFunction).equals(savedPointers(functionName))) {
+            //	A static frame has no stack frame to reuse, or doesn't use one; and
+            //	the callee must restore what our caller saved
+            writeCall(functionName, numArgs);
+            writeReturn();
+            return;
+        }
+        writeCallCounter(functionName);
+        writeCommitSP();
+        outputFile.println("@" + numArgs);
+        outputFile.println("D=A");
+        outputFile.println("@R13");
+        outputFile.println("M=D");					//	R13 = numArgs
+        outputFile.println("@" + symbol(functionName));
+        outputFile.println("D=A");
+        outputFile.println("@R14");
+        outputFile.println("M=D");					//	R14 = address of functionName
+        outputFile.println("@" + symbol(TAIL_CALL_LABEL));
+        outputFile.println("0;JMP");
+        romAddress += 10;
+        tailCallWritten = true;
+    }
+
+    /**
+     * Writes assembly code that effects the return VM command.
+     * ->	Reposition the return value onto the top of the stack,
+     * 		restore the frame of the calling function, and transfer
+     * 		control (goto/jump) back to the calling function via the
+     * 		return address saved to the stack.
+     *
+     * PRECONDITION:	the VM command is C_RETURN
+     * POSTCONDITION:	assembly code to return control to the CALLING
+     * 					function has been written to the output file
+     */
+    void writeReturn() {
+        CallGraph.Frame frame = staticFrame(curFunction);
+        if (frame != null) {
+            writeStaticReturn(frame);
+            return;
+        }
+        writeCommitSP();
+        Set<String> restored = savedPointers(curFunction);
+        String routine = returnRoutine(curFunction);
+        if (isCold() && shares(routine)) {
+            outputFile.println("@" + symbol(routine));
+            outputFile.println("0;JMP");
+            romAddress += 2;
+            routinesNeeded.add(routine);
+        } else {
+            writeReturnBody(restored);
+        }
+    }
+
+    /**
+     * Writes assembly code that effects the function VM command in assembly.
+     * ->	Writes an assembly label containing the functionName,
+     * 		and assembly code to initialize numLocals local variables to 0
+     * 		(pushing 0 numLocals times onto the stack) to outputFile.
+     *
+     * PRECONDITION:	the VM command is C_FUNCTION
+     * POSTCONDITION:	assembly code to declare functionName and initialize
+     * 					numLocals local variables has been written to the output file
+     *
+     * @param	functionName	-	the name of the function being DECLARED
+     * @param	numLocals		-	the number of local variables in functionName
+     * 								[to be initialized to 0]
+     */
+    void writeFunction(String functionName, int numLocals) {
+        writeCommitSP();
+        outputFile.println("(" + symbol(functionName) + ")");
+        curFunction = functionName;
+        markSource();		//	The function's own code belongs to it
+        writeCounter(Counters.FUNCTION, functionName);
+        CallGraph.Frame frame = staticFrame(functionName);
+        if (frame != null) {
+            writeStaticPrologue(frame);
+            return;
+        }
+        if (isVirtualSP()) {
+            writeVirtualPrologue(numLocals);
+            return;
+        }
+        for(int i = 0; i < numLocals; i++) {
+            outputFile.println("@SP");
+            outputFile.println("AM=M+1");
+            outputFile.println("A=A-1");
+            outputFile.println("M=0");
+            romAddress += 4;
+        }
+    }
+
+    /**
+     * Turns the intrinsics on or off [see writeIntrinsic()]. They are on by default,
+     * but assume the Jack OS: a program that supplies its own Math or Memory class
+     * may want them off.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   calls written from now on may be inlined if intrinsics is true
+     *
+     * @param   intrinsics  -   true to inline trivial OS calls, false to always call them
+     */
+    void setIntrinsics(boolean intrinsics) {
+        this.intrinsics = intrinsics;
+    }
+
+    /**
+     * Writes a call to a trivial Jack OS function inline, if it is one:
+     * ->	Memory.peek(address)			x = RAM[address] in place of the address
+     * 		Memory.poke(address, value)		RAM[address] = value, leaving 0 [void]
+     *
+     * PRECONDITION:	the VM command is C_CALL
+     * POSTCONDITION:	if true is returned, assembly code with the effect of the call
+     * 					has been written to the output file; otherwise nothing was written
+     *
+     * @param	functionName	-	the name of the function being CALLED
+     * @param	numArgs			-	the number of arguments on the stack
+     * @return					-	true if the call was written inline
+     */
+    boolean writeIntrinsic(String functionName, int numArgs) {
+        if (!intrinsics || getLevel(curFunction) == Options.Level.O0
+                || !Integer.valueOf(numArgs).equals(INTRINSICS.get(functionName))) {
+            return false;
+        }
+        switch (functionName) {
+            case "Memory.peek":
+                writeCallCounter(functionName);
+                writeTopAddress();
+                outputFile.println("A=M");
+                outputFile.println("D=M");			//	D = RAM[address]
+                romAddress += 2;
+                writeTopAddress();
+                outputFile.println("M=D");
+                romAddress++;
+                return true;
+            case "Memory.poke":
+                writeCallCounter(functionName);
+                writeStackPopD();					//	D = value, A = its slot
+                outputFile.println("A=A-1");
+                outputFile.println("A=M");
+                outputFile.println("M=D");			//	RAM[address] = value
+                romAddress += 3;
+                writeTopAddress();
+                outputFile.println("M=0");			//	the address slot becomes the return value
+                romAddress++;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Writes a call to a Jack OS function whose last argument is a constant inline,
+     * if it can: the constant has not been pushed, and the other argument is on top
+     * of the stack.
+     * ->	Math.multiply(x, c)		shifts & adds [D=D+D, D=D+M, D=D-M], one per
+     * 								signed binary digit of c
+     * 		Math.divide(x, 1)		nothing to do
+     * 		The Hack ALU has no right shift, so other divisions are still called.
+     *
+     * PRECONDITION:	the VM commands are push constant constant, then C_CALL
+     * POSTCONDITION:	if true is returned, assembly code with the effect of both
+     * 					commands has been written to the output file; otherwise
+     * 					nothing was written
+     *
+     * @param	functionName	-	the name of the function being CALLED
+     * @param	numArgs			-	the number of arguments, including the constant
+     * @param	constant		-	the last argument
+     * @return					-	true if the push & call were written inline
+     */
+    boolean writeIntrinsic(String functionName, int numArgs, int constant) {
+        if (!intrinsics || getLevel(curFunction) == Options.Level.O0 || numArgs != 2
+                || constant < 0 || constant > Short.MAX_VALUE) {
+            return false;
+        }
+        if (functionName.equals("Math.multiply")) {
+            writeCallCounter(functionName);
+            writeMultiply(constant);
+            return true;
+        } else if (functionName.equals("Math.divide") && constant == 1) {
+            writeCallCounter(functionName);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes assembly code that reads an array element: the top two values on the stack
+     * [base, then index] are replaced by RAM[base + index]. The address is computed once,
+     * straight into A, in place of add, pop pointer 1, push that 0.
+     *
+     * PRECONDITION:    the VM commands are add, pop pointer 1, push that 0
+     * POSTCONDITION:   assembly code with the effect of the three commands has been
+     *                  written to the output file [THAT only changes if setThat]
+     *
+     * @param   setThat -   true if later code reads THAT, so it must hold the address
+     */
+    void writeArrayRead(boolean setThat) {
+        writeStackPopD();					//	D = index, A = its slot
+        outputFile.println("A=A-1");
+        if (setThat) {
+            outputFile.println("D=D+M");
+            outputFile.println("@THAT");
+            outputFile.println("AM=D");
+            romAddress += 4;
+        } else {
+            outputFile.println("A=D+M");		//	A = base + index
+            romAddress += 2;
+        }
+        outputFile.println("D=M");
+        romAddress++;
+        writeTopAddress();
+        outputFile.println("M=D");				//	the element replaces base
+        romAddress++;
+    }
+
+    /**
+     * Writes assembly code that writes an array element: the top of the stack is stored
+     * at the address below it, and both are popped. The address is loaded once, straight
+     * into A, in place of pop temp 0, pop pointer 1, push temp 0, pop that 0.
+     *
+     * PRECONDITION:    the VM commands are pop temp 0, pop pointer 1, push temp 0, pop that 0
+     * POSTCONDITION:   assembly code with the effect of the four commands has been
+     *                  written to the output file [THAT & temp 0 only change if asked]
+     *
+     * @param   setThat -   true if later code reads THAT, so it must hold the address
+     * @param   setTemp -   true if later code reads temp 0, so it must hold the value
+     */
+    void writeArrayWrite(boolean setThat, boolean setTemp) {
+        writeStackPopD();					//	D = value
+        if (setTemp) {
+            outputFile.println("@" + TEMP_LOC);
+            outputFile.println("M=D");
+            romAddress += 2;
+        }
+        outputFile.println("@SP");
+        outputFile.println("AM=M-1");			//	pops the address, too
+        outputFile.println("A=M");
+        outputFile.println("M=D");				//	RAM[address] = value
+        romAddress += 4;
+        if (setThat) {
+            outputFile.println("D=A");
+            outputFile.println("@THAT");
+            outputFile.println("M=D");
+            romAddress += 3;
+        }
+    }
+
+    /**
+     * Instruments the translation with in-RAM execution counters [see Counters]:
+     * every function entry and call site - and every label, if countLabels -
+     * increments a RAM word of its own [@counter, M=M+1]. Inlined calls still count.
+     *
+     * PRECONDITION:    no VM command has been written yet
+     * POSTCONDITION:   counters are allocated in counters as code is written
+     *
+     * @param   counters    -   the table to allocate counters in
+     * @param   countLabels -   true to also count passes through each label
+     */
+    void setCounters(Counters counters, boolean countLabels) {
+        this.counters = counters;
+        this.countLabels = countLabels;
+    }
+
+    /**************************
+     * General Helper Methods *
+     **************************/
+
+    /**
+     * Builds out the translator HashMap to hold VM commands & memory segments and
+     * their implementation in assembly.
+     *
+     * NOTE:    Accounts for pointer [RAM[base] + i] vs. value [address + i] notation
+     *          AND
+     *          Pairing the "lt" or "gt" arithmetic commands with the "not" of the
+     *          jump condition to be used in assembly.
+     *          ->  instead of testing x < y as x - y < 0,
+     *              test as y - x > 0
+     *
+     *          **  Saves two lines of assembly when translated.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   translator contains all predefined translations
+     */
+    private void initTranslator() {
+        translator = new HashMap<>();
+        //  Add all binary C_ARITHMETIC commands and their operators/jump codes
+        translator.put("add", "+");
+        translator.put("sub", "-");
+        translator.put("and", "&");
+        translator.put("or",  "|");
+        //  A "not" will be applied to the jump condition in "eq", "lt", and "gt"
+        //  Thus, if command is "<" or ">", the jump condition is reversed.
+        translator.put("eq",  "JEQ");
+        translator.put("lt",  "JGT");   //  !(lt) = JGT
+        translator.put("gt",  "JLT");   //  !(gt) = JLT
+
+        //  Add all virtual memory segments (except for constant)
+        //  local..that -> [base + i] = [RAM[address] + i]
+        translator.put("local", "LCL");
+        translator.put("argument", "ARG");
+        translator.put("this", "THIS");
+        translator.put("that", "THAT");
+        //  pointer, temp -> [address + i]
+        translator.put("pointer", "3");
+        translator.put("temp", "5");
+    }
+
+    /**
+     * Renders the arithmetic commands that never change up front [see TemplateCache].
+     *
+     * PRECONDITION:    initTranslator() has been called, and nothing has been written
+     * POSTCONDITION:   templates holds the fixed templates
+     */
+    private void initTemplates() {
+        templates = new TemplateCache();
+        for( String operator : TemplateCache.getFixedNames() ) {
+            templates.putFixed(TemplateCache.key(Parser.Command.C_ARITHMETIC, operator, 0),
+                    render(Parser.Command.C_ARITHMETIC, operator, 0));
+        }
+    }
+
+    /**
+     * Writes a command in full to a buffer of its own rather than to the output.
+     *
+     * PRECONDITION:    the command's text depends on nothing but its arguments
+     *                  [no virtual stack pointer, cached address or static frame]
+     * POSTCONDITION:   neither the output nor romAddress has changed
+     *
+     * @param   command -   C_ARITHMETIC, C_PUSH or C_POP
+     * @param   name    -   the operator or segment, in lower case
+     * @param   index   -   the index within the segment [0 for an operator]
+     * @return          -   the command's template
+     */
+    private TemplateCache.Template render(Parser.Command command, String name, int index) {
+        PrintWriter output = outputFile;
+        int start = romAddress;
+        StringWriter text = new StringWriter();
+        outputFile = new PrintWriter(text);
+        try {
+            if (command == Parser.Command.C_ARITHMETIC) {
+                writeOperator(name);
+            } else {
+                writeSegment(command, name, index);
+            }
+        } finally {
+            outputFile = output;
+        }
+        int size = romAddress - start;
+        romAddress = start;
+        return new TemplateCache.Template(text.toString(), size);
+    }
+
+    /**
+     * Writes a pre-rendered command to the output in one piece.
+     *
+     * PRECONDITION:    template was rendered by render()
+     * POSTCONDITION:   the template's text has been written, and romAddress counts it
+     *
+     * @param   template    -   the command's template
+     */
+    private void writeTemplate(TemplateCache.Template template) {
+        outputFile.write(template.text);
+        romAddress += template.size;
+    }
+
+    /**
+     * Records that code written from romAddress onward comes from the
+     * current file, line, and function.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the source map, if any, has been updated
+     */
+    private void markSource() {
+        if (sourceMap != null) {
+            sourceMap.mark(romAddress, sourceLine == 0 ? "" : curVMfileName + ".vm", sourceLine, curFunction);
+        }
+        if (finalOutput != null) {
+            //	Only code translated at -Os is outlined
+            boolean keep = getLevel(curFunction) != Options.Level.OS;
+            if (keep && keepFrom == -1) {
+                keepFrom = romAddress;
+            } else if (!keep && keepFrom != -1) {
+                keepInPlace.set(keepFrom - outlineStart, romAddress - outlineStart);
+                keepFrom = -1;
+            }
+        }
+    }
+
+    /**
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   address -   the ROM address of a return point, labeled RIP<address>
+     * @return          -   how to load it: by label if the output is outlined or
+     *                      relocatable [code moves], by number otherwise
+     */
+    private String returnPoint(int address) {
+        return finalOutput != null || relocatable ? symbol("RIP" + address) : String.valueOf(address);
+    }
+
+    /**
+     * Outlines the held back output [see Outliner] and writes it to the real output,
+     * moving the source map's ranges along with the code.
+     *
+     * PRECONDITION:    the output has been held back [-Os], and is complete
+     * POSTCONDITION:   the outlined program has been written, and outputFile is the real output
+     */
+    private void writeOutlined() {
+        if (keepFrom != -1) {
+            keepInPlace.set(keepFrom - outlineStart, romAddress - outlineStart);
+        }
+        outputFile.flush();
+        Outliner outliner = new Outliner(Arrays.asList(outlineBuffer.toString().split("\\r?\\n")),
+                keepInPlace, labelTable);
+        outputFile = finalOutput;
+        finalOutput = null;
+        for( String line : outliner.outline() ) {
+            outputFile.println(line);
+        }
+        romAddress -= outliner.getSaved();
+        if (sourceMap != null) {
+            sourceMap.relocate(outlineStart, outliner.getAddresses(), romAddress);
+        }
+    }
+
+    /**
+     * Determines whether the function being translated is cold, i.e. should be
+     * translated for size rather than speed.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @return  -   true if cold functions are shared and curFunction is not hot
+     *				[without a profile, every optimized function is cold]
+     */
+    private boolean isCold() {
+        return isColdFunction(curFunction);
+    }
+
+    /**
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   function    -   the name of a VM function, or "" for top-level code
+     * @return              -   true if cold functions are shared and function is not hot
+     */
+    private boolean isColdFunction(String function) {
+        return shareFunctions && !function.isEmpty() && getLevel(function) != Options.Level.O0
+                && (profile == null || !profile.isHotFunction(function));
+    }
+
+    /**
+     * Determines whether cold code may jump to a shared routine.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   routine -   the routine's entry label, e.g. $CALL or $EQ
+     * @return          -   true if the routine has two or more cold sites, or the sites
+     *                      have not been counted
+     */
+    private boolean shares(String routine) {
+        return sharedRoutines == null || sharedRoutines.contains(routine);
+    }
+
+    /**
+     * Counts the sites of the program that would jump to each shared routine if it
+     * were used [see CallGraph.getSites()], as writeCall(), writeReturn() &
+     * writeArithmetic() decide. Calls that are written inline [writeIntrinsic()] or to
+     * a static frame never do.
+     *
+     * PRECONDITION:    callGraph has been built, and the level, profile & optimized
+     *                  functions have been set
+     * POSTCONDITION:   N/A
+     *
+     * @return  -   the routines with two or more cold sites
+     */
+    private Set<String> countSharedSites() {
+        HashMap<String, Integer> counts = new HashMap<>();
+        for( CallGraph.Site site : callGraph.getSites() ) {
+            VMCommand command = site.command;
+            String routine = null;
+            if (command.type == Parser.Command.C_CALL) {
+                boolean inline = intrinsics && (Integer.valueOf(command.arg2).equals(INTRINSICS.get(command.arg1))
+                        && command.arg1.startsWith("Memory.")
+                        || command.arg2 == 2 && site.constant >= 0
+                            && (command.arg1.equals("Math.multiply")
+                                || command.arg1.equals("Math.divide") && site.constant == 1));
+                if (shareCalls && !inline && getLevel(site.function) != Options.Level.O0
+                        && staticFrame(command.arg1) == null
+                        && (profile == null || !profile.isHotCall(site.file, command.line))) {
+                    routine = CALL_LABEL;
+                }
+            } else if (isColdFunction(site.function)) {
+                if (command.type == Parser.Command.C_RETURN) {
+                    routine = staticFrame(site.function) == null ? returnRoutine(site.function) : null;
+                } else {
+                    routine = "$" + command.command.toUpperCase();
+                }
+            }
+            if (routine != null) {
+                Integer count = counts.get(routine);
+                counts.put(routine, count == null ? 1 : count + 1);
+            }
+        }
+        Set<String> shared = new HashSet<>();
+        for( Map.Entry<String, Integer> entry : counts.entrySet() ) {
+            if (entry.getValue() >= 2) {
+                shared.add(entry.getKey());
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * The shared $RETURN routine works for every function restoring the same pointers:
+     * $RETURN restores both, $RETURN$THIS or $RETURN$THAT one, $RETURN$KEEP neither.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   function    -   the name of a VM function
+     * @return              -   the entry label of the routine its returns would share
+     */
+    private String returnRoutine(String function) {
+        Set<String> restored = savedPointers(function);
+        if (restored.isEmpty()) {
+            return RETURN_LABEL + "$KEEP";
+        } else if (restored.size() == 1) {
+            return RETURN_LABEL + "$" + restored.iterator().next();
+        }
+        return RETURN_LABEL;
+    }
+
+    /**
+     * Determines whether the function being translated keeps a virtual stack pointer,
+     * i.e. addresses the stack as RAM[SP] + spOffset within each basic block.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @return  -   true if curFunction is translated at -O2 or -Os [shared routines never
+     *              are; SP is committed before jumping to one]
+     */
+    private boolean isVirtualSP() {
+        Options.Level functionLevel = getLevel(curFunction);
+        return !curFunction.isEmpty() && (functionLevel == Options.Level.O2 || functionLevel == Options.Level.OS);
+    }
+
+    /**
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   function    -   the name of a VM function
+     * @return              -   the static frame function is translated with, or null if
+     *                          it keeps its frame on the stack
+     */
+    private CallGraph.Frame staticFrame(String function) {
+        Options.Level functionLevel = getLevel(function);
+        if (callGraph == null || (functionLevel != Options.Level.O2 && functionLevel != Options.Level.OS)) {
+            return null;
+        }
+        return callGraph.getFrame(function);
+    }
+
+    /**
+     * Determines which pointers calls to a function save in its frame [and its returns
+     * restore]: only those its tail call chain can set [see CallGraph]. All of them are
+     * saved for functions at -O0, functions outside the program, and without bootstrap
+     * code [a test script may have set up the frame]; and for cold functions at -Os,
+     * so that they can all share the one $RETURN routine.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   function    -   the name of a VM function
+     * @return              -   "THIS" and/or "THAT"
+     */
+    private Set<String> savedPointers(String function) {
+        if (callGraph == null || !bootstrap || getLevel(function) == Options.Level.O0
+                || (getLevel(function) == Options.Level.OS
+                    && (profile == null || !profile.isHotFunction(function)))) {
+            return FRAME_POINTERS;
+        }
+        Set<String> clobbered = callGraph.getClobberedPointers(function);
+        return clobbered == null ? FRAME_POINTERS : clobbered;
+    }
+
+    /**
+     * Generates a label for branching in assembly in the format _#.
+     *
+     * PRECONDITION:    no other method adjusts the value of labelCounter
+     * POSTCONDITION:   labelCounter represents the next available label,
+     *                  and the generated label does not specify an assembly instruction
+     */
+    private String getBranchLabel() {
+        return symbol("_" + labelCounter++);
+    }
+
+    /**
+     * Generates a static label in the format fileName.index that will
+     * access the static virtual memory segment.
+     *
+     * PRECONDITION:    curVMfileName is not null -> a .vm file is being translated
+     * POSTCONDITION:   the generated label does not specify an assembly instruction
+     *
+     * @param   index   -   the index of the static segment to access
+     */
+    private String getStaticLabel(int index) {
+        return curVMfileName + "." + index;
+    }
+
+    /**
+     * Returns a given label in the format functionName$label.
+     *
+     * PRECONDITION:	N/A
+     * POSTCONDITION:	label is returned in the form functionName$label
+     *
+     * @param	label	-	the symbol/label to use in assembly
+     * @return			-	label in the format functionName$label
+     */
+    private String getProperLabel(String label) {
+        return symbol(curFunction + "$" + label);
+    }
+
+    /**
+     * Returns the name to write for a label: its short name if compact labels
+     * are in use [a LabelTable was given to the constructor], the label itself otherwise.
+     *
+     * PRECONDITION:	N/A
+     * POSTCONDITION:	N/A
+     *
+     * @param	label	-	the full label
+     * @return			-	the label as it should appear in assembly
+     */
+    private String symbol(String label) {
+        return labelTable == null ? label : labelTable.intern(label);
+    }
+
+    /****************************
+     * Assembly Writing Helpers *
+     ****************************/
+
+    /**
+     * Writes assembly code that effects the VM initialization, also
+     * called bootstrap code. This code must be placed at the beginning
+     * of the output file.
+     *
+     * PRECONDITION:	the output file has been successfully opened
+     * POSTCONDITION:	assembly bootstrap code has been written to the output file
+     */
+    private void writeBootstrap() {
+        outputFile.println("@256");
+        outputFile.println("D=A");
+        outputFile.println("@SP");
+        outputFile.println("M=D");
+        romAddress += 4;
+        writeCall("Sys.init", 0);
+    }
+
+    /**
+     * Writes a call to a function with a static frame.
+     * ->	The arguments are popped straight into the callee's frame and the return
+     * 		address is stored in it; nothing else of the caller's frame needs saving,
+     * 		as the callee never touches LCL & ARG [and restores THIS & THAT if it sets them].
+     *
+     * PRECONDITION:	the VM command is C_CALL, and callee is functionName's frame
+     * POSTCONDITION:	assembly code to transfer control to the CALLED
+     * 					function has been written to the output file
+     *
+     * @param	functionName	-	the name of the function being CALLED
+     * @param	callee			-	the static frame of functionName
+     * @param	numArgs			-	the number of arguments on the stack
+     */
+    private void writeStaticCall(String functionName, CallGraph.Frame callee, int numArgs) {
+        for(int i = numArgs - 1; i >= 0; i--) {
+            writeStackPopD();
+            outputFile.println("@" + callee.argument(i));
+            outputFile.println("M=D");
+            romAddress += 2;
+        }
+        writeCommitSP();
+        outputFile.println("@" + returnPoint(romAddress + 6));
+        outputFile.println("D=A");
+        outputFile.println("@" + callee.returnAddress());
+        outputFile.println("M=D");					//	Store RIP in the callee's frame
+        outputFile.println("@" + symbol(functionName));
+        outputFile.println("0;JMP");
+        romAddress += 6;
+        outputFile.println("(" + symbol("RIP" + romAddress) + ")");
+    }
+
+    /**
+     * Writes the entry code of a function with a static frame: remembers where its
+     * stack starts [for the return value], zeroes its locals, and saves THIS & THAT
+     * if it sets them.
+     *
+     * PRECONDITION:	the VM command is C_FUNCTION, and its label has been written
+     * POSTCONDITION:	the function's entry code has been written to the output file
+     *
+     * @param	frame	-	the function's static frame
+     */
+    private void writeStaticPrologue(CallGraph.Frame frame) {
+        outputFile.println("@SP");
+        outputFile.println("D=M");
+        outputFile.println("@" + frame.entrySP());
+        outputFile.println("M=D");
+        romAddress += 4;
+        for(int i = 0; i < frame.numLocals; i++) {
+            outputFile.println("@" + frame.local(i));
+            outputFile.println("M=0");
+            romAddress += 2;
+        }
+        if (frame.savesPointers) {
+            for(int i = 0; i < 2; i++) {
+                outputFile.println("@" + (i == 0 ? "THIS" : "THAT"));
+                outputFile.println("D=M");
+                outputFile.println("@" + frame.savedPointer(i));
+                outputFile.println("M=D");
+                romAddress += 4;
+            }
+        }
+    }
+
+    /**
+     * Writes the return of a function with a static frame: the return value replaces
+     * whatever the function left on the stack, THIS & THAT are restored if it set them,
+     * and control jumps to the return address stored by the caller.
+     *
+     * PRECONDITION:	the VM command is C_RETURN, in the function frame belongs to
+     * POSTCONDITION:	assembly code to return control to the CALLING
+     * 					function has been written to the output file
+     *
+     * @param	frame	-	the function's static frame
+     */
+    private void writeStaticReturn(CallGraph.Frame frame) {
+        outputFile.println("@SP");
+        outputFile.println(spOffset == 0 ? "A=M-1" : "A=M");
+        outputFile.println("D=M");					//	D = return value
+        outputFile.println("@" + frame.entrySP());
+        outputFile.println("A=M");
+        outputFile.println("M=D");					//	*(entry SP) = return value
+        outputFile.println("D=A+1");
+        outputFile.println("@SP");
+        outputFile.println("M=D");					//	SP = entry SP + 1
+        romAddress += 9;
+        spOffset = 0;
+        if (frame.savesPointers) {
+            for(int i = 0; i < 2; i++) {
+                outputFile.println("@" + frame.savedPointer(i));
+                outputFile.println("D=M");
+                outputFile.println("@" + (i == 0 ? "THIS" : "THAT"));
+                outputFile.println("M=D");
+                romAddress += 4;
+            }
+        }
+        outputFile.println("@" + frame.returnAddress());
+        outputFile.println("A=M");
+        outputFile.println("0;JMP");
+        romAddress += 3;
+    }
+
+    /**
+     * Writes the shared routine that every tail call jumps to.
+     * ->	Expects R13 = numArgs of the called function, and R14 = its address.
+     *
+     * 		Fast path [numArgs == the current function's numArgs, i.e. LCL - ARG - 5]:
+     * 			the saved frame is already in the right place, so only the arguments
+     * 			are copied down to ARG, and SP = LCL.
+     * 		Otherwise, the saved frame has to move as well. It is pushed above the
+     * 		arguments first, then [arguments, frame] is copied down to ARG as a
+     * 		single block, and LCL = SP.
+     *
+     * 		Both copies move words to lower addresses, so copying upwards is safe
+     * 		even when the source and destination overlap.
+     *
+     * PRECONDITION:	at least one tail call has been written to the output file
+     * POSTCONDITION:	assembly code for the $TAILCALL routine has been written to the output file
+     */
+    private void writeTailCallRoutine() {
+        outputFile.println("(" + symbol(TAIL_CALL_LABEL) + ")");
+        outputFile.println("@LCL");
+        outputFile.println("D=M");
+        outputFile.println("@ARG");
+        outputFile.println("D=D-M");		//	D = LCL - ARG = current numArgs + 5
+        outputFile.println("@R13");
+        outputFile.println("D=D-M");
+        outputFile.println("@5");
+        outputFile.println("D=D-A");		//	D = current numArgs - numArgs
+        outputFile.println("@" + symbol(TAIL_CALL_LABEL + "$MOVE"));
+        outputFile.println("D;JNE");		//	Frame has to move if they differ
+        romAddress += 10;
+        //	Fast path: copy numArgs words from SP - numArgs to ARG
+        writeTailCallSetup();
+        writeTailCallCopy(TAIL_CALL_LABEL + "$ARGS", TAIL_CALL_LABEL + "$ARGSEND");
+        outputFile.println("@LCL");
+        outputFile.println("D=M");
+        outputFile.println("@SP");
+        outputFile.println("M=D");			//	SP = LCL, frame & locals start over
+        outputFile.println("@R14");
+        outputFile.println("A=M");
+        outputFile.println("0;JMP");		//	Transfer control to the called function
+        romAddress += 7;
+
+        //	General path: push the saved frame [LCL - 5 .. LCL - 1] above the arguments
+        outputFile.println("(" + symbol(TAIL_CALL_LABEL + "$MOVE") + ")");
+        outputFile.println("@LCL");
+        outputFile.println("D=M");
+        outputFile.println("@5");
+        outputFile.println("D=D-A");
+        outputFile.println("@R15");
+        outputFile.println("M=D");			//	R15 = LCL - 5 (source address)
+        outputFile.println("(" + symbol(TAIL_CALL_LABEL + "$SAVE") + ")");
+        outputFile.println("@R15");
+        outputFile.println("M=M+1");
+        outputFile.println("A=M-1");
+        outputFile.println("D=M");			//	D = *(R15++)
+        writePushD();
+        outputFile.println("@R15");
+        outputFile.println("D=M");
+        outputFile.println("@LCL");
+        outputFile.println("D=D-M");
+        outputFile.println("@" + symbol(TAIL_CALL_LABEL + "$SAVE"));
+        outputFile.println("D;JLT");		//	Repeat until R15 reaches LCL
+        romAddress += 16;
+        //	Then copy [arguments, frame] = numArgs + 5 words down to ARG
+        outputFile.println("@R13");
+        outputFile.println("D=M");
+        outputFile.println("@5");
+        outputFile.println("D=D+A");
+        outputFile.println("@R13");
+        outputFile.println("M=D");			//	R13 = numArgs + 5
+        romAddress += 6;
+        writeTailCallSetup();
+        writeTailCallCopy(TAIL_CALL_LABEL + "$BLOCK", TAIL_CALL_LABEL + "$BLOCKEND");
+        outputFile.println("@SP");
+        outputFile.println("D=M");
+        outputFile.println("@LCL");
+        outputFile.println("M=D");			//	LCL = SP = ARG + numArgs + 5
+        outputFile.println("@R14");
+        outputFile.println("A=M");
+        outputFile.println("0;JMP");		//	Transfer control to the called function
+        romAddress += 7;
+    }
+
+    /**
+     * Prepares the copy loop of the $TAILCALL routine to move R13 words from the
+     * top of the stack down to ARG. The stack pointer (SP) is reused as the
+     * destination address, so the copy can simply push each word.
+     *
+     * PRECONDITION:	R13 holds the number of words on top of the stack to move
+     * POSTCONDITION:	assembly code setting R15 = SP - R13 (source) and
+     * 					SP = ARG (destination) has been written to the output file
+     */
+    private void writeTailCallSetup() {
+        outputFile.println("@SP");
+        outputFile.println("D=M");
+        outputFile.println("@R13");
+        outputFile.println("D=D-M");
+        outputFile.println("@R15");
+        outputFile.println("M=D");			//	R15 = SP - R13 (source address)
+        outputFile.println("@ARG");
+        outputFile.println("D=M");
+        outputFile.println("@SP");
+        outputFile.println("M=D");			//	SP = ARG (destination address)
+        romAddress += 10;
+    }
+
+    /**
+     * Writes the copy loop of the $TAILCALL routine, which pushes R13 words
+     * starting at the address held in R15.
+     *
+     * PRECONDITION:	writeTailCallSetup() has been called
+     * POSTCONDITION:	assembly code for the copy loop has been written to the output file
+     *
+     * @param	loopLabel	-	a unique label for the start of the loop
+     * @param	endLabel	-	a unique label for the end of the loop
+     */
+    private void writeTailCallCopy(String loopLabel, String endLabel) {
+        loopLabel = symbol(loopLabel);
+        endLabel = symbol(endLabel);
+        outputFile.println("(" + loopLabel + ")");
+        outputFile.println("@R13");
+        outputFile.println("M=M-1");
+        outputFile.println("D=M+1");		//	D = words left to copy (before decrement)
+        outputFile.println("@" + endLabel);
+        outputFile.println("D;JEQ");
+        outputFile.println("@R15");
+        outputFile.println("M=M+1");
+        outputFile.println("A=M-1");
+        outputFile.println("D=M");			//	D = *(R15++)
+        romAddress += 9;
+        writePushD();
+        outputFile.println("@" + loopLabel);
+        outputFile.println("0;JMP");
+        outputFile.println("(" + endLabel + ")");
+        romAddress += 2;
+    }
+
+    /**
+     * Writes every shared routine jumped to by the code written so far.
+     *
+     * PRECONDITION:	the last VM command has been translated
+     * POSTCONDITION:	assembly code for the needed shared routines has been written to the output file
+     */
+    private void writeSharedRoutines() {
+        if (tailCallWritten) {
+            writeTailCallRoutine();
+            tailCallWritten = false;
+        }
+        for( String routine : routinesNeeded ) {
+            if (routine.equals(CALL_LABEL)) {
+                writeCallRoutine();
+            } else if (routine.startsWith(RETURN_LABEL)) {
+                Set<String> restored = new LinkedHashSet<>();
+                for( String pointer : FRAME_POINTERS ) {
+                    if (routine.equals(RETURN_LABEL) || routine.endsWith("$" + pointer)) {
+                        restored.add(pointer);
+                    }
+                }
+                outputFile.println("(" + symbol(routine) + ")");
+                writeReturnBody(restored);
+            } else {
+                writeInequalityRoutine(routine);
+            }
+        }
+        routinesNeeded.clear();
+    }
+
+    /**
+     * Writes the shared routine that cold call sites jump to. It does the same as
+     * the inline translation [writeCall()], with the call site's values passed in.
+     * ->	Expects R13 = numArgs, R14 = address of the called function, and
+     * 		D = the return address.
+     *
+     * PRECONDITION:	at least one cold call site has been written to the output file
+     * POSTCONDITION:	assembly code for the $CALL routine has been written to the output file
+     */
+    private void writeCallRoutine() {
+        outputFile.println("(" + symbol(CALL_LABEL) + ")");
+        writePushD();						//	Push RIP (Return Insertion Point)
         writePushPointer("LCL");			//	Save the current frame's state
         writePushPointer("ARG");
         writePushPointer("THIS");
         writePushPointer("THAT");
         outputFile.println("@SP");
-        outputFile.println("D=M");					//	D = SP (address)
+        outputFile.println("D=M");
         outputFile.println("@LCL");
         outputFile.println("M=D");					//	Reposition LCL [LCL = SP]
-        outputFile.println("@" + (numArgs + 5));	//	A = ARG adjustment [retAddr + frame + #args]
-        outputFile.println("D=D-A");				//	D = SP - ARG adjustment
+        outputFile.println("@R13");
+        outputFile.println("D=D-M");
+        outputFile.println("@5");
+        outputFile.println("D=D-A");
         outputFile.println("@ARG");
         outputFile.println("M=D");					//	ARG = SP - (numArgs + 5)
-        outputFile.println("@" + functionName);
-        outputFile.println("0;JMP");				//	Transfer control to functionName
-        //	Now, update romAddress
-        romAddress += 10;
-        //	But don't count this label in the update
-        outputFile.println("(RIP" + romAddress + ")");
+        outputFile.println("@R14");
+        outputFile.println("A=M");
+        outputFile.println("0;JMP");				//	Transfer control to the called function
+        romAddress += 13;
     }
 
     /**
-     * Writes assembly code that effects the return VM command.
-     * ->	Reposition the return value onto the top of the stack,
-     * 		restore the frame of the calling function, and transfer
-     * 		control (goto/jump) back to the calling function via the
-     * 		return address saved to the stack.
+     * Writes the assembly code shared by both translations of the return VM command
+     * [inline, or as a $RETURN routine]. See writeReturn().
      *
-     * PRECONDITION:	the VM command is C_RETURN
+     * PRECONDITION:	the VM command is C_RETURN, or a $RETURN routine is being written
      * POSTCONDITION:	assembly code to return control to the CALLING
      * 					function has been written to the output file
+     *
+     * @param	restored	-	the pointers to restore besides LCL & ARG, as saved by the call
      */
-    void writeReturn() {
+    private void writeReturnBody(Set<String> restored) {
         //	Save the return address in a temporary variable
         outputFile.println("@LCL");
         outputFile.println("D=M");		//	D = LCL (address)
@@ -337,10 +2016,23 @@ class CodeWriter {
         outputFile.println("D=M+1");	//	D = ARG (address) + 1
         outputFile.println("@SP");
         outputFile.println("M=D");		//	SP = ARG (address) + 1 - Restore SP of caller
-        writeRestorePointer("THAT");	//	Restore the frame/state of the caller
-        writeRestorePointer("THIS");
-        writeRestorePointer("ARG");
-        writeRestorePointer("LCL");
+        //	Restore the frame/state of the caller, passing over the slots that weren't saved
+        int skipped = 0;
+        for( String pointer : new String[] { "THAT", "THIS", "ARG", "LCL" } ) {
+            if (FRAME_POINTERS.contains(pointer) && !restored.contains(pointer)) {
+                skipped++;
+                continue;
+            }
+            if (skipped > 0) {
+                outputFile.println("@LCL");
+                for(int i = 0; i < skipped; i++) {
+                    outputFile.println("M=M-1");
+                }
+                romAddress += 1 + skipped;
+                skipped = 0;
+            }
+            writeRestorePointer(pointer);
+        }
         outputFile.println("@R15");
         outputFile.println("A=M");
         outputFile.println("0;JMP");	//	Jump to the saved return address
@@ -349,131 +2041,24 @@ class CodeWriter {
     }
 
     /**
-     * Writes assembly code that effects the function VM command in assembly.
-     * ->	Writes an assembly label containing the functionName,
-     * 		and assembly code to initialize numLocals local variables to 0
-     * 		(pushing 0 numLocals times onto the stack) to outputFile.
-     *
-     * PRECONDITION:	the VM command is C_FUNCTION
-     * POSTCONDITION:	assembly code to declare functionName and initialize
-     * 					numLocals local variables has been written to the output file
-     *
-     * @param	functionName	-	the name of the function being DECLARED
-     * @param	numLocals		-	the number of local variables in functionName
-     * 								[to be initialized to 0]
-     */
-    void writeFunction(String functionName, int numLocals) {
-        outputFile.println("(" + functionName + ")");
-        curFunction = functionName;
-        for(int i = 0; i < numLocals; i++) {
-            outputFile.println("@SP");
-            outputFile.println("AM=M+1");
-            outputFile.println("A=A-1");
-            outputFile.println("M=0");
-            romAddress += 4;
-        }
-    }
-
-    /**************************
-     * General Helper Methods *
-     **************************/
-
-    /**
-     * Builds out the translator HashMap to hold VM commands & memory segments and
-     * their implementation in assembly.
-     *
-     * NOTE:    Accounts for pointer [RAM[base] + i] vs. value [address + i] notation
-     *          AND
-     *          Pairing the "lt" or "gt" arithmetic commands with the "not" of the
-     *          jump condition to be used in assembly.
-     *          ->  instead of testing x < y as x - y < 0,
-     *              test as y - x > 0
-     *
-     *          **  Saves two lines of assembly when translated.
-     *
-     * PRECONDITION:    N/A
-     * POSTCONDITION:   translator contains all predefined translations
-     */
-    private void initTranslator() {
-        translator = new HashMap<>();
-        //  Add all binary C_ARITHMETIC commands and their operators/jump codes
-        translator.put("add", "+");
-        translator.put("sub", "-");
-        translator.put("and", "&");
-        translator.put("or",  "|");
-        //  A "not" will be applied to the jump condition in "eq", "lt", and "gt"
-        //  Thus, if command is "<" or ">", the jump condition is reversed.
-        translator.put("eq",  "JEQ");
-        translator.put("lt",  "JGT");   //  !(lt) = JGT
-        translator.put("gt",  "JLT");   //  !(gt) = JLT
-
-        //  Add all virtual memory segments (except for constant)
-        //  local..that -> [base + i] = [RAM[address] + i]
-        translator.put("local", "LCL");
-        translator.put("argument", "ARG");
-        translator.put("this", "THIS");
-        translator.put("that", "THAT");
-        //  pointer, temp -> [address + i]
-        translator.put("pointer", "3");
-        translator.put("temp", "5");
-    }
-
-    /**
-     * Generates a label for branching in assembly in the format _#.
-     *
-     * PRECONDITION:    no other method adjusts the value of labelCounter
-     * POSTCONDITION:   labelCounter represents the next available label,
-     *                  and the generated label does not specify an assembly instruction
-     */
-    private String getBranchLabel() {
-        return "_" + labelCounter++;
-    }
-
-    /**
-     * Generates a static label in the format fileName.index that will
-     * access the static virtual memory segment.
-     *
-     * PRECONDITION:    curVMfileName is not null -> a .vm file is being translated
-     * POSTCONDITION:   the generated label does not specify an assembly instruction
-     *
-     * @param   index   -   the index of the static segment to access
-     */
-    private String getStaticLabel(int index) {
-        return curVMfileName + "." + index;
-    }
-
-    /**
-     * Returns a given label in the format functionName$label.
-     *
-     * PRECONDITION:	N/A
-     * POSTCONDITION:	label is returned in the form functionName$label
+     * Writes a shared routine that performs an eq, lt, or gt comparison for cold code.
+     * ->	Expects D = the return address, which is kept in R15 meanwhile.
      *
-     * @param	label	-	the symbol/label to use in assembly
-     * @return			-	label in the format functionName$label
-     */
-    private String getProperLabel(String label) {
-        return curFunction + "$" + label;
-    }
-
-    /****************************
-     * Assembly Writing Helpers *
-     ****************************/
-
-    /**
-     * Writes assembly code that effects the VM initialization, also
-     * called bootstrap code. This code must be placed at the beginning
-     * of the output file.
+     * PRECONDITION:	at least one cold comparison has been written to the output file
+     * POSTCONDITION:	assembly code for the routine has been written to the output file
      *
-     * PRECONDITION:	the output file has been successfully opened
-     * POSTCONDITION:	assembly bootstrap code has been written to the output file
+     * @param	routine	-	the routine's label: $EQ, $LT, or $GT
      */
-    private void writeBootstrap() {
-        outputFile.println("@256");
-        outputFile.println("D=A");
-        outputFile.println("@SP");
-        outputFile.println("M=D");
-        romAddress += 4;
-        writeCall("Sys.init", 0);
+    private void writeInequalityRoutine(String routine) {
+        outputFile.println("(" + symbol(routine) + ")");
+        outputFile.println("@R15");
+        outputFile.println("M=D");					//	R15 = return address
+        romAddress += 2;
+        writeInequality(translator.get(routine.substring(1).toLowerCase()));
+        outputFile.println("@R15");
+        outputFile.println("A=M");
+        outputFile.println("0;JMP");
+        romAddress += 3;
     }
 
     //  Push & Pop Helpers
@@ -581,7 +2166,7 @@ class CodeWriter {
         outputFile.println("D=D+A");
         outputFile.println("@R14");
         outputFile.println("M=D");
-        writePopD();
+        writeStackPopD();
         outputFile.println("@R14");
         outputFile.println("A=M");
         outputFile.println("M=D");
@@ -590,18 +2175,18 @@ class CodeWriter {
 
     /**
      * Writes assembly code to pop the top-most value off the stack and store it into
-     * the static segment at the specified index.
+     * a fixed address: a static variable, or a slot of a static frame.
      *
      * PRECONDITION:    the VM command is C_POP, and
-     *                  a value needs to be popped off the stack and stored into the static memory segment
-     * POSTCONDITION:   assembly commands to put the top of the stack into static[index]
+     *                  a value needs to be popped off the stack and stored into a fixed address
+     * POSTCONDITION:   assembly commands to put the top of the stack into the variable
      *                  have been written to the output file
      *
-     * @param   index   -   the specific index to access within the static segment
+     * @param   variable    -   a label of form fileName.index, or an address
      */
-    private void writePopToStatic(int index) {
-        writePopD();
-        outputFile.println("@" + getStaticLabel(index));    //  label of form fileName.index
+    private void writePopToVariable(String variable) {
+        writeStackPopD();
+        outputFile.println("@" + variable);
         outputFile.println("M=D");
         romAddress += 2;
     }
@@ -653,25 +2238,25 @@ class CodeWriter {
         writeIndexOffset(segment, index);
         outputFile.println("A=D+A");
         outputFile.println("D=M");
-        writePushD();
+        writeStackPushD();
         romAddress += 2;
     }
 
     /**
-     * Writes assembly code to push a value from the indicated index within the static
-     * virtual memory segment onto the top of the stack.
+     * Writes assembly code to push the value at a fixed address onto the top of the
+     * stack: a static variable, or a slot of a static frame.
      *
      * PRECONDITION:    the VM command is C_PUSH, and
-     *                  a value needs to be pushed onto the stack from the static memory segment
-     * POSTCONDITION:   assembly commands to push a value onto the stack from static[index]
+     *                  a value needs to be pushed onto the stack from a fixed address
+     * POSTCONDITION:   assembly commands to push the variable's value onto the stack
      *                  have been written to the output file
      *
-     * @param   index   -   the specific index to access within the static segment
+     * @param   variable    -   a label of form fileName.index, or an address
      */
-    private void writePushStatic(int index) {
-        outputFile.println("@" + getStaticLabel(index));
+    private void writePushVariable(String variable) {
+        outputFile.println("@" + variable);
         outputFile.println("D=M");
-        writePushD();
+        writeStackPushD();
         romAddress += 2;
     }
 
@@ -690,7 +2275,7 @@ class CodeWriter {
      * @param   operator    -   the operator for the desired operation [+, -, &, |]
      */
     private void writeBinaryOp(String operator) {
-        writePopD();
+        writeStackPopD();
         outputFile.println("A=A-1");
         outputFile.println("M=M" + operator + "D");
         romAddress += 2;
@@ -707,10 +2292,109 @@ class CodeWriter {
      *                  finish the 2's complement on the address stored in A. (add 1 to M)
      */
     private void writeUnaryOp() {
-        outputFile.println("@SP");
-        outputFile.println("A=M-1");
+        writeTopAddress();
         outputFile.println("M=!M");
-        romAddress += 3;
+        romAddress++;
+    }
+
+    /**
+     * Writes assembly code that increments a newly allocated execution counter.
+     * ->	Only A changes, so the counter can go anywhere between VM commands.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   if counters are enabled, the counter has been allocated and
+     *                  its increment written to the output file
+     *
+     * @param   kind    -   what is counted [Counters.FUNCTION, LABEL or CALL]
+     * @param   name    -   the rest of the counter's record
+     */
+    private void writeCounter(String kind, String name) {
+        if (counters == null) {
+            return;
+        }
+        outputFile.println("@" + counters.add(kind, name));
+        outputFile.println("M=M+1");
+        romAddress += 2;
+    }
+
+    /**
+     * Writes assembly code that increments the counter of the current call site.
+     *
+     * PRECONDITION:    the VM command is C_CALL
+     * POSTCONDITION:   if counters are enabled, the call site's counter has been written
+     *
+     * @param   functionName    -   the name of the function being CALLED
+     */
+    private void writeCallCounter(String functionName) {
+        writeCounter(Counters.CALL, curVMfileName + ".vm:" + sourceLine + " "
+                + (curFunction.isEmpty() ? "-" : curFunction) + " " + functionName);
+    }
+
+    /**
+     * Writes assembly code that points A at the top-most value on the stack.
+     *
+     * PRECONDITION:    the stack is not empty
+     * POSTCONDITION:   A = the address of the top of the stack; SP is unchanged
+     */
+    private void writeTopAddress() {
+        outputFile.println("@SP");
+        //	A pending value [-O2 & -Os] sits at RAM[SP] itself
+        outputFile.println(spOffset == 0 ? "A=M-1" : "A=M");
+        romAddress += 2;
+    }
+
+    /**
+     * Writes assembly code that multiplies the top-most value on the stack by a constant.
+     * ->	D accumulates the product one signed binary digit of constant at a time,
+     * 		from the top [non-adjacent form, so a run of 1s costs a single subtraction]:
+     * 		D = 2D [A=D, D=D+A], then + x or - x, with x kept in R13. Like the Jack OS,
+     * 		the product wraps around at 16 bits.
+     *
+     * PRECONDITION:    the stack is not empty, and constant is not negative
+     * POSTCONDITION:   the top of the stack has been multiplied by constant
+     *
+     * @param   constant    -   the constant to multiply by
+     */
+    private void writeMultiply(int constant) {
+        if (constant == 1) {
+            return;
+        }
+        writeTopAddress();
+        if (constant == 0) {
+            outputFile.println("M=0");
+            romAddress++;
+            return;
+        }
+        //	Non-adjacent form, lowest digit first: each digit is -1, 0 or 1
+        int[] digits = new int[17];
+        int length = 0;
+        boolean addsX = false;				//	any digit besides the top one
+        for(int c = constant; c != 0; c >>= 1) {
+            int digit = (c & 1) == 0 ? 0 : 2 - (c & 3);
+            c -= digit;
+            digits[length++] = digit;
+            addsX |= digit != 0 && c != 0;
+        }
+        outputFile.println("D=M");					//	D = x [the top digit is always 1]
+        romAddress++;
+        if (addsX) {
+            outputFile.println("@R13");
+            outputFile.println("M=D");
+            romAddress += 2;
+        }
+        for(int i = length - 2; i >= 0; i--) {
+            outputFile.println("A=D");
+            outputFile.println("D=D+A");
+            romAddress += 2;
+            if (digits[i] != 0) {
+                outputFile.println("@R13");
+                outputFile.println(digits[i] > 0 ? "D=D+M" : "D=D-M");
+                romAddress += 2;
+            }
+        }
+        writeTopAddress();
+        outputFile.println("M=D");
+        romAddress++;
     }
 
     /**
@@ -727,7 +2411,7 @@ class CodeWriter {
         String label1 = getBranchLabel();
         String label2 = getBranchLabel();
         //  Construct assembly code
-        writePopD();    //  SP is updated to the address of SP - 1
+        writeStackPopD();   //  SP is updated to the address of SP - 1
         outputFile.println("A=A-1");
         outputFile.println("D=D-M");        //  D = value of (SP - 1) - value of (SP - 2)
         outputFile.println("@" + label1);
@@ -743,6 +2427,120 @@ class CodeWriter {
         outputFile.println("M=D");          //  address of (original) SP - 2 = result of comparison (D)
         romAddress += 11;
     }
+
+    //  Virtual Stack Pointer Helpers [-O2 & -Os]
+
+    /**
+     * Writes assembly code to push the D-Register onto the stack of a VM command:
+     * the virtual stack at -O2 & -Os, the real one otherwise.
+     *
+     * PRECONDITION:    a VM push is being translated [not call/return frame code]
+     * POSTCONDITION:   D has been pushed
+     */
+    private void writeStackPushD() {
+        if (isVirtualSP()) {
+            writeVirtualPush("D");
+        } else {
+            writePushD();
+        }
+    }
+
+    /**
+     * Writes assembly code to pop the stack of a VM command into the D-Register:
+     * the virtual stack at -O2 & -Os, the real one otherwise. Either way, A is left
+     * holding the address of the popped value.
+     *
+     * PRECONDITION:    a VM pop is being translated [not call/return frame code]
+     * POSTCONDITION:   D holds the popped value
+     */
+    private void writeStackPopD() {
+        if (isVirtualSP()) {
+            writeVirtualPopD();
+        } else {
+            writePopD();
+        }
+    }
+
+    /**
+     * Writes assembly code to push a value onto the virtual stack.
+     * ->	With nothing pending, the value is stored at RAM[SP] and left pending
+     * 		[spOffset = 1]. Otherwise, SP is bumped past the pending value first,
+     * 		so the new value becomes the pending one.
+     *
+     * PRECONDITION:    isVirtualSP()
+     * POSTCONDITION:   the value is on top of the stack, and spOffset == 1
+     *
+     * @param   value   -   D, or a constant the ALU can produce [0, 1]
+     */
+    private void writeVirtualPush(String value) {
+        outputFile.println("@SP");
+        outputFile.println(spOffset == 0 ? "A=M" : "AM=M+1");
+        outputFile.println("M=" + value);
+        romAddress += 3;
+        spOffset = 1;
+    }
+
+    /**
+     * Writes assembly code to pop the top of the virtual stack into the D-Register.
+     * A pending value is simply taken back; otherwise SP is decremented as usual.
+     *
+     * PRECONDITION:    isVirtualSP()
+     * POSTCONDITION:   D = the popped value, A = its address, and spOffset == 0
+     */
+    private void writeVirtualPopD() {
+        outputFile.println("@SP");
+        outputFile.println(spOffset == 0 ? "AM=M-1" : "A=M");
+        outputFile.println("D=M");
+        romAddress += 3;
+        spOffset = 0;
+    }
+
+    /**
+     * Writes assembly code that brings SP in RAM up to date, pushing any pending value
+     * for good. Does not change D.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   RAM[SP] is the real stack pointer, and spOffset == 0
+     */
+    private void writeCommitSP() {
+        if (spOffset != 0) {
+            outputFile.println("@SP");
+            outputFile.println("M=M+1");
+            romAddress += 2;
+            spOffset = 0;
+        }
+    }
+
+    /**
+     * Writes a function prologue that zeroes the locals in one run and bumps SP
+     * once, leaving the last local pending [spOffset = 1].
+     *
+     * PRECONDITION:    isVirtualSP(), and the function's label has been written
+     * POSTCONDITION:   numLocals zeroes have been pushed
+     *
+     * @param   numLocals   -   the number of local variables to initialize
+     */
+    private void writeVirtualPrologue(int numLocals) {
+        if (numLocals == 0) {
+            return;
+        }
+        outputFile.println("@SP");
+        outputFile.println("A=M");
+        outputFile.println("M=0");
+        romAddress += 3;
+        for(int i = 1; i < numLocals; i++) {
+            outputFile.println("A=A+1");
+            outputFile.println("M=0");
+            romAddress += 2;
+        }
+        if (numLocals > 1) {
+            outputFile.println("D=A");
+            outputFile.println("@SP");
+            outputFile.println("M=D");			//	SP = address of the last local
+            romAddress += 3;
+        }
+        spOffset = 1;
+    }
 }
 
 
@@ -0,0 +1,298 @@
+/************************************************************************************
+ *
+ * Class name:    Counters
+ * Description:   The execution counters of an instrumented translation [-counters]:
+ *                the generated code increments one RAM word per counter, so the
+ *                program counts itself wherever it runs - the CPU emulator, hardware,
+ *                or HackCompiler. Counters are laid out from a base address, one word
+ *                each, in order of first use:
+ *
+ *                  function <name>                             entries into a function
+ *                  label    <function> <label>                 passes through a label
+ *                                                              [-count-labels]
+ *                  call     <file>:<line> <caller> <callee>    calls made by a call site
+ *
+ *                The table is saved next to the .asm file as Prog.counters, one
+ *                "address record" pair per line; lines starting with # are comments.
+ *
+ *                Run on its own, this class is the dump tool: it reads Prog.counters and
+ *                the RAM of a finished run, and lists every counter, busiest first.
+ *                The RAM may be given as a CPU emulator output file [| RAM[3000] | ...
+ *                header row, values in the last row] or as "address value" lines.
+ *
+ *                A counter is a single word: counts are read as unsigned, and wrap
+ *                around after 65535.
+ *
+ * History:       Oct. 19, J, author, counter table, Prog.counters & dump tool
+ *
+ * Methods:       Public:   main(String[]), Counters(int), add(String, String), getBase(),
+ *                          size(), getRecord(int), write(File, String), read(File),
+ *                          dump(int[], PrintStream)
+ *
+ *                Private:  readRam(File)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+class Counters {
+
+    /*************
+     * Constants *
+     *************/
+    static final String FUNCTION = "function";
+    static final String LABEL = "label";
+    static final String CALL = "call";
+
+    private static final String USAGE =
+            "Usage: Counters Prog.counters ram.out\n" +
+            "\n" +
+            "  Prog.counters      the counter table written by VirtualMachine -counters <base>\n" +
+            "  ram.out            the RAM after the run: a CPU emulator output file listing the\n" +
+            "                     counter addresses, or \"address value\" lines";
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private int base;                   //  address of the first counter
+    private List<String> records;       //  counter i lives at base + i
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Creates an empty counter table.
+     *
+     * PRECONDITION:    0 <= base < HackMachine.KBD
+     * POSTCONDITION:   the table holds no counters
+     *
+     * @param   base    -   the address of the first counter
+     */
+    Counters(int base) {
+        this.base = base;
+        records = new ArrayList<>();
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Prints the counts of a finished run, given its counter table and RAM.
+     *
+     * PRECONDITION:    args holds the counter table & RAM file names
+     * POSTCONDITION:   every counter and its count have been printed to standard output
+     *
+     * @param   args    -   the supplied command-line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        try {
+            Counters counters = read(new File(args[0]));
+            counters.dump(readRam(new File(args[1])), System.out);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Allocates the next counter.
+     *
+     * PRECONDITION:    kind is FUNCTION, LABEL or CALL
+     * POSTCONDITION:   the counter has been added to the table
+     *
+     * @param   kind    -   what is counted
+     * @param   name    -   the rest of the record [see the class description]
+     * @return          -   the address of the new counter
+     *
+     * @throws  IllegalStateException   -   if the counters would reach the keyboard map
+     */
+    int add(String kind, String name) {
+        int address = base + records.size();
+        if (address >= HackMachine.KBD) {
+            throw new IllegalStateException("Too many counters for RAM[" + base + "..]: choose a lower "
+                    + "-counters base, or leave out -count-labels");
+        }
+        records.add(kind + " " + name);
+        return address;
+    }
+
+    /**
+     * @return  -   the address of the first counter
+     */
+    int getBase() {
+        return base;
+    }
+
+    /**
+     * @return  -   the number of counters
+     */
+    int size() {
+        return records.size();
+    }
+
+    /**
+     * @param   address -   the address of a counter
+     * @return          -   what it counts, as "kind name"
+     */
+    String getRecord(int address) {
+        return records.get(address - base);
+    }
+
+    /**
+     * Saves the counter table as text.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the table has been written to countersFile
+     *
+     * @param   countersFile    -   the file to write
+     * @param   comment         -   a description of the program, written as a comment line
+     *
+     * @throws  IOException -   if countersFile cannot be written
+     */
+    void write(File countersFile, String comment) throws IOException {
+        try (PrintWriter out = new PrintWriter(countersFile)) {
+            out.println("# " + comment);
+            for(int i = 0; i < records.size(); i++) {
+                out.println((base + i) + " " + records.get(i));
+            }
+            if (out.checkError()) {
+                throw new IOException("Could not write " + countersFile.getPath());
+            }
+        }
+    }
+
+    /**
+     * Loads a counter table saved by write(File, String).
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   countersFile    -   the file to read
+     * @return                  -   the loaded table
+     *
+     * @throws  IOException -   if countersFile cannot be read, or its addresses are
+     *                          not consecutive
+     */
+    static Counters read(File countersFile) throws IOException {
+        Counters counters = null;
+        try (BufferedReader in = new BufferedReader(new FileReader(countersFile))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+", 2);
+                try {
+                    int address = Integer.parseInt(parts[0]);
+                    if (counters == null) {
+                        counters = new Counters(address);
+                    }
+                    if (parts.length != 2 || address != counters.base + counters.size()) {
+                        throw new NumberFormatException();
+                    }
+                    counters.records.add(parts[1]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed counter record at " + countersFile.getPath()
+                            + ":" + lineNumber + ": " + line);
+                }
+            }
+        }
+        return counters == null ? new Counters(0) : counters;
+    }
+
+    /**
+     * Lists every counter with its count, busiest first [ties in table order].
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the listing has been written to out
+     *
+     * @param   ram -   the RAM of a finished run, or at least up to the last counter
+     * @param   out -   where to write the listing
+     */
+    void dump(final int[] ram, PrintStream out) {
+        List<Integer> addresses = new ArrayList<>();
+        for(int i = 0; i < records.size(); i++) {
+            addresses.add(base + i);
+        }
+        Collections.sort(addresses, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer x, Integer y) {
+                return Integer.compare(ram[y] & 0xFFFF, ram[x] & 0xFFFF);
+            }
+        });
+        for( int address : addresses ) {
+            out.println(String.format("%8d  RAM[%d]  %s", ram[address] & 0xFFFF, address, getRecord(address)));
+        }
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Reads the RAM of a finished run. Addresses that are not listed read as 0.
+     * ->	A CPU emulator output file has a header row of |RAM[n]| columns, and
+     * 		one row of values per output command: the last row is used.
+     * 		Otherwise each line holds an address and its value.
+     *
+     * @param   ramFile -   the file to read
+     * @return          -   the RAM
+     *
+     * @throws  IOException -   if ramFile cannot be read or is malformed
+     */
+    private static int[] readRam(File ramFile) throws IOException {
+        int[] ram = new int[HackMachine.RAM_SIZE];
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(ramFile))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    lines.add(line.trim());
+                }
+            }
+        }
+        try {
+            if (!lines.isEmpty() && lines.get(0).startsWith("|")) {
+                String[] header = lines.get(0).split("\\|");
+                String[] values = lines.get(lines.size() - 1).split("\\|");
+                for(int i = 0; i < header.length && i < values.length; i++) {
+                    String column = header[i].trim();
+                    if (column.startsWith("RAM[") && column.endsWith("]")) {
+                        int address = Integer.parseInt(column.substring(4, column.length() - 1));
+                        ram[address] = Integer.parseInt(values[i].trim());
+                    }
+                }
+            } else {
+                for( String line : lines ) {
+                    String[] parts = line.split("\\s+");
+                    if (parts.length != 2) {
+                        throw new NumberFormatException(line);
+                    }
+                    ram[Integer.parseInt(parts[0])] = Integer.parseInt(parts[1]);
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed RAM file " + ramFile.getPath() + ": " + e.getMessage());
+        }
+        return ram;
+    }
+}
@@ -0,0 +1,598 @@
+/************************************************************************************
+ *
+ * Class name:    FlowGraph
+ * Description:   The control-flow graph of a single VM function, used to clean up its
+ *                jumps before translation. Basic blocks are split at label, goto,
+ *                if-goto & return commands. Then:
+ *
+ *                  1.  jumps to a block that only jumps again are threaded straight
+ *                      to the final target [goto A ... label A, goto B -> goto B]
+ *                  2.  blocks that can't be reached from the function's entry are
+ *                      deleted [e.g. code after a goto or return, up to the next label]
+ *                  3.  gotos to the block that follows anyway are dropped
+ *                  4.  stores to local, temp, pointer, this & that that are never read
+ *                      are deleted along with the pushes computing their value, or
+ *                      become a bare pop [see removeDeadStores()]
+ *
+ *                Labels are local to their function, so nothing outside of the
+ *                function can jump into it.
+ *
+ * History:       Oct. 19, J, author, jump threading & unreachable code elimination
+ *                Oct. 19, J, dead store elimination by liveness analysis
+ *                Oct. 19, J, this/that may alias any segment in RAM
+ *
+ * Methods:       Public:   optimize(List), optimize(List, CallGraph)
+ *
+ *                Private:  FlowGraph(List), threadJumps(), findTarget(String),
+ *                          removeUnreachable(), successors(int), dropFallthroughGotos(),
+ *                          removeDeadStores(CallGraph), findReturning(),
+ *                          findLiveness(CallGraph, Set), findLiveOut(int, Map, Set),
+ *                          removeDeadStores(Block, Set, CallGraph),
+ *                          findProducer(List, int), addUses(VMCommand, Set, CallGraph),
+ *                          slot(VMCommand), toCommands()
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class FlowGraph {
+
+    /**
+     * A run of commands that is only entered at the top and only left at the bottom.
+     */
+    private static class Block {
+        List<VMCommand> labels = new ArrayList<>();     //  label commands naming the block
+        List<VMCommand> body = new ArrayList<>();       //  straight-line commands [incl. calls]
+        VMCommand exit;         //  goto, if-goto, or return ending the block; null = falls through
+        int index;              //  position within the function
+        boolean reachable;
+
+        Block(int index) {
+            this.index = index;
+        }
+
+        /**
+         * @return  -   true if control can continue into the next block
+         */
+        boolean fallsThrough() {
+            return exit == null || exit.type == Parser.Command.C_IF;
+        }
+    }
+
+    /*************
+     * Constants *
+     *************/
+    //  Segments whose slots dead store elimination tracks
+    private static final String LOCAL = "local";
+    private static final String TEMP = "temp";
+    private static final String POINTER = "pointer";
+    private static final String THIS = "this";
+    private static final String THAT = "that";
+    //  Segments in RAM that THIS & THAT may point into
+    private static final Set<String> MEMORY_SEGMENTS = new HashSet<>(Arrays.asList(
+            "static", LOCAL, "argument", TEMP, THIS, THAT));
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private VMCommand header;                   //  the function command, or null for top-level code
+    private List<Block> blocks;                 //  in program order; blocks.get(0) is the entry
+    private HashMap<String, Block> labelBlocks; //  label -> the block it names
+
+    //  Dead store elimination: every tracked slot the function uses ["segment index"],
+    //  and the blocks that reach a return or the end of the function
+    private HashSet<String> slots;
+    private HashSet<Block> returning;
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Splits a function's commands into basic blocks.
+     *
+     * PRECONDITION:    commands holds at most one function command, which comes first
+     * POSTCONDITION:   blocks holds every command after the function command
+     *
+     * @param   commands    -   the commands of the function
+     */
+    private FlowGraph(List<VMCommand> commands) {
+        blocks = new ArrayList<>();
+        labelBlocks = new HashMap<>();
+        Block block = new Block(0);
+        blocks.add(block);
+        for( VMCommand command : commands ) {
+            if (command.type == Parser.Command.C_FUNCTION) {
+                header = command;
+                continue;
+            }
+            //  A label starts a block, unless the current block is still empty;
+            //  any other command after a block's exit starts an unlabeled one.
+            boolean empty = block.body.isEmpty() && block.exit == null;
+            if ((command.type == Parser.Command.C_LABEL && !empty) || block.exit != null) {
+                block = new Block(blocks.size());
+                blocks.add(block);
+            }
+            if (command.type == Parser.Command.C_LABEL) {
+                block.labels.add(command);
+                labelBlocks.put(command.arg1, block);
+            } else if (command.isJump() || command.type == Parser.Command.C_RETURN) {
+                block.exit = command;
+            } else {
+                block.body.add(command);
+            }
+        }
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Threads jump chains, deletes unreachable code, and drops redundant gotos
+     * within a function.
+     *
+     * PRECONDITION:    commands holds the commands of a single function, starting
+     *                  with its function command [or top-level code before any function]
+     * POSTCONDITION:   N/A
+     *
+     * @param   commands    -   the commands of the function
+     * @return              -   the equivalent commands, ready for translation
+     */
+    static List<VMCommand> optimize(List<VMCommand> commands) {
+        return optimize(commands, null);
+    }
+
+    /**
+     * Threads jump chains, deletes unreachable code, drops redundant gotos, and
+     * deletes dead stores within a function.
+     *
+     * PRECONDITION:    commands holds the commands of a single function, starting
+     *                  with its function command [or top-level code before any function]
+     * POSTCONDITION:   N/A
+     *
+     * @param   commands    -   the commands of the function
+     * @param   program     -   the call graph of the whole program, telling which temp
+     *                          slots other functions may read; null to assume all of them
+     * @return              -   the equivalent commands, ready for translation
+     */
+    static List<VMCommand> optimize(List<VMCommand> commands, CallGraph program) {
+        FlowGraph graph = new FlowGraph(commands);
+        graph.threadJumps();
+        graph.removeUnreachable();
+        graph.dropFallthroughGotos();
+        if (graph.header != null) {
+            //  Top-level code [a test script's] leaves its results in every segment
+            graph.removeDeadStores(program);
+        }
+        return graph.toCommands();
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Retargets every jump to the end of its jump chain.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   no jump targets a block that only holds a goto [except in a cycle]
+     */
+    private void threadJumps() {
+        for( Block block : blocks ) {
+            if (block.exit != null && block.exit.isJump()) {
+                String target = findTarget(block.exit.arg1);
+                if (!target.equals(block.exit.arg1)) {
+                    VMCommand exit = block.exit;
+                    block.exit = new VMCommand(exit.type, exit.command, target, exit.arg2, exit.line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Follows a chain of blocks that only hold a goto.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   label   -   the label jumped to
+     * @return          -   the label control finally ends up at
+     */
+    private String findTarget(String label) {
+        HashSet<Block> seen = new HashSet<>();
+        Block block = labelBlocks.get(label);
+        while (block != null && block.body.isEmpty() && block.exit != null
+                && block.exit.type == Parser.Command.C_GOTO && seen.add(block)) {
+            label = block.exit.arg1;
+            block = labelBlocks.get(label);
+        }
+        return label;
+    }
+
+    /**
+     * Deletes every block that can't be reached from the entry block.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   blocks only holds reachable blocks, in their original order
+     */
+    private void removeUnreachable() {
+        Deque<Integer> work = new ArrayDeque<>();
+        blocks.get(0).reachable = true;
+        work.push(0);
+        while (!work.isEmpty()) {
+            for( Block successor : successors(work.pop()) ) {
+                if (!successor.reachable) {
+                    successor.reachable = true;
+                    work.push(successor.index);
+                }
+            }
+        }
+
+        List<Block> reachable = new ArrayList<>();
+        for( Block block : blocks ) {
+            if (block.reachable) {
+                reachable.add(block);
+            }
+        }
+        blocks = reachable;
+        for(int i = 0; i < blocks.size(); i++) {
+            blocks.get(i).index = i;
+        }
+    }
+
+    /**
+     * @param   i   -   the position of a block within blocks
+     * @return      -   the blocks control can go to from it
+     */
+    private List<Block> successors(int i) {
+        Block block = blocks.get(i);
+        List<Block> successors = new ArrayList<>();
+        if (block.fallsThrough() && i + 1 < blocks.size()) {
+            successors.add(blocks.get(i + 1));
+        }
+        if (block.exit != null && block.exit.isJump() && labelBlocks.containsKey(block.exit.arg1)) {
+            successors.add(labelBlocks.get(block.exit.arg1));
+        }
+        return successors;
+    }
+
+    /**
+     * Drops every goto whose target is the very next block.
+     *
+     * PRECONDITION:    unreachable blocks have been removed
+     * POSTCONDITION:   no goto jumps to the block following it
+     */
+    private void dropFallthroughGotos() {
+        for(int i = 0; i + 1 < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            if (block.exit != null && block.exit.type == Parser.Command.C_GOTO
+                    && labelBlocks.get(block.exit.arg1) == blocks.get(i + 1)) {
+                block.exit = null;
+            }
+        }
+    }
+
+    /**
+     * Deletes stores that are never read, until there are none left [deleting one
+     * may make the stores its value came from dead as well].
+     * ->	A store is dead if no path from it reads the slot before storing to it again.
+     * 		What counts as a read beyond the function's own pushes:
+     * 		-	local		nothing: the frame is private, and gone after a return
+     * 		-	temp		shared by every function: a return reads all of it [the
+     * 						caller or a test script may look], and a call reads the slots
+     * 						some function may read before storing to them [program]
+     * 		-	pointer		every access to this/that reads its base, and a call reads
+     * 						both [the callee inherits THIS & THAT]; a return restores
+     * 						the caller's, so it doesn't
+     * 		-	this/that	THIS & THAT may point anywhere, so a push from static, local,
+     * 						argument, temp, this or that reads all of them [and a push
+     * 						from this or that every slot]; setting a pointer changes
+     * 						what its slots mean, and calls & returns read all of them.
+     * 						So a this/that store is only dead if it is stored to again
+     * 						before any of those
+     * 		Code that never returns [e.g. a halt loop] reads everything but locals,
+     * 		and code that runs off the end of the function everything.
+     *
+     * 		A dead store is deleted along with the pushes & arithmetic computing its
+     * 		value, if nothing else is in between, and becomes a bare pop otherwise.
+     *
+     * PRECONDITION:    the graph holds a function [header is not null]
+     * POSTCONDITION:   no store left is dead
+     *
+     * @param   program -   the call graph of the whole program, or null
+     */
+    private void removeDeadStores(CallGraph program) {
+        slots = new HashSet<>();
+        for( Block block : blocks ) {
+            for( VMCommand command : block.body ) {
+                if (slot(command) != null) {
+                    slots.add(slot(command));
+                }
+            }
+        }
+        //  What code that never returns [e.g. a halt loop] leaves behind
+        HashSet<String> observable = new HashSet<>();
+        for( String slot : slots ) {
+            if (!slot.startsWith(LOCAL + " ")) {
+                observable.add(slot);
+            }
+        }
+
+        findReturning();
+        boolean changed = true;
+        while (changed) {
+            Map<Block, Set<String>> liveIn = findLiveness(program, observable);
+            changed = false;
+            for(int i = 0; i < blocks.size(); i++) {
+                changed |= removeDeadStores(blocks.get(i), findLiveOut(i, liveIn, observable), program);
+            }
+        }
+    }
+
+    /**
+     * Finds the blocks from which control can reach a return, or run off the end
+     * of the function.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   returning holds those blocks
+     */
+    private void findReturning() {
+        returning = new HashSet<>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for(int i = blocks.size() - 1; i >= 0; i--) {
+                Block block = blocks.get(i);
+                boolean returns = (block.exit != null && block.exit.type == Parser.Command.C_RETURN)
+                        || (block.fallsThrough() && i + 1 == blocks.size());
+                for( Block successor : successors(i) ) {
+                    returns |= returning.contains(successor);
+                }
+                if (returns && returning.add(block)) {
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the slots live on entry to each block [read on some path before being
+     * stored to], by iterating backwards to a fixed point.
+     *
+     * PRECONDITION:    slots & returning have been found
+     * POSTCONDITION:   N/A
+     *
+     * @param   program     -   the call graph of the whole program, or null
+     * @param   observable  -   the slots code that never returns reads
+     * @return              -   block -> its live slots on entry
+     */
+    private Map<Block, Set<String>> findLiveness(CallGraph program, Set<String> observable) {
+        HashMap<Block, Set<String>> liveIn = new HashMap<>();
+        for( Block block : blocks ) {
+            liveIn.put(block, new HashSet<String>());
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for(int i = blocks.size() - 1; i >= 0; i--) {
+                Block block = blocks.get(i);
+                Set<String> live = findLiveOut(i, liveIn, observable);
+                for(int k = block.body.size() - 1; k >= 0; k--) {
+                    VMCommand command = block.body.get(k);
+                    if (command.type == Parser.Command.C_POP && slot(command) != null) {
+                        live.remove(slot(command));
+                    }
+                    addUses(command, live, program);
+                }
+                if (liveIn.get(block).addAll(live)) {
+                    changed = true;
+                }
+            }
+        }
+        return liveIn;
+    }
+
+    /**
+     * Finds the slots live at the end of a block's body, before its exit command.
+     *
+     * PRECONDITION:    slots & returning have been found
+     * POSTCONDITION:   N/A
+     *
+     * @param   i           -   the position of the block within blocks
+     * @param   liveIn      -   block -> its live slots on entry, so far
+     * @param   observable  -   the slots code that never returns reads
+     * @return              -   the live slots [a new set]
+     */
+    private Set<String> findLiveOut(int i, Map<Block, Set<String>> liveIn, Set<String> observable) {
+        Block block = blocks.get(i);
+        HashSet<String> live = new HashSet<>();
+        for( Block successor : successors(i) ) {
+            live.addAll(liveIn.get(successor));
+        }
+        if (block.fallsThrough() && i + 1 == blocks.size()) {
+            live.addAll(slots);         //  runs into whatever comes next
+        } else if (!returning.contains(block)) {
+            live.addAll(observable);    //  never returns
+        }
+        if (block.exit != null && block.exit.type == Parser.Command.C_RETURN) {
+            addUses(block.exit, live, null);
+        }
+        return live;
+    }
+
+    /**
+     * Deletes the dead stores of a block.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   no store in block is dead, given live
+     *
+     * @param   block   -   the block
+     * @param   live    -   the slots live at the end of its body [used up]
+     * @param   program -   the call graph of the whole program, or null
+     * @return          -   true if a store was deleted
+     */
+    private boolean removeDeadStores(Block block, Set<String> live, CallGraph program) {
+        boolean changed = false;
+        for(int k = block.body.size() - 1; k >= 0; k--) {
+            VMCommand command = block.body.get(k);
+            String slot = slot(command);
+            if (command.type == Parser.Command.C_POP && slot != null && !live.contains(slot)) {
+                int producer = findProducer(block.body, k);
+                if (producer != -1) {
+                    block.body.subList(producer, k + 1).clear();
+                    k = producer;
+                } else {
+                    block.body.set(k, VMCommand.discard(command.line));
+                }
+                changed = true;
+                continue;
+            }
+            if (command.type == Parser.Command.C_POP && slot != null) {
+                live.remove(slot);
+            }
+            addUses(command, live, program);
+        }
+        return changed;
+    }
+
+    /**
+     * Finds the commands that compute the value on top of the stack, if they only
+     * push values & do arithmetic [and so can be deleted along with it].
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   body    -   the commands of a block
+     * @param   k       -   the position of the command that pops the value
+     * @return          -   the position of the first command computing the value,
+     *                      or -1 if other commands are involved
+     */
+    private static int findProducer(List<VMCommand> body, int k) {
+        int needed = 1;     //  values still to be accounted for
+        for(int j = k - 1; j >= 0; j--) {
+            VMCommand command = body.get(j);
+            if (command.type == Parser.Command.C_PUSH) {
+                needed--;
+            } else if (command.type == Parser.Command.C_ARITHMETIC) {
+                String operator = command.command.toLowerCase();
+                if (!operator.equals("neg") && !operator.equals("not")) {
+                    needed++;       //  binary: two values in, one out
+                }
+            } else {
+                return -1;
+            }
+            if (needed == 0) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds the slots a command reads to a set of live slots.
+     *
+     * PRECONDITION:    slots holds every tracked slot the function uses
+     * POSTCONDITION:   N/A
+     *
+     * @param   command -   a command of the function [or its return]
+     * @param   live    -   the live slots after command
+     * @param   program -   the call graph of the whole program, or null to assume a call
+     *                      may read every temp slot
+     */
+    private void addUses(VMCommand command, Set<String> live, CallGraph program) {
+        String segment = command.arg1.toLowerCase();
+        if (segment.equals(THIS) || segment.equals(THAT)) {
+            live.add(POINTER + " " + (segment.equals(THIS) ? 0 : 1));     //  the base address
+        }
+        switch (command.type) {
+            case C_PUSH:
+                if (segment.equals(THIS) || segment.equals(THAT)) {
+                    //  THIS & THAT may point anywhere, incl. the frame & temp
+                    live.addAll(slots);
+                } else if (MEMORY_SEGMENTS.contains(segment)) {
+                    //  ...so any read of memory may read a this/that store
+                    for( String slot : slots ) {
+                        if (slot.startsWith(THIS + " ") || slot.startsWith(THAT + " ")) {
+                            live.add(slot);
+                        }
+                    }
+                }
+                if (slot(command) != null) {
+                    live.add(slot(command));
+                }
+                break;
+            case C_POP:
+                //  Stores before setting a pointer are to other memory than those after
+                if (segment.equals(POINTER)) {
+                    String changed = command.arg2 == 0 ? THIS : THAT;
+                    for( String slot : slots ) {
+                        if (slot.startsWith(changed + " ")) {
+                            live.add(slot);
+                        }
+                    }
+                }
+                break;
+            case C_CALL:
+            case C_RETURN:
+                for( String slot : slots ) {
+                    if (slot.startsWith(THIS + " ") || slot.startsWith(THAT + " ")
+                            || (slot.startsWith(POINTER + " ") && command.type == Parser.Command.C_CALL)) {
+                        live.add(slot);
+                    } else if (slot.startsWith(TEMP + " ") && (command.type == Parser.Command.C_RETURN
+                            || program == null
+                            || program.isSharedTemp(Integer.parseInt(slot.substring(TEMP.length() + 1))))) {
+                        live.add(slot);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @param   command -   a command
+     * @return          -   the tracked slot it pushes or pops, as "segment index",
+     *                      or null if it doesn't access one
+     */
+    private static String slot(VMCommand command) {
+        if (command.type != Parser.Command.C_PUSH && command.type != Parser.Command.C_POP) {
+            return null;
+        }
+        String segment = command.arg1.toLowerCase();
+        if (segment.equals(LOCAL) || segment.equals(TEMP) || segment.equals(POINTER)
+                || segment.equals(THIS) || segment.equals(THAT)) {
+            return segment + " " + command.arg2;
+        }
+        return null;
+    }
+
+    /**
+     * @return  -   the function's commands, in block order
+     */
+    private List<VMCommand> toCommands() {
+        List<VMCommand> commands = new ArrayList<>();
+        if (header != null) {
+            commands.add(header);
+        }
+        for( Block block : blocks ) {
+            commands.addAll(block.labels);
+            commands.addAll(block.body);
+            if (block.exit != null) {
+                commands.add(block.exit);
+            }
+        }
+        return commands;
+    }
+}
+
@@ -0,0 +1,306 @@
+/************************************************************************************
+ *
+ * Class name:    HackAssembler
+ * Description:   Assembles Hack assembly code (the translator's output) into Hack
+ *                machine code, so that translated programs can be run headlessly
+ *                by a HackMachine. Labels are resolved in a first pass; variables
+ *                are allocated from RAM[16] upward in a second pass.
+ *
+ * History:       Oct. 19, J, author, two-pass assembly & symbol tables
+ *                Oct. 19, J, record the symbol each A-instruction names [getReferences], for
+ *                            relocatable objects [see ObjectFile]
+ *
+ * Methods:       Public:   assemble(File), assemble(List), getRom(), getLabels(),
+ *                          getVariables(), getLabelAt(int), getReferences()
+ *
+ *                Private:  HackAssembler(), initTables(), cleanLine(String),
+ *                          encodeCInstruction(String, int)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+class HackAssembler {
+
+    /*******************************
+     * Class Variables & Constants *
+     *******************************/
+    //  First RAM address given to a variable
+    private static final int FIRST_VARIABLE = 16;
+
+    //  Predefined symbols, comp/dest/jump mnemonics -> bits
+    private static final HashMap<String, Integer> PREDEFINED = new HashMap<>();
+    private static final HashMap<String, Integer> COMP = new HashMap<>();
+    private static final HashMap<String, Integer> JUMP = new HashMap<>();
+
+    static {
+        initTables();
+    }
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private short[] rom;                            //  assembled machine code
+    private HashMap<String, Integer> labels;        //  label -> ROM address
+    private HashMap<String, Integer> variables;     //  variable -> RAM address
+    private HashMap<Integer, String> labelAt;       //  ROM address -> first label there
+    private HashMap<Integer, String> references;    //  ROM address -> label or variable it loads
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Creates an assembler with empty symbol tables. Use assemble() instead.
+     */
+    private HackAssembler() {
+        labels = new HashMap<>();
+        variables = new HashMap<>();
+        labelAt = new HashMap<>();
+        references = new HashMap<>();
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Assembles an .asm file.
+     *
+     * PRECONDITION:    asmFile holds Hack assembly code
+     * POSTCONDITION:   N/A
+     *
+     * @param   asmFile -   the file to assemble
+     * @return          -   the assembled program and its symbol tables
+     *
+     * @throws  IOException -   if asmFile cannot be read
+     * @throws  IllegalArgumentException    -   if an instruction is malformed
+     */
+    static HackAssembler assemble(File asmFile) throws IOException {
+        return assemble(Files.readAllLines(asmFile.toPath(), Charset.defaultCharset()));
+    }
+
+    /**
+     * Assembles lines of Hack assembly code.
+     *
+     * PRECONDITION:    lines is not null
+     * POSTCONDITION:   N/A
+     *
+     * @param   lines   -   the assembly code, one instruction or label per line
+     * @return          -   the assembled program and its symbol tables
+     *
+     * @throws  IllegalArgumentException    -   if an instruction is malformed
+     */
+    static HackAssembler assemble(List<String> lines) {
+        HackAssembler assembler = new HackAssembler();
+        List<String> instructions = new ArrayList<>();
+        List<Integer> lineNumbers = new ArrayList<>();
+
+        //  First pass: strip comments & record the address of each label
+        for(int i = 0; i < lines.size(); i++) {
+            String line = cleanLine(lines.get(i));
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.startsWith("(")) {
+                if (!line.endsWith(")") || line.length() < 3) {
+                    throw new IllegalArgumentException("Malformed label at line " + (i + 1) + ": " + line);
+                }
+                String label = line.substring(1, line.length() - 1);
+                assembler.labels.put(label, instructions.size());
+                if (!assembler.labelAt.containsKey(instructions.size())) {
+                    assembler.labelAt.put(instructions.size(), label);
+                }
+            } else {
+                instructions.add(line);
+                lineNumbers.add(i + 1);
+            }
+        }
+
+        //  Second pass: encode, allocating variables as they are first seen
+        assembler.rom = new short[instructions.size()];
+        int nextVariable = FIRST_VARIABLE;
+        for(int i = 0; i < instructions.size(); i++) {
+            String instruction = instructions.get(i);
+            int word;
+            if (instruction.startsWith("@")) {
+                String symbol = instruction.substring(1);
+                if (!symbol.isEmpty() && Character.isDigit(symbol.charAt(0))) {
+                    word = Integer.parseInt(symbol);
+                    if (word > 0x7FFF) {
+                        throw new IllegalArgumentException("Constant too large at line "
+                                + lineNumbers.get(i) + ": " + instruction);
+                    }
+                } else if (PREDEFINED.containsKey(symbol)) {
+                    word = PREDEFINED.get(symbol);
+                } else if (assembler.labels.containsKey(symbol)) {
+                    word = assembler.labels.get(symbol);
+                    assembler.references.put(i, symbol);
+                } else {
+                    Integer address = assembler.variables.get(symbol);
+                    if (address == null) {
+                        address = nextVariable++;
+                        assembler.variables.put(symbol, address);
+                    }
+                    word = address;
+                    assembler.references.put(i, symbol);
+                }
+            } else {
+                word = encodeCInstruction(instruction, lineNumbers.get(i));
+            }
+            assembler.rom[i] = (short) word;
+        }
+        return assembler;
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Fills in the predefined symbol & mnemonic tables.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   PREDEFINED, COMP & JUMP hold every standard Hack symbol/mnemonic
+     */
+    private static void initTables() {
+        PREDEFINED.put("SP", 0);
+        PREDEFINED.put("LCL", 1);
+        PREDEFINED.put("ARG", 2);
+        PREDEFINED.put("THIS", 3);
+        PREDEFINED.put("THAT", 4);
+        for(int i = 0; i < 16; i++) {
+            PREDEFINED.put("R" + i, i);
+        }
+        PREDEFINED.put("SCREEN", HackMachine.SCREEN);
+        PREDEFINED.put("KBD", HackMachine.KBD);
+
+        //  a-bit + c1..c6; the A forms, then the M forms (a = 1)
+        String[] mnemonics = {"0", "1", "-1", "D", "A", "!D", "!A", "-D", "-A", "D+1", "A+1",
+                "D-1", "A-1", "D+A", "D-A", "A-D", "D&A", "D|A"};
+        int[] bits = {0x2A, 0x3F, 0x3A, 0x0C, 0x30, 0x0D, 0x31, 0x0F, 0x33, 0x1F, 0x37,
+                0x0E, 0x32, 0x02, 0x13, 0x07, 0x00, 0x15};
+        for(int i = 0; i < mnemonics.length; i++) {
+            COMP.put(mnemonics[i], bits[i]);
+            if (mnemonics[i].contains("A")) {
+                COMP.put(mnemonics[i].replace('A', 'M'), bits[i] | 0x40);
+            }
+        }
+        //  Commuted forms of the symmetric operations
+        String[] commuted = {"A+D", "A&D", "A|D"};
+        for( String mnemonic : commuted ) {
+            String swapped = "D" + mnemonic.charAt(1) + "A";
+            COMP.put(mnemonic, COMP.get(swapped));
+            COMP.put(mnemonic.replace('A', 'M'), COMP.get(swapped.replace('A', 'M')));
+        }
+
+        String[] jumps = {"", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"};
+        for(int i = 0; i < jumps.length; i++) {
+            JUMP.put(jumps[i], i);
+        }
+    }
+
+    /**
+     * Removes comments & all whitespace from a line.
+     *
+     * @param   line    -   a raw line of assembly code
+     * @return          -   the instruction or label on the line, or ""
+     */
+    private static String cleanLine(String line) {
+        int commentIndex = line.indexOf("//");
+        if (commentIndex != -1) {
+            line = line.substring(0, commentIndex);
+        }
+        return line.replaceAll("\\s+", "");
+    }
+
+    /**
+     * Encodes a C-instruction of the form dest=comp;jump [dest= & ;jump optional].
+     *
+     * @param   instruction -   the instruction, without whitespace
+     * @param   lineNumber  -   the line the instruction is on, for error messages
+     * @return              -   the 16-bit machine code, as an int
+     *
+     * @throws  IllegalArgumentException    -   if the instruction is malformed
+     */
+    private static int encodeCInstruction(String instruction, int lineNumber) {
+        String dest = "";
+        String comp = instruction;
+        String jump = "";
+        int equals = comp.indexOf('=');
+        if (equals != -1) {
+            dest = comp.substring(0, equals);
+            comp = comp.substring(equals + 1);
+        }
+        int semicolon = comp.indexOf(';');
+        if (semicolon != -1) {
+            jump = comp.substring(semicolon + 1);
+            comp = comp.substring(0, semicolon);
+        }
+
+        Integer compBits = COMP.get(comp);
+        Integer jumpBits = JUMP.get(jump);
+        int destBits = 0;
+        for(int i = 0; i < dest.length(); i++) {
+            int bit = "MDA".indexOf(dest.charAt(i));
+            if (bit == -1) {
+                compBits = null;    //  flag as malformed
+                break;
+            }
+            destBits |= 1 << bit;
+        }
+        if (compBits == null || jumpBits == null) {
+            throw new IllegalArgumentException("Malformed instruction at line " + lineNumber + ": " + instruction);
+        }
+        return 0xE000 | (compBits << 6) | (destBits << 3) | jumpBits;
+    }
+
+    /***********
+     * Getters *
+     ***********/
+
+    /**
+     * @return  -   the assembled machine code, one instruction per ROM address
+     */
+    short[] getRom() {
+        return rom;
+    }
+
+    /**
+     * @return  -   every label and the ROM address it marks
+     */
+    HashMap<String, Integer> getLabels() {
+        return labels;
+    }
+
+    /**
+     * @return  -   every variable and the RAM address allocated to it
+     */
+    HashMap<String, Integer> getVariables() {
+        return variables;
+    }
+
+    /**
+     * @param   address -   a ROM address
+     * @return          -   the first label marking address, or null if there is none
+     */
+    String getLabelAt(int address) {
+        return labelAt.get(address);
+    }
+
+    /**
+     * @return  -   the ROM address of every A-instruction that loads a label or a
+     *              variable [not a number or predefined symbol] -> that symbol
+     */
+    HashMap<Integer, String> getReferences() {
+        return references;
+    }
+}
+
@@ -0,0 +1,500 @@
+/************************************************************************************
+ *
+ * Class name:    HackCompiler
+ * Description:   An execution engine that compiles Hack machine code into JVM bytecode,
+ *                so that long simulations run at close to native speed instead of
+ *                through HackMachine's interpreter loop. Behaves like HackMachine.
+ *
+ *                The program is split into basic blocks, starting at address 0, after
+ *                every jump, and at every address an A-instruction loads [the only way
+ *                translated code gets a jump target]. Each block becomes straight-line
+ *                bytecode that keeps A, D, PC & the cycle count in local variables; a
+ *                tableswitch on PC dispatches between blocks. The blocks are grouped
+ *                into chunks of CHUNK_SIZE addresses, one method per chunk, to stay
+ *                within the JVM's method size limit.
+ *
+ *                Cycles are counted exactly, but the budget given to run() is only
+ *                checked between blocks, so a run may end up to one block past it.
+ *
+ * History:       Oct. 19, J, author, block compilation & dispatch
+ *
+ * Methods:       Public:   compile(short[])
+ *
+ *                Private:  findLeaders(short[]), writeConstructor(ClassFileWriter),
+ *                          writeDispatch(ClassFileWriter, int),
+ *                          writeChunk(ClassFileWriter, short[], boolean[], int), isJump(short),
+ *                          writeInstruction(Code, ClassFileWriter, short[], int, Label, Label),
+ *                          writeComp(Code, ClassFileWriter, int), writeY(Code, boolean)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import edu.miracosta.cs220.ClassFileWriter.Code;
+import edu.miracosta.cs220.ClassFileWriter.Label;
+import java.util.Arrays;
+
+import static edu.miracosta.cs220.ClassFileWriter.*;
+
+class HackCompiler {
+
+    /**
+     * A compiled program, together with its RAM & registers. The engine-facing
+     * members are public/protected, since the generated subclass lives in its
+     * own class loader [and so, in a different runtime package].
+     */
+    public abstract static class Program {
+        protected int a;                //  registers, as 16-bit signed values
+        protected int d;
+        protected int pc;
+        protected long cycles;          //  instructions executed since reset()
+        protected boolean halted;
+        private short[] ram;
+        private boolean[] leaders;      //  addresses that start a block
+
+        /**
+         * Runs the program until it halts, runs off the end of ROM, or about
+         * maxCycles instructions have been executed [checked between blocks].
+         *
+         * @param   maxCycles   -   the most instructions to execute
+         * @return              -   the number of instructions executed
+         *
+         * @throws  IllegalStateException   -   if the program accesses RAM out of range or
+         *                                      jumps to an address that doesn't start a block
+         */
+        public long run(long maxCycles) {
+            long start = cycles;
+            long budget = cycles + maxCycles;
+            try {
+                while (!halted && cycles < budget && pc < leaders.length) {
+                    if (!leaders[pc]) {
+                        throw new IllegalStateException("Jump into the middle of a block at PC " + pc);
+                    }
+                    runChunk(pc / CHUNK_SIZE, ram, budget);
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IllegalStateException("RAM access out of range in the block at PC " + pc, e);
+            }
+            return cycles - start;
+        }
+
+        /**
+         * Clears RAM & the registers.
+         */
+        public void reset() {
+            Arrays.fill(ram, (short) 0);
+            a = 0;
+            d = 0;
+            pc = 0;
+            cycles = 0;
+            halted = false;
+        }
+
+        /**
+         * Runs the blocks of a chunk until control leaves the chunk, the program
+         * halts, or the budget is used up. [Generated]
+         *
+         * @param   chunk   -   the chunk holding PC
+         * @param   ram     -   the program's RAM
+         * @param   budget  -   the cycle count to stop at
+         */
+        protected abstract void runChunk(int chunk, short[] ram, long budget);
+
+        /**
+         * The Hack ALU, for comp bits the compiler has no shortcut for.
+         *
+         * @param   c   -   the c1..c6 control bits [zx nx zy ny f no]
+         * @param   x   -   the D register
+         * @param   y   -   the A register or M
+         * @return      -   the ALU output, as a 16-bit signed value
+         */
+        protected static int alu(int c, int x, int y) {
+            if ((c & 0x20) != 0) x = 0;
+            if ((c & 0x10) != 0) x = ~x;
+            if ((c & 0x08) != 0) y = 0;
+            if ((c & 0x04) != 0) y = ~y;
+            int out = (c & 0x02) != 0 ? x + y : x & y;
+            if ((c & 0x01) != 0) out = ~out;
+            return (short) out;
+        }
+
+        /**
+         * @return  -   true if the program has reached its end-of-program loop
+         */
+        public boolean isHalted() {
+            return halted;
+        }
+
+        /**
+         * @return  -   the number of instructions executed since reset()
+         */
+        public long getCycles() {
+            return cycles;
+        }
+
+        /**
+         * @return  -   the address of the next instruction
+         */
+        public int getPC() {
+            return pc;
+        }
+
+        /**
+         * @return  -   the A register
+         */
+        public int getA() {
+            return a;
+        }
+
+        /**
+         * @return  -   the D register
+         */
+        public int getD() {
+            return d;
+        }
+
+        /**
+         * @return  -   RAM itself [not a copy]
+         */
+        public short[] getRam() {
+            return ram;
+        }
+
+        /**
+         * @param   address -   a RAM address
+         * @return          -   RAM[address]
+         */
+        public int peek(int address) {
+            return ram[address];
+        }
+
+        /**
+         * @param   address -   a RAM address
+         * @param   value   -   the value to store in RAM[address]
+         */
+        public void poke(int address, int value) {
+            ram[address] = (short) value;
+        }
+    }
+
+    /**
+     * Defines the generated class. One loader per program, so that the class can
+     * be unloaded along with the program.
+     */
+    private static class Loader extends ClassLoader {
+        Loader() {
+            super(HackCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] classFile) {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+
+    /*************
+     * Constants *
+     *************/
+    //  Addresses per generated method; keeps each method well under 64KB of bytecode
+    static final int CHUNK_SIZE = 512;
+
+    //  Names of the generated class & the members it uses
+    private static final String CLASS_NAME = "edu/miracosta/cs220/HackCompiler$Compiled";
+    private static final String PROGRAM = "edu/miracosta/cs220/HackCompiler$Program";
+    private static final String CHUNK_DESCRIPTOR = "([SJ)V";
+
+    //  Local variable slots of a chunk method
+    private static final int THIS = 0;
+    private static final int RAM = 1;
+    private static final int BUDGET = 2;        //  long: 2 slots
+    private static final int A = 4;
+    private static final int D = 5;
+    private static final int PC = 6;
+    private static final int CYCLES = 7;        //  long: 2 slots
+    private static final int OUT = 9;           //  ALU output
+    private static final int OLD_A = 10;        //  A before the instruction [jump target]
+    private static final int LOCALS = 11;
+    private static final int MAX_STACK = 6;
+
+    //  C-instruction fields
+    private static final int C_INSTRUCTION = 0x8000;
+    private static final int A_BIT = 0x1000;
+    private static final int DEST_A = 0x20;
+    private static final int DEST_D = 0x10;
+    private static final int DEST_M = 0x08;
+    private static final int JMP = 0x7;
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Compiles Hack machine code into a runnable program.
+     *
+     * PRECONDITION:    rom holds Hack machine code [e.g. HackAssembler.getRom()]
+     * POSTCONDITION:   N/A
+     *
+     * @param   rom -   the program to compile
+     * @return      -   the compiled program, reset and ready to run
+     */
+    static Program compile(short[] rom) {
+        boolean[] leaders = findLeaders(rom);
+        int chunks = (rom.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+        ClassFileWriter classFile = new ClassFileWriter(CLASS_NAME, PROGRAM);
+        writeConstructor(classFile);
+        writeDispatch(classFile, chunks);
+        for(int chunk = 0; chunk < chunks; chunk++) {
+            writeChunk(classFile, rom, leaders, chunk);
+        }
+
+        Program program;
+        try {
+            program = (Program) new Loader().define(CLASS_NAME.replace('/', '.'), classFile.toByteArray())
+                    .getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not load compiled program", e);
+        }
+        program.ram = new short[HackMachine.RAM_SIZE];
+        program.leaders = leaders;
+        program.reset();
+        return program;
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Finds the addresses that start a basic block: 0, every address after a jump,
+     * every address loaded by an A-instruction, and the start of every chunk.
+     *
+     * @param   rom -   the program
+     * @return      -   true for each address that starts a block
+     */
+    private static boolean[] findLeaders(short[] rom) {
+        boolean[] leaders = new boolean[rom.length];
+        for(int address = 0; address < rom.length; address += CHUNK_SIZE) {
+            leaders[address] = true;
+        }
+        for(int address = 0; address < rom.length; address++) {
+            int instruction = rom[address] & 0xFFFF;
+            if ((instruction & C_INSTRUCTION) == 0) {
+                if (instruction < rom.length) {
+                    leaders[instruction] = true;
+                }
+            } else if ((instruction & JMP) != 0 && address + 1 < rom.length) {
+                leaders[address + 1] = true;
+            }
+        }
+        return leaders;
+    }
+
+    /**
+     * Writes the no-argument constructor.
+     */
+    private static void writeConstructor(ClassFileWriter classFile) {
+        Code code = classFile.newCode(1, 1);
+        code.local(ALOAD, THIS).ref(INVOKESPECIAL, classFile.methodRef(PROGRAM, "<init>", "()V")).op(RETURN);
+        classFile.addMethod(ACC_PUBLIC, "<init>", "()V", code);
+    }
+
+    /**
+     * Writes runChunk(), which calls the method of the given chunk.
+     */
+    private static void writeDispatch(ClassFileWriter classFile, int chunks) {
+        Code code = classFile.newCode(4, 5);
+        Label done = new Label();
+        Label[] targets = new Label[Math.max(chunks, 1)];
+        for(int i = 0; i < targets.length; i++) {
+            targets[i] = new Label();
+        }
+        code.local(ILOAD, 1).tableSwitch(0, done, targets);
+        for(int chunk = 0; chunk < chunks; chunk++) {
+            code.mark(targets[chunk]);
+            code.local(ALOAD, THIS).local(ALOAD, 2).local(LLOAD, 3)
+                    .ref(INVOKEVIRTUAL, classFile.methodRef(CLASS_NAME, "chunk" + chunk, CHUNK_DESCRIPTOR))
+                    .op(RETURN);
+        }
+        if (chunks == 0) {
+            code.mark(targets[0]);
+        }
+        code.mark(done).op(RETURN);
+        classFile.addMethod(ACC_PUBLIC, "runChunk", "(I[SJ)V", code);
+    }
+
+    /**
+     * Writes the method running the blocks of one chunk:
+     *
+     *      load the registers into locals
+     *  LOOP:
+     *      if cycles < budget goto DISPATCH
+     *  EXIT:
+     *      store the locals back into the registers & return
+     *  DISPATCH:
+     *      tableswitch PC -> a block of this chunk, or EXIT
+     *      each block: cycles += its length, its instructions, set PC, goto LOOP
+     *
+     * @param   classFile   -   the class being written
+     * @param   rom         -   the program
+     * @param   leaders     -   the addresses that start a block
+     * @param   chunk       -   the chunk to write
+     */
+    private static void writeChunk(ClassFileWriter classFile, short[] rom, boolean[] leaders, int chunk) {
+        int start = chunk * CHUNK_SIZE;
+        int end = Math.min(start + CHUNK_SIZE, rom.length);
+        Code code = classFile.newCode(MAX_STACK, LOCALS);
+        int fieldA = classFile.fieldRef(CLASS_NAME, "a", "I");
+        int fieldD = classFile.fieldRef(CLASS_NAME, "d", "I");
+        int fieldPC = classFile.fieldRef(CLASS_NAME, "pc", "I");
+        int fieldCycles = classFile.fieldRef(CLASS_NAME, "cycles", "J");
+
+        code.local(ALOAD, THIS).ref(GETFIELD, fieldA).local(ISTORE, A);
+        code.local(ALOAD, THIS).ref(GETFIELD, fieldD).local(ISTORE, D);
+        code.local(ALOAD, THIS).ref(GETFIELD, fieldPC).local(ISTORE, PC);
+        code.local(ALOAD, THIS).ref(GETFIELD, fieldCycles).local(LSTORE, CYCLES);
+
+        Label loop = new Label();
+        Label exit = new Label();
+        Label dispatch = new Label();
+        code.mark(loop).local(LLOAD, CYCLES).local(LLOAD, BUDGET).op(LCMP).jump(IFLT, dispatch);
+        code.mark(exit);
+        code.local(ALOAD, THIS).local(ILOAD, A).ref(PUTFIELD, fieldA);
+        code.local(ALOAD, THIS).local(ILOAD, D).ref(PUTFIELD, fieldD);
+        code.local(ALOAD, THIS).local(ILOAD, PC).ref(PUTFIELD, fieldPC);
+        code.local(ALOAD, THIS).local(LLOAD, CYCLES).ref(PUTFIELD, fieldCycles);
+        code.op(RETURN);
+
+        //  Non-leaders dispatch to EXIT; run() reports them
+        Label[] blocks = new Label[end - start];
+        for(int address = start; address < end; address++) {
+            blocks[address - start] = leaders[address] ? new Label() : exit;
+        }
+        code.mark(dispatch).local(ILOAD, PC).tableSwitch(start, exit, blocks);
+
+        int address = start;
+        while (address < end) {
+            //  The block runs up to a jump or the next leader
+            int blockEnd = address + 1;
+            while (blockEnd < end && !leaders[blockEnd] && !isJump(rom[blockEnd - 1])) {
+                blockEnd++;
+            }
+            code.mark(blocks[address - start]);
+            code.local(LLOAD, CYCLES).pushInt(blockEnd - address).op(I2L).op(LADD).local(LSTORE, CYCLES);
+            for(int i = address; i < blockEnd; i++) {
+                writeInstruction(code, classFile, rom, i, loop, exit);
+            }
+            //  Falling off the block [or a jump not taken] continues at the next address
+            code.pushInt(blockEnd).local(ISTORE, PC).jump(GOTO_W, loop);
+            address = blockEnd;
+        }
+        classFile.addMethod(ACC_PUBLIC, "chunk" + chunk, CHUNK_DESCRIPTOR, code);
+    }
+
+    /**
+     * @return  -   true if instruction is a C-instruction that may jump
+     */
+    private static boolean isJump(short instruction) {
+        int bits = instruction & 0xFFFF;
+        return (bits & C_INSTRUCTION) != 0 && (bits & JMP) != 0;
+    }
+
+    /**
+     * Writes the bytecode of a single instruction. A jump that is taken sets PC
+     * and goes back to LOOP [or EXIT, for the end-of-program loop].
+     *
+     * @param   code        -   the method being written
+     * @param   classFile   -   the class being written
+     * @param   rom         -   the program
+     * @param   address     -   the ROM address of the instruction
+     * @param   loop        -   the method's LOOP label
+     * @param   exit        -   the method's EXIT label
+     */
+    private static void writeInstruction(Code code, ClassFileWriter classFile, short[] rom, int address,
+                                         Label loop, Label exit) {
+        int instruction = rom[address] & 0xFFFF;
+        if ((instruction & C_INSTRUCTION) == 0) {
+            code.pushInt(instruction).local(ISTORE, A);
+            return;
+        }
+        int jump = instruction & JMP;
+        if (jump != 0) {
+            code.local(ILOAD, A).local(ISTORE, OLD_A);
+        }
+        writeComp(code, classFile, instruction);
+        code.local(ISTORE, OUT);
+        if ((instruction & DEST_M) != 0) {
+            code.local(ALOAD, RAM).local(ILOAD, A).local(ILOAD, OUT).op(SASTORE);
+        }
+        if ((instruction & DEST_A) != 0) {
+            code.local(ILOAD, OUT).local(ISTORE, A);
+        }
+        if ((instruction & DEST_D) != 0) {
+            code.local(ILOAD, OUT).local(ISTORE, D);
+        }
+        if (jump == 0) {
+            return;
+        }
+
+        Label notTaken = new Label();
+        if (jump != JMP) {
+            //  Branch around the jump when its condition is false
+            int[] skip = {0, IFLE, IFNE, IFLT, IFGE, IFEQ, IFGT};
+            code.local(ILOAD, OUT).jump(skip[jump], notTaken);
+        }
+        code.local(ILOAD, OLD_A).pushInt(0xFFFF).op(IAND).local(ISTORE, PC);
+        if (jump == JMP && address > 0 && rom[address - 1] == address - 1) {
+            //  Jumping back to @X at X is the end-of-program loop [as in HackMachine]
+            Label running = new Label();
+            code.local(ILOAD, PC).pushInt(address - 1).op(ISUB).jump(IFNE, running);
+            code.local(ALOAD, THIS).pushInt(1)
+                    .ref(PUTFIELD, classFile.fieldRef(CLASS_NAME, "halted", "Z"))
+                    .jump(GOTO_W, exit);
+            code.mark(running);
+        }
+        code.jump(GOTO_W, loop);
+        code.mark(notTaken);
+    }
+
+    /**
+     * Writes bytecode leaving the ALU output of a C-instruction on the stack.
+     */
+    private static void writeComp(Code code, ClassFileWriter classFile, int instruction) {
+        int c = (instruction >> 6) & 0x3F;
+        boolean m = (instruction & A_BIT) != 0;
+        switch(c) {
+            case 0x2A: code.pushInt(0); return;
+            case 0x3F: code.pushInt(1); return;
+            case 0x3A: code.pushInt(-1); return;
+            case 0x0C: code.local(ILOAD, D); return;
+            case 0x30: writeY(code, m); return;
+            case 0x0D: code.local(ILOAD, D).pushInt(-1).op(IXOR); return;
+            case 0x31: writeY(code, m); code.pushInt(-1).op(IXOR); return;
+            case 0x0F: code.local(ILOAD, D).op(INEG).op(I2S); return;
+            case 0x33: writeY(code, m); code.op(INEG).op(I2S); return;
+            case 0x1F: code.local(ILOAD, D).pushInt(1).op(IADD).op(I2S); return;
+            case 0x37: writeY(code, m); code.pushInt(1).op(IADD).op(I2S); return;
+            case 0x0E: code.local(ILOAD, D).pushInt(1).op(ISUB).op(I2S); return;
+            case 0x32: writeY(code, m); code.pushInt(1).op(ISUB).op(I2S); return;
+            case 0x02: code.local(ILOAD, D); writeY(code, m); code.op(IADD).op(I2S); return;
+            case 0x13: code.local(ILOAD, D); writeY(code, m); code.op(ISUB).op(I2S); return;
+            case 0x07: writeY(code, m); code.local(ILOAD, D).op(ISUB).op(I2S); return;
+            case 0x00: code.local(ILOAD, D); writeY(code, m); code.op(IAND); return;
+            case 0x15: code.local(ILOAD, D); writeY(code, m); code.op(IOR); return;
+            default:
+                code.pushInt(c).local(ILOAD, D);
+                writeY(code, m);
+                code.ref(INVOKESTATIC, classFile.methodRef(PROGRAM, "alu", "(III)I"));
+        }
+    }
+
+    /**
+     * Writes bytecode pushing the ALU's y input: M [RAM[A]] or A.
+     */
+    private static void writeY(Code code, boolean m) {
+        if (m) {
+            code.local(ALOAD, RAM).local(ILOAD, A).op(SALOAD);
+        } else {
+            code.local(ILOAD, A);
+        }
+    }
+}
+
@@ -0,0 +1,388 @@
+/************************************************************************************
+ *
+ * Class name:    HackMachine
+ * Description:   A headless model of the Hack computer: ROM, RAM (including the
+ *                screen & keyboard memory maps), and the A, D & PC registers.
+ *                Runs machine code produced by HackAssembler, optionally counting
+ *                how often each ROM address executes and each jump is taken.
+ *
+ *                A program is considered halted once it jumps to itself
+ *                [@X (X) 0;JMP - the usual end-of-program loop].
+ *
+ *                A snapshot saves RAM, the registers & the cycle count to a file, so a
+ *                later run can restore it and resume from there [e.g. after the OS has
+ *                booted]. Only a machine running the same program can restore it.
+ *
+ * History:       Oct. 19, J, author, CPU model, execution counts & halt detection
+ *                Oct. 19, J, snapshots [saveSnapshot, restoreSnapshot]
+ *
+ * Methods:       Public:   HackMachine(short[]), reset(), step(), run(long),
+ *                          enableCounts(), isHalted(), getCycles(), getPC(),
+ *                          getA(), getD(), getRam(), getRom(), peek(int), poke(int, int),
+ *                          getExecutions(), getTaken(), saveSnapshot(File),
+ *                          restoreSnapshot(File)
+ *
+ *                Private:  compute(int, int, int)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+class HackMachine {
+
+    /*************
+     * Constants *
+     *************/
+    static final int RAM_SIZE = 32768;
+    static final int SCREEN = 16384;        //  8K-word screen memory map
+    static final int SCREEN_SIZE = 8192;
+    static final int KBD = 24576;           //  keyboard memory map
+
+    //  C-instruction fields
+    private static final int C_INSTRUCTION = 0x8000;
+    private static final int A_BIT = 0x1000;
+    private static final int DEST_A = 0x20;
+    private static final int DEST_D = 0x10;
+    private static final int DEST_M = 0x08;
+
+    //  Snapshot file header
+    private static final int SNAPSHOT_MAGIC = 0x4841434B;     //  "HACK"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private final short[] rom;
+    private final short[] ram;
+    private int a;                  //  registers, as 16-bit signed values
+    private int d;
+    private int pc;
+    private long cycles;            //  instructions executed since reset()
+    private boolean halted;
+
+    //  Per ROM address: times executed / times the jump was taken [null unless enabled]
+    private long[] executions;
+    private long[] taken;
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Creates a machine with the given program loaded into ROM.
+     *
+     * PRECONDITION:    rom holds Hack machine code [e.g. HackAssembler.getRom()]
+     * POSTCONDITION:   the machine has been reset and is ready to run
+     *
+     * @param   rom -   the program to run
+     */
+    HackMachine(short[] rom) {
+        this.rom = rom;
+        ram = new short[RAM_SIZE];
+        reset();
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Clears RAM, the registers & any counts.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the machine is in its power-on state
+     */
+    void reset() {
+        Arrays.fill(ram, (short) 0);
+        a = 0;
+        d = 0;
+        pc = 0;
+        cycles = 0;
+        halted = false;
+        if (executions != null) {
+            Arrays.fill(executions, 0);
+            Arrays.fill(taken, 0);
+        }
+    }
+
+    /**
+     * Starts counting executions & taken jumps per ROM address.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   each following step() is counted
+     */
+    void enableCounts() {
+        if (executions == null) {
+            executions = new long[rom.length];
+            taken = new long[rom.length];
+        }
+    }
+
+    /**
+     * Executes the instruction at PC.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the instruction has been executed, unless the machine is halted
+     *                  or PC has run past the end of the program
+     *
+     * @return  -   true if an instruction was executed, false otherwise
+     *
+     * @throws  IllegalStateException   -   if the instruction accesses RAM out of range
+     */
+    boolean step() {
+        if (halted || pc >= rom.length) {
+            return false;
+        }
+        int instruction = rom[pc] & 0xFFFF;
+        if (executions != null) {
+            executions[pc]++;
+        }
+        cycles++;
+
+        if ((instruction & C_INSTRUCTION) == 0) {
+            //  A-instruction
+            a = instruction;
+            pc++;
+            return true;
+        }
+
+        //  C-instruction
+        int y = a;
+        if ((instruction & A_BIT) != 0) {
+            if (a < 0 || a >= RAM_SIZE) {
+                throw new IllegalStateException("RAM[" + (a & 0xFFFF) + "] read out of range at PC " + pc);
+            }
+            y = ram[a];
+        }
+        int out = compute((instruction >> 6) & 0x3F, d, y);
+        int address = a;
+        if ((instruction & DEST_M) != 0) {
+            if (address < 0 || address >= RAM_SIZE) {
+                throw new IllegalStateException("RAM[" + (address & 0xFFFF) + "] write out of range at PC " + pc);
+            }
+            ram[address] = (short) out;
+        }
+        if ((instruction & DEST_A) != 0) {
+            a = out;
+        }
+        if ((instruction & DEST_D) != 0) {
+            d = out;
+        }
+
+        //  Jump [to the A register's value before this instruction]
+        boolean jump = ((instruction & 0x4) != 0 && out < 0)
+                || ((instruction & 0x2) != 0 && out == 0)
+                || ((instruction & 0x1) != 0 && out > 0);
+        if (jump) {
+            if (taken != null) {
+                taken[pc]++;
+            }
+            int target = address & 0xFFFF;
+            //  Jumping back to the @target of this very jump is the end-of-program loop
+            halted = target == pc - 1 && (instruction & 0x7) == 0x7 && rom[target] == target;
+            pc = target;
+        } else {
+            pc++;
+        }
+        return true;
+    }
+
+    /**
+     * Runs the program until it halts, runs off the end of ROM, or maxCycles
+     * instructions have been executed.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the machine has stopped
+     *
+     * @param   maxCycles   -   the most instructions to execute
+     * @return              -   the number of instructions executed
+     */
+    long run(long maxCycles) {
+        long start = cycles;
+        while (cycles - start < maxCycles && step()) {
+            //  step() does all of the work
+        }
+        return cycles - start;
+    }
+
+    /**
+     * Saves the machine's state to a file: the program it runs [as a checksum], the
+     * registers, the cycle count & RAM. Execution counts are not saved.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   snapshotFile holds the state
+     *
+     * @param   snapshotFile    -   the file to write
+     *
+     * @throws  IOException -   if snapshotFile cannot be written
+     */
+    void saveSnapshot(File snapshotFile) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(snapshotFile)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(Arrays.hashCode(rom));
+            out.writeInt(a);
+            out.writeInt(d);
+            out.writeInt(pc);
+            out.writeLong(cycles);
+            out.writeBoolean(halted);
+            for( short word : ram ) {
+                out.writeShort(word);
+            }
+        }
+    }
+
+    /**
+     * Restores the state saved by saveSnapshot(). Any counts are cleared.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the machine is in the saved state, ready to resume
+     *
+     * @param   snapshotFile    -   the file to read
+     *
+     * @throws  IOException -   if snapshotFile cannot be read, is not a snapshot, or was
+     *                          saved by a machine running another program
+     */
+    void restoreSnapshot(File snapshotFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException(snapshotFile.getPath() + " is not a snapshot");
+            }
+            if (in.readInt() != Arrays.hashCode(rom)) {
+                throw new IOException(snapshotFile.getPath() + " was saved running another program");
+            }
+            //  Read everything first, so a truncated file leaves the machine as it was
+            int[] registers = { in.readInt(), in.readInt(), in.readInt() };
+            long savedCycles = in.readLong();
+            boolean savedHalted = in.readBoolean();
+            short[] savedRam = new short[RAM_SIZE];
+            for(int address = 0; address < RAM_SIZE; address++) {
+                savedRam[address] = in.readShort();
+            }
+            reset();
+            System.arraycopy(savedRam, 0, ram, 0, RAM_SIZE);
+            a = registers[0];
+            d = registers[1];
+            pc = registers[2];
+            cycles = savedCycles;
+            halted = savedHalted;
+        }
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * The Hack ALU.
+     *
+     * @param   c   -   the c1..c6 control bits [zx nx zy ny f no]
+     * @param   x   -   the D register
+     * @param   y   -   the A register or M
+     * @return      -   the ALU output, as a 16-bit signed value
+     */
+    private static int compute(int c, int x, int y) {
+        if ((c & 0x20) != 0) x = 0;
+        if ((c & 0x10) != 0) x = ~x;
+        if ((c & 0x08) != 0) y = 0;
+        if ((c & 0x04) != 0) y = ~y;
+        int out = (c & 0x02) != 0 ? x + y : x & y;
+        if ((c & 0x01) != 0) out = ~out;
+        return (short) out;
+    }
+
+    /***********
+     * Getters *
+     ***********/
+
+    /**
+     * @return  -   true if the program has reached its end-of-program loop
+     */
+    boolean isHalted() {
+        return halted;
+    }
+
+    /**
+     * @return  -   the number of instructions executed since reset()
+     */
+    long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * @return  -   the address of the next instruction
+     */
+    int getPC() {
+        return pc;
+    }
+
+    /**
+     * @return  -   the A register
+     */
+    int getA() {
+        return a;
+    }
+
+    /**
+     * @return  -   the D register
+     */
+    int getD() {
+        return d;
+    }
+
+    /**
+     * @return  -   RAM itself [not a copy]
+     */
+    short[] getRam() {
+        return ram;
+    }
+
+    /**
+     * @return  -   ROM itself [not a copy]
+     */
+    short[] getRom() {
+        return rom;
+    }
+
+    /**
+     * @param   address -   a RAM address
+     * @return          -   RAM[address]
+     */
+    int peek(int address) {
+        return ram[address];
+    }
+
+    /**
+     * @param   address -   a RAM address
+     * @param   value   -   the value to store in RAM[address]
+     */
+    void poke(int address, int value) {
+        ram[address] = (short) value;
+    }
+
+    /**
+     * @return  -   the number of times each ROM address was executed, or null if not counted
+     */
+    long[] getExecutions() {
+        return executions;
+    }
+
+    /**
+     * @return  -   the number of times the jump at each ROM address was taken, or null if not counted
+     */
+    long[] getTaken() {
+        return taken;
+    }
+}
+
@@ -0,0 +1,354 @@
+/************************************************************************************
+ *
+ * Class name:    HackRuntime
+ * Description:   Runs a translated program headlessly on a HackMachine, with scripted
+ *                keyboard input, screen dumps & snapshots, so that interactive programs
+ *                [games, the OS Output routines] can be benchmarked & regression-tested
+ *                without a GUI. Everything happens at an exact cycle count [instructions
+ *                executed since power-on], so a run is reproducible.
+ *
+ *                A key script holds one "cycle key" pair per line; lines starting with #
+ *                are comments. From that cycle on, the keyboard map [RAM[24576]] holds the
+ *                key, until the next one. A key is its Hack character code, a single
+ *                character, or one of the names in KEY_NAMES [NONE releases every key]:
+ *
+ *                  1000000   a
+ *                  1200000   NONE
+ *                  1500000   NEWLINE
+ *
+ *                A screen dump turns the 512 x 256 screen map into a black & white PNG,
+ *                named <prefix>-<cycle>.png. A snapshot [see HackMachine.saveSnapshot()]
+ *                can be restored by a later run, which then picks up at the cycle it was
+ *                saved at instead of booting again; its key script goes on from there.
+ *
+ * History:       Oct. 19, J, author, key scripts, PNG screen dumps & snapshots
+ *                Oct. 19, J, also runs linked Hack machine code [Prog.hack, see Linker]
+ *
+ * Methods:       Public:   main(String[])
+ *
+ *                Package:  readKeys(File), parseKey(String), writeScreen(short[], File)
+ *
+ *                Private:  run(HackMachine, long, TreeMap, TreeSet, TreeMap, boolean, String,
+ *                          PrintStream), pressKey(HackMachine, NavigableMap)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.imageio.ImageIO;
+
+class HackRuntime {
+
+    /*************
+     * Constants *
+     *************/
+    //  Screen size in pixels; each row is 32 words, the leftmost pixel in bit 0
+    static final int SCREEN_WIDTH = 512;
+    static final int SCREEN_HEIGHT = 256;
+    private static final int WORDS_PER_ROW = SCREEN_WIDTH / 16;
+
+    private static final int BLACK = 0x000000;
+    private static final int WHITE = 0xFFFFFF;
+
+    private static final long DEFAULT_CYCLES = 10000000;
+
+    //  Initial stack pointer of a program without bootstrap code
+    private static final int STACK_BASE = 256;
+    private static final int SP = 0;
+
+    //  Key names -> Hack character codes [the special keys of the Hack keyboard]
+    static final HashMap<String, Integer> KEY_NAMES = new HashMap<>();
+    static {
+        KEY_NAMES.put("NONE", 0);
+        KEY_NAMES.put("SPACE", 32);
+        KEY_NAMES.put("NEWLINE", 128);
+        KEY_NAMES.put("BACKSPACE", 129);
+        KEY_NAMES.put("LEFT", 130);
+        KEY_NAMES.put("UP", 131);
+        KEY_NAMES.put("RIGHT", 132);
+        KEY_NAMES.put("DOWN", 133);
+        KEY_NAMES.put("HOME", 134);
+        KEY_NAMES.put("END", 135);
+        KEY_NAMES.put("PAGEUP", 136);
+        KEY_NAMES.put("PAGEDOWN", 137);
+        KEY_NAMES.put("INSERT", 138);
+        KEY_NAMES.put("DELETE", 139);
+        KEY_NAMES.put("ESC", 140);
+        for(int i = 1; i <= 12; i++) {
+            KEY_NAMES.put("F" + i, 140 + i);
+        }
+    }
+
+    private static final String USAGE =
+            "Usage: HackRuntime <Prog.asm | Prog.hack> [-cycles <n>] [-keys <script>] [-screen <cycle>|end]...\n" +
+            "                   [-screen-prefix <path>] [-snapshot <cycle> <file>] [-restore <file>]\n" +
+            "                   [-no-bootstrap]\n" +
+            "\n" +
+            "  <Prog.asm | Prog.hack>     a translated program, or a linked one\n" +
+            "  -cycles <n>                most instructions to run [default: 10000000]\n" +
+            "  -keys <script>             \"cycle key\" lines: the key held from that cycle on\n" +
+            "  -screen <cycle>|end        dump the screen to <prefix>-<cycle>.png at that cycle,\n" +
+            "                             or when the run ends [may be repeated]\n" +
+            "  -screen-prefix <path>      where screen dumps go [default: the program, less .asm/.hack]\n" +
+            "  -snapshot <cycle> <file>   save RAM & registers at that cycle [may be repeated]\n" +
+            "  -restore <file>            start from a snapshot instead of power-on\n" +
+            "  -no-bootstrap              the program has no bootstrap code: start with SP = 256";
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Runs a program as the command-line arguments describe, reporting to standard output.
+     *
+     * PRECONDITION:    args holds a program and, optionally, the options in USAGE
+     * POSTCONDITION:   the run has been reported, and the program has exited with status 1
+     *                  if it could not be run
+     *
+     * @param   args    -   the supplied command-line arguments
+     */
+    public static void main(String[] args) {
+        File asmFile = null;
+        long maxCycles = DEFAULT_CYCLES;
+        File keyScript = null;
+        TreeSet<Long> screens = new TreeSet<>();
+        boolean screenAtEnd = false;
+        String prefix = null;
+        TreeMap<Long, File> snapshots = new TreeMap<>();
+        File restore = null;
+        boolean bootstrap = true;
+        try {
+            for(int i = 0; i < args.length; i++) {
+                if (args[i].equals("-cycles") && i + 1 < args.length) {
+                    maxCycles = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-keys") && i + 1 < args.length) {
+                    keyScript = new File(args[++i]);
+                } else if (args[i].equals("-screen") && i + 1 < args.length) {
+                    if (args[++i].equals("end")) {
+                        screenAtEnd = true;
+                    } else {
+                        screens.add(Long.parseLong(args[i]));
+                    }
+                } else if (args[i].equals("-screen-prefix") && i + 1 < args.length) {
+                    prefix = args[++i];
+                } else if (args[i].equals("-snapshot") && i + 2 < args.length) {
+                    long cycle = Long.parseLong(args[++i]);
+                    snapshots.put(cycle, new File(args[++i]));
+                } else if (args[i].equals("-restore") && i + 1 < args.length) {
+                    restore = new File(args[++i]);
+                } else if (args[i].equals("-no-bootstrap")) {
+                    bootstrap = false;
+                } else if (!args[i].startsWith("-") && asmFile == null) {
+                    asmFile = new File(args[i]);
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            //  also a NumberFormatException
+            System.err.println(e.getMessage());
+            asmFile = null;
+        }
+        if (asmFile == null) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        if (prefix == null) {
+            prefix = asmFile.getPath().replaceFirst("\\.(asm|hack)$", "");
+        }
+
+        try {
+            HackMachine machine = new HackMachine(asmFile.getName().endsWith(".hack")
+                    ? Linker.readHack(asmFile) : HackAssembler.assemble(asmFile).getRom());
+            if (restore != null) {
+                machine.restoreSnapshot(restore);
+                System.out.println("Restored " + restore.getPath() + " at cycle " + machine.getCycles());
+            } else if (!bootstrap) {
+                machine.poke(SP, STACK_BASE);
+            }
+            TreeMap<Long, Integer> keys = keyScript == null ? new TreeMap<Long, Integer>() : readKeys(keyScript);
+            run(machine, maxCycles, keys, screens, snapshots, screenAtEnd, prefix, System.out);
+        } catch (IOException | IllegalStateException e) {
+            //  an unreadable program, script or snapshot, or RAM accessed out of range
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads a key script.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   scriptFile  -   the script [see the class description]
+     * @return              -   cycle -> the key held from then on
+     *
+     * @throws  IOException -   if scriptFile cannot be read or is malformed
+     */
+    static TreeMap<Long, Integer> readKeys(File scriptFile) throws IOException {
+        TreeMap<Long, Integer> keys = new TreeMap<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(scriptFile))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                try {
+                    if (parts.length != 2) {
+                        throw new IllegalArgumentException("expected \"cycle key\"");
+                    }
+                    keys.put(Long.parseLong(parts[0]), parseKey(parts[1]));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Malformed key script " + scriptFile.getPath() + ":" + lineNumber
+                            + ": " + e.getMessage());
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @param   key -   a Hack character code, a single character, or a name in KEY_NAMES
+     * @return      -   its Hack character code
+     *
+     * @throws  IllegalArgumentException    -   if key is none of these
+     */
+    static int parseKey(String key) {
+        if (KEY_NAMES.containsKey(key.toUpperCase())) {
+            return KEY_NAMES.get(key.toUpperCase());
+        } else if (key.length() == 1) {
+            return key.charAt(0);
+        }
+        int code = Integer.parseInt(key);
+        if (code < 0 || code > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("key code out of range: " + key);
+        }
+        return code;
+    }
+
+    /**
+     * Writes the screen map of a RAM image as a PNG: set bits are black pixels.
+     *
+     * PRECONDITION:    ram holds at least HackMachine.SCREEN + HackMachine.SCREEN_SIZE words
+     * POSTCONDITION:   pngFile holds the screen
+     *
+     * @param   ram     -   the RAM to take the screen from
+     * @param   pngFile -   the file to write
+     *
+     * @throws  IOException -   if pngFile cannot be written
+     */
+    static void writeScreen(short[] ram, File pngFile) throws IOException {
+        BufferedImage image = new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT, BufferedImage.TYPE_BYTE_BINARY);
+        for(int row = 0; row < SCREEN_HEIGHT; row++) {
+            for(int column = 0; column < SCREEN_WIDTH; column++) {
+                int word = ram[HackMachine.SCREEN + row * WORDS_PER_ROW + column / 16];
+                image.setRGB(column, row, ((word >> (column % 16)) & 1) != 0 ? BLACK : WHITE);
+            }
+        }
+        if (!ImageIO.write(image, "png", pngFile)) {
+            throw new IOException("No PNG writer for " + pngFile.getPath());
+        }
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Runs the machine from one event to the next until it halts, runs off the end of
+     * ROM, or has executed maxCycles instructions. Events at the same cycle happen in
+     * the order key, screen dump, snapshot - before the instruction at that cycle runs.
+     *
+     * @param   machine     -   the machine, at power-on or restored
+     * @param   maxCycles   -   the most instructions to execute
+     * @param   keys        -   cycle -> the key held from then on
+     * @param   screens     -   the cycles to dump the screen at
+     * @param   snapshots   -   cycle -> the file to save a snapshot to
+     * @param   screenAtEnd -   true to also dump the screen once the run ends
+     * @param   prefix      -   the path screen dumps start with
+     * @param   log         -   where to report on the run
+     *
+     * @throws  IOException -   if a screen dump or snapshot cannot be written
+     * @throws  IllegalStateException   -   if the program accesses RAM out of range
+     */
+    private static void run(HackMachine machine, long maxCycles, TreeMap<Long, Integer> keys,
+                            TreeSet<Long> screens, TreeMap<Long, File> snapshots, boolean screenAtEnd,
+                            String prefix, PrintStream log) throws IOException {
+        long limit = machine.getCycles() + maxCycles;
+        //  Events before the start [a restored run] are over; the latest key is still held
+        pressKey(machine, keys.headMap(machine.getCycles(), false));
+        screens = new TreeSet<>(screens.tailSet(machine.getCycles()));
+        snapshots = new TreeMap<>(snapshots.tailMap(machine.getCycles()));
+        keys = new TreeMap<>(keys.tailMap(machine.getCycles()));
+
+        long start = System.nanoTime();
+        while (true) {
+            long now = machine.getCycles();
+            pressKey(machine, keys.headMap(now, true));
+            keys.headMap(now, true).clear();
+            if (screens.remove(now)) {
+                File pngFile = new File(prefix + "-" + now + ".png");
+                writeScreen(machine.getRam(), pngFile);
+                log.println("Cycle " + now + ": screen written to " + pngFile.getPath());
+            }
+            if (snapshots.containsKey(now)) {
+                File snapshotFile = snapshots.remove(now);
+                machine.saveSnapshot(snapshotFile);
+                log.println("Cycle " + now + ": snapshot written to " + snapshotFile.getPath());
+            }
+
+            //  Run up to the next event
+            long next = limit;
+            if (!keys.isEmpty()) {
+                next = Math.min(next, keys.firstKey());
+            }
+            if (!screens.isEmpty()) {
+                next = Math.min(next, screens.first());
+            }
+            if (!snapshots.isEmpty()) {
+                next = Math.min(next, snapshots.firstKey());
+            }
+            if (next <= now || machine.run(next - now) < next - now) {
+                break;      //  out of cycles, halted, or off the end of ROM
+            }
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        log.println("Ran to cycle " + machine.getCycles() + " in " + millis + " ms, "
+                + (machine.isHalted() ? "halted" : "stopped") + " at PC " + machine.getPC());
+        if (!screens.isEmpty() || !snapshots.isEmpty()) {
+            log.println("Not reached: " + screens.size() + " screen dump(s), " + snapshots.size() + " snapshot(s)");
+        }
+        if (screenAtEnd) {
+            File pngFile = new File(prefix + "-" + machine.getCycles() + ".png");
+            writeScreen(machine.getRam(), pngFile);
+            log.println("Screen written to " + pngFile.getPath());
+        }
+    }
+
+    /**
+     * Holds down the last of the given keys, if any.
+     *
+     * @param   machine -   the machine
+     * @param   keys    -   cycle -> key, for the keys pressed so far
+     */
+    private static void pressKey(HackMachine machine, NavigableMap<Long, Integer> keys) {
+        if (!keys.isEmpty()) {
+            machine.poke(HackMachine.KBD, keys.lastEntry().getValue());
+        }
+    }
+}
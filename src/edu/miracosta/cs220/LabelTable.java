@@ -0,0 +1,118 @@
+/************************************************************************************
+ *
+ * Class name:    LabelTable
+ * Description:   Interns the labels of a translated program [functions, branches,
+ *                return points & shared routines] into a dense table and hands out
+ *                short generated names in their place: $0, $1, ... $z, $10, ...
+ *                (base 36, in order of first use). This shrinks the .asm file and the
+ *                assembler's symbol table when VM names are long.
+ *
+ *                Generated names start with $, which VM function names, static
+ *                variables (File.i) & the predefined symbols never do, and are
+ *                lower case, unlike the translator's own $ labels.
+ *
+ *                The table can be saved as a side file mapping each short name back to
+ *                its original, one "short original" pair per line.
+ *
+ * History:       Oct. 19, J, author, interning & label map file
+ *
+ * Methods:       Public:   LabelTable(), intern(String), lookup(String), size(), write(File)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+class LabelTable {
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private HashMap<String, String> shortNames;     //  original -> short name
+    private List<String> originals;                 //  index -> original
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Creates an empty table.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the table holds no labels
+     */
+    LabelTable() {
+        shortNames = new HashMap<>();
+        originals = new ArrayList<>();
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Returns the short name of a label, giving it the next free one on first use.
+     *
+     * PRECONDITION:    label is not null
+     * POSTCONDITION:   label is in the table
+     *
+     * @param   label   -   the original label
+     * @return          -   its short name
+     */
+    String intern(String label) {
+        String shortName = shortNames.get(label);
+        if (shortName == null) {
+            shortName = "$" + Integer.toString(originals.size(), Character.MAX_RADIX);
+            shortNames.put(label, shortName);
+            originals.add(label);
+        }
+        return shortName;
+    }
+
+    /**
+     * Returns the short name of a label without adding it.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   label   -   the original label
+     * @return          -   its short name, or null if label is not in the table
+     */
+    String lookup(String label) {
+        return shortNames.get(label);
+    }
+
+    /**
+     * @return  -   the number of labels in the table
+     */
+    int size() {
+        return originals.size();
+    }
+
+    /**
+     * Saves the table as text, one "short original" pair per line in table order.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the table has been written to mapFile
+     *
+     * @param   mapFile -   the file to write
+     *
+     * @throws  IOException -   if mapFile cannot be written
+     */
+    void write(File mapFile) throws IOException {
+        try (PrintWriter out = new PrintWriter(mapFile)) {
+            for( String original : originals ) {
+                out.println(shortNames.get(original) + " " + original);
+            }
+            if (out.checkError()) {
+                throw new IOException("Could not write " + mapFile.getPath());
+            }
+        }
+    }
+}
+
@@ -0,0 +1,420 @@
+/************************************************************************************
+ *
+ * Class name:    Linker
+ * Description:   Links modules [see ObjectFile] into a Hack machine code program
+ *                [Prog.hack], so that a library translated once, such as the Jack OS,
+ *                can go into any program without being translated again. Modules are
+ *                read from .vmo files, or translated from .vm files on the spot.
+ *
+ *                Modules are placed in ROM one after the other, in the order given,
+ *                after the bootstrap code if the program defines Sys.init. Then each
+ *                relocation is filled in:
+ *                  ->	a label or function of the same module: its offset + the module's base
+ *                  ->	a function of another module: where that module put it
+ *                  ->	a static variable: the next free RAM address from 16, in order of
+ *                  	first use [as the assembler allocates variables]
+ *                A function defined twice, a call to a function no module defines, and
+ *                statics running into the stack [RAM[256]] are errors.
+ *
+ * History:       Oct. 19, J, author, linking .vmo & .vm files into .hack files
+ *
+ * Methods:       Public:   main(String[]), Linker(), add(ObjectFile), link(boolean),
+ *                          getRom(), getFunctions(), getStatics(), definesFunction(String),
+ *                          readHack(File), writeHack(short[], File)
+ *
+ *                Private:  addInput(File, List)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+class Linker {
+
+    /*************
+     * Constants *
+     *************/
+    //  Hack ROM size, and the RAM given to static variables
+    private static final int ROM_SIZE = 32768;
+    private static final int FIRST_STATIC = 16;
+    private static final int STACK_BASE = 256;
+
+    private static final String BOOTSTRAP_FUNCTION = "Sys.init";
+
+    private static final String USAGE =
+            "Usage: Linker [-o <Prog.hack>] [-O0 | -O1 | -O2 | -Os] [-no-intrinsics] [-no-bootstrap]\n" +
+            "              <file.vm | file.vmo | directory>...\n" +
+            "\n" +
+            "  file.vm            translated on the spot [at -O1 unless told otherwise]\n" +
+            "  file.vmo           linked as it is [write them with VirtualMachine -objects]\n" +
+            "  directory          its .vm files, and each of its .vmo files that has no .vm\n" +
+            "  -o <Prog.hack>     the program to write [default: <first input>.hack]\n" +
+            "  -O0 ... -Os        the level to translate .vm files at\n" +
+            "  -no-intrinsics     always call Math.multiply, Math.divide, Memory.peek & Memory.poke\n" +
+            "  -no-bootstrap      no bootstrap code, even if a module defines Sys.init";
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private List<ObjectFile> modules;
+    private short[] rom;
+    private LinkedHashMap<String, Integer> functions;   //  function -> ROM address
+    private LinkedHashMap<String, Integer> statics;     //  File.i -> RAM address
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Creates a linker with no modules.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   no modules have been added
+     */
+    Linker() {
+        modules = new ArrayList<>();
+        rom = null;
+        functions = new LinkedHashMap<>();
+        statics = new LinkedHashMap<>();
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Links the programs the command-line arguments describe, reporting to standard output.
+     *
+     * PRECONDITION:    args holds at least one input and, optionally, the options in USAGE
+     * POSTCONDITION:   the program has been written, or the linker has exited with status 1
+     *
+     * @param   args    -   the supplied command-line arguments
+     */
+    public static void main(String[] args) {
+        File output = null;
+        Options.Level level = Options.Level.O1;
+        boolean intrinsics = true;
+        boolean bootstrap = true;
+        List<File> inputs = new ArrayList<>();     //  .vm & .vmo files, in link order
+        try {
+            for(int i = 0; i < args.length; i++) {
+                if (args[i].equals("-o") && i + 1 < args.length) {
+                    output = new File(args[++i]);
+                } else if (args[i].equals("-no-intrinsics")) {
+                    intrinsics = false;
+                } else if (args[i].equals("-no-bootstrap")) {
+                    bootstrap = false;
+                } else if (args[i].startsWith("-O")) {
+                    level = null;
+                    for( Options.Level candidate : Options.Level.values() ) {
+                        if (candidate.toString().equals(args[i])) {
+                            level = candidate;
+                        }
+                    }
+                    if (level == null) {
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                    }
+                } else if (!args[i].startsWith("-")) {
+                    File input = new File(args[i]);
+                    addInput(input, inputs);
+                    if (output == null) {
+                        //  The first input names the program
+                        String name = input.isDirectory() ? input.getName()
+                                : input.getName().replaceFirst("\\.vmo?$", "");
+                        File dir = input.isDirectory() ? input : input.getAbsoluteFile().getParentFile();
+                        output = new File(dir, name + ".hack");
+                    }
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if (inputs.isEmpty()) {
+                throw new IllegalArgumentException("No .vm or .vmo files to link.");
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        try {
+            Linker linker = new Linker();
+            int translated = 0;
+            for( File input : inputs ) {
+                if (input.getName().endsWith(ObjectFile.EXTENSION)) {
+                    linker.add(ObjectFile.read(input));
+                } else {
+                    linker.add(ObjectFile.translate(input, level, intrinsics));
+                    translated++;
+                }
+            }
+            linker.link(bootstrap && linker.definesFunction(BOOTSTRAP_FUNCTION));
+            writeHack(linker.getRom(), output);
+            System.out.println("Linked " + inputs.size() + " modules [" + translated + " translated at "
+                    + level + "]: " + linker.getRom().length
+                    + " instructions, " + linker.getStatics().size() + " statics -> " + output.getPath());
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            //  an unreadable input, malformed VM code, or a link error
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Adds a module to the program, after those added so far.
+     *
+     * PRECONDITION:    link() has not been called
+     * POSTCONDITION:   module will be linked
+     *
+     * @param   module  -   the module
+     *
+     * @throws  IllegalArgumentException    -   if a module of the same name has been added
+     */
+    void add(ObjectFile module) {
+        for( ObjectFile other : modules ) {
+            if (other.getName().equals(module.getName())) {
+                throw new IllegalArgumentException("Module " + module.getName() + " is given twice.");
+            }
+        }
+        modules.add(module);
+    }
+
+    /**
+     * Places every module in ROM and fills in its relocations.
+     *
+     * PRECONDITION:    every module has been added
+     * POSTCONDITION:   getRom(), getFunctions() & getStatics() describe the program
+     *
+     * @param   bootstrap   -   true to start the program with bootstrap code [SP = 256,
+     *                          call Sys.init], false to start at the first module
+     * @return              -   the program's machine code
+     *
+     * @throws  IllegalStateException   -   if the modules cannot be linked
+     */
+    short[] link(boolean bootstrap) {
+        List<ObjectFile> program = new ArrayList<>();
+        if (bootstrap) {
+            program.add(ObjectFile.bootstrap());     //  at ROM[0], as it must be
+        }
+        program.addAll(modules);
+
+        //  Place the modules & export their functions
+        int[] bases = new int[program.size()];
+        int size = 0;
+        functions.clear();
+        LinkedHashMap<String, String> definedIn = new LinkedHashMap<>();
+        for(int m = 0; m < program.size(); m++) {
+            ObjectFile module = program.get(m);
+            bases[m] = size;
+            size += module.size();
+            for(int s = 0; s < module.getSymbolCount(); s++) {
+                if (module.getSymbolKind(s) != ObjectFile.FUNCTION) {
+                    continue;
+                }
+                String function = module.getSymbolName(s);
+                if (definedIn.containsKey(function)) {
+                    throw new IllegalStateException("Function " + function + " is defined in both "
+                            + definedIn.get(function) + " and " + module.getName());
+                }
+                definedIn.put(function, module.getName());
+                functions.put(function, bases[m] + module.getSymbolValue(s));
+            }
+        }
+        if (size > ROM_SIZE) {
+            throw new IllegalStateException("The program needs " + size + " instructions; ROM holds "
+                    + ROM_SIZE);
+        }
+
+        //  Fill in the relocations
+        rom = new short[size];
+        statics.clear();
+        List<String> undefined = new ArrayList<>();
+        Set<String> reported = new HashSet<>();
+        for(int m = 0; m < program.size(); m++) {
+            ObjectFile module = program.get(m);
+            System.arraycopy(module.getCode(), 0, rom, bases[m], module.size());
+            for(int r = 0; r < module.getRelocationCount(); r++) {
+                int symbol = module.getRelocationSymbol(r);
+                String name = module.getSymbolName(symbol);
+                int address;
+                switch (module.getSymbolKind(symbol)) {
+                    case ObjectFile.FUNCTION:
+                    case ObjectFile.LABEL:
+                        address = bases[m] + module.getSymbolValue(symbol);
+                        break;
+                    case ObjectFile.EXTERNAL:
+                        if (!functions.containsKey(name)) {
+                            if (reported.add(name)) {
+                                undefined.add(name + " [called from " + module.getName() + "]");
+                            }
+                            continue;
+                        }
+                        address = functions.get(name);
+                        break;
+                    default:
+                        if (!statics.containsKey(name)) {
+                            if (FIRST_STATIC + statics.size() >= STACK_BASE) {
+                                throw new IllegalStateException("More than " + (STACK_BASE - FIRST_STATIC)
+                                        + " static variables: " + name + " would be on the stack");
+                            }
+                            statics.put(name, FIRST_STATIC + statics.size());
+                        }
+                        address = statics.get(name);
+                        break;
+                }
+                rom[bases[m] + module.getRelocationOffset(r)] = (short) address;
+            }
+        }
+        if (!undefined.isEmpty()) {
+            StringBuilder message = new StringBuilder("Undefined function" + (undefined.size() == 1 ? "" : "s"));
+            for(int i = 0; i < undefined.size(); i++) {
+                message.append(i == 0 ? ": " : ", ").append(undefined.get(i));
+            }
+            throw new IllegalStateException(message.toString());
+        }
+        return rom;
+    }
+
+    /**
+     * @param   function    -   the name of a VM function
+     * @return              -   true if one of the modules added defines it
+     */
+    boolean definesFunction(String function) {
+        for( ObjectFile module : modules ) {
+            for(int s = 0; s < module.getSymbolCount(); s++) {
+                if (module.getSymbolKind(s) == ObjectFile.FUNCTION && module.getSymbolName(s).equals(function)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads a Hack machine code program: one 16-character binary instruction per line.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   hackFile    -   the program
+     * @return              -   its instructions
+     *
+     * @throws  IOException -   if hackFile cannot be read or holds something else
+     */
+    static short[] readHack(File hackFile) throws IOException {
+        List<Short> words = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(hackFile))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (!line.matches("[01]{16}")) {
+                    throw new IOException("Not a Hack instruction at " + hackFile.getPath() + ":"
+                            + (words.size() + 1) + ": " + line);
+                }
+                words.add((short) Integer.parseInt(line, 2));
+            }
+        }
+        short[] program = new short[words.size()];
+        for(int i = 0; i < program.length; i++) {
+            program[i] = words.get(i);
+        }
+        return program;
+    }
+
+    /**
+     * Writes a Hack machine code program: one 16-character binary instruction per line.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   hackFile holds the program
+     *
+     * @param   program     -   the instructions
+     * @param   hackFile    -   the file to write
+     *
+     * @throws  IOException -   if hackFile cannot be written
+     */
+    static void writeHack(short[] program, File hackFile) throws IOException {
+        try (PrintWriter out = new PrintWriter(hackFile)) {
+            for( short word : program ) {
+                String bits = Integer.toBinaryString(word & 0xFFFF);
+                out.println("0000000000000000".substring(bits.length()) + bits);
+            }
+            if (out.checkError()) {
+                throw new IOException("Could not write " + hackFile.getPath());
+            }
+        }
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Adds the .vm & .vmo files of a command-line input to the files to link.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the input's files have been added to inputs [a directory's by name]
+     *
+     * @param   input   -   a .vm or .vmo file, or a directory
+     * @param   inputs  -   the files to link, in order
+     *
+     * @throws  IOException -   if input is neither
+     */
+    private static void addInput(File input, List<File> inputs) throws IOException {
+        if (input.isDirectory()) {
+            File[] files = input.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    //  A .vm file is translated again rather than its .vmo linked
+                    return name.endsWith(".vm") || (name.endsWith(ObjectFile.EXTENSION)
+                            && !new File(dir, name.replaceFirst("\\.vmo$", ".vm")).exists());
+                }
+            });
+            Arrays.sort(files);
+            inputs.addAll(Arrays.asList(files));
+        } else if ((input.getName().endsWith(".vm") || input.getName().endsWith(ObjectFile.EXTENSION))
+                && input.isFile()) {
+            inputs.add(input);
+        } else {
+            throw new IOException("Not a .vm or .vmo file, or a directory: " + input.getPath());
+        }
+    }
+
+    /***********
+     * Getters *
+     ***********/
+
+    /**
+     * @return  -   the linked program, or null before link()
+     */
+    short[] getRom() {
+        return rom;
+    }
+
+    /**
+     * @return  -   every function of the program -> its ROM address, in ROM order
+     */
+    LinkedHashMap<String, Integer> getFunctions() {
+        return functions;
+    }
+
+    /**
+     * @return  -   every static variable of the program -> its RAM address
+     */
+    LinkedHashMap<String, Integer> getStatics() {
+        return statics;
+    }
+}
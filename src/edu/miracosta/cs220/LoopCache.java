@@ -0,0 +1,276 @@
+/************************************************************************************
+ *
+ * Class name:    LoopCache
+ * Description:   Finds the loops of a single VM function and the segment addresses
+ *                worth keeping in a register while each one runs. An access to
+ *                local, argument, this or that normally recomputes base + index:
+ *
+ *                  push this 2     @THIS  D=M  @2  A=D+A  D=M  ...     [5 + push]
+ *                  pop this 2      @THIS  D=M  @2  D=D+A  @R14  M=D  ...  [9 + pop]
+ *
+ *                With the address in R13 [filled once, before the loop's label]:
+ *
+ *                  push this 2     @R13  A=M  D=M  ...                 [3 + push]
+ *                  pop this 2      ...  @R13  A=M  M=D                 [pop + 3]
+ *
+ *                A loop is a label followed, later on, by a goto or if-goto back to
+ *                it; its body runs from the label to the last such jump. A loop only
+ *                caches if:
+ *                  ->	control only enters it by falling into its label [every other
+ *                  	jump into the body comes from the body itself]
+ *                  ->	it holds no call [calls use R13 & R14, and move LCL & ARG]
+ *                  	and no other loop [only innermost loops cache]
+ *                An address of this or that is not cached if the loop sets pointer 0 or 1
+ *                [THIS or THAT changes under it]. Of the rest, the most used are given
+ *                R13 and R14, as long as what they save in ROM at least pays for filling
+ *                the register. R14 is only used if no pop in the loop still needs it for
+ *                an uncached address.
+ *
+ *                R15 is left alone: returns, shared comparisons, and outlined code [-Os]
+ *                keep return addresses in it. Functions translated at -Os cache as well:
+ *                a register is only filled when it makes the loop smaller, and the
+ *                outliner shares repeats in the cached code like any other.
+ *
+ * History:       Oct. 19, J, author, loop detection & register choice
+ *                Oct. 19, J, -Os caches too
+ *
+ * Methods:       Public:   find(List, boolean), fillSize(int)
+ *
+ *                Private:  findLoop(List, int, Map), isCached(VMCommand, boolean, Set),
+ *                          choose(List, int, int, boolean, Set)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class LoopCache {
+
+    /**
+     * A loop that caches addresses: the position of its label and its last jump back
+     * within the function, and the register given to each address.
+     */
+    static class Loop {
+        final int start;
+        final int end;
+        final LinkedHashMap<String, String> registers;  //  "segment index" -> R13/R14
+
+        Loop(int start, int end, LinkedHashMap<String, String> registers) {
+            this.start = start;
+            this.end = end;
+            this.registers = registers;
+        }
+    }
+
+    /*************
+     * Constants *
+     *************/
+    private static final String[] REGISTERS = { "R13", "R14" };
+
+    //  ROM saved per access of a cached address
+    private static final int PUSH_SAVINGS = 2;
+    private static final int POP_SAVINGS = 6;
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Finds the loops of a function that cache addresses.
+     *
+     * PRECONDITION:    commands hold a single function [or top-level code], after
+     *                  FlowGraph.optimize()
+     * POSTCONDITION:   N/A
+     *
+     * @param   commands    -   the commands of the function
+     * @param   staticFrame -   true if the function keeps its arguments & locals at fixed
+     *                          addresses [no need to cache them]
+     * @return              -   the caching loops, in order
+     */
+    static List<Loop> find(List<VMCommand> commands, boolean staticFrame) {
+        //  label -> position of every jump to it
+        HashMap<String, List<Integer>> jumps = new HashMap<>();
+        for(int i = 0; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            if (command.isJump()) {
+                List<Integer> sources = jumps.get(command.arg1);
+                if (sources == null) {
+                    sources = new ArrayList<>();
+                    jumps.put(command.arg1, sources);
+                }
+                sources.add(i);
+            }
+        }
+
+        List<Loop> loops = new ArrayList<>();
+        for(int i = 0; i < commands.size(); i++) {
+            if (commands.get(i).type != Parser.Command.C_LABEL) {
+                continue;
+            }
+            int end = findLoop(commands, i, jumps);
+            if (end == -1) {
+                continue;
+            }
+            //  What the loop sets, and how much each address would save
+            HashSet<String> pointersSet = new HashSet<>();
+            for(int k = i; k <= end; k++) {
+                VMCommand command = commands.get(k);
+                if (command.type == Parser.Command.C_POP && command.arg1.equalsIgnoreCase("pointer")) {
+                    pointersSet.add(command.arg2 == 0 ? "this" : "that");
+                }
+            }
+            Loop loop = choose(commands.subList(i, end + 1), i, end, staticFrame, pointersSet);
+            if (loop != null) {
+                loops.add(loop);
+            }
+            i = end;
+        }
+        return loops;
+    }
+
+    /**
+     * @param   index   -   the index of a cached address within its segment
+     * @return          -   the ROM needed to fill its register
+     */
+    static int fillSize(int index) {
+        return index <= 1 ? 4 : 6;      //  base [+ 1] needs no @index
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Determines whether a label starts an innermost loop that can cache addresses.
+     *
+     * PRECONDITION:    jumps holds every jump of the function
+     * POSTCONDITION:   N/A
+     *
+     * @param   commands    -   the commands of the function
+     * @param   start       -   the position of a label command
+     * @param   jumps       -   label -> the positions of the jumps to it
+     * @return              -   the position of the loop's last jump back, or -1 if the
+     *                          label doesn't start such a loop
+     */
+    private static int findLoop(List<VMCommand> commands, int start, Map<String, List<Integer>> jumps) {
+        List<Integer> sources = jumps.get(commands.get(start).arg1);
+        if (sources == null || Collections.max(sources) < start) {
+            return -1;
+        }
+        int end = Collections.max(sources);
+        for(int k = start; k <= end; k++) {
+            VMCommand command = commands.get(k);
+            if (command.type == Parser.Command.C_CALL) {
+                return -1;
+            }
+            if (command.type == Parser.Command.C_LABEL) {
+                for( int source : jumps.containsKey(command.arg1)
+                        ? jumps.get(command.arg1) : Collections.<Integer>emptyList() ) {
+                    if (source < start || source > end) {
+                        return -1;      //  entered from outside
+                    }
+                    if (k != start && source > k) {
+                        return -1;      //  another loop inside
+                    }
+                }
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Gives the most used addresses of a loop a register each.
+     *
+     * PRECONDITION:    body holds a loop found by findLoop()
+     * POSTCONDITION:   N/A
+     *
+     * @param   body        -   the commands of the loop
+     * @param   start       -   the position of its label within the function
+     * @param   end         -   the position of its last jump back
+     * @param   staticFrame -   true if arguments & locals are at fixed addresses
+     * @param   pointersSet -   "this" and/or "that", if the loop sets pointer 0/1
+     * @return              -   the loop, or null if no address is worth caching
+     */
+    private static Loop choose(List<VMCommand> body, int start, int end, boolean staticFrame,
+                               Set<String> pointersSet) {
+        final HashMap<String, Integer> savings = new HashMap<>();
+        HashMap<String, Integer> indices = new HashMap<>();
+        List<String> addresses = new ArrayList<>();     //  in order of first use
+        for( VMCommand command : body ) {
+            if (!isCached(command, staticFrame, pointersSet)) {
+                continue;
+            }
+            String address = command.arg1.toLowerCase() + " " + command.arg2;
+            if (!savings.containsKey(address)) {
+                savings.put(address, 0);
+                indices.put(address, command.arg2);
+                addresses.add(address);
+            }
+            if (command.type == Parser.Command.C_POP) {
+                savings.put(address, savings.get(address) + POP_SAVINGS);
+            } else {
+                savings.put(address, savings.get(address) + PUSH_SAVINGS);
+            }
+        }
+        List<String> worth = new ArrayList<>();
+        for( String address : addresses ) {
+            if (savings.get(address) >= fillSize(indices.get(address))) {
+                worth.add(address);
+            }
+        }
+        //  Most saved first [ties in order of first use]
+        Collections.sort(worth, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return savings.get(b) - savings.get(a);
+            }
+        });
+
+        //  R14 also holds the address of an uncached pop
+        int count = Math.min(worth.size(), REGISTERS.length);
+        for( VMCommand command : body ) {
+            String segment = command.arg1.toLowerCase();
+            //  Pops to static variables & static frames store straight to the address
+            boolean usesR14 = !segment.equals("static") && !command.isDiscard()
+                    && !(staticFrame && (segment.equals("local") || segment.equals("argument")));
+            if (command.type == Parser.Command.C_POP && usesR14
+                    && !worth.subList(0, count).contains(segment + " " + command.arg2)) {
+                count = Math.min(count, 1);
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        LinkedHashMap<String, String> registers = new LinkedHashMap<>();
+        for(int i = 0; i < count; i++) {
+            registers.put(worth.get(i), REGISTERS[i]);
+        }
+        return new Loop(start, end, registers);
+    }
+
+    /**
+     * @param   command     -   a command of a loop
+     * @param   staticFrame -   true if arguments & locals are at fixed addresses
+     * @param   pointersSet -   "this" and/or "that", if the loop sets pointer 0/1
+     * @return              -   true if command accesses an address that may be cached
+     */
+    private static boolean isCached(VMCommand command, boolean staticFrame, Set<String> pointersSet) {
+        if ((command.type != Parser.Command.C_PUSH && command.type != Parser.Command.C_POP)
+                || command.isDiscard()) {
+            return false;
+        }
+        String segment = command.arg1.toLowerCase();
+        if (segment.equals("local") || segment.equals("argument")) {
+            return !staticFrame;
+        }
+        return (segment.equals("this") || segment.equals("that")) && !pointersSet.contains(segment);
+    }
+}
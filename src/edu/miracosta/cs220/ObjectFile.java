@@ -0,0 +1,429 @@
+/************************************************************************************
+ *
+ * Class name:    ObjectFile
+ * Description:   The translation of a single .vm file as relocatable Hack machine code
+ *                [File.vmo], so that a library such as the Jack OS can be translated
+ *                once and linked into any program [see Linker].
+ *
+ *                A module is translated on its own: without the rest of the program,
+ *                nothing is assumed of other modules' functions [no static frames, calls
+ *                save every pointer], and return points are loaded by label
+ *                [CodeWriter.setRelocatable()]. It is then assembled as if it started at
+ *                ROM[0], and every A-instruction that loads a symbol gets a relocation:
+ *
+ *                  FUNCTION    a function the module defines       [exported]
+ *                  LABEL       any other label it defines          [local to the module]
+ *                  EXTERNAL    a function it calls, defined in another module
+ *                  STATIC      one of its static variables, File.i [RAM, given by the linker]
+ *
+ *                Each module carries the shared routines its own code uses [$TAILCALL,
+ *                $CALL, ...] as local labels.
+ *
+ *                File format [big-endian, as DataOutputStream writes it]:
+ *
+ *                  int     MAGIC, int VERSION
+ *                  UTF     module name [the .vm file's, less .vm], UTF level translated at
+ *                  int     n, then n shorts of code
+ *                  int     n, then n symbols: byte kind, UTF name, int value [ROM offset of
+ *                          a FUNCTION or LABEL, -1 otherwise]
+ *                  int     n, then n relocations: int ROM offset, int symbol number
+ *
+ * History:       Oct. 19, J, author, relocatable modules, .vmo files
+ *
+ * Methods:       Public:   translate(File, Options.Level, boolean), bootstrap(), read(File),
+ *                          write(File), getName(), getLevel(), getCode(), size(),
+ *                          getSymbolCount(), getSymbolKind(int), getSymbolName(int),
+ *                          getSymbolValue(int), getRelocationCount(), getRelocationOffset(int),
+ *                          getRelocationSymbol(int), getObjectFileName(String)
+ *
+ *                Private:  ObjectFile(String, String), assemble(String, String, String, Set),
+ *                          addSymbol(byte, String, int)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+class ObjectFile {
+
+    /*************
+     * Constants *
+     *************/
+    static final String EXTENSION = ".vmo";
+
+    //  Symbol kinds
+    static final byte FUNCTION = 0;
+    static final byte LABEL = 1;
+    static final byte EXTERNAL = 2;
+    static final byte STATIC = 3;
+
+    //  "HVMO", and the format's version
+    private static final int MAGIC = 0x48564D4F;
+    private static final int VERSION = 1;
+
+    //  Name of the module holding the bootstrap code [see bootstrap()]
+    static final String BOOTSTRAP_NAME = "$BOOTSTRAP";
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private String name;
+    private String level;
+    private short[] code;
+    private List<Byte> symbolKinds;
+    private List<String> symbolNames;
+    private List<Integer> symbolValues;
+    private List<Integer> relocationOffsets;   //  in ROM order
+    private List<Integer> relocationSymbols;
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Creates an empty module. Use translate(), bootstrap() or read() instead.
+     *
+     * @param   name    -   the module's name
+     * @param   level   -   the level it was translated at
+     */
+    private ObjectFile(String name, String level) {
+        this.name = name;
+        this.level = level;
+        code = new short[0];
+        symbolKinds = new ArrayList<>();
+        symbolNames = new ArrayList<>();
+        symbolValues = new ArrayList<>();
+        relocationOffsets = new ArrayList<>();
+        relocationSymbols = new ArrayList<>();
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Translates a .vm file into a module.
+     *
+     * PRECONDITION:    vmFile is a .vm file
+     * POSTCONDITION:   N/A
+     *
+     * @param   vmFile      -   the file to translate
+     * @param   level       -   the optimization level to translate it at
+     * @param   intrinsics  -   true to write trivial OS calls inline
+     * @return              -   the module
+     *
+     * @throws  IOException -   if vmFile cannot be read
+     * @throws  IllegalArgumentException    -   if vmFile holds malformed VM code
+     */
+    static ObjectFile translate(File vmFile, Options.Level level, boolean intrinsics) throws IOException {
+        String moduleName = VirtualMachine.convertFileName(vmFile.getName());
+        moduleName = moduleName.substring(0, moduleName.length() - ".asm".length());
+
+        //  The functions it defines are its exports
+        Set<String> functions = new LinkedHashSet<>();
+        Parser parser = new Parser(vmFile.getPath());
+        while (parser.hasMoreCommands()) {
+            parser.advance();
+            if (parser.getCommandType() == Parser.Command.C_FUNCTION) {
+                functions.add(parser.getArg1());
+            }
+        }
+
+        ByteArrayOutputStream asm = new ByteArrayOutputStream();
+        CodeWriter codeWriter = new CodeWriter(asm, moduleName, false);
+        codeWriter.setLevel(level);
+        codeWriter.setIntrinsics(intrinsics);
+        codeWriter.setRelocatable(true);
+        try {
+            codeWriter.setFileName(vmFile.getName());
+            VirtualMachine.translate(new Parser(vmFile.getPath()), codeWriter);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed VM code in " + vmFile.getPath() + ": " + e.getMessage());
+        } finally {
+            codeWriter.close();
+        }
+        return assemble(moduleName, level.toString(), asm.toString(), functions);
+    }
+
+    /**
+     * Creates the module that starts a program: SP = 256, then call Sys.init.
+     * ->	Its return point is loaded by address, so it must be linked first [at ROM[0]].
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @return  -   the bootstrap module
+     */
+    static ObjectFile bootstrap() {
+        ByteArrayOutputStream asm = new ByteArrayOutputStream();
+        CodeWriter codeWriter = new CodeWriter(asm, BOOTSTRAP_NAME, true);
+        codeWriter.close();
+        return assemble(BOOTSTRAP_NAME, Options.Level.O0.toString(), asm.toString(),
+                Collections.<String>emptySet());
+    }
+
+    /**
+     * Reads a module from a .vmo file.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   objectFile  -   the file to read
+     * @return              -   the module
+     *
+     * @throws  IOException -   if objectFile cannot be read or is not a valid module
+     */
+    static ObjectFile read(File objectFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(objectFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(objectFile.getPath() + " is not an object file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(objectFile.getPath() + " has format version " + version
+                        + ", expected " + VERSION + "; translate it again");
+            }
+            ObjectFile module = new ObjectFile(in.readUTF(), in.readUTF());
+            module.code = new short[in.readInt()];
+            for(int i = 0; i < module.code.length; i++) {
+                module.code[i] = in.readShort();
+            }
+            int symbols = in.readInt();
+            for(int i = 0; i < symbols; i++) {
+                byte kind = in.readByte();
+                String symbol = in.readUTF();
+                int value = in.readInt();
+                if (kind < FUNCTION || kind > STATIC
+                        || ((kind == FUNCTION || kind == LABEL) && (value < 0 || value > module.code.length))) {
+                    throw new IOException("Malformed symbol " + symbol + " in " + objectFile.getPath());
+                }
+                module.addSymbol(kind, symbol, value);
+            }
+            int relocations = in.readInt();
+            for(int i = 0; i < relocations; i++) {
+                int offset = in.readInt();
+                int symbol = in.readInt();
+                if (offset < 0 || offset >= module.code.length || symbol < 0 || symbol >= symbols) {
+                    throw new IOException("Malformed relocation in " + objectFile.getPath());
+                }
+                module.relocationOffsets.add(offset);
+                module.relocationSymbols.add(symbol);
+            }
+            return module;
+        }
+    }
+
+    /**
+     * Writes the module to a .vmo file.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   objectFile holds the module
+     *
+     * @param   objectFile  -   the file to write
+     *
+     * @throws  IOException -   if objectFile cannot be written
+     */
+    void write(File objectFile) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(objectFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(name);
+            out.writeUTF(level);
+            out.writeInt(code.length);
+            for( short word : code ) {
+                out.writeShort(word);
+            }
+            out.writeInt(symbolNames.size());
+            for(int i = 0; i < symbolNames.size(); i++) {
+                out.writeByte(symbolKinds.get(i));
+                out.writeUTF(symbolNames.get(i));
+                out.writeInt(symbolValues.get(i));
+            }
+            out.writeInt(relocationOffsets.size());
+            for(int i = 0; i < relocationOffsets.size(); i++) {
+                out.writeInt(relocationOffsets.get(i));
+                out.writeInt(relocationSymbols.get(i));
+            }
+        }
+    }
+
+    /**
+     * @param   programName -   the name of a .vm file, with or without .vm
+     * @return              -   the name of its object file, e.g. Main.vmo
+     */
+    static String getObjectFileName(String programName) {
+        String asmName = VirtualMachine.convertFileName(programName);
+        return asmName.substring(0, asmName.length() - ".asm".length()) + EXTENSION;
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Assembles a module's translation as if it started at ROM[0], recording every
+     * symbol it loads.
+     *
+     * PRECONDITION:    asm is complete, with return points loaded by label
+     * POSTCONDITION:   N/A
+     *
+     * @param   moduleName  -   the module's name [statics are moduleName.i]
+     * @param   level       -   the level it was translated at
+     * @param   asm         -   its assembly code
+     * @param   functions   -   the functions it defines
+     * @return              -   the module
+     */
+    private static ObjectFile assemble(String moduleName, String level, String asm, Set<String> functions) {
+        HackAssembler assembler = HackAssembler.assemble(Arrays.asList(asm.split("\\r?\\n")));
+        ObjectFile module = new ObjectFile(moduleName, level);
+        module.code = assembler.getRom();
+
+        //  Defined labels first, in address order, then what is loaded but not defined
+        TreeMap<Integer, List<String>> byAddress = new TreeMap<>();
+        for( Map.Entry<String, Integer> label : assembler.getLabels().entrySet() ) {
+            if (!byAddress.containsKey(label.getValue())) {
+                byAddress.put(label.getValue(), new ArrayList<String>());
+            }
+            byAddress.get(label.getValue()).add(label.getKey());
+        }
+        HashMap<String, Integer> numbers = new HashMap<>();
+        for( Map.Entry<Integer, List<String>> labels : byAddress.entrySet() ) {
+            Collections.sort(labels.getValue());
+            for( String label : labels.getValue() ) {
+                numbers.put(label, module.symbolNames.size());
+                module.addSymbol(functions.contains(label) ? FUNCTION : LABEL, label, labels.getKey());
+            }
+        }
+        TreeMap<Integer, String> references = new TreeMap<>(assembler.getReferences());
+        for( Map.Entry<Integer, String> reference : references.entrySet() ) {
+            String symbol = reference.getValue();
+            Integer number = numbers.get(symbol);
+            if (number == null) {
+                number = module.symbolNames.size();
+                numbers.put(symbol, number);
+                module.addSymbol(symbol.matches(Pattern.quote(moduleName) + "\\.\\d+") ? STATIC : EXTERNAL,
+                        symbol, -1);
+            }
+            module.relocationOffsets.add(reference.getKey());
+            module.relocationSymbols.add(number);
+        }
+        return module;
+    }
+
+    /**
+     * Adds a symbol to the module's table.
+     *
+     * @param   kind    -   FUNCTION, LABEL, EXTERNAL or STATIC
+     * @param   symbol  -   its name
+     * @param   value   -   its ROM offset, or -1 if it is not defined here
+     */
+    private void addSymbol(byte kind, String symbol, int value) {
+        symbolKinds.add(kind);
+        symbolNames.add(symbol);
+        symbolValues.add(value);
+    }
+
+    /***********
+     * Getters *
+     ***********/
+
+    /**
+     * @return  -   the module's name [its .vm file's, less .vm]
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return  -   the optimization level the module was translated at
+     */
+    String getLevel() {
+        return level;
+    }
+
+    /**
+     * @return  -   the module's machine code, as if it started at ROM[0]
+     */
+    short[] getCode() {
+        return code;
+    }
+
+    /**
+     * @return  -   the number of instructions in the module
+     */
+    int size() {
+        return code.length;
+    }
+
+    /**
+     * @return  -   the number of symbols in the module's table
+     */
+    int getSymbolCount() {
+        return symbolNames.size();
+    }
+
+    /**
+     * @param   symbol  -   a symbol number, 0 to getSymbolCount() - 1
+     * @return          -   FUNCTION, LABEL, EXTERNAL or STATIC
+     */
+    byte getSymbolKind(int symbol) {
+        return symbolKinds.get(symbol);
+    }
+
+    /**
+     * @param   symbol  -   a symbol number, 0 to getSymbolCount() - 1
+     * @return          -   its name
+     */
+    String getSymbolName(int symbol) {
+        return symbolNames.get(symbol);
+    }
+
+    /**
+     * @param   symbol  -   a symbol number, 0 to getSymbolCount() - 1
+     * @return          -   the ROM offset of a FUNCTION or LABEL, -1 otherwise
+     */
+    int getSymbolValue(int symbol) {
+        return symbolValues.get(symbol);
+    }
+
+    /**
+     * @return  -   the number of relocations in the module
+     */
+    int getRelocationCount() {
+        return relocationOffsets.size();
+    }
+
+    /**
+     * @param   relocation  -   a relocation number, 0 to getRelocationCount() - 1
+     * @return              -   the ROM offset of the A-instruction to patch
+     */
+    int getRelocationOffset(int relocation) {
+        return relocationOffsets.get(relocation);
+    }
+
+    /**
+     * @param   relocation  -   a relocation number, 0 to getRelocationCount() - 1
+     * @return              -   the number of the symbol it loads
+     */
+    int getRelocationSymbol(int relocation) {
+        return relocationSymbols.get(relocation);
+    }
+}
@@ -0,0 +1,536 @@
+/************************************************************************************
+ *
+ * Class name:    Options
+ * Description:   Holds the command-line options of the VM translator. Options
+ *                start with a dash; at most one other argument is accepted, which
+ *                is the .vm file or directory to translate.
+ *
+ * History:       Oct. 19, J, author, batch options (-batch, -manifest, -threads)
+ *                Oct. 19, J, stream options (-stdin, -name, -bootstrap)
+ *                Oct. 19, J, -sourcemap
+ *                Oct. 19, J, profile-guided translation (-profile-gen, -profile-use, -cycles)
+ *                Oct. 19, J, -compact-labels & -labelmap
+ *                Oct. 19, J, -run
+ *                Oct. 19, J, optimization levels (-O0, -O1, -O2, -Os) & -verify
+ *                Oct. 19, J, -no-intrinsics
+ *                Oct. 19, J, in-RAM execution counters (-counters, -count-labels)
+ *                Oct. 19, J, -stack
+ *                Oct. 19, J, -pipeline
+ *                Oct. 19, J, -objects
+ *
+ * Methods:       Public:   parse(String[]), getUsage(),
+ *                          getInput(), isBatch(), getBatchRoot(), getManifest(),
+ *                          getThreads(), isStdin(), getStreamName(), isBootstrap(),
+ *                          isSourceMap(), isProfileGen(), isProfileUse(), getCycles(),
+ *                          isCompactLabels(), isLabelMap(), isRun(), getLevel(), isVerify(),
+ *                          isIntrinsics(), getCounterBase(), isCountLabels(), isStackReport(),
+ *                          isPipeline(), isObjects()
+ *
+ *                Private:  Options(), nextArg(String[], int, String),
+ *                          parseNumber(String, String)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.File;
+
+class Options {
+
+    /**
+     * Optimization levels, each including the optimizations of the one before it
+     * [except that -Os trades speed for size where -O2 trades size for speed].
+     */
+    enum Level {
+        O0("-O0"),      //  every VM command exactly as CodeWriter translates it
+        O1("-O1"),      //  + jump threading, unreachable code & dead store removal, tail calls
+        O2("-O2"),      //  + optimizations that make the code faster but larger
+        OS("-Os");      //  + shared call, return & comparison routines, outlined repeats
+
+        private final String flag;
+
+        Level(String flag) {
+            this.flag = flag;
+        }
+
+        /**
+         * @return  -   the command-line option selecting this level
+         */
+        @Override
+        public String toString() {
+            return flag;
+        }
+    }
+
+    /*************
+     * Constants *
+     *************/
+    private static final long DEFAULT_CYCLES = 10000000;
+
+    private static final String USAGE =
+            "Usage: VirtualMachine [file.vm | directory]\n" +
+            "       VirtualMachine -batch <root> [-threads <n>]\n" +
+            "       VirtualMachine -manifest <file> [-threads <n>]\n" +
+            "       VirtualMachine -stdin [-name <name>] [-bootstrap] < in.vm > out.asm\n" +
+            "\n" +
+            "  -batch <root>      translate every directory under root holding .vm files\n" +
+            "  -manifest <file>   translate the project directories listed in file\n" +
+            "  -threads <n>       number of batch worker threads [default: # of CPUs]\n" +
+            "  -stdin             translate standard input to standard output\n" +
+            "  -name <name>       program name used for static labels with -stdin [default: Stdin]\n" +
+            "  -bootstrap         include bootstrap code with -stdin\n" +
+            "  -sourcemap         also write Prog.map.json, mapping ROM addresses to VM file:line:function\n" +
+            "  -profile-gen       run the translated program headlessly and write its counts to Prog.profile\n" +
+            "  -profile-use       translate hot code for speed & cold code for size, using Prog.profile\n" +
+            "  -cycles <n>        most instructions to run with -profile-gen, -run or -verify [default: 10000000]\n" +
+            "  -compact-labels    write short generated labels [$0, $1, ...] instead of full names\n" +
+            "  -labelmap          with -compact-labels, also write Prog.labels mapping them back\n" +
+            "  -run               run the translated program, compiled to JVM bytecode, and report on it\n" +
+            "  -O0                translate one VM command at a time, without optimizations\n" +
+            "  -O1                thread jumps, remove unreachable code & dead stores, and write\n" +
+            "                     tail calls [default]\n" +
+            "  -O2                also apply optimizations that trade size for speed\n" +
+            "  -Os                also share call, return & comparison code and outline repeated\n" +
+            "                     instruction sequences, trading speed for size\n" +
+            "  -verify            run the -O0 and the optimized translation side by side and compare\n" +
+            "                     their results, naming the VM function that differs\n" +
+            "  -no-intrinsics     always call Math.multiply, Math.divide, Memory.peek & Memory.poke,\n" +
+            "                     for programs that supply their own OS [default: inline them]\n" +
+            "  -counters <base>   count function entries & calls in RAM from address base [RAM the program\n" +
+            "                     doesn't use], and write Prog.counters to read them back [see Counters]\n" +
+            "  -count-labels      with -counters, also count every pass through a label\n" +
+            "  -stack             also write Prog.stack, bounding the stack each function needs [the\n" +
+            "                     program's bound is always reported]\n" +
+            "  -pipeline          read, parse & write each file on separate threads, overlapping\n" +
+            "                     input & output with translation [same output]\n" +
+            "  -objects           write a relocatable File.vmo next to each .vm file instead of\n" +
+            "                     Prog.asm, for the Linker to link into programs [see ObjectFile]";
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private File input;         //  .vm file or directory given on the command-line
+    private File batchRoot;     //  root of a tree of project directories
+    private File manifest;      //  file listing project directories, one per line
+    private int threads;        //  size of the batch worker pool
+    private boolean stdin;      //  translate stdin to stdout
+    private String streamName;  //  program name when translating a stream
+    private boolean bootstrap;  //  include bootstrap code when translating a stream
+    private boolean sourceMap;  //  write a source map next to the .asm file
+    private boolean profileGen; //  run the program & write Prog.profile
+    private boolean profileUse; //  translate according to Prog.profile
+    private long cycles;        //  instruction budget of a profiling run
+    private boolean compactLabels;  //  write short generated labels
+    private boolean labelMap;   //  write Prog.labels next to the .asm file
+    private boolean run;        //  run the program after translating it
+    private Level level;        //  optimization level
+    private boolean verify;     //  check the optimized translation against -O0
+    private boolean intrinsics; //  inline trivial OS calls [see CodeWriter.writeIntrinsic()]
+    private int counterBase;    //  address of the first in-RAM counter, or -1 for none
+    private boolean countLabels;    //  also count passes through labels
+    private boolean stackReport;    //  write Prog.stack next to the .asm file
+    private boolean pipeline;   //  read & parse on their own threads [see PipelinedTranslator]
+    private boolean objects;    //  write a .vmo per .vm file instead of Prog.asm
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Creates the default options: no input, no batch mode.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   all options hold their default values
+     */
+    private Options() {
+        input = null;
+        batchRoot = null;
+        manifest = null;
+        threads = Runtime.getRuntime().availableProcessors();
+        stdin = false;
+        streamName = "Stdin";
+        bootstrap = false;
+        sourceMap = false;
+        profileGen = false;
+        profileUse = false;
+        cycles = DEFAULT_CYCLES;
+        compactLabels = false;
+        labelMap = false;
+        run = false;
+        level = Level.O1;
+        verify = false;
+        intrinsics = true;
+        counterBase = -1;
+        countLabels = false;
+        stackReport = false;
+        pipeline = false;
+        objects = false;
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Parses the supplied command-line arguments.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the returned Options hold every option found in args,
+     *                  or an IllegalArgumentException has been thrown
+     *
+     * @param   args    -   the supplied command-line arguments
+     * @return          -   the parsed options
+     *
+     * @throws  IllegalArgumentException    -   if an option is unknown, is missing
+     *                                          its value, or the options conflict
+     */
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for(int i = 0; i < args.length; i++) {
+            switch(args[i]) {
+                case "-batch":
+                    options.batchRoot = new File(nextArg(args, i++, "a root directory"));
+                    break;
+                case "-manifest":
+                    options.manifest = new File(nextArg(args, i++, "a manifest file"));
+                    break;
+                case "-threads":
+                    options.threads = parseNumber(nextArg(args, i++, "a thread count"), "-threads");
+                    if (options.threads < 1) {
+                        throw new IllegalArgumentException("-threads must be at least 1");
+                    }
+                    break;
+                case "-stdin":
+                    options.stdin = true;
+                    break;
+                case "-name":
+                    options.streamName = nextArg(args, i++, "a program name");
+                    break;
+                case "-bootstrap":
+                    options.bootstrap = true;
+                    break;
+                case "-sourcemap":
+                    options.sourceMap = true;
+                    break;
+                case "-profile-gen":
+                    options.profileGen = true;
+                    break;
+                case "-profile-use":
+                    options.profileUse = true;
+                    break;
+                case "-cycles":
+                    options.cycles = parseNumber(nextArg(args, i++, "an instruction count"), "-cycles");
+                    if (options.cycles < 1) {
+                        throw new IllegalArgumentException("-cycles must be at least 1");
+                    }
+                    break;
+                case "-compact-labels":
+                    options.compactLabels = true;
+                    break;
+                case "-labelmap":
+                    options.labelMap = true;
+                    break;
+                case "-run":
+                    options.run = true;
+                    break;
+                case "-O0":
+                    options.level = Level.O0;
+                    break;
+                case "-O1":
+                    options.level = Level.O1;
+                    break;
+                case "-O2":
+                    options.level = Level.O2;
+                    break;
+                case "-Os":
+                    options.level = Level.OS;
+                    break;
+                case "-verify":
+                    options.verify = true;
+                    break;
+                case "-no-intrinsics":
+                    options.intrinsics = false;
+                    break;
+                case "-counters":
+                    options.counterBase = parseNumber(nextArg(args, i++, "a RAM address"), "-counters");
+                    if (options.counterBase < 0 || options.counterBase >= HackMachine.KBD) {
+                        throw new IllegalArgumentException("-counters must be a RAM address below "
+                                + HackMachine.KBD);
+                    }
+                    break;
+                case "-count-labels":
+                    options.countLabels = true;
+                    break;
+                case "-stack":
+                    options.stackReport = true;
+                    break;
+                case "-pipeline":
+                    options.pipeline = true;
+                    break;
+                case "-objects":
+                    options.objects = true;
+                    break;
+                default:
+                    if (args[i].startsWith("-")) {
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                    } else if (options.input != null) {
+                        throw new IllegalArgumentException("Only one file or directory may be given.");
+                    }
+                    options.input = new File(args[i]);
+                    break;
+            }
+        }
+        //  A batch comes from exactly one place
+        if (options.batchRoot != null && options.manifest != null) {
+            throw new IllegalArgumentException("-batch and -manifest cannot be combined.");
+        } else if (options.isBatch() && options.input != null) {
+            throw new IllegalArgumentException("A file or directory cannot be given in batch mode.");
+        } else if (options.stdin && (options.isBatch() || options.input != null)) {
+            throw new IllegalArgumentException("-stdin cannot be combined with other input.");
+        } else if (options.stdin && (options.profileGen || options.profileUse)) {
+            throw new IllegalArgumentException("Profiles need a file or directory, not -stdin.");
+        } else if (options.stdin && options.run) {
+            throw new IllegalArgumentException("-run needs a file or directory, not -stdin.");
+        } else if (options.stdin && options.verify) {
+            throw new IllegalArgumentException("-verify needs a file or directory, not -stdin.");
+        } else if (options.verify && options.level == Level.O0) {
+            throw new IllegalArgumentException("-verify compares against -O0; choose -O1, -O2 or -Os.");
+        } else if (options.profileUse && options.level == Level.O0) {
+            throw new IllegalArgumentException("-profile-use cannot be combined with -O0.");
+        } else if (options.profileGen && options.profileUse) {
+            //  The counts would be of the optimized code, not of the program
+            throw new IllegalArgumentException("-profile-gen and -profile-use cannot be combined.");
+        } else if (options.labelMap && !options.compactLabels) {
+            throw new IllegalArgumentException("-labelmap requires -compact-labels.");
+        } else if (options.stdin && options.counterBase != -1) {
+            throw new IllegalArgumentException("-counters needs a file or directory, not -stdin.");
+        } else if (options.countLabels && options.counterBase == -1) {
+            throw new IllegalArgumentException("-count-labels requires -counters.");
+        } else if (options.stdin && options.stackReport) {
+            throw new IllegalArgumentException("-stack needs a file or directory, not -stdin.");
+        } else if (options.objects && (options.stdin || options.run || options.verify || options.profileGen
+                || options.profileUse || options.sourceMap || options.compactLabels
+                || options.counterBase != -1 || options.stackReport)) {
+            //  Modules are only ever run once linked
+            throw new IllegalArgumentException("-objects needs a file or directory, and writes nothing"
+                    + " but objects; link them with Linker.");
+        }
+        return options;
+    }
+
+    /**
+     * Getter for the usage message.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @return      -   a description of all command-line options
+     */
+    static String getUsage() {
+        return USAGE;
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Returns the value following the option at index i.
+     *
+     * PRECONDITION:    args[i] is an option that takes a value
+     * POSTCONDITION:   the value has been returned, or an IllegalArgumentException has been thrown
+     *
+     * @param   args        -   the supplied command-line arguments
+     * @param   i           -   the index of the option
+     * @param   description -   what the option expects, for the error message
+     * @return              -   args[i + 1]
+     */
+    private static String nextArg(String[] args, int i, String description) {
+        if (i + 1 >= args.length) {
+            throw new IllegalArgumentException(args[i] + " expects " + description + ".");
+        }
+        return args[i + 1];
+    }
+
+    /**
+     * Parses the numeric value of an option.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the value has been returned, or an IllegalArgumentException has been thrown
+     *
+     * @param   value   -   the text to parse
+     * @param   option  -   the option the value belongs to, for the error message
+     * @return          -   value as an int
+     */
+    private static int parseNumber(String value, String option) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " expects a number, not \"" + value + "\".");
+        }
+    }
+
+    /***********
+     * Getters *
+     ***********/
+
+    /**
+     * @return  -   the .vm file or directory given on the command-line, or null
+     */
+    File getInput() {
+        return input;
+    }
+
+    /**
+     * @return  -   true if a batch of projects should be translated (-batch or -manifest)
+     */
+    boolean isBatch() {
+        return batchRoot != null || manifest != null;
+    }
+
+    /**
+     * @return  -   the root of the project tree to translate, or null
+     */
+    File getBatchRoot() {
+        return batchRoot;
+    }
+
+    /**
+     * @return  -   the manifest listing the projects to translate, or null
+     */
+    File getManifest() {
+        return manifest;
+    }
+
+    /**
+     * @return  -   the number of batch worker threads
+     */
+    int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return  -   true if standard input should be translated to standard output
+     */
+    boolean isStdin() {
+        return stdin;
+    }
+
+    /**
+     * @return  -   the program name to use for static labels when translating a stream
+     */
+    String getStreamName() {
+        return streamName;
+    }
+
+    /**
+     * @return  -   true if bootstrap code should be included when translating a stream
+     */
+    boolean isBootstrap() {
+        return bootstrap;
+    }
+
+    /**
+     * @return  -   true if a source map should be written along with the .asm file
+     */
+    boolean isSourceMap() {
+        return sourceMap;
+    }
+
+    /**
+     * @return  -   true if the program should be profiled after translation
+     */
+    boolean isProfileGen() {
+        return profileGen;
+    }
+
+    /**
+     * @return  -   true if the program should be translated according to its profile
+     */
+    boolean isProfileUse() {
+        return profileUse;
+    }
+
+    /**
+     * @return  -   the most instructions to execute while profiling
+     */
+    long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * @return  -   true if labels should be written as short generated names
+     */
+    boolean isCompactLabels() {
+        return compactLabels;
+    }
+
+    /**
+     * @return  -   true if the short label names should be mapped back in a side file
+     */
+    boolean isLabelMap() {
+        return labelMap;
+    }
+
+    /**
+     * @return  -   true if the program should be run after translation
+     */
+    boolean isRun() {
+        return run;
+    }
+
+    /**
+     * @return  -   the optimization level to translate at
+     */
+    Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @return  -   true if the translation should be checked against an -O0 translation
+     */
+    boolean isVerify() {
+        return verify;
+    }
+
+    /**
+     * @return  -   true if trivial OS calls may be inlined [except at -O0]
+     */
+    boolean isIntrinsics() {
+        return intrinsics;
+    }
+
+    /**
+     * @return  -   the address of the first in-RAM execution counter, or -1 for no counters
+     */
+    int getCounterBase() {
+        return counterBase;
+    }
+
+    /**
+     * @return  -   true if passes through labels should be counted as well
+     */
+    boolean isCountLabels() {
+        return countLabels;
+    }
+
+    /**
+     * @return  -   true if Prog.stack should be written [see StackDepth]
+     */
+    boolean isStackReport() {
+        return stackReport;
+    }
+
+    /**
+     * @return  -   true if each file should be read & parsed on threads of its own
+     */
+    boolean isPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * @return  -   true if each .vm file should be written as a .vmo instead [see ObjectFile]
+     */
+    boolean isObjects() {
+        return objects;
+    }
+}
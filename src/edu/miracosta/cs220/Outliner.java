@@ -0,0 +1,501 @@
+/************************************************************************************
+ *
+ * Class name:    Outliner
+ * Description:   Shrinks a translated program [-Os] by factoring instruction sequences
+ *                that repeat across the whole program into shared subroutines.
+ *
+ *                Each occurrence of a chosen sequence is replaced by a call that passes
+ *                its return point in D:
+ *
+ *                      @$OUTRETm   D=A   @$OUTn   0;JMP   ($OUTRETm)
+ *
+ *                and the routine keeps it in R15 while the sequence runs:
+ *
+ *                      ($OUTn)   @R15   M=D   <sequence>   @R15   A=M   0;JMP
+ *
+ *                So a sequence may only be outlined if it starts with an A-instruction
+ *                [A is dead], sets D before reading it or jumping [D is dead], doesn't
+ *                use R15 or run while R15 holds a value [from a store to R15 up to the
+ *                next @R15, in program order], and has no label inside it. An occurrence may only be replaced
+ *                if control doesn't fall out of it into code that reads A, which the
+ *                return jump overwrites.
+ *
+ *                Candidates are found by hashing every window of MIN_LENGTH to MAX_LENGTH
+ *                instructions, and chosen greedily by net ROM savings:
+ *
+ *                      occurrences * (length - 4) - (length + 5)
+ *
+ *                Outlined routines are appended after the program [behind a halt loop,
+ *                if the program could run off its end]. Nothing is outlined unless the
+ *                chosen sequences save more than that halt loop costs.
+ *
+ * History:       Oct. 19, J, author, hash-based outlining of repeated sequences
+ *                Oct. 19, J, halt before the routines when a label ends the program, too
+ *                Oct. 19, J, don't outline code while R15 holds a return address or pointer
+ *                Oct. 19, J, count the halt loop against the savings [needsHalt]
+ *
+ * Methods:       Public:   Outliner(List, BitSet, LabelTable), outline(), getAddresses(),
+ *                          getSaved()
+ *
+ *                Private:  parse(), findCandidates(), choose(List), write(List),
+ *                          isCInstruction(int), readsD(String), writesD(String),
+ *                          hasJump(String), fallsThrough(int), countIn(int[], int, int),
+ *                          needsHalt(), symbol(String)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+class Outliner {
+
+    /**
+     * A repeated sequence and where it occurs.
+     */
+    private static class Candidate {
+        final int length;
+        List<Integer> starts;   //  instruction indices of its non-overlapping occurrences
+        int savings;
+
+        Candidate(int length, List<Integer> starts) {
+            this.length = length;
+            this.starts = starts;
+            this.savings = savings(length, starts.size());
+        }
+
+        static int savings(int length, int occurrences) {
+            return occurrences * (length - CALL_SIZE) - (length + ROUTINE_OVERHEAD);
+        }
+    }
+
+    /*************
+     * Constants *
+     *************/
+    //  Shortest & longest sequences considered
+    private static final int MIN_LENGTH = 5;
+    private static final int MAX_LENGTH = 40;
+
+    //  Instructions per call site, and per routine besides the sequence itself
+    private static final int CALL_SIZE = 4;
+    private static final int ROUTINE_OVERHEAD = 5;
+    private static final int HALT_SIZE = 2;         //  the halt loop before the routines
+
+    private static final String RETURN_REGISTER = "R15";
+    private static final String ROUTINE_LABEL = "$OUT";
+    private static final String RETURN_LABEL = "$OUTRET";
+    private static final String END_LABEL = "$OUTEND";
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private List<String> lines;         //  the program: instructions & labels
+    private BitSet keep;                //  instructions that must stay as they are
+    private LabelTable labelTable;      //  short label names, or null
+
+    private List<String> code;          //  instructions only
+    private int[] tokens;               //  code, interned
+    //  Running counts [see countIn()] of the instructions that come right after a label,
+    //  that use R15 [or run while it holds a value], and that keep holds
+    private int[] labeled;
+    private int[] usesReturnRegister;
+    private int[] kept;
+    private int[] setsD;                //  index of the instruction that sets D first from
+                                        //  here on, or -1 if D is read or a jump comes first
+
+    private int[] addresses;            //  old instruction index -> new address
+    private int saved;
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Prepares to outline a program.
+     *
+     * PRECONDITION:    lines hold assembly instructions & labels only, and every ROM
+     *                  address the program loads is a label [its code will move]
+     * POSTCONDITION:   N/A
+     *
+     * @param   lines       -   the program
+     * @param   keep        -   indices of instructions that must not be outlined, or null
+     * @param   labelTable  -   the table to intern new labels into, or null to write them in full
+     */
+    Outliner(List<String> lines, BitSet keep, LabelTable labelTable) {
+        this.lines = lines;
+        this.keep = keep == null ? new BitSet() : keep;
+        this.labelTable = labelTable;
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Outlines the program's repeated sequences.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   getAddresses() & getSaved() describe the result
+     *
+     * @return  -   the outlined program
+     */
+    List<String> outline() {
+        parse();
+        List<Candidate> chosen = choose(findCandidates());
+        int savings = 0;
+        for( Candidate candidate : chosen ) {
+            savings += candidate.savings;
+        }
+        if (needsHalt() && savings <= HALT_SIZE) {
+            chosen.clear();     //  the halt loop would eat up the savings
+        }
+        return write(chosen);
+    }
+
+    /**
+     * Getter for where each instruction went. An instruction that was outlined maps
+     * to the call replacing its sequence, or to the instruction after that call.
+     *
+     * PRECONDITION:    outline() has been called
+     * POSTCONDITION:   N/A
+     *
+     * @return  -   new address of each old instruction, plus one entry for the end of
+     *              the program [where the outlined routines start]
+     */
+    int[] getAddresses() {
+        return addresses;
+    }
+
+    /**
+     * @return  -   the number of instructions the outlined program saves
+     */
+    int getSaved() {
+        return saved;
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Splits the program into instructions and the facts windows are checked against.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   code & the per-instruction tables are filled in
+     */
+    private void parse() {
+        code = new ArrayList<>();
+        List<Boolean> labels = new ArrayList<>();
+        boolean label = false;
+        for( String line : lines ) {
+            if (line.startsWith("(")) {
+                label = true;
+            } else if (!line.isEmpty()) {
+                code.add(line);
+                labels.add(label);
+                label = false;
+            }
+        }
+
+        int n = code.size();
+        tokens = new int[n];
+        labeled = new int[n];
+        usesReturnRegister = new int[n];
+        kept = new int[n];
+        setsD = new int[n + 1];
+        HashMap<String, Integer> ids = new HashMap<>();
+        boolean held = false;           //  R15 has been stored to, and not read since
+        for(int i = 0; i < n; i++) {
+            String instruction = code.get(i);
+            Integer id = ids.get(instruction);
+            if (id == null) {
+                id = ids.size();
+                ids.put(instruction, id);
+            }
+            tokens[i] = id;
+            labeled[i] = labels.get(i) ? 1 : 0;
+            if (instruction.equals("@" + RETURN_REGISTER)) {
+                String next = i + 1 < n ? code.get(i + 1) : "";
+                held = next.indexOf('=') != -1 && next.substring(0, next.indexOf('=')).contains("M");
+                usesReturnRegister[i] = 1;
+            } else {
+                usesReturnRegister[i] = held ? 1 : 0;
+            }
+            kept[i] = keep.get(i) ? 1 : 0;
+        }
+        setsD[n] = -1;
+        for(int i = n - 1; i >= 0; i--) {
+            String instruction = code.get(i);
+            //  [Windows never hold a label, so following D past one is harmless]
+            if (!isCInstruction(i)) {
+                setsD[i] = setsD[i + 1];
+            } else if (readsD(instruction)) {
+                setsD[i] = -1;
+            } else if (writesD(instruction)) {
+                setsD[i] = i;
+            } else if (hasJump(instruction)) {
+                setsD[i] = -1;
+            } else {
+                setsD[i] = setsD[i + 1];
+            }
+        }
+        for(int i = 1; i < n; i++) {
+            labeled[i] += labeled[i - 1];
+            usesReturnRegister[i] += usesReturnRegister[i - 1];
+            kept[i] += kept[i - 1];
+        }
+    }
+
+    /**
+     * Hashes every valid window and groups identical ones.
+     *
+     * PRECONDITION:    parse() has been called
+     * POSTCONDITION:   N/A
+     *
+     * @return  -   every sequence that would save space, best first
+     */
+    private List<Candidate> findCandidates() {
+        int n = code.size();
+        List<Candidate> candidates = new ArrayList<>();
+        for(int length = MIN_LENGTH; length <= MAX_LENGTH; length++) {
+            HashMap<Long, List<Integer>> windows = new HashMap<>();
+            for(int start = 0; start + length <= n; start++) {
+                int end = start + length;
+                if (isCInstruction(start) || setsD[start] == -1 || setsD[start] >= end
+                        || countIn(labeled, start + 1, end) > 0
+                        || countIn(usesReturnRegister, start, end) > 0
+                        || countIn(kept, start, end) > 0 || !fallsThrough(end)) {
+                    continue;
+                }
+                long hash = length;
+                for(int i = start; i < end; i++) {
+                    hash = hash * 1000003 + tokens[i];
+                }
+                List<Integer> starts = windows.get(hash);
+                if (starts == null) {
+                    starts = new ArrayList<>();
+                    windows.put(hash, starts);
+                }
+                //  Keep occurrences apart, and drop the rare hash collision
+                int first = starts.isEmpty() ? start : starts.get(0);
+                if (starts.isEmpty() || (start >= starts.get(starts.size() - 1) + length
+                        && Arrays.equals(Arrays.copyOfRange(tokens, first, first + length),
+                                         Arrays.copyOfRange(tokens, start, end)))) {
+                    starts.add(start);
+                }
+            }
+            for( List<Integer> starts : windows.values() ) {
+                if (Candidate.savings(length, starts.size()) > 0) {
+                    candidates.add(new Candidate(length, starts));
+                }
+            }
+        }
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return b.savings - a.savings;
+            }
+        });
+        return candidates;
+    }
+
+    /**
+     * Picks candidates best first, skipping occurrences that overlap ones already taken.
+     *
+     * PRECONDITION:    candidates are sorted best first
+     * POSTCONDITION:   N/A
+     *
+     * @param   candidates  -   the candidate sequences
+     * @return              -   the sequences to outline, with the occurrences to replace
+     */
+    private List<Candidate> choose(List<Candidate> candidates) {
+        BitSet taken = new BitSet(code.size());
+        List<Candidate> chosen = new ArrayList<>();
+        for( Candidate candidate : candidates ) {
+            List<Integer> starts = new ArrayList<>();
+            for( int start : candidate.starts ) {
+                int next = taken.nextSetBit(start);
+                if (next == -1 || next >= start + candidate.length) {
+                    starts.add(start);
+                }
+            }
+            if (Candidate.savings(candidate.length, starts.size()) > 0) {
+                candidate.starts = starts;
+                candidate.savings = Candidate.savings(candidate.length, starts.size());
+                for( int start : starts ) {
+                    taken.set(start, start + candidate.length);
+                }
+                chosen.add(candidate);
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Writes the program with the chosen occurrences replaced by calls, followed by
+     * the outlined routines.
+     *
+     * PRECONDITION:    parse() has been called
+     * POSTCONDITION:   addresses & saved are set
+     *
+     * @param   chosen  -   the sequences to outline
+     * @return          -   the outlined program
+     */
+    private List<String> write(List<Candidate> chosen) {
+        //  Which routine replaces the sequence starting at each instruction
+        HashMap<Integer, Integer> calls = new HashMap<>();
+        for(int routine = 0; routine < chosen.size(); routine++) {
+            for( int start : chosen.get(routine).starts ) {
+                calls.put(start, routine);
+            }
+        }
+
+        List<String> out = new ArrayList<>();
+        addresses = new int[code.size() + 1];
+        int address = 0;
+        int index = 0;              //  next instruction of the old program
+        int skip = 0;               //  instructions left in the sequence being replaced
+        int returns = 0;
+        for( String line : lines ) {
+            if (line.startsWith("(")) {
+                out.add(line);
+                continue;
+            } else if (line.isEmpty()) {
+                continue;
+            }
+            addresses[index] = address;
+            if (skip > 0) {
+                skip--;
+            } else if (calls.containsKey(index)) {
+                int routine = calls.get(index);
+                String returnLabel = symbol(RETURN_LABEL + returns++);
+                out.add("@" + returnLabel);
+                out.add("D=A");
+                out.add("@" + symbol(ROUTINE_LABEL + routine));
+                out.add("0;JMP");
+                out.add("(" + returnLabel + ")");
+                address += CALL_SIZE;
+                skip = chosen.get(routine).length - 1;
+            } else {
+                out.add(line);
+                address++;
+            }
+            index++;
+        }
+        addresses[index] = address;
+
+        if (!chosen.isEmpty() && needsHalt()) {
+            String end = symbol(END_LABEL);
+            out.add("(" + end + ")");
+            out.add("@" + end);
+            out.add("0;JMP");
+            address += HALT_SIZE;
+        }
+        for(int routine = 0; routine < chosen.size(); routine++) {
+            Candidate candidate = chosen.get(routine);
+            int start = candidate.starts.get(0);
+            out.add("(" + symbol(ROUTINE_LABEL + routine) + ")");
+            out.add("@" + RETURN_REGISTER);
+            out.add("M=D");
+            out.addAll(code.subList(start, start + candidate.length));
+            out.add("@" + RETURN_REGISTER);
+            out.add("A=M");
+            out.add("0;JMP");
+            address += candidate.length + ROUTINE_OVERHEAD;
+        }
+        saved = code.size() - address;
+        return out;
+    }
+
+    /**
+     * Determines whether a halt loop must separate the program from the routines: a
+     * program that runs off its end [or jumps to a label at its end] must not run
+     * into them.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @return  -   true if the program's last line is a label or not a jump
+     */
+    private boolean needsHalt() {
+        String last = "";
+        for(int i = lines.size() - 1; i >= 0 && last.isEmpty(); i--) {
+            last = lines.get(i);
+        }
+        return last.startsWith("(") || !last.endsWith(";JMP");
+    }
+
+    /**
+     * @param   index   -   an instruction index
+     * @return          -   true if the instruction is a C-instruction
+     */
+    private boolean isCInstruction(int index) {
+        return !code.get(index).startsWith("@");
+    }
+
+    /**
+     * @param   instruction -   a C-instruction
+     * @return              -   true if its computation reads D
+     */
+    private static boolean readsD(String instruction) {
+        int equals = instruction.indexOf('=');
+        int semicolon = instruction.indexOf(';');
+        String comp = instruction.substring(equals + 1, semicolon == -1 ? instruction.length() : semicolon);
+        return comp.indexOf('D') != -1;
+    }
+
+    /**
+     * @param   instruction -   a C-instruction
+     * @return              -   true if it stores into D
+     */
+    private static boolean writesD(String instruction) {
+        int equals = instruction.indexOf('=');
+        return equals != -1 && instruction.substring(0, equals).indexOf('D') != -1;
+    }
+
+    /**
+     * @param   instruction -   a C-instruction
+     * @return              -   true if it can jump
+     */
+    private static boolean hasJump(String instruction) {
+        return instruction.indexOf(';') != -1;
+    }
+
+    /**
+     * Determines whether an occurrence ending before the given instruction can be
+     * replaced: the code control falls into must not read A [the return jump sets it].
+     *
+     * @param   end -   the index after the occurrence
+     * @return      -   true if the return jump is safe
+     */
+    private boolean fallsThrough(int end) {
+        String last = code.get(end - 1);
+        return end == code.size() || !isCInstruction(end) || last.endsWith(";JMP");
+    }
+
+    /**
+     * @param   counts  -   a running count
+     * @param   from    -   first index (inclusive)
+     * @param   to      -   last index (exclusive)
+     * @return          -   how many were counted from from up to to
+     */
+    private static int countIn(int[] counts, int from, int to) {
+        if (from >= to) {
+            return 0;
+        }
+        return counts[to - 1] - (from == 0 ? 0 : counts[from - 1]);
+    }
+
+    /**
+     * @param   label   -   a label the outliner adds
+     * @return          -   the name to write for it
+     */
+    private String symbol(String label) {
+        return labelTable == null ? label : labelTable.intern(label);
+    }
+}
@@ -10,17 +10,24 @@
  *                Mar. 13, J, defined and tested all methods
  *                Mar. 14, J, cleaned up unneeded methods & finalized Parser for part 1
  *				  Mar. 18, J, fixed bug with isArithmeticCMD() [contains instead of equals]
+ *				  Oct. 19, J, added Parser(Reader) for parsing streams (e.g. stdin)
+ *				  Oct. 19, J, added line tracking (getLineNumber) for source maps
+ *				  Oct. 19, J, added Parser() & advance(String) for lines read elsewhere
+ *							  [see PipelinedTranslator]
  *
- * Methods:       Public:   Parser(String), hasMoreCommands(), advance()
- *                          getCommandType(), getCommand(), getArg1(), getArg2()
+ * Methods:       Public:   Parser(String), Parser(Reader), Parser(), hasMoreCommands(), advance(),
+ *                          advance(String),
+ *                          getCommandType(), getCommand(), getArg1(), getArg2(),
+ *                          getLineNumber()
  *
- *                Private:  cleanLine(), parseCommandType(), isArithmeticCMD(), parse()
+ *                Private:  reset(), cleanLine(), parseCommandType(), isArithmeticCMD(), parse()
  *
  ************************************************************************************/
 package edu.miracosta.cs220;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.Reader;
 import java.util.Scanner;
 
 class Parser {
@@ -57,6 +64,7 @@ class Parser {
     //  File Management & Internal Debugging
     private Scanner inputFile;
     private String rawLine;
+    private int lineNumber;     //  1-based line number of rawLine
 
     //  Parsed Command Parts
     private String cleanLine;
@@ -81,17 +89,39 @@ class Parser {
     Parser(String inFileName) throws  FileNotFoundException {
         if (inFileName != null) {
             inputFile = new Scanner(new File(inFileName));
-            rawLine = "";
-            cleanLine = "";
-            commandType = null;
-            command = "";
-            arg1 = "";
-            arg2 = "";
+            reset();
         } else {
             throw new FileNotFoundException("No input file name provided to Parser constructor.");
         }
     }
 
+    /**
+     * Prepares to parse VM code from an already open stream.
+     * ->	Lines are read as they become available, so parsing can start
+     * 		before the whole input has arrived.
+     *
+     * PRECONDITION:    input is not null
+     * POSTCONDITION:   the stream is ready for parsing
+     *
+     * @param   input   -   the stream to read VM code from
+     */
+    Parser(Reader input) {
+        inputFile = new Scanner(input);
+        reset();
+    }
+
+    /**
+     * Prepares to parse lines handed in one at a time by advance(String), for input
+     * read by another thread. hasMoreCommands() & advance() may not be used.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the parser is ready for its first line
+     */
+    Parser() {
+        inputFile = null;
+        reset();
+    }
+
     /***********************
      * Public File Methods *
      ***********************/
@@ -134,16 +164,48 @@ class Parser {
     void advance() {
         //  Read the line in
         rawLine = inputFile.nextLine();
+        lineNumber++;
         //  Clean it up
         cleanLine();
         //  Break it down
         parse();
     }
 
+    /**
+     * Parses a line read by the caller, as advance() parses the next line of the file.
+     *
+     * PRECONDITION:    the parser was created by Parser(), and line is the input's next line
+     * POSTCONDITION:   the line has been cleaned and broken into its parts
+     *
+     * @param   line    -   the next line of the input, without its line terminator
+     */
+    void advance(String line) {
+        rawLine = line;
+        lineNumber++;
+        cleanLine();
+        parse();
+    }
+
     /******************
      * Helper Methods *
      ******************/
 
+    /**
+     * Clears the current command.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   there is no current command
+     */
+    private void reset() {
+        rawLine = "";
+        lineNumber = 0;
+        cleanLine = "";
+        commandType = null;
+        command = "";
+        arg1 = "";
+        arg2 = "";
+    }
+
     /**
      * Cleans the command in rawLine by removing non-essential parts from the line.
      *
@@ -292,6 +354,18 @@ class Parser {
     String getArg2() {
         return arg2;
     }
+
+    /**
+     * Getter for the line number of the current VM command
+     *
+     * PRECONDITION:    advance() has been called
+     * POSTCONDITION:   N/A
+     *
+     * @return      -   the 1-based line number of the current command within the input
+     */
+    int getLineNumber() {
+        return lineNumber;
+    }
 }
 
 
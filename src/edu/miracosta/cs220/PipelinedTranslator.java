@@ -0,0 +1,253 @@
+/************************************************************************************
+ *
+ * Class name:    PipelinedTranslator
+ * Description:   Translates a single .vm file or stream in three stages that run at
+ *                the same time, instead of one after another for every line:
+ *
+ *                  reader  ->  [lines]  ->  parser  ->  [commands]  ->  translator
+ *
+ *                ->	the reader thread reads ahead, LINES_PER_BATCH lines at a time
+ *                ->	the parser thread breaks each line into a VMCommand
+ *                ->	the calling thread collects the commands one function at a time
+ *                	and translates each as VirtualMachine.translate(Parser, CodeWriter)
+ *                	does, into the CodeWriter's buffered output
+ *
+ *                The stages hand batches to each other through RingBuffers of
+ *                RING_SIZE batches, so a stage that runs ahead waits for the next one
+ *                rather than holding the whole file, and a file takes about as long as
+ *                its slowest stage. The output is the same as without the pipeline.
+ *
+ *                A batch of null ends a stage's output. A stage that fails records what
+ *                went wrong and cancels both rings; the translator then throws it, and
+ *                a translator that fails cancels the rings so the other stages stop.
+ *
+ * History:       Oct. 19, J, author, reader, parser & translator stages
+ *
+ * Methods:       Public:   translate(Reader, CodeWriter)
+ *
+ *                Private:  PipelinedTranslator(Reader), start(), read(), parse(),
+ *                          take(), fail(Throwable), rethrow()
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+class PipelinedTranslator {
+
+    /*************
+     * Constants *
+     *************/
+    private static final int LINES_PER_BATCH = 1024;
+    private static final int RING_SIZE = 16;            //  batches between two stages
+    private static final int READ_BUFFER_SIZE = 65536;  //  characters read at a time
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private final Reader input;
+    private final RingBuffer<String[]> lines = new RingBuffer<>(RING_SIZE);
+    private final RingBuffer<List<VMCommand>> commands = new RingBuffer<>(RING_SIZE);
+    private volatile Throwable failure;     //  the first stage to fail, or null
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * PRECONDITION:    input is not null
+     * POSTCONDITION:   the stages are ready to start
+     *
+     * @param   input   -   the VM code to translate
+     */
+    private PipelinedTranslator(Reader input) {
+        this.input = input;
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Translates VM code, reading & parsing it on threads of their own.
+     *
+     * PRECONDITION:    codeWriter.setFileName() has been called for the input
+     * POSTCONDITION:   the input has been translated and closed, or an exception has
+     *                  been thrown and the other stages have stopped
+     *
+     * @param   input       -   a single .vm file or stream
+     * @param   codeWriter  -   a CodeWriter object to handle translation
+     *
+     * @throws  IOException -   if the input cannot be read
+     */
+    static void translate(Reader input, CodeWriter codeWriter) throws IOException {
+        PipelinedTranslator pipeline = new PipelinedTranslator(input);
+        pipeline.start();
+        try {
+            //  As translate(Parser, CodeWriter): each function once the next one starts
+            List<VMCommand> function = new ArrayList<>();
+            for( List<VMCommand> batch = pipeline.take(); batch != null; batch = pipeline.take() ) {
+                for( VMCommand command : batch ) {
+                    if (command.type == Parser.Command.C_FUNCTION && !function.isEmpty()) {
+                        VirtualMachine.translateFunction(function, codeWriter);
+                        function.clear();
+                    }
+                    function.add(command);
+                }
+            }
+            if (!function.isEmpty()) {
+                VirtualMachine.translateFunction(function, codeWriter);
+            }
+        } finally {
+            //  Stops the reader & parser if translation failed [no effect otherwise]
+            pipeline.lines.cancel();
+            pipeline.commands.cancel();
+        }
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Starts the reader & parser threads. They are daemons, so that a stage still
+     * waiting on a cancelled ring never keeps the program alive.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   both stages are running
+     */
+    private void start() {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "vm-reader");
+        Thread parser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                parse();
+            }
+        }, "vm-parser");
+        reader.setDaemon(true);
+        parser.setDaemon(true);
+        reader.start();
+        parser.start();
+    }
+
+    /**
+     * The reader stage: hands the input to the parser in batches of lines, then closes it.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   every line, then null, has been put in lines, or the pipeline has failed
+     */
+    private void read() {
+        try (BufferedReader in = new BufferedReader(input, READ_BUFFER_SIZE)) {
+            String[] batch = new String[LINES_PER_BATCH];
+            int size = 0;
+            for( String line = in.readLine(); line != null; line = in.readLine() ) {
+                batch[size++] = line;
+                if (size == LINES_PER_BATCH) {
+                    lines.put(batch);
+                    batch = new String[LINES_PER_BATCH];
+                    size = 0;
+                }
+            }
+            if (size > 0) {
+                String[] last = new String[size];
+                System.arraycopy(batch, 0, last, 0, size);
+                lines.put(last);
+            }
+            lines.put(null);
+        } catch (CancellationException e) {
+            //  another stage failed first
+        } catch (IOException | RuntimeException | Error e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The parser stage: breaks each line into a VMCommand, skipping blank lines & comments.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   every command, then null, has been put in commands, or the pipeline
+     *                  has failed
+     */
+    private void parse() {
+        Parser parser = new Parser();
+        try {
+            for( String[] batch = lines.take(); batch != null; batch = lines.take() ) {
+                List<VMCommand> parsed = new ArrayList<>(batch.length);
+                for( String line : batch ) {
+                    parser.advance(line);
+                    if (parser.getCommandType() != Parser.Command.C_NONE) {
+                        parsed.add(new VMCommand(parser));
+                    }
+                }
+                commands.put(parsed);
+            }
+            commands.put(null);
+        } catch (CancellationException e) {
+            //  another stage failed first
+        } catch (RuntimeException | Error e) {
+            //  e.g. a NumberFormatException from malformed VM code
+            fail(e);
+        }
+    }
+
+    /**
+     * The translator's end of the pipeline.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @return  -   the next batch of commands, or null at the end of the input
+     *
+     * @throws  IOException -   if the reader failed
+     */
+    private List<VMCommand> take() throws IOException {
+        try {
+            return commands.take();
+        } catch (CancellationException e) {
+            rethrow();
+            throw e;
+        }
+    }
+
+    /**
+     * Records why a stage failed, and stops the pipeline.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   both rings are cancelled
+     *
+     * @param   e   -   what went wrong
+     */
+    private synchronized void fail(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+        lines.cancel();
+        commands.cancel();
+    }
+
+    /**
+     * Throws what made a stage fail, if one has.
+     *
+     * @throws  IOException -   if the reader could not read the input
+     */
+    private void rethrow() throws IOException {
+        Throwable e = failure;
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        }
+    }
+}
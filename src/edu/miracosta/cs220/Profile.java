@@ -0,0 +1,343 @@
+/************************************************************************************
+ *
+ * Class name:    Profile
+ * Description:   Execution counts of a translated program, collected by Profiler and
+ *                used by CodeWriter to decide what is hot (worth translating for speed)
+ *                and what is cold (worth translating for size). Saved as plain text,
+ *                one record per line:
+ *
+ *                  function <name> <entries> <cycles>
+ *                  call     <file>:<line> <caller> <callee> <count>
+ *                  branch   <file>:<line> <function> <label> <executed> <taken>
+ *
+ *                Lines starting with # are comments.
+ *
+ *                The hot functions are the busiest ones that together account for
+ *                HOT_COVERAGE of all cycles; the hot call sites, likewise, of all calls.
+ *                Everything else, including code that never ran, is cold.
+ *
+ * History:       Oct. 19, J, author, records, hot sets & text read/write
+ *
+ * Methods:       Public:   Profile(), addFunction(String, long, long),
+ *                          addCall(String, String, String, long),
+ *                          addBranch(String, String, String, long, long),
+ *                          isHotFunction(String), isHotCall(String, int),
+ *                          countColdFunctions(), countColdCalls(),
+ *                          getFunctions(), getTotalCycles(), write(File, String), read(File)
+ *
+ *                Private:  getHotCalls(), findHotSet(Map)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+class Profile {
+
+    /**
+     * Counts for one VM function.
+     */
+    static class Function {
+        final String name;
+        final long entries;     //  times the function was entered
+        final long cycles;      //  instructions executed within the function
+
+        Function(String name, long entries, long cycles) {
+            this.name = name;
+            this.entries = entries;
+            this.cycles = cycles;
+        }
+    }
+
+    /*************
+     * Constants *
+     *************/
+    //  Share of all cycles [calls] the hot functions [call sites] account for
+    static final double HOT_COVERAGE = 0.95;
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private LinkedHashMap<String, Function> functions;  //  name -> counts
+    private LinkedHashMap<String, String> calls;        //  file:line -> record
+    private LinkedHashMap<String, Long> callCounts;     //  file:line -> count
+    private LinkedHashMap<String, String> branches;     //  file:line -> record
+    private long totalCycles;
+
+    //  Computed on first use
+    private HashSet<String> hotFunctions;
+    private HashSet<String> hotCalls;
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Creates an empty profile.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the profile holds no counts
+     */
+    Profile() {
+        functions = new LinkedHashMap<>();
+        calls = new LinkedHashMap<>();
+        callCounts = new LinkedHashMap<>();
+        branches = new LinkedHashMap<>();
+        totalCycles = 0;
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Records the counts of a function.
+     *
+     * @param   name    -   the function name
+     * @param   entries -   times the function was entered
+     * @param   cycles  -   instructions executed within the function
+     */
+    void addFunction(String name, long entries, long cycles) {
+        functions.put(name, new Function(name, entries, cycles));
+        totalCycles += cycles;
+        hotFunctions = null;
+    }
+
+    /**
+     * Records the count of a call site.
+     *
+     * @param   site    -   the call's location, as file:line
+     * @param   caller  -   the function making the call
+     * @param   callee  -   the function being called
+     * @param   count   -   times the call was made
+     */
+    void addCall(String site, String caller, String callee, long count) {
+        calls.put(site, caller + " " + callee);
+        callCounts.put(site, count);
+        hotCalls = null;
+    }
+
+    /**
+     * Records the counts of a conditional branch [if-goto].
+     *
+     * @param   site        -   the branch's location, as file:line
+     * @param   function    -   the function holding the branch
+     * @param   label       -   the branch target
+     * @param   executed    -   times the branch was reached
+     * @param   taken       -   times the branch jumped
+     */
+    void addBranch(String site, String function, String label, long executed, long taken) {
+        branches.put(site, function + " " + label + " " + executed + " " + taken);
+    }
+
+    /**
+     * Determines whether a function is hot, i.e. among the functions accounting
+     * for HOT_COVERAGE of all cycles.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   name    -   the function name
+     * @return          -   true if the function is hot, false otherwise
+     */
+    boolean isHotFunction(String name) {
+        if (hotFunctions == null) {
+            HashMap<String, Long> cycles = new HashMap<>();
+            for( Function function : functions.values() ) {
+                cycles.put(function.name, function.cycles);
+            }
+            hotFunctions = findHotSet(cycles);
+        }
+        return hotFunctions.contains(name);
+    }
+
+    /**
+     * Determines whether a call site is hot, i.e. among the call sites accounting
+     * for HOT_COVERAGE of all calls.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   file    -   the VM file holding the call
+     * @param   line    -   the line of the call within file
+     * @return          -   true if the call site is hot, false otherwise
+     */
+    boolean isHotCall(String file, int line) {
+        return getHotCalls().contains(file + ":" + line);
+    }
+
+    /**
+     * @return  -   the number of recorded functions that are not hot
+     */
+    int countColdFunctions() {
+        int cold = 0;
+        for( String name : functions.keySet() ) {
+            if (!isHotFunction(name)) {
+                cold++;
+            }
+        }
+        return cold;
+    }
+
+    /**
+     * @return  -   the number of recorded call sites that are not hot
+     */
+    int countColdCalls() {
+        int cold = 0;
+        for( String site : calls.keySet() ) {
+            if (!getHotCalls().contains(site)) {
+                cold++;
+            }
+        }
+        return cold;
+    }
+
+    /**
+     * Saves the profile as text.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the profile has been written to profileFile
+     *
+     * @param   profileFile -   the file to write
+     * @param   comment     -   a description of the run, written as a comment line
+     *
+     * @throws  IOException -   if profileFile cannot be written
+     */
+    void write(File profileFile, String comment) throws IOException {
+        try (PrintWriter out = new PrintWriter(profileFile)) {
+            out.println("# " + comment);
+            for( Function function : functions.values() ) {
+                out.println("function " + function.name + " " + function.entries + " " + function.cycles);
+            }
+            for( Map.Entry<String, String> call : calls.entrySet() ) {
+                out.println("call " + call.getKey() + " " + call.getValue() + " " + callCounts.get(call.getKey()));
+            }
+            for( Map.Entry<String, String> branch : branches.entrySet() ) {
+                out.println("branch " + branch.getKey() + " " + branch.getValue());
+            }
+            if (out.checkError()) {
+                throw new IOException("Could not write " + profileFile.getPath());
+            }
+        }
+    }
+
+    /**
+     * Loads a profile saved by write(File, String).
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   profileFile -   the file to read
+     * @return              -   the loaded profile
+     *
+     * @throws  IOException -   if profileFile cannot be read or is malformed
+     */
+    static Profile read(File profileFile) throws IOException {
+        Profile profile = new Profile();
+        try (BufferedReader in = new BufferedReader(new FileReader(profileFile))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                try {
+                    if (parts[0].equals("function") && parts.length == 4) {
+                        profile.addFunction(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+                    } else if (parts[0].equals("call") && parts.length == 5) {
+                        profile.addCall(parts[1], parts[2], parts[3], Long.parseLong(parts[4]));
+                    } else if (parts[0].equals("branch") && parts.length == 6) {
+                        profile.addBranch(parts[1], parts[2], parts[3],
+                                Long.parseLong(parts[4]), Long.parseLong(parts[5]));
+                    } else {
+                        throw new NumberFormatException();
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed profile record at " + profileFile.getPath()
+                            + ":" + lineNumber + ": " + line);
+                }
+            }
+        }
+        return profile;
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * @return  -   the hot call sites, as file:line
+     */
+    private HashSet<String> getHotCalls() {
+        if (hotCalls == null) {
+            hotCalls = findHotSet(callCounts);
+        }
+        return hotCalls;
+    }
+
+    /**
+     * Finds the smallest set of the busiest keys whose counts add up to
+     * HOT_COVERAGE of the total. Keys with a count of 0 are never hot.
+     *
+     * @param   counts  -   a count per key
+     * @return          -   the hot keys
+     */
+    private static HashSet<String> findHotSet(Map<String, Long> counts) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> x, Map.Entry<String, Long> y) {
+                return Long.compare(y.getValue(), x.getValue());
+            }
+        });
+        long total = 0;
+        for( Map.Entry<String, Long> entry : entries ) {
+            total += entry.getValue();
+        }
+
+        HashSet<String> hot = new HashSet<>();
+        long covered = 0;
+        for( Map.Entry<String, Long> entry : entries ) {
+            if (covered >= total * HOT_COVERAGE || entry.getValue() == 0) {
+                break;
+            }
+            hot.add(entry.getKey());
+            covered += entry.getValue();
+        }
+        return hot;
+    }
+
+    /***********
+     * Getters *
+     ***********/
+
+    /**
+     * @return  -   the counts of every function, in the order recorded
+     */
+    Map<String, Function> getFunctions() {
+        return functions;
+    }
+
+    /**
+     * @return  -   the instructions executed within all functions
+     */
+    long getTotalCycles() {
+        return totalCycles;
+    }
+}
+
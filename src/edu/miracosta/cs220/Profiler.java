@@ -0,0 +1,180 @@
+/************************************************************************************
+ *
+ * Class name:    Profiler
+ * Description:   Collects the execution profile of a translated program: the .asm file
+ *                is assembled and run headlessly on a HackMachine that counts how
+ *                often each ROM address executes and each jump is taken. The counts
+ *                are then attributed to VM functions, call sites & if-goto branches
+ *                through the program's source map.
+ *
+ *                A program without bootstrap code starts with SP = 256.
+ *
+ * History:       Oct. 19, J, author, headless profiling run & attribution
+ *
+ * Methods:       Public:   profile(File, SourceMap, LabelTable, File[], boolean, long, PrintStream)
+ *
+ *                Private:  findCommands(File[], HashMap, HashMap),
+ *                          countEntries(HackMachine, Integer, SourceMap, HashMap, String)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class Profiler {
+
+    /*************
+     * Constants *
+     *************/
+    //  Initial stack pointer of a program without bootstrap code
+    private static final int STACK_BASE = 256;
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Runs a translated program and collects its profile.
+     *
+     * PRECONDITION:    asmFile was translated from vmFiles while recording map
+     * POSTCONDITION:   N/A
+     *
+     * @param   asmFile     -   the translated program
+     * @param   map         -   the source map of asmFile
+     * @param   labels      -   the short label names used in asmFile, or null if none
+     * @param   vmFiles     -   the .vm files asmFile was translated from
+     * @param   bootstrap   -   true if asmFile includes bootstrap code
+     * @param   maxCycles   -   the most instructions to execute
+     * @param   log         -   where to report on the run, or null for none
+     * @return              -   the execution counts of the run
+     *
+     * @throws  IOException -   if a file cannot be read
+     * @throws  IllegalStateException   -   if the program accesses RAM out of range
+     */
+    static Profile profile(File asmFile, SourceMap map, LabelTable labels, File[] vmFiles, boolean bootstrap,
+                           long maxCycles, PrintStream log) throws IOException {
+        HackAssembler assembler = HackAssembler.assemble(asmFile);
+        HackMachine machine = new HackMachine(assembler.getRom());
+        machine.enableCounts();
+        if (!bootstrap) {
+            machine.poke(0, STACK_BASE);
+        }
+        long cycles = machine.run(maxCycles);
+        if (log != null) {
+            log.println("Profiled " + asmFile.getName() + ": " + cycles + " instructions, "
+                    + (machine.isHalted() ? "halted" : "stopped after -cycles"));
+        }
+
+        //  Which VM lines are calls & if-gotos?
+        HashMap<String, String> calls = new HashMap<>();        //  file:line -> callee
+        HashMap<String, String> branches = new HashMap<>();     //  file:line -> label
+        findCommands(vmFiles, calls, branches);
+
+        long[] executions = machine.getExecutions();
+        long[] taken = machine.getTaken();
+        LinkedHashMap<String, Long> functionCycles = new LinkedHashMap<>();
+        Profile profile = new Profile();
+        for( SourceMap.Range range : map.getRanges() ) {
+            if (range.function.isEmpty()) {
+                continue;   //  bootstrap & shared routines
+            }
+            long rangeCycles = 0;
+            for(int address = range.start; address < range.end; address++) {
+                rangeCycles += executions[address];
+            }
+            Long total = functionCycles.get(range.function);
+            functionCycles.put(range.function, (total == null ? 0 : total) + rangeCycles);
+
+            String site = range.file + ":" + range.line;
+            if (calls.containsKey(site)) {
+                //  Every call executes its first instruction exactly once
+                profile.addCall(site, range.function, calls.get(site), executions[range.start]);
+            } else if (branches.containsKey(site)) {
+                //  An if-goto ends with its conditional jump
+                int jump = range.end - 1;
+                profile.addBranch(site, range.function, branches.get(site), executions[jump], taken[jump]);
+            }
+        }
+        for( Map.Entry<String, Long> function : functionCycles.entrySet() ) {
+            String name = function.getKey();
+            Integer entry = assembler.getLabels().get(labels == null ? name : labels.lookup(name));
+            profile.addFunction(name, countEntries(machine, entry, map, calls, name), function.getValue());
+        }
+        return profile;
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Finds every call & if-goto command in the given .vm files.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   calls & branches hold an entry per command found
+     *
+     * @param   vmFiles     -   the .vm files to scan
+     * @param   calls       -   filled in with file:line -> name of the called function
+     * @param   branches    -   filled in with file:line -> label jumped to
+     *
+     * @throws  IOException -   if a file cannot be read
+     */
+    private static void findCommands(File[] vmFiles, HashMap<String, String> calls,
+                                     HashMap<String, String> branches) throws IOException {
+        for( File vmFile : vmFiles ) {
+            Parser parser = new Parser(vmFile.getPath());
+            while (parser.hasMoreCommands()) {
+                parser.advance();
+                String site = vmFile.getName() + ":" + parser.getLineNumber();
+                if (parser.getCommandType() == Parser.Command.C_CALL) {
+                    calls.put(site, parser.getArg1());
+                } else if (parser.getCommandType() == Parser.Command.C_IF) {
+                    branches.put(site, parser.getArg1());
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts how many times a function was entered: the executions of its first
+     * instruction, less the jumps back to it from within the function itself
+     * [a loop label at the very top of the function shares its address].
+     * Recursive calls are real entries, so call sites are not counted as jumps back.
+     *
+     * PRECONDITION:    the machine has run with counts enabled
+     * POSTCONDITION:   N/A
+     *
+     * @param   machine     -   the machine the program ran on
+     * @param   entry       -   the ROM address of the function, or null if unknown
+     * @param   map         -   the program's source map
+     * @param   calls       -   the call sites of the program [file:line -> callee]
+     * @param   function    -   the name of the function
+     * @return              -   the number of times function was entered
+     */
+    private static long countEntries(HackMachine machine, Integer entry,
+                                     SourceMap map, HashMap<String, String> calls, String function) {
+        if (entry == null || entry >= machine.getRom().length) {
+            return 0;
+        }
+        long entries = machine.getExecutions()[entry];
+        short[] rom = machine.getRom();
+        for( SourceMap.Range range : map.getRanges() ) {
+            if (!range.function.equals(function) || calls.containsKey(range.file + ":" + range.line)) {
+                continue;
+            }
+            //  @entry followed by a jump
+            for(int address = Math.max(range.start, 1); address < range.end; address++) {
+                if (rom[address - 1] == entry && (rom[address] & 0xE007) > 0xE000) {
+                    entries -= machine.getTaken()[address];
+                }
+            }
+        }
+        return entries;
+    }
+}
+
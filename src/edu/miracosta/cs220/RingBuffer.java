@@ -0,0 +1,168 @@
+/************************************************************************************
+ *
+ * Class name:    RingBuffer
+ * Description:   A bounded, lock-free queue between exactly one producer thread and
+ *                one consumer thread [see PipelinedTranslator]. The slots form a ring;
+ *                the producer only ever moves the tail and the consumer the head, so
+ *                neither needs a lock: each publishes its position with an ordered
+ *                write [lazySet] after touching a slot, and reads the other's with a
+ *                volatile read.
+ *
+ *                A full [or empty] ring makes put() [or take()] wait: it spins briefly,
+ *                then yields, then parks for short periods. cancel() makes both give
+ *                up instead, so that neither side waits forever on a stage that failed.
+ *
+ * History:       Oct. 19, J, author, single-producer single-consumer ring
+ *                Oct. 19, J, put() & take() check for cancellation up front
+ *
+ * Methods:       Public:   RingBuffer(int), put(T), take(), cancel(), isCancelled()
+ *
+ *                Private:  idle(int), checkCancelled()
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+class RingBuffer<T> {
+
+    /*************
+     * Constants *
+     *************/
+    //  Waiting: spin, then yield, then park [nanoseconds] between checks
+    private static final int SPINS = 100;
+    private static final int YIELDS = 200;
+    private static final long PARK_NANOS = 50000;
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private final Object[] slots;
+    private final int mask;                         //  slots.length - 1 [a power of 2]
+    private final AtomicLong head = new AtomicLong();   //  next slot to take [consumer only]
+    private final AtomicLong tail = new AtomicLong();   //  next slot to fill [producer only]
+    private volatile boolean cancelled;
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Creates an empty ring.
+     *
+     * PRECONDITION:    capacity > 0
+     * POSTCONDITION:   the ring holds nothing
+     *
+     * @param   capacity    -   the most items the ring holds, rounded up to a power of 2
+     */
+    RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1));
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new Object[size];
+        mask = size - 1;
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Adds an item, waiting while the ring is full. Only the producer may call this.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   item is the newest item in the ring
+     *
+     * @param   item    -   the item to add [null is allowed, e.g. as an end marker]
+     *
+     * @throws  CancellationException   -   if the ring has been cancelled
+     */
+    void put(T item) {
+        checkCancelled();
+        long position = tail.get();
+        int waits = 0;
+        while (position - head.get() == slots.length) {
+            idle(waits++);
+        }
+        slots[(int) position & mask] = item;
+        tail.lazySet(position + 1);         //  publishes the slot to the consumer
+    }
+
+    /**
+     * Removes the oldest item, waiting while the ring is empty. Only the consumer may
+     * call this.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the item is no longer in the ring
+     *
+     * @return  -   the oldest item
+     *
+     * @throws  CancellationException   -   if the ring has been cancelled
+     */
+    @SuppressWarnings("unchecked")
+    T take() {
+        checkCancelled();
+        long position = head.get();
+        int waits = 0;
+        while (position == tail.get()) {
+            idle(waits++);
+        }
+        int slot = (int) position & mask;
+        T item = (T) slots[slot];
+        slots[slot] = null;                 //  let the item be collected
+        head.lazySet(position + 1);         //  hands the slot back to the producer
+        return item;
+    }
+
+    /**
+     * Makes every waiting or later put() & take() throw instead, even on a ring
+     * that has room [or items].
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the ring is cancelled
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return  -   true if cancel() has been called
+     */
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Waits a little before the ring is checked again.
+     *
+     * @param   waits   -   the number of times the caller has waited so far
+     *
+     * @throws  CancellationException   -   if the ring has been cancelled
+     */
+    private void idle(int waits) {
+        checkCancelled();
+        if (waits < SPINS) {
+            return;
+        } else if (waits < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    /**
+     * @throws  CancellationException   -   if the ring has been cancelled
+     */
+    private void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Pipeline stage cancelled");
+        }
+    }
+}
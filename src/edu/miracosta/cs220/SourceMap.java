@@ -0,0 +1,397 @@
+/************************************************************************************
+ *
+ * Class name:    SourceMap
+ * Description:   Maps ROM address ranges of a translated program back to the VM file,
+ *                line, and function they were translated from. Filled in by CodeWriter
+ *                as it writes, and saved as a compact JSON sidecar file:
+ *
+ *                  {"version":1,
+ *                   "ranges":[[start,end,file,line,function], ...],
+ *                   "files":["Main.vm", ...],
+ *                   "functions":["Main.main", ...]}
+ *
+ *                where start is inclusive, end is exclusive, file & function index the
+ *                lists above, and line is 1-based (0 = generated code, e.g. bootstrap).
+ *
+ * History:       Oct. 19, J, author, recording, lookup & JSON read/write
+ *                Oct. 19, J, relocate() ranges after outlining
+ *
+ * Methods:       Public:   SourceMap(), mark(int, String, int, String),
+ *                          finish(int), relocate(int, int[], int), lookup(int), getRanges(),
+ *                          write(File), read(File)
+ *
+ *                Private:  quote(String), indexOf(List, HashMap, String),
+ *                          readStrings(StreamTokenizer), expect(StreamTokenizer, int)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StreamTokenizer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+class SourceMap {
+
+    /**
+     * A run of consecutive ROM addresses translated from the same VM command line.
+     */
+    static class Range {
+        final int start;        //  first ROM address (inclusive)
+        int end;                //  last ROM address (exclusive)
+        final String file;      //  VM file name
+        final int line;         //  line within file, 0 for generated code
+        final String function;  //  enclosing VM function, "" outside of any function
+
+        Range(int start, String file, int line, String function) {
+            this.start = start;
+            this.end = start;
+            this.file = file;
+            this.line = line;
+            this.function = function;
+        }
+
+        @Override
+        public String toString() {
+            return file + ":" + line + ":" + (function.isEmpty() ? "-" : function);
+        }
+    }
+
+    /*************
+     * Constants *
+     *************/
+    private static final int VERSION = 1;
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private List<Range> ranges;     //  closed ranges, in ROM order
+    private Range open;             //  the range currently being written, or null
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Creates an empty source map.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the map holds no ranges
+     */
+    SourceMap() {
+        ranges = new ArrayList<>();
+        open = null;
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Starts a new range at address. The previous range ends there; if it
+     * didn't cover any addresses it is dropped, and if it came from the same
+     * place as the new one, it is simply extended instead.
+     *
+     * PRECONDITION:    address is not less than any previously marked address
+     * POSTCONDITION:   code written from address onward is attributed to file:line:function
+     *
+     * @param   address     -   the ROM address of the next instruction
+     * @param   file        -   the VM file being translated
+     * @param   line        -   the line within file, or 0 for generated code
+     * @param   function    -   the enclosing VM function
+     */
+    void mark(int address, String file, int line, String function) {
+        if (open != null) {
+            if (open.line == line && open.file.equals(file) && open.function.equals(function)) {
+                return;
+            }
+            open.end = address;
+            if (open.end > open.start) {
+                ranges.add(open);
+            }
+        }
+        open = new Range(address, file, line, function);
+    }
+
+    /**
+     * Closes the last range.
+     *
+     * PRECONDITION:    address is the ROM address after the last instruction
+     * POSTCONDITION:   all ranges are closed
+     *
+     * @param   address -   the total number of instructions written
+     */
+    void finish(int address) {
+        if (open != null) {
+            open.end = address;
+            if (open.end > open.start) {
+                ranges.add(open);
+            }
+            open = null;
+        }
+    }
+
+    /**
+     * Moves the ranges after code has been rearranged [see Outliner]. Ranges left
+     * without any instructions are dropped, and the code added at the end is
+     * recorded as generated code.
+     *
+     * PRECONDITION:    finish() has been called
+     * POSTCONDITION:   the ranges describe the rearranged code
+     *
+     * @param   from        -   the first address that may have moved
+     * @param   addresses   -   new address - from of each instruction from from on, plus
+     *                          one entry for the end of the moved code
+     * @param   end         -   the total number of instructions now
+     */
+    void relocate(int from, int[] addresses, int end) {
+        List<Range> moved = new ArrayList<>();
+        for( Range range : ranges ) {
+            Range r = new Range(range.start < from ? range.start : from + addresses[range.start - from],
+                    range.file, range.line, range.function);
+            r.end = range.end <= from ? range.end : from + addresses[range.end - from];
+            if (r.end > r.start) {
+                moved.add(r);
+            }
+        }
+        Range added = new Range(from + addresses[addresses.length - 1], "", 0, "");
+        added.end = end;
+        if (added.end > added.start) {
+            moved.add(added);
+        }
+        ranges = moved;
+    }
+
+    /**
+     * Finds the range holding the given ROM address.
+     *
+     * PRECONDITION:    finish() has been called
+     * POSTCONDITION:   N/A
+     *
+     * @param   address -   a ROM address
+     * @return          -   the range holding address, or null if there is none
+     */
+    Range lookup(int address) {
+        int low = 0;
+        int high = ranges.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Range range = ranges.get(mid);
+            if (address < range.start) {
+                high = mid - 1;
+            } else if (address >= range.end) {
+                low = mid + 1;
+            } else {
+                return range;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Getter for the ranges.
+     *
+     * PRECONDITION:    finish() has been called
+     * POSTCONDITION:   N/A
+     *
+     * @return  -   all ranges, in ROM order
+     */
+    List<Range> getRanges() {
+        return ranges;
+    }
+
+    /**
+     * Saves the map as JSON. File and function names are stored once each.
+     *
+     * PRECONDITION:    finish() has been called
+     * POSTCONDITION:   the map has been written to mapFile
+     *
+     * @param   mapFile -   the file to write
+     *
+     * @throws  IOException -   if mapFile cannot be written
+     */
+    void write(File mapFile) throws IOException {
+        List<String> files = new ArrayList<>();
+        List<String> functions = new ArrayList<>();
+        HashMap<String, Integer> fileIndex = new HashMap<>();
+        HashMap<String, Integer> functionIndex = new HashMap<>();
+        StringBuilder json = new StringBuilder();
+        json.append("{\"version\":").append(VERSION).append(",\n\"ranges\":[");
+        for(int i = 0; i < ranges.size(); i++) {
+            Range range = ranges.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append('[').append(range.start).append(',').append(range.end).append(',')
+                    .append(indexOf(files, fileIndex, range.file)).append(',')
+                    .append(range.line).append(',')
+                    .append(indexOf(functions, functionIndex, range.function)).append(']');
+        }
+        json.append("],\n\"files\":[");
+        for(int i = 0; i < files.size(); i++) {
+            json.append(i == 0 ? "" : ",").append(quote(files.get(i)));
+        }
+        json.append("],\n\"functions\":[");
+        for(int i = 0; i < functions.size(); i++) {
+            json.append(i == 0 ? "" : ",").append(quote(functions.get(i)));
+        }
+        json.append("]}\n");
+
+        try (PrintWriter out = new PrintWriter(mapFile)) {
+            out.print(json);
+            if (out.checkError()) {
+                throw new IOException("Could not write " + mapFile.getPath());
+            }
+        }
+    }
+
+    /**
+     * Loads a map saved by write(File).
+     *
+     * PRECONDITION:    mapFile was written by write(File)
+     * POSTCONDITION:   N/A
+     *
+     * @param   mapFile -   the file to read
+     * @return          -   the loaded map
+     *
+     * @throws  IOException -   if mapFile cannot be read or is malformed
+     */
+    static SourceMap read(File mapFile) throws IOException {
+        List<int[]> rows = new ArrayList<>();
+        List<String> files = null;
+        List<String> functions = null;
+        try (BufferedReader in = new BufferedReader(new FileReader(mapFile))) {
+            StreamTokenizer tokens = new StreamTokenizer(in);
+            tokens.wordChars('_', '_');
+            expect(tokens, '{');
+            while (tokens.nextToken() == '"') {
+                String key = tokens.sval;
+                expect(tokens, ':');
+                switch(key) {
+                    case "version":
+                        tokens.nextToken();
+                        if (tokens.ttype != StreamTokenizer.TT_NUMBER || (int) tokens.nval != VERSION) {
+                            throw new IOException("Unsupported source map version in " + mapFile.getPath());
+                        }
+                        break;
+                    case "files":
+                        files = readStrings(tokens);
+                        break;
+                    case "functions":
+                        functions = readStrings(tokens);
+                        break;
+                    case "ranges":
+                        expect(tokens, '[');
+                        while (tokens.nextToken() == '[') {
+                            int[] row = new int[5];
+                            for(int i = 0; i < row.length; i++) {
+                                if (i > 0) {
+                                    expect(tokens, ',');
+                                }
+                                expect(tokens, StreamTokenizer.TT_NUMBER);
+                                row[i] = (int) tokens.nval;
+                            }
+                            expect(tokens, ']');
+                            rows.add(row);
+                            if (tokens.nextToken() != ',') {
+                                break;
+                            }
+                        }
+                        if (tokens.ttype != ']') {
+                            throw new IOException("Malformed ranges in " + mapFile.getPath());
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unknown key \"" + key + "\" in " + mapFile.getPath());
+                }
+                if (tokens.nextToken() != ',') {
+                    break;
+                }
+            }
+        }
+        if (files == null || functions == null) {
+            throw new IOException("Incomplete source map " + mapFile.getPath());
+        }
+
+        SourceMap map = new SourceMap();
+        for( int[] row : rows ) {
+            Range range = new Range(row[0], files.get(row[2]), row[3], functions.get(row[4]));
+            range.end = row[1];
+            map.ranges.add(range);
+        }
+        return map;
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Returns the index of name within names, adding it if needed.
+     *
+     * @param   names   -   the names in index order
+     * @param   index   -   each name's position within names
+     * @param   name    -   the name to look up
+     * @return          -   the index of name
+     */
+    private static int indexOf(List<String> names, HashMap<String, Integer> index, String name) {
+        Integer i = index.get(name);
+        if (i == null) {
+            i = names.size();
+            names.add(name);
+            index.put(name, i);
+        }
+        return i;
+    }
+
+    /**
+     * Returns text as a JSON string literal.
+     *
+     * @param   text    -   the text to quote
+     * @return          -   text in double quotes, with quotes & backslashes escaped
+     */
+    private static String quote(String text) {
+        return "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * Reads a JSON array of strings.
+     *
+     * @param   tokens  -   the tokenizer, positioned before the array
+     * @return          -   the strings in the array
+     *
+     * @throws  IOException -   if the array is malformed
+     */
+    private static List<String> readStrings(StreamTokenizer tokens) throws IOException {
+        List<String> strings = new ArrayList<>();
+        expect(tokens, '[');
+        while (tokens.nextToken() == '"') {
+            strings.add(tokens.sval);
+            if (tokens.nextToken() != ',') {
+                break;
+            }
+        }
+        if (tokens.ttype != ']') {
+            throw new IOException("Malformed string list at line " + tokens.lineno());
+        }
+        return strings;
+    }
+
+    /**
+     * Reads the next token, which must be of the given type.
+     *
+     * @param   tokens  -   the tokenizer
+     * @param   type    -   the expected token type [a character or StreamTokenizer.TT_*]
+     *
+     * @throws  IOException -   if the next token is of another type
+     */
+    private static void expect(StreamTokenizer tokens, int type) throws IOException {
+        if (tokens.nextToken() != type) {
+            throw new IOException("Malformed source map at line " + tokens.lineno() + ": " + tokens);
+        }
+    }
+}
+
@@ -0,0 +1,364 @@
+/************************************************************************************
+ *
+ * Class name:    StackDepth
+ * Description:   Worst-case stack depth of a VM program, found from its commands alone.
+ *                The stack grows up from RAM[256] toward the heap at RAM[2048], and
+ *                nothing stops it from running into it.
+ *
+ *                Within a function, the operand stack is tracked command by command:
+ *                push +1, pop -1, a binary operator -1 [neg & not 0], a call leaves 1 in
+ *                place of its arguments. A jump carries its depth to its label; a label
+ *                takes the deepest of the fall-through & the jumps seen so far. A jump
+ *                back to a label at a greater depth than the label had means the stack
+ *                grows around a loop, with no bound.
+ *
+ *                What a function needs above the SP it is entered with is
+ *
+ *                  need(f) = locals + max( deepest operand stack,
+ *                                          at each call: depth [incl. arguments] + 5 + need(callee) )
+ *
+ *                the 5 being the frame a call saves [return address, LCL, ARG, THIS, THAT].
+ *                Recursion has no bound, and neither has anything that can reach it.
+ *                A function called but not in the program is counted as needing nothing
+ *                beyond its frame [it is listed as external].
+ *
+ *                The bound is of the VM code as written: optimized translations never
+ *                use more [static frames & tail calls, at -O1 on, use less].
+ *
+ * History:       Oct. 19, J, author, operand stack tracking & bounds along the call graph
+ *
+ * Methods:       Public:   StackDepth(), add(VMCommand), endFile(), getNeed(String),
+ *                          getReason(String), getProgramNeed(boolean), describeProgram(boolean),
+ *                          getExternal(), write(File, boolean)
+ *
+ *                Private:  entry(boolean), jumpTo(String), findNeed(Function)
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+class StackDepth {
+
+    /**
+     * What the analysis knows about a single function [or top-level code, named ""].
+     */
+    private static class Function {
+        final String name;
+        int numLocals;
+        int maxDepth;                   //  deepest operand stack, above the locals
+        List<String> callees = new ArrayList<>();       //  each call, with its depth
+        List<Integer> callDepths = new ArrayList<>();
+        String growsAt;                 //  label of a loop the stack grows around, or null
+
+        //  findNeed(): set while being visited, then the result
+        boolean visiting;
+        Long need;
+        String reason;                  //  why need is UNBOUNDED
+
+        Function(String name) {
+            this.name = name;
+        }
+    }
+
+    /*************
+     * Constants *
+     *************/
+    static final long UNBOUNDED = -1;
+
+    //  Words a call saves: return address, LCL, ARG, THIS & THAT
+    static final int FRAME_SIZE = 5;
+
+    //  The stack's first address, and the heap's
+    static final int STACK_BASE = 256;
+    static final int HEAP_BASE = 2048;
+
+    private static final String ENTRY_FUNCTION = "Sys.init";
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private LinkedHashMap<String, Function> functions;     //  in program order
+    private TreeSet<String> external;       //  called, but not in the program
+
+    //  The function being added, and its operand stack [-1 = not reachable by falling through]
+    private Function current;
+    private int depth;
+    private HashMap<String, Integer> labelDepths;       //  deepest depth a label is reached at
+    private HashMap<String, Integer> defined;           //  labels passed so far -> their depth
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Creates an empty analysis.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the analysis holds no functions
+     */
+    StackDepth() {
+        functions = new LinkedHashMap<>();
+        external = new TreeSet<>();
+        endFile();
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Tracks the operand stack through the next command of the program.
+     *
+     * PRECONDITION:    commands are added in file order, with endFile() between files
+     * POSTCONDITION:   N/A
+     *
+     * @param   command -   the next command
+     */
+    void add(VMCommand command) {
+        if (command.type == Parser.Command.C_FUNCTION) {
+            current = new Function(command.arg1);
+            current.numLocals = command.arg2;
+            functions.put(command.arg1, current);
+            depth = 0;
+            labelDepths.clear();
+            defined.clear();
+            return;
+        }
+        if (current == null) {
+            current = functions.get("");
+            if (current == null) {
+                current = new Function("");
+                functions.put("", current);
+            }
+        }
+        if (depth == -1 && command.type != Parser.Command.C_LABEL) {
+            depth = 0;          //  unreachable, as far as can be told
+        }
+        switch (command.type) {
+            case C_PUSH:
+                depth++;
+                break;
+            case C_POP:
+                depth--;
+                break;
+            case C_ARITHMETIC:
+                String operator = command.command.toLowerCase();
+                if (!operator.equals("neg") && !operator.equals("not")) {
+                    depth--;
+                }
+                break;
+            case C_LABEL:
+                Integer reached = labelDepths.get(command.arg1);
+                depth = Math.max(depth, reached == null ? 0 : reached);
+                labelDepths.put(command.arg1, depth);
+                defined.put(command.arg1, depth);
+                break;
+            case C_GOTO:
+                jumpTo(command.arg1);
+                depth = -1;
+                break;
+            case C_IF:
+                depth--;
+                jumpTo(command.arg1);
+                break;
+            case C_CALL:
+                current.callees.add(command.arg1);
+                current.callDepths.add(depth);
+                depth = depth - command.arg2 + 1;
+                break;
+            case C_RETURN:
+                depth = -1;
+                break;
+            default:
+                break;
+        }
+        current.maxDepth = Math.max(current.maxDepth, depth);
+    }
+
+    /**
+     * Ends a .vm file: the next one starts with top-level code, if any.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     */
+    void endFile() {
+        current = null;
+        depth = 0;
+        labelDepths = new HashMap<>();
+        defined = new HashMap<>();
+    }
+
+    /**
+     * @param   function    -   the name of a VM function in the program
+     * @return              -   the words it needs above the SP it is entered with, or
+     *                          UNBOUNDED [see getReason()]
+     */
+    long getNeed(String function) {
+        return findNeed(functions.get(function));
+    }
+
+    /**
+     * @param   function    -   the name of a VM function in the program
+     * @return              -   why it needs an unbounded stack, or null if it doesn't
+     */
+    String getReason(String function) {
+        findNeed(functions.get(function));
+        return functions.get(function).reason;
+    }
+
+    /**
+     * Finds the words the whole program needs above RAM[256].
+     *
+     * PRECONDITION:    every file has been added
+     * POSTCONDITION:   N/A
+     *
+     * @param   bootstrap   -   true if bootstrap code calls Sys.init [and so saves a frame],
+     *                          false if the program starts at its first code
+     * @return              -   the words needed, UNBOUNDED, or 0 if there is no entry
+     */
+    long getProgramNeed(boolean bootstrap) {
+        Function f = entry(bootstrap);
+        if (f == null) {
+            return 0;
+        }
+        long need = findNeed(f);
+        return need == UNBOUNDED ? UNBOUNDED : need + (bootstrap ? FRAME_SIZE : 0);
+    }
+
+    /**
+     * @param   bootstrap   -   true if bootstrap code calls Sys.init
+     * @return              -   the program's bound in a line, e.g. "at most 40 words
+     *                          [RAM[256..295]]" or "unbounded: recursion through Main.fib"
+     */
+    String describeProgram(boolean bootstrap) {
+        if (entry(bootstrap) == null) {
+            return "unknown: the program has no " + (bootstrap ? ENTRY_FUNCTION : "code");
+        }
+        long need = getProgramNeed(bootstrap);
+        if (need == UNBOUNDED) {
+            return "unbounded: " + entry(bootstrap).reason;
+        }
+        String description = "at most " + need + " words [RAM[" + STACK_BASE + ".."
+                + (STACK_BASE + need - 1) + "]]";
+        if (STACK_BASE + need > HEAP_BASE) {
+            description += ", past the heap at RAM[" + HEAP_BASE + "]";
+        }
+        return description;
+    }
+
+    /**
+     * @return  -   the functions called but not in the program, in name order
+     *              [complete once a bound has been found for every function]
+     */
+    Set<String> getExternal() {
+        return external;
+    }
+
+    /**
+     * Writes the bound of every function, then the program's, one per line.
+     *
+     * PRECONDITION:    every file has been added
+     * POSTCONDITION:   stackFile holds the report
+     *
+     * @param   stackFile   -   the file to write
+     * @param   bootstrap   -   true if bootstrap code calls Sys.init
+     *
+     * @throws  IOException -   if stackFile cannot be written
+     */
+    void write(File stackFile, boolean bootstrap) throws IOException {
+        try (PrintWriter out = new PrintWriter(stackFile)) {
+            out.println("# function  locals  operand-depth  need [words above its SP on entry]");
+            for( Function f : functions.values() ) {
+                long need = findNeed(f);
+                out.println((f.name.isEmpty() ? "(top-level)" : f.name) + "  " + f.numLocals + "  "
+                        + f.maxDepth + "  " + (need == UNBOUNDED ? "unbounded: " + f.reason : need));
+            }
+            for( String name : external ) {
+                out.println("# external: " + name);
+            }
+            out.println("# program: " + describeProgram(bootstrap));
+            if (out.checkError()) {
+                throw new IOException("Could not write " + stackFile.getPath());
+            }
+        }
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * @param   bootstrap   -   true if bootstrap code calls Sys.init
+     * @return              -   the function [or top-level code] the program starts in,
+     *                          or null if it is not in the program
+     */
+    private Function entry(boolean bootstrap) {
+        if (bootstrap) {
+            return functions.get(ENTRY_FUNCTION);
+        }
+        return functions.isEmpty() ? null : functions.values().iterator().next();
+    }
+
+    /**
+     * Carries the current depth to a label.
+     *
+     * @param   label   -   the label jumped to
+     */
+    private void jumpTo(String label) {
+        Integer reached = labelDepths.get(label);
+        labelDepths.put(label, Math.max(depth, reached == null ? 0 : reached));
+        if (defined.containsKey(label) && depth > defined.get(label) && current.growsAt == null) {
+            current.growsAt = label;        //  a jump back, deeper than before
+        }
+    }
+
+    /**
+     * Finds what a function needs, and what the functions it calls need first.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   f.need [and f.reason] have been found
+     *
+     * @param   f   -   the function
+     * @return      -   the words it needs above the SP it is entered with, or UNBOUNDED
+     */
+    private long findNeed(Function f) {
+        if (f.need != null) {
+            return f.need;
+        }
+        if (f.visiting) {
+            f.reason = "recursion through " + f.name;
+            return UNBOUNDED;
+        }
+        f.visiting = true;
+        long need = f.growsAt == null ? f.maxDepth : UNBOUNDED;
+        String reason = f.growsAt == null ? null : "the stack grows around the loop at " + f.growsAt;
+        for(int i = 0; i < f.callees.size() && need != UNBOUNDED; i++) {
+            Function callee = functions.get(f.callees.get(i));
+            long calleeNeed = 0;
+            if (callee == null) {
+                external.add(f.callees.get(i));
+            } else {
+                calleeNeed = findNeed(callee);
+            }
+            if (calleeNeed == UNBOUNDED) {
+                need = UNBOUNDED;
+                reason = callee.reason != null ? callee.reason : "recursion through " + callee.name;
+            } else {
+                need = Math.max(need, f.callDepths.get(i) + FRAME_SIZE + calleeNeed);
+            }
+        }
+        f.visiting = false;
+        f.need = need == UNBOUNDED ? UNBOUNDED : need + f.numLocals;
+        f.reason = reason;
+        return f.need;
+    }
+}
@@ -0,0 +1,156 @@
+/************************************************************************************
+ *
+ * Class name:    TemplateCache
+ * Description:   Holds the finished assembly text of the VM commands a program uses
+ *                over and over [push constant 0, push local 2, add, not, ...], so that
+ *                CodeWriter writes each one again with a single write() instead of
+ *                rebuilding it a line at a time.
+ *
+ *                A template is keyed by (command type, segment or operator, index).
+ *                Arithmetic templates don't depend on an index and are rendered once,
+ *                up front [putFixed()]; push & pop templates are rendered the first time
+ *                they are needed and kept while they are among the CAPACITY most
+ *                recently used [put()], as constants & indices are too many to keep all.
+ *
+ *                Only text that depends on nothing but its key may be cached: the static
+ *                segment [file names], comparisons [fresh labels], and anything written
+ *                with a virtual stack pointer or a cached address are always written
+ *                in full [see CodeWriter.writePushPop()].
+ *
+ * History:       Oct. 19, J, author, fixed & least recently used templates
+ *
+ * Methods:       Public:   TemplateCache(), key(Parser.Command, String, int), get(long),
+ *                          put(long, Template), putFixed(long, Template), getFixedNames()
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class TemplateCache {
+
+    /**
+     * The assembly text of a VM command, lines ending in the line separator, and the
+     * number of instructions in it [for romAddress].
+     */
+    static class Template {
+        final String text;
+        final int size;
+
+        Template(String text, int size) {
+            this.text = text;
+            this.size = size;
+        }
+    }
+
+    /*************
+     * Constants *
+     *************/
+    static final long NO_KEY = -1;
+
+    //  Push & pop templates kept at once
+    private static final int CAPACITY = 256;
+
+    //  Arithmetic commands whose text never changes, rendered up front
+    private static final String[] FIXED_NAMES = { "add", "sub", "and", "or", "not", "neg" };
+
+    //  Segments & operators that may be cached -> their part of a key
+    private static final HashMap<String, Integer> CODES = new HashMap<>();
+    static {
+        String[] segments = { "constant", "local", "argument", "this", "that", "pointer", "temp" };
+        for( String segment : segments ) {
+            CODES.put(segment, CODES.size());
+        }
+        for( String operator : FIXED_NAMES ) {
+            CODES.put(operator, CODES.size());
+        }
+    }
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    private HashMap<Long, Template> fixed;
+    private LinkedHashMap<Long, Template> recent;   //  least recently used first
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Creates an empty cache.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   the cache holds no templates
+     */
+    TemplateCache() {
+        fixed = new HashMap<>();
+        recent = new LinkedHashMap<Long, Template>(CAPACITY, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Template> eldest) {
+                return size() > CAPACITY;
+            }
+        };
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * @param   command -   C_ARITHMETIC, C_PUSH or C_POP
+     * @param   name    -   the operator or segment, in lower case
+     * @param   index   -   the index within the segment [0 for an operator]
+     * @return          -   the key of the command's template, or NO_KEY if it can't be cached
+     */
+    static long key(Parser.Command command, String name, int index) {
+        Integer code = CODES.get(name);
+        if (code == null || index < 0) {
+            return NO_KEY;
+        }
+        return ((long) command.ordinal() << 48) | ((long) code << 32) | index;
+    }
+
+    /**
+     * @param   key -   a key from key()
+     * @return      -   the template, or null if it hasn't been rendered [or was evicted]
+     */
+    Template get(long key) {
+        Template template = fixed.get(key);
+        return template != null ? template : recent.get(key);
+    }
+
+    /**
+     * Keeps a template while it is among the most recently used.
+     *
+     * PRECONDITION:    template is the text of the command key stands for
+     * POSTCONDITION:   the least recently used template may have been dropped
+     *
+     * @param   key         -   a key from key()
+     * @param   template    -   the rendered command
+     */
+    void put(long key, Template template) {
+        recent.put(key, template);
+    }
+
+    /**
+     * Keeps a template for good.
+     *
+     * PRECONDITION:    template is the text of the command key stands for
+     * POSTCONDITION:   N/A
+     *
+     * @param   key         -   a key from key()
+     * @param   template    -   the rendered command
+     */
+    void putFixed(long key, Template template) {
+        fixed.put(key, template);
+    }
+
+    /**
+     * @return  -   the arithmetic commands to render up front
+     */
+    static String[] getFixedNames() {
+        return FIXED_NAMES.clone();
+    }
+}
@@ -0,0 +1,860 @@
+/************************************************************************************
+ *
+ * Class name:    TestRunner
+ * Description:   The regression runner for translated test programs: finds every
+ *                test script [.tst] under a directory tree, translates the program
+ *                each one loads with this translator, runs it headlessly on a
+ *                HackMachine of its own, and compares the script's output with its
+ *                .cmp file. The tests run at the same time, on a ForkJoinPool, and the
+ *                results are written as a JUnit-style XML report.
+ *
+ *                The scripts are those of the CPU emulator, as in:
+ *
+ *                  load SimpleAdd.asm,
+ *                  output-file SimpleAdd.out,
+ *                  compare-to SimpleAdd.cmp,
+ *                  output-list RAM[0]%D2.6.2 RAM[256]%D2.6.2;
+ *                  set RAM[0] 256,
+ *                  repeat 60 {
+ *                    ticktock;
+ *                  }
+ *                  output;
+ *
+ *                ->	load translates the .vm files in the script's directory, with
+ *                	bootstrap code if one of them is Sys.vm [as VirtualMachine does]
+ *                ->	output-list columns are RAM[n], A, D, PC or time, formatted
+ *                	%D, %X, %B or %S [padding.width.padding]
+ *                ->	set only sets RAM; while is not supported
+ *                ->	echo & clear-echo are ignored
+ *
+ *                VM emulator scripts [vmstep, or load of a .vm file or directory] are
+ *                reported as skipped. The output is written to the script's output-file
+ *                and compared with its compare-to file a cell at a time; a .cmp cell of
+ *                only *s matches anything.
+ *
+ *                Each test case in the report has its wall time [translation included]
+ *                and the instructions executed as a "cycles" property.
+ *
+ * History:       Oct. 19, J, author, script subset, parallel runs & JUnit report
+ *                Oct. 19, J, cut long column names to the column's width
+ *
+ * Methods:       Public:   main(String[])
+ *
+ *                Private:  findTests(File, List), runTest(File, File, Options.Level,
+ *                          boolean), isVMEmulatorScript(List), translate(File,
+ *                          Options.Level, boolean), parseScript(File), tokenize(String),
+ *                          parseSteps(List, int[], boolean), parseColumn(String),
+ *                          compare(List, File), splitCells(String), writeReport(List, File,
+ *                          Options.Level, int, long), escape(String), argument(String[]),
+ *                          join(String[])
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+class TestRunner {
+
+    /**
+     * One command of a script: its words, and for repeat its count & body.
+     */
+    private static class Step {
+        final String[] words;
+        final int count;
+        final List<Step> body;          //  null unless a repeat
+
+        Step(String[] words, int count, List<Step> body) {
+            this.words = words;
+            this.count = count;
+            this.body = body;
+        }
+    }
+
+    /**
+     * One column of output-list, e.g. RAM[256]%D2.6.2.
+     */
+    private static class Column {
+        final String name;
+        final int address;              //  the RAM address, or -1 for A, D, PC & time
+        final char format;
+        final int left;
+        final int width;
+        final int right;
+
+        Column(String name, int address, char format, int left, int width, int right) {
+            this.name = name;
+            this.address = address;
+            this.format = format;
+            this.left = left;
+            this.width = width;
+            this.right = right;
+        }
+
+        /**
+         * Pads a cell; a name longer than the column is cut to fit, as the CPU
+         * emulator does [RAM[3006] becomes RAM[3006 in a 1.6.1 column].
+         *
+         * PRECONDITION:    N/A
+         * POSTCONDITION:   N/A
+         *
+         * @param   text    -   a value, or the column's name
+         * @param   center  -   true to center text across the whole column [a name],
+         *                      false to right-justify it within the width [a value]
+         * @return          -   text, padded to the column's width
+         */
+        String pad(String text, boolean center) {
+            StringBuilder cell = new StringBuilder();
+            if (center) {
+                int total = left + width + right;
+                if (text.length() > total) {
+                    text = text.substring(0, total);
+                }
+                int fill = total - text.length();
+                appendSpaces(cell, fill / 2);
+                cell.append(text);
+                appendSpaces(cell, fill - fill / 2);
+            } else {
+                appendSpaces(cell, left + Math.max(width - text.length(), 0));
+                cell.append(text);
+                appendSpaces(cell, right);
+            }
+            return cell.toString();
+        }
+
+        private static void appendSpaces(StringBuilder cell, int count) {
+            for(int i = 0; i < count; i++) {
+                cell.append(' ');
+            }
+        }
+    }
+
+    /**
+     * The outcome of one test.
+     */
+    private static class Result {
+        final String name;              //  the script's name, without .tst
+        final String className;         //  its directory, relative to the root, dotted
+        String status = PASSED;
+        String message;                 //  why the test failed, erred or was skipped
+        long cycles;
+        long nanos;
+
+        Result(String name, String className) {
+            this.name = name;
+            this.className = className;
+        }
+    }
+
+    /**
+     * A script being run: the machine, the output list & the output so far.
+     */
+    private static class Script {
+        final File dir;
+        final Options.Level level;
+        final boolean intrinsics;
+        HackMachine machine;
+        List<Column> columns = new ArrayList<>();
+        List<String> output = new ArrayList<>();
+        String outputFile;
+        String compareTo;
+
+        Script(File dir, Options.Level level, boolean intrinsics) {
+            this.dir = dir;
+            this.level = level;
+            this.intrinsics = intrinsics;
+        }
+
+        /**
+         * Runs a list of steps.
+         *
+         * PRECONDITION:    N/A
+         * POSTCONDITION:   the steps have run
+         *
+         * @param   steps   -   the steps, in order
+         *
+         * @throws  IOException -   if the program cannot be translated
+         * @throws  IllegalArgumentException    -   if a step is malformed or not supported
+         * @throws  IllegalStateException       -   if the program accesses RAM out of range
+         */
+        void execute(List<Step> steps) throws IOException {
+            for( Step step : steps ) {
+                if (step.body != null) {
+                    if (step.body.size() == 1 && step.body.get(0).words[0].equals("ticktock")) {
+                        //  By far the most common loop: run it in one go
+                        getMachine().run(step.count);
+                    } else {
+                        for(int i = 0; i < step.count; i++) {
+                            execute(step.body);
+                        }
+                    }
+                } else {
+                    execute(step.words);
+                }
+            }
+        }
+
+        /**
+         * Runs one command.
+         *
+         * PRECONDITION:    words is not empty
+         * POSTCONDITION:   the command has run
+         *
+         * @param   words   -   the command & its arguments
+         *
+         * @throws  IOException -   if the program cannot be translated
+         * @throws  IllegalArgumentException    -   if the command is malformed or not supported
+         * @throws  IllegalStateException       -   if the program accesses RAM out of range
+         */
+        private void execute(String[] words) throws IOException {
+            switch (words[0]) {
+                case "load":
+                    machine = new HackMachine(translate(dir, level, intrinsics));
+                    break;
+                case "output-file":
+                    outputFile = argument(words);
+                    break;
+                case "compare-to":
+                    compareTo = argument(words);
+                    break;
+                case "output-list":
+                    columns.clear();
+                    for(int i = 1; i < words.length; i++) {
+                        columns.add(parseColumn(words[i]));
+                    }
+                    output.add(header());
+                    break;
+                case "set":
+                    if (words.length != 3 || !words[1].matches("RAM\\[\\d+\\]")) {
+                        throw new IllegalArgumentException("Only set RAM[n] <value> is supported: "
+                                + join(words));
+                    }
+                    getMachine().poke(Integer.parseInt(words[1].substring(4, words[1].length() - 1)),
+                            Integer.parseInt(words[2]));
+                    break;
+                case "ticktock":
+                case "tock":
+                    getMachine().step();
+                    break;
+                case "tick":
+                case "echo":
+                case "clear-echo":
+                    break;
+                case "output":
+                    output.add(row());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported command: " + join(words));
+            }
+        }
+
+        /**
+         * PRECONDITION:    N/A
+         * POSTCONDITION:   N/A
+         *
+         * @return  -   the loaded machine
+         *
+         * @throws  IllegalArgumentException    -   if no program has been loaded
+         */
+        private HackMachine getMachine() {
+            if (machine == null) {
+                throw new IllegalArgumentException("No program has been loaded");
+            }
+            return machine;
+        }
+
+        /**
+         * PRECONDITION:    N/A
+         * POSTCONDITION:   N/A
+         *
+         * @return  -   the header line for the current output list
+         */
+        private String header() {
+            StringBuilder line = new StringBuilder("|");
+            for( Column column : columns ) {
+                line.append(column.pad(column.name, true)).append('|');
+            }
+            return line.toString();
+        }
+
+        /**
+         * PRECONDITION:    a program has been loaded
+         * POSTCONDITION:   N/A
+         *
+         * @return  -   the current values of the output list, as one line
+         */
+        private String row() {
+            StringBuilder line = new StringBuilder("|");
+            for( Column column : columns ) {
+                long value;
+                if (column.address >= 0) {
+                    value = getMachine().peek(column.address);
+                } else if (column.name.equals("A")) {
+                    value = getMachine().getA();
+                } else if (column.name.equals("D")) {
+                    value = getMachine().getD();
+                } else if (column.name.equals("PC")) {
+                    value = getMachine().getPC();
+                } else {
+                    value = getMachine().getCycles();
+                }
+                line.append(column.pad(format(value, column.format), false)).append('|');
+            }
+            return line.toString();
+        }
+
+        /**
+         * PRECONDITION:    N/A
+         * POSTCONDITION:   N/A
+         *
+         * @param   value   -   the value to format
+         * @param   format  -   D, S, X or B
+         * @return          -   value in the format, without padding
+         */
+        private static String format(long value, char format) {
+            switch (format) {
+                case 'X':
+                    return String.format("%04X", value & 0xFFFF);
+                case 'B':
+                    String bits = Long.toBinaryString(value & 0xFFFF);
+                    return "0000000000000000".substring(bits.length()) + bits;
+                default:
+                    //  %D & %S
+                    return Long.toString(value);
+            }
+        }
+    }
+
+    /*************
+     * Constants *
+     *************/
+    private static final String SCRIPT_EXTENSION = ".tst";
+    private static final String REPORT_FILE = "TEST-vm.xml";
+    private static final String PASSED = "passed";
+    private static final String FAILED = "failed";
+    private static final String ERROR = "error";
+    private static final String SKIPPED = "skipped";
+
+    //  RAM[256]%D2.6.2, time%S1.4.1, A ...
+    private static final Pattern COLUMN =
+            Pattern.compile("(RAM\\[(\\d+)\\]|A|D|PC|time)(?:%([DXBS])(\\d+)\\.(\\d+)\\.(\\d+))?");
+
+    private static final String USAGE =
+            "Usage: TestRunner <directory> [-O0|-O1|-O2|-Os] [-no-intrinsics] [-threads <n>]\n" +
+            "                  [-report <file>]\n" +
+            "\n" +
+            "  <directory>        searched, with its subdirectories, for .tst scripts\n" +
+            "  -O0 ... -Os        the optimization level to translate at [default: -O1]\n" +
+            "  -no-intrinsics     translate Math.multiply & Math.divide calls as calls\n" +
+            "  -threads <n>       tests run at the same time [default: one per processor]\n" +
+            "  -report <file>     the JUnit XML report [default: <directory>/" + REPORT_FILE + "]";
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Runs every test script under a directory and reports the results.
+     *
+     * PRECONDITION:    args holds a directory and, optionally, the options in USAGE
+     * POSTCONDITION:   each result has been written to standard output and the report,
+     *                  and the program has exited with status 1 if any test failed
+     *
+     * @param   args    -   the supplied command-line arguments
+     */
+    public static void main(String[] args) {
+        File root = null;
+        File report = null;
+        Options.Level level = Options.Level.O1;
+        boolean intrinsics = true;
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            for(int i = 0; i < args.length; i++) {
+                if (args[i].equals("-threads") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                    if (threads < 1) {
+                        throw new IllegalArgumentException("-threads must be at least 1");
+                    }
+                } else if (args[i].equals("-report") && i + 1 < args.length) {
+                    report = new File(args[++i]);
+                } else if (args[i].equals("-no-intrinsics")) {
+                    intrinsics = false;
+                } else if (args[i].startsWith("-O")) {
+                    level = null;
+                    for( Options.Level candidate : Options.Level.values() ) {
+                        if (candidate.toString().equals(args[i])) {
+                            level = candidate;
+                        }
+                    }
+                    if (level == null) {
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                    }
+                } else if (!args[i].startsWith("-") && root == null) {
+                    root = new File(args[i]);
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            if (root != null && !root.isDirectory()) {
+                throw new IllegalArgumentException("Not a directory: " + root.getPath());
+            }
+        } catch (IllegalArgumentException e) {
+            //  also a NumberFormatException
+            System.err.println(e.getMessage());
+            root = null;
+        }
+        if (root == null) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        if (report == null) {
+            report = new File(root, REPORT_FILE);
+        }
+
+        final List<File> tests = new ArrayList<>();
+        findTests(root, tests);
+        final Result[] results = new Result[tests.size()];
+        final File base = root;
+        final Options.Level testLevel = level;
+        final boolean testIntrinsics = intrinsics;
+
+        long start = System.nanoTime();
+        if (!tests.isEmpty()) {
+            //  Halves the list until each task runs a single test
+            @SuppressWarnings("serial")
+            class RunTests extends RecursiveAction {
+                private final int from;
+                private final int to;
+
+                RunTests(int from, int to) {
+                    this.from = from;
+                    this.to = to;
+                }
+
+                @Override
+                protected void compute() {
+                    if (to - from == 1) {
+                        results[from] = runTest(base, tests.get(from), testLevel, testIntrinsics);
+                    } else {
+                        int middle = (from + to) >>> 1;
+                        invokeAll(new RunTests(from, middle), new RunTests(middle, to));
+                    }
+                }
+            }
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(new RunTests(0, tests.size()));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        int failures = 0;
+        for( Result result : results ) {
+            System.out.println(String.format(Locale.ROOT, "%-7s %s.%s  %d cycles, %.3fs%s",
+                    result.status.toUpperCase(Locale.ROOT), result.className, result.name, result.cycles,
+                    result.nanos / 1e9, result.message == null ? "" : "  " + result.message));
+            if (result.status.equals(FAILED) || result.status.equals(ERROR)) {
+                failures++;
+            }
+        }
+        try {
+            writeReport(Arrays.asList(results), report, level, threads, elapsed);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        System.out.println(String.format(Locale.ROOT, "%d tests, %d failed, %.3fs -> %s",
+                results.length, failures, elapsed / 1e9, report.getPath()));
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Gathers the test scripts under a directory, in name order.
+     *
+     * @param   dir     -   the directory to search
+     * @param   tests   -   the scripts found so far
+     */
+    private static void findTests(File dir, List<File> tests) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);         //  the same report order every run
+        for( File file : files ) {
+            if (file.isDirectory()) {
+                findTests(file, tests);
+            } else if (file.getName().endsWith(SCRIPT_EXTENSION)) {
+                tests.add(file);
+            }
+        }
+    }
+
+    /**
+     * Runs one test script. Never throws: anything that goes wrong is the result.
+     *
+     * @param   root        -   the directory the tests were found under
+     * @param   tst         -   the script
+     * @param   level       -   the optimization level
+     * @param   intrinsics  -   true to translate Math.multiply & Math.divide as intrinsics
+     * @return              -   the test's outcome
+     */
+    private static Result runTest(File root, File tst, Options.Level level, boolean intrinsics) {
+        String relative = root.toURI().relativize(tst.getParentFile().toURI()).getPath();
+        String className = relative.isEmpty() ? root.getName()
+                : relative.replaceAll("/$", "").replace('/', '.');
+        Result result = new Result(tst.getName().substring(0, tst.getName().length() - SCRIPT_EXTENSION.length()),
+                className);
+        long start = System.nanoTime();
+        try {
+            List<Step> steps = parseScript(tst);
+            if (isVMEmulatorScript(steps)) {
+                result.status = SKIPPED;
+                result.message = "VM emulator script";
+                return result;
+            }
+
+            Script script = new Script(tst.getParentFile(), level, intrinsics);
+            script.execute(steps);
+            if (script.machine != null) {
+                result.cycles = script.machine.getCycles();
+            }
+            if (script.outputFile != null) {
+                Files.write(new File(script.dir, script.outputFile).toPath(), script.output,
+                        StandardCharsets.UTF_8);
+            }
+            if (script.compareTo != null) {
+                String mismatch = compare(script.output, new File(script.dir, script.compareTo));
+                if (mismatch != null) {
+                    result.status = FAILED;
+                    result.message = mismatch;
+                }
+            }
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            //  an unreadable script or program, an unsupported command, or a program
+            //  that accessed RAM out of range
+            result.status = ERROR;
+            result.message = e.getMessage();
+        } finally {
+            result.nanos = System.nanoTime() - start;
+        }
+        return result;
+    }
+
+    /**
+     * @param   steps   -   a script's steps
+     * @return          -   true if the script is for the VM emulator [vmstep, or load of
+     *                      a .vm file or a directory], false otherwise
+     */
+    private static boolean isVMEmulatorScript(List<Step> steps) {
+        for( Step step : steps ) {
+            if (step.body != null ? isVMEmulatorScript(step.body)
+                    : step.words[0].equals("vmstep")
+                    || step.words[0].equals("load") && (step.words.length == 1 || step.words[1].endsWith(".vm"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Translates & assembles the program in a directory, in memory.
+     *
+     * @param   dir         -   the directory holding the program's .vm files
+     * @param   level       -   the optimization level
+     * @param   intrinsics  -   true to translate Math.multiply & Math.divide as intrinsics
+     * @return              -   the program's machine code
+     *
+     * @throws  IOException -   if there are no .vm files, or one cannot be read
+     */
+    private static short[] translate(File dir, Options.Level level, boolean intrinsics) throws IOException {
+        File[] vmFiles = VirtualMachine.getFileArray(dir.getPath());
+        if (vmFiles == null || vmFiles.length == 0) {
+            throw new IOException("No .vm files in " + dir.getPath());
+        }
+        Arrays.sort(vmFiles);       //  the same ROM layout every run
+        ByteArrayOutputStream asm = new ByteArrayOutputStream();
+        CodeWriter codeWriter = new CodeWriter(asm, dir.getName(), VirtualMachine.hasBootstrap(vmFiles));
+        codeWriter.setLevel(level);
+        codeWriter.setIntrinsics(intrinsics);
+        try {
+            VirtualMachine.translate(vmFiles, codeWriter, null);
+        } finally {
+            codeWriter.close();
+        }
+        return HackAssembler.assemble(Arrays.asList(asm.toString().split("\\r?\\n"))).getRom();
+    }
+
+    /**
+     * Reads a script into steps.
+     *
+     * @param   tst -   the script
+     * @return      -   its steps, in order
+     *
+     * @throws  IOException -   if tst cannot be read
+     * @throws  IllegalArgumentException    -   if tst is malformed
+     */
+    private static List<Step> parseScript(File tst) throws IOException {
+        StringBuilder text = new StringBuilder();
+        try (BufferedReader in = new BufferedReader(new FileReader(tst))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                text.append(line).append('\n');
+            }
+        }
+        String source = text.toString().replaceAll("(?s)/\\*.*?\\*/", " ").replaceAll("//[^\n]*", " ");
+        List<String> tokens = tokenize(source);
+        int[] position = {0};
+        List<Step> steps = parseSteps(tokens, position, false);
+        if (steps.isEmpty()) {
+            throw new IllegalArgumentException(tst.getPath() + " has no commands");
+        }
+        return steps;
+    }
+
+    /**
+     * @param   source  -   a script, without comments
+     * @return          -   its words, with each , ; { & } a token of its own
+     */
+    private static List<String> tokenize(String source) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for( char c : source.toCharArray() ) {
+            if (Character.isWhitespace(c) || ",;{}".indexOf(c) >= 0) {
+                if (word.length() > 0) {
+                    tokens.add(word.toString());
+                    word.setLength(0);
+                }
+                if (!Character.isWhitespace(c)) {
+                    tokens.add(String.valueOf(c));
+                }
+            } else {
+                word.append(c);
+            }
+        }
+        if (word.length() > 0) {
+            tokens.add(word.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * Gathers steps up to the end of a repeat's body or of the script.
+     *
+     * @param   tokens      -   the script's tokens
+     * @param   position    -   {the next token}, moved past the steps
+     * @param   inBlock     -   true inside a repeat's body, which ends at }
+     * @return              -   the steps
+     *
+     * @throws  IllegalArgumentException    -   if the steps are malformed
+     */
+    private static List<Step> parseSteps(List<String> tokens, int[] position, boolean inBlock) {
+        List<Step> steps = new ArrayList<>();
+        List<String> words = new ArrayList<>();
+        while (position[0] < tokens.size()) {
+            String token = tokens.get(position[0]++);
+            if (token.equals(",") || token.equals(";")) {
+                if (!words.isEmpty()) {
+                    steps.add(new Step(words.toArray(new String[words.size()]), 1, null));
+                    words.clear();
+                }
+            } else if (token.equals("{")) {
+                if (words.size() != 2 || !words.get(0).equals("repeat")) {
+                    throw new IllegalArgumentException("Only repeat <n> { ... } blocks are supported: "
+                            + words);
+                }
+                int count = Integer.parseInt(words.get(1));
+                steps.add(new Step(new String[] {"repeat"}, count, parseSteps(tokens, position, true)));
+                words.clear();
+            } else if (token.equals("}")) {
+                if (!inBlock) {
+                    throw new IllegalArgumentException("Unmatched }");
+                }
+                if (!words.isEmpty()) {
+                    steps.add(new Step(words.toArray(new String[words.size()]), 1, null));
+                }
+                return steps;
+            } else {
+                words.add(token);
+            }
+        }
+        if (inBlock) {
+            throw new IllegalArgumentException("Unterminated repeat block");
+        }
+        if (!words.isEmpty()) {
+            steps.add(new Step(words.toArray(new String[words.size()]), 1, null));
+        }
+        return steps;
+    }
+
+    /**
+     * @param   column  -   a column of output-list, e.g. RAM[256]%D2.6.2
+     * @return          -   the column [%D1.6.1 if no format is given]
+     *
+     * @throws  IllegalArgumentException    -   if column is malformed
+     */
+    private static Column parseColumn(String column) {
+        Matcher matcher = COLUMN.matcher(column);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Unsupported output column: " + column);
+        }
+        int address = matcher.group(2) != null ? Integer.parseInt(matcher.group(2)) : -1;
+        if (matcher.group(3) == null) {
+            return new Column(matcher.group(1), address, 'D', 1, 6, 1);
+        }
+        return new Column(matcher.group(1), address, matcher.group(3).charAt(0),
+                Integer.parseInt(matcher.group(4)), Integer.parseInt(matcher.group(5)),
+                Integer.parseInt(matcher.group(6)));
+    }
+
+    /**
+     * Compares a script's output with its .cmp file, a cell at a time, ignoring the
+     * spaces around each value.
+     *
+     * @param   output  -   the script's output lines
+     * @param   cmp     -   the expected output
+     * @return          -   the first difference, or null if there is none
+     *
+     * @throws  IOException -   if cmp cannot be read
+     */
+    private static String compare(List<String> output, File cmp) throws IOException {
+        List<String> expected = new ArrayList<>();
+        for( String line : Files.readAllLines(cmp.toPath(), StandardCharsets.UTF_8) ) {
+            if (!line.trim().isEmpty()) {
+                expected.add(line);
+            }
+        }
+        if (output.size() != expected.size()) {
+            return "Expected " + expected.size() + " output lines, got " + output.size();
+        }
+        for(int i = 0; i < expected.size(); i++) {
+            String[] want = splitCells(expected.get(i));
+            String[] got = splitCells(output.get(i));
+            if (want.length != got.length) {
+                return "Line " + (i + 1) + ": expected " + want.length + " columns, got " + got.length;
+            }
+            for(int j = 0; j < want.length; j++) {
+                if (!want[j].equals(got[j]) && !want[j].matches("\\*+")) {
+                    String name = splitCells(expected.get(0))[j];
+                    return "Line " + (i + 1) + ", " + name + ": expected " + want[j] + ", got " + got[j];
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param   line    -   an output line, e.g. |     257  |      15  |
+     * @return          -   its cells, without the spaces around them
+     */
+    private static String[] splitCells(String line) {
+        String trimmed = line.trim();
+        if (trimmed.startsWith("|")) {
+            trimmed = trimmed.substring(1);
+        }
+        if (trimmed.endsWith("|")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        String[] cells = trimmed.split("\\|", -1);
+        for(int i = 0; i < cells.length; i++) {
+            cells[i] = cells[i].trim();
+        }
+        return cells;
+    }
+
+    /**
+     * Writes the results as a JUnit-style XML report, one testsuite of every test.
+     *
+     * @param   results -   the results, in report order
+     * @param   report  -   the file to write
+     * @param   level   -   the optimization level the tests ran at
+     * @param   threads -   the tests run at the same time
+     * @param   nanos   -   the wall time of the whole run
+     *
+     * @throws  IOException -   if report cannot be written
+     */
+    private static void writeReport(List<Result> results, File report, Options.Level level, int threads,
+                                    long nanos) throws IOException {
+        int failures = 0;
+        int errors = 0;
+        int skipped = 0;
+        for( Result result : results ) {
+            if (result.status.equals(FAILED)) {
+                failures++;
+            } else if (result.status.equals(ERROR)) {
+                errors++;
+            } else if (result.status.equals(SKIPPED)) {
+                skipped++;
+            }
+        }
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(report.toPath(), StandardCharsets.UTF_8))) {
+            out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            out.println(String.format(Locale.ROOT,
+                    "<testsuite name=\"vm%s\" tests=\"%d\" failures=\"%d\" errors=\"%d\" skipped=\"%d\" time=\"%.3f\">",
+                    level, results.size(), failures, errors, skipped, nanos / 1e9));
+            out.println("  <properties>");
+            out.println("    <property name=\"level\" value=\"" + level + "\"/>");
+            out.println("    <property name=\"threads\" value=\"" + threads + "\"/>");
+            out.println("  </properties>");
+            for( Result result : results ) {
+                out.println(String.format(Locale.ROOT, "  <testcase classname=\"%s\" name=\"%s\" time=\"%.3f\">",
+                        escape(result.className), escape(result.name), result.nanos / 1e9));
+                out.println("    <properties>");
+                out.println("      <property name=\"cycles\" value=\"" + result.cycles + "\"/>");
+                out.println("    </properties>");
+                if (!result.status.equals(PASSED)) {
+                    String element = result.status.equals(SKIPPED) ? "skipped"
+                            : result.status.equals(FAILED) ? "failure" : "error";
+                    out.println("    <" + element + " message=\"" + escape(String.valueOf(result.message)) + "\"/>");
+                }
+                out.println("  </testcase>");
+            }
+            out.println("</testsuite>");
+        }
+    }
+
+    /**
+     * @param   text    -   text for an XML attribute
+     * @return          -   text with &, <, >, " & ' escaped
+     */
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;").replace("'", "&apos;");
+    }
+
+    private static String argument(String[] words) {
+        if (words.length != 2) {
+            throw new IllegalArgumentException(words[0] + " takes one argument");
+        }
+        return words[1];
+    }
+
+    private static String join(String[] words) {
+        StringBuilder text = new StringBuilder();
+        for( String word : words ) {
+            text.append(text.length() == 0 ? "" : " ").append(word);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,129 @@
+/************************************************************************************
+ *
+ * Class name:    VMCommand
+ * Description:   A single parsed VM command, kept so that commands can be buffered
+ *                and rearranged [see FlowGraph] before they are translated.
+ *
+ * History:       Oct. 19, J, author
+ *                Oct. 19, J, bare pops [discard()], left behind by dead store elimination
+ *
+ * Methods:       Public:   VMCommand(Parser), VMCommand(Parser.Command, String, String, int, int),
+ *                          discard(int), hasArg2(Parser.Command), isJump(), isDiscard(),
+ *                          endsBlock(), toString()
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+class VMCommand {
+
+    /**********************
+     * Instance Variables *
+     **********************/
+    final Parser.Command type;
+    final String command;       //  the command part, e.g. "push" or "add"
+    final String arg1;          //  "" if the command has no arguments
+    final int arg2;             //  0 if the command has no second argument
+    final int line;             //  1-based line within its .vm file, 0 if generated
+
+    /****************
+     * Constructors *
+     ****************/
+
+    /**
+     * Captures the parser's current command.
+     *
+     * PRECONDITION:    advance() has been called on parser, and its command is not C_NONE
+     * POSTCONDITION:   N/A
+     *
+     * @param   parser  -   the parser holding the command
+     *
+     * @throws  NumberFormatException   -   if the command's second argument is not a number
+     */
+    VMCommand(Parser parser) {
+        this(parser.getCommandType(), parser.getCommand(), parser.getArg1(),
+                hasArg2(parser.getCommandType()) ? Integer.parseInt(parser.getArg2()) : 0,
+                parser.getLineNumber());
+    }
+
+    /**
+     * Creates a command from its parts.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   type    -   the command type
+     * @param   command -   the command part
+     * @param   arg1    -   the first argument, or ""
+     * @param   arg2    -   the second argument, or 0
+     * @param   line    -   the line the command came from, or 0
+     */
+    VMCommand(Parser.Command type, String command, String arg1, int arg2, int line) {
+        this.type = type;
+        this.command = command;
+        this.arg1 = arg1;
+        this.arg2 = arg2;
+        this.line = line;
+    }
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Creates a bare pop: the top of the stack is thrown away. There is no such
+     * command in a .vm file; it stands in for a store that is never read [FlowGraph].
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   line    -   the line of the store it replaces
+     * @return          -   the command, pop without a segment
+     */
+    static VMCommand discard(int line) {
+        return new VMCommand(Parser.Command.C_POP, "pop", "", 0, line);
+    }
+
+    /**
+     * @param   type    -   a command type
+     * @return          -   true if commands of type have a numeric second argument
+     */
+    static boolean hasArg2(Parser.Command type) {
+        return type == Parser.Command.C_PUSH || type == Parser.Command.C_POP
+                || type == Parser.Command.C_FUNCTION || type == Parser.Command.C_CALL;
+    }
+
+    /**
+     * @return  -   true if the command is a goto or an if-goto
+     */
+    boolean isJump() {
+        return type == Parser.Command.C_GOTO || type == Parser.Command.C_IF;
+    }
+
+    /**
+     * @return  -   true if the command is a bare pop [see discard()]
+     */
+    boolean isDiscard() {
+        return type == Parser.Command.C_POP && arg1.isEmpty();
+    }
+
+    /**
+     * @return  -   true if control can't fall through to the next command [goto, return]
+     */
+    boolean endsBlock() {
+        return type == Parser.Command.C_GOTO || type == Parser.Command.C_RETURN;
+    }
+
+    /**
+     * @return  -   the command as it would appear in a .vm file
+     */
+    @Override
+    public String toString() {
+        if (isDiscard()) {
+            return command;
+        } else if (hasArg2(type)) {
+            return command + " " + arg1 + " " + arg2;
+        }
+        return arg1.isEmpty() ? command : command + " " + arg1;
+    }
+}
+
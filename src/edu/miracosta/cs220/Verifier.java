@@ -0,0 +1,315 @@
+/************************************************************************************
+ *
+ * Class name:    Verifier
+ * Description:   Checks an optimized translation against the plain -O0 translation of
+ *                the same program. Both are run headlessly [HackCompiler] from the same
+ *                start state until they halt, and their results are compared:
+ *
+ *                  -   static variables    RAM[16..], up to the static frames [CallGraph]
+ *                  -   the heap            RAM[2048..16383]
+ *                  -   the screen          RAM[16384..24575]
+ *                  -   SP and the stack    RAM[0], RAM[256..SP-1], for programs without
+ *                                          bootstrap code [test scripts leave their
+ *                                          results on the stack]
+ *                  -   pointers & temp     RAM[1..12]: LCL, ARG, THIS, THAT & temp 0..7
+ *                                          [test scripts check them too]
+ *
+ *                If they differ, the program is translated again with only some of its
+ *                functions optimized, halving the suspects each time, to find the
+ *                function whose optimized translation is to blame.
+ *
+ *                The optimized translation may run slower than -O0 [e.g. at -Os], but
+ *                must halt within SLOWDOWN times the instructions -O0 needed.
+ *
+ * History:       Oct. 19, J, author, side-by-side runs & bisection over functions
+ *                Oct. 19, J, only compare the static variables, not the static frames after them
+ *                Oct. 19, J, translate with the same intrinsics setting as the optimized translation
+ *                Oct. 19, J, compare the pointers & temp segment
+ *
+ * Methods:       Public:   verify(File[], boolean, Options, Profile, PrintStream)
+ *
+ *                Private:  build(File[], boolean, Options.Level, boolean, Profile, Set),
+ *                          run(short[], boolean, long),
+ *                          check(HackCompiler.Program, short[], boolean, int, long),
+ *                          compare(HackCompiler.Program, HackCompiler.Program, boolean, int),
+ *                          findCulprit(File[], boolean, Options.Level, boolean, Profile,
+ *                                      HackCompiler.Program, int, long),
+ *                          findFunctions(File[])
+ *
+ ************************************************************************************/
+package edu.miracosta.cs220;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+class Verifier {
+
+    /*************
+     * Constants *
+     *************/
+    //  Initial stack pointer of a program without bootstrap code
+    private static final int STACK_BASE = 256;
+    private static final int SP = 0;
+    private static final int STATIC_BASE = 16;
+
+    //  LCL, ARG, THIS, THAT & the temp segment: {first, last + 1}
+    private static final int[] POINTERS_AND_TEMP = {1, 13};
+
+    //  RAM regions holding a program's results besides its static variables: {first, last + 1}
+    private static final int[][] RESULTS = {
+            {2048, HackMachine.SCREEN},                                     //  heap
+            {HackMachine.SCREEN, HackMachine.SCREEN + HackMachine.SCREEN_SIZE}  //  screen
+    };
+
+    //  How many times as many instructions as -O0 the optimized translation may take
+    private static final int SLOWDOWN = 2;
+
+    /******************
+     * Public Methods *
+     ******************/
+
+    /**
+     * Runs the -O0 and the optimized translation of a program and compares their results.
+     *
+     * PRECONDITION:    options.getLevel() is not -O0
+     * POSTCONDITION:   the outcome has been reported to log, or an IllegalStateException
+     *                  naming the offending function has been thrown
+     *
+     * @param   vmFiles     -   the .vm files making up the program
+     * @param   bootstrap   -   true to include bootstrap code
+     * @param   options     -   the options of the optimized translation [level, -cycles]
+     * @param   profile     -   the profile the optimized translation used, or null for none
+     * @param   log         -   where to report the outcome, or null for nowhere
+     *
+     * @throws  IOException -   if a .vm file cannot be read
+     * @throws  IllegalStateException   -   if the optimized translation's results differ
+     */
+    static void verify(File[] vmFiles, boolean bootstrap, Options options, Profile profile, PrintStream log)
+            throws IOException {
+        Options.Level level = options.getLevel();
+        boolean intrinsics = options.isIntrinsics();
+        short[] rom = build(vmFiles, bootstrap, Options.Level.O0, false, null, null);
+        HackCompiler.Program reference;
+        try {
+            reference = run(rom, bootstrap, options.getCycles());
+        } catch (IllegalStateException e) {
+            //  e.g. a test script expecting RAM to be set up beforehand
+            if (log != null) {
+                log.println("Could not verify " + level + ": the -O0 translation failed. " + e.getMessage());
+            }
+            return;
+        }
+        if (!reference.isHalted() && reference.getPC() < rom.length) {
+            //  Without an end state there is nothing to compare
+            if (log != null) {
+                log.println("Could not verify " + level + ": the -O0 translation did not halt within "
+                        + options.getCycles() + " instructions; try a larger -cycles");
+            }
+            return;
+        }
+
+        long budget = Math.max(SLOWDOWN * reference.getCycles(), 1);
+        int staticEnd = CallGraph.build(vmFiles).getFrameBase();
+        String difference = check(reference, build(vmFiles, bootstrap, level, intrinsics, profile, null), bootstrap,
+                staticEnd, budget);
+        if (difference == null) {
+            if (log != null) {
+                log.println("Verified " + level + " against -O0: same results after "
+                        + reference.getCycles() + " -O0 instructions");
+            }
+            return;
+        }
+        String culprit = findCulprit(vmFiles, bootstrap, level, intrinsics, profile, reference, staticEnd, budget);
+        throw new IllegalStateException("The " + level + " translation differs from -O0"
+                + (culprit == null ? " [no single function is to blame]" : " in function " + culprit)
+                + ": " + difference);
+    }
+
+    /******************
+     * Helper Methods *
+     ******************/
+
+    /**
+     * Translates & assembles a program in memory.
+     *
+     * @param   vmFiles             -   the .vm files making up the program
+     * @param   bootstrap           -   true to include bootstrap code
+     * @param   level               -   the optimization level
+     * @param   intrinsics          -   true to inline trivial OS calls [see CodeWriter.setIntrinsics()]
+     * @param   profile             -   the profile to translate with, or null for none
+     * @param   optimizedFunctions  -   the only functions to optimize, or null for all
+     * @return                      -   the machine code
+     *
+     * @throws  IOException -   if a .vm file cannot be read
+     */
+    private static short[] build(File[] vmFiles, boolean bootstrap, Options.Level level, boolean intrinsics,
+                                 Profile profile, Set<String> optimizedFunctions) throws IOException {
+        ByteArrayOutputStream asm = new ByteArrayOutputStream();
+        CodeWriter codeWriter = new CodeWriter(asm, "Verify", bootstrap);
+        codeWriter.setLevel(level);
+        codeWriter.setIntrinsics(intrinsics);
+        if (profile != null && level != Options.Level.O0) {
+            codeWriter.setProfile(profile);
+        }
+        codeWriter.setOptimizedFunctions(optimizedFunctions);
+        try {
+            VirtualMachine.translate(vmFiles, codeWriter, null);
+        } finally {
+            codeWriter.close();
+        }
+        return HackAssembler.assemble(Arrays.asList(asm.toString().split("\\r?\\n"))).getRom();
+    }
+
+    /**
+     * Runs a program from a cleared RAM [SP = 256 without bootstrap code].
+     *
+     * @param   rom         -   the machine code
+     * @param   bootstrap   -   true if rom includes bootstrap code
+     * @param   maxCycles   -   the most instructions to execute
+     * @return              -   the program, in its end state
+     *
+     * @throws  IllegalStateException   -   if the program accesses RAM out of range
+     */
+    private static HackCompiler.Program run(short[] rom, boolean bootstrap, long maxCycles) {
+        HackCompiler.Program program = HackCompiler.compile(rom);
+        if (!bootstrap) {
+            program.poke(SP, STACK_BASE);
+        }
+        program.run(maxCycles);
+        return program;
+    }
+
+    /**
+     * Runs a translation and compares its results with the reference run.
+     *
+     * @param   reference   -   the -O0 run, in its end state
+     * @param   rom         -   the machine code of the translation
+     * @param   bootstrap   -   true if rom includes bootstrap code
+     * @param   staticEnd   -   the address after the last static variable
+     * @param   budget      -   the most instructions to execute
+     * @return              -   the first difference, or null if the results are the same
+     */
+    private static String check(HackCompiler.Program reference, short[] rom, boolean bootstrap, int staticEnd,
+                                long budget) {
+        HackCompiler.Program program;
+        try {
+            program = run(rom, bootstrap, budget);
+        } catch (IllegalStateException e) {
+            return e.getMessage();
+        }
+        if (!program.isHalted() && program.getPC() < rom.length) {
+            return "did not halt within " + budget + " instructions [-O0 took " + reference.getCycles() + "]";
+        }
+        return compare(reference, program, bootstrap, staticEnd);
+    }
+
+    /**
+     * Compares the results of two runs.
+     *
+     * @param   reference   -   the -O0 run, in its end state
+     * @param   program     -   the optimized run, in its end state
+     * @param   bootstrap   -   true if the program includes bootstrap code
+     * @param   staticEnd   -   the address after the last static variable
+     * @return              -   the first difference, or null if the results are the same
+     */
+    private static String compare(HackCompiler.Program reference, HackCompiler.Program program,
+                                  boolean bootstrap, int staticEnd) {
+        List<int[]> regions = new ArrayList<>(Arrays.asList(RESULTS));
+        regions.add(0, new int[] {STATIC_BASE, staticEnd});
+        regions.add(0, POINTERS_AND_TEMP);
+        if (!bootstrap) {
+            if (program.peek(SP) != reference.peek(SP)) {
+                return "SP = " + program.peek(SP) + ", -O0 gives " + reference.peek(SP);
+            }
+            regions.add(0, new int[] {STACK_BASE, Math.max(reference.peek(SP), STACK_BASE)});
+        }
+
+        String first = null;
+        int differences = 0;
+        for( int[] region : regions ) {
+            for(int address = region[0]; address < region[1]; address++) {
+                if (program.peek(address) != reference.peek(address)) {
+                    if (first == null) {
+                        first = "RAM[" + address + "] = " + program.peek(address)
+                                + ", -O0 gives " + reference.peek(address);
+                    }
+                    differences++;
+                }
+            }
+        }
+        if (differences > 1) {
+            first += " [" + (differences - 1) + " more words differ]";
+        }
+        return first;
+    }
+
+    /**
+     * Finds the function whose optimized translation makes the results differ, by
+     * repeatedly optimizing only half of the suspects.
+     *
+     * @param   vmFiles     -   the .vm files making up the program
+     * @param   bootstrap   -   true to include bootstrap code
+     * @param   level       -   the optimization level
+     * @param   intrinsics  -   true to inline trivial OS calls
+     * @param   profile     -   the profile to translate with, or null for none
+     * @param   reference   -   the -O0 run, in its end state
+     * @param   staticEnd   -   the address after the last static variable
+     * @param   budget      -   the most instructions to execute per run
+     * @return              -   the name of the function, or null if the difference only
+     *                          shows up with several functions optimized together
+     *
+     * @throws  IOException -   if a .vm file cannot be read
+     */
+    private static String findCulprit(File[] vmFiles, boolean bootstrap, Options.Level level, boolean intrinsics,
+                                      Profile profile, HackCompiler.Program reference, int staticEnd,
+                                      long budget)
+            throws IOException {
+        List<String> suspects = findFunctions(vmFiles);
+        if (suspects.isEmpty()
+                || check(reference, build(vmFiles, bootstrap, level, intrinsics, profile, new HashSet<>(suspects)),
+                         bootstrap, staticEnd, budget) == null) {
+            return null;    //  top-level code, outside of any function
+        }
+        while (suspects.size() > 1) {
+            List<String> half = suspects.subList(0, suspects.size() / 2);
+            List<String> rest = suspects.subList(suspects.size() / 2, suspects.size());
+            if (check(reference, build(vmFiles, bootstrap, level, intrinsics, profile, new HashSet<>(half)),
+                      bootstrap, staticEnd, budget) != null) {
+                suspects = half;
+            } else if (check(reference, build(vmFiles, bootstrap, level, intrinsics, profile, new HashSet<>(rest)),
+                             bootstrap, staticEnd, budget) != null) {
+                suspects = rest;
+            } else {
+                return null;
+            }
+        }
+        return suspects.get(0);
+    }
+
+    /**
+     * @param   vmFiles -   the .vm files making up a program
+     * @return          -   the names of the functions they define, in order
+     *
+     * @throws  IOException -   if a file cannot be read
+     */
+    private static List<String> findFunctions(File[] vmFiles) throws IOException {
+        List<String> functions = new ArrayList<>();
+        for( File vmFile : vmFiles ) {
+            Parser parser = new Parser(vmFile.getPath());
+            while (parser.hasMoreCommands()) {
+                parser.advance();
+                if (parser.getCommandType() == Parser.Command.C_FUNCTION) {
+                    functions.add(parser.getArg1());
+                }
+            }
+        }
+        return functions;
+    }
+}
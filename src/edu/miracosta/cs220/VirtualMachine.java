@@ -10,11 +10,45 @@
  *				  Mar. 19, J, adjusted VM file/directory gathering & handling
  *                Mar. 28, J, refactored translation into a translate() method,
  *							  added repeated file/directory selection
+ *				  Oct. 19, J, translate() holds back each call to detect tail calls
+ *				  Oct. 19, J, parse Options, hand -batch/-manifest off to BatchTranslator,
+ *							  split out translateProgram() & hasBootstrap()
+ *				  Oct. 19, J, split translate(Parser, CodeWriter) out of translate(),
+ *							  added -stdin streaming via translateStdin()
+ *				  Oct. 19, J, pass Options to translateProgram(), write source maps
+ *				  Oct. 19, J, profile-guided translation (-profile-gen, -profile-use)
+ *				  Oct. 19, J, translate one function at a time through a FlowGraph
+ *				  Oct. 19, J, compact labels & label maps (-compact-labels, -labelmap)
+ *				  Oct. 19, J, run translated programs through HackCompiler (-run)
+ *				  Oct. 19, J, optimization levels gate FlowGraph & tail calls, -verify
+ *				  Oct. 19, J, hand the whole program to the CodeWriter first (static frames)
+ *				  Oct. 19, J, trivial OS calls are written inline (-no-intrinsics)
+ *				  Oct. 19, J, in-RAM execution counters (-counters), Prog.counters, dumped by -run
+ *				  Oct. 19, J, FlowGraph removes dead stores, using the call graph; bare pops
+ *				  Oct. 19, J, loops keep segment addresses in registers [LoopCache], except at -Os
+ *				  Oct. 19, J, Jack array reads & writes are each written as one indexed access
+ *				  Oct. 19, J, report the worst-case stack depth [StackDepth], Prog.stack (-stack)
+ *				  Oct. 19, J, read & parse on threads of their own [PipelinedTranslator] (-pipeline)
+ *				  Oct. 19, J, write relocatable File.vmo objects for the Linker (-objects)
+ *				  Oct. 19, J, loops keep segment addresses in registers at -Os too
  *
  * Methods:       Public:   main(String)
  *
- *                Private:	translate(File[], CodeWriter), getBootstrap(String),
- *							convertFileName(String), getFileArray(String),
+ *                Package:	translateProgram(File[], File, boolean, Options, PrintStream),
+ *							translate(File[], CodeWriter, PrintStream),
+ *							translate(File[], CodeWriter, boolean, PrintStream), translate(Parser, CodeWriter),
+ *							translateFunction(List, CodeWriter),
+ *							translate(List, CodeWriter), translate(List, CodeWriter, List),
+ *							convertFileName(String), getMapFileName(String), getProfileFileName(String),
+ *							getLabelMapFileName(String), getCountersFileName(String), getStackFileName(String),
+ *							getFileArray(String), hasBootstrap(File[])
+ *
+ *                Private:	matches(List, int, String[]),
+ *							isStoredBeforeRead(List, int, String, int),
+ *							translateStdin(Options), runProgram(File, boolean, long, Counters, PrintStream),
+ *							writeObjects(File[], Options, PrintStream),
+ *							reportStack(CallGraph, File, boolean, Options, PrintStream),
+ *							getBootstrap(String),
  *							useFileChooser(), useSystemLookAndFeel()
  *
  ************************************************************************************/
@@ -23,6 +57,13 @@ package edu.miracosta.cs220;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.UIManager;
@@ -34,7 +75,7 @@ class VirtualMachine {
      * VMFilter is intended to be utilized in conjunction with the File.listFiles(FilenameFilter)
      * method for use in constructing a File array of only virtual machine files in a directory.
      */
-    private static class VMFilter implements FilenameFilter {
+    static class VMFilter implements FilenameFilter {
         /**
          * Tests if a specified file should be included in a file list.
          *
@@ -58,6 +99,10 @@ class VirtualMachine {
      *		data; if not present, uses a JFileChooser to gather said data
      *		and perform VM to Assembly translation, provided data is valid.
      *
+     *	->	With -batch or -manifest, no GUI is used at all; BatchTranslator
+     *		translates every project instead. With -stdin, standard input is
+     *		translated to standard output. [See Options for all options]
+     *
      * PRECONDITION:	command-line arguments may have been supplied
      * POSTCONDITION:	the translated .asm file is in the same directory
      *					as the one given (directly or to contain the .vm file)
@@ -65,6 +110,21 @@ class VirtualMachine {
      * @param	args	-	the supplied command-line arguments
      */
     public static void main(String[] args) {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.getUsage());
+            return;
+        }
+
+        //	Batches & streams run unattended - no dialogs!
+        if (options.isBatch()) {
+            System.exit(BatchTranslator.run(options) ? 0 : 1);
+        } else if (options.isStdin()) {
+            System.exit(translateStdin(options) ? 0 : 1);
+        }
 
         useSystemLookAndFeel();
 
@@ -79,15 +139,14 @@ class VirtualMachine {
         try {
             File input; // a file or dir
             File[] filesToTranslate;
-            CodeWriter codeWriter;
             //	Flag for repeated file/directory selection
             boolean translateAgain = true;
 
             do {
                 //	Get a file or directory from the command-line or a JFileChooser
-                if (args.length == 1) {
-                    System.out.println("Command-line arg: " + args[0]);
-                    input = new File(args[0]);
+                if (options.getInput() != null) {
+                    input = options.getInput();
+                    System.out.println("Command-line arg: " + input.getPath());
                     //	Only accept one file or directory via command-line
                     translateAgain = false;
                 } else {
@@ -124,16 +183,15 @@ class VirtualMachine {
                 boolean includeBootstrap = getBootstrap(outFileName);	//	user's choice to include bootstrap code
 
                 //	Build it & translate
-                codeWriter = new CodeWriter(input, outFileName, includeBootstrap);
-                translate(filesToTranslate, codeWriter);
-
-                //  Clean up [Parser.hasMoreCommands() handles parsers in translate(File[], CodeWriter)]
-                codeWriter.close();
+                translateProgram(filesToTranslate, input, includeBootstrap, options, System.out);
                 System.out.println("Translation complete to: " + outFileName + "\n");
             } while (translateAgain);
-        } catch (FileNotFoundException e) {
-            //	Check any Parser/CodeWriter/Command-line errors
+        } catch (IOException e) {
+            //	Check any Parser/CodeWriter/Command-line/source map errors
             e.printStackTrace();
+        } catch (IllegalStateException e) {
+            //	A failed -verify, or a program run that went out of bounds
+            System.err.println(e.getMessage());
         }
         System.out.println("Program closing...");
         //	Run garbage collector to prevent random InterruptedException...?
@@ -144,6 +202,210 @@ class VirtualMachine {
      * Translation & File Management Helpers *
      *****************************************/
 
+    /**
+     * Translates the given .vm files into a single .asm file, named after
+     * the directory it is written to, along with any side files the options ask for.
+     * With -objects, each file is written as a .vmo of its own instead [see writeObjects()].
+     *
+     * PRECONDITION:	filesToTranslate is not null or empty, and dir is the
+     *					directory holding them
+     * POSTCONDITION:	dir/dirName.asm has been written, or an exception has been thrown
+     *					and the output file has been closed
+     *
+     * @param	filesToTranslate	-	the .vm files making up the program
+     * @param	dir					-	the directory to write the .asm file to
+     * @param	bootstrap			-	true to include bootstrap code, false otherwise
+     * @param	options				-	the parsed command-line options
+     * @param	log					-	where to report progress, or null for none
+     *
+     * @throws	IOException	-	if a .vm file cannot be read or an output file cannot be written
+     * @throws	IllegalStateException	-	if -verify finds the optimized translation differs
+     */
+    static void translateProgram(File[] filesToTranslate, File dir, boolean bootstrap, Options options,
+                                 PrintStream log) throws IOException {
+        if (options.isObjects()) {
+            writeObjects(filesToTranslate, options, log);
+            return;
+        }
+        File profileFile = new File(dir, getProfileFileName(dir.getName()));
+        Profile profile = null;
+        if (options.isProfileUse()) {
+            if (profileFile.exists()) {
+                profile = Profile.read(profileFile);
+            } else {
+                //	Still a valid translation, just not a profile-guided one
+                System.err.println("No profile found at " + profileFile.getPath()
+                        + "; run with -profile-gen first. Translating without it.");
+            }
+        }
+
+        //	Establish the ONLY codeWriter for translation
+        LabelTable labelTable = options.isCompactLabels() ? new LabelTable() : null;
+        CodeWriter codeWriter = new CodeWriter(dir, convertFileName(dir.getName()), bootstrap, labelTable);
+        SourceMap sourceMap = null;
+        if (options.isSourceMap() || options.isProfileGen()) {
+            //	Profiling attributes counts to VM code through the source map
+            sourceMap = new SourceMap();
+            codeWriter.setSourceMap(sourceMap);
+        }
+        codeWriter.setLevel(options.getLevel());
+        codeWriter.setIntrinsics(options.isIntrinsics());
+        if (profile != null) {
+            codeWriter.setProfile(profile);
+        }
+        Counters counters = null;
+        if (options.getCounterBase() != -1) {
+            counters = new Counters(options.getCounterBase());
+            codeWriter.setCounters(counters, options.isCountLabels());
+        }
+        try {
+            translate(filesToTranslate, codeWriter, options.isPipeline(), log);
+        } finally {
+            //  Clean up [Parser.hasMoreCommands() handles parsers in translate()]
+            codeWriter.close();
+        }
+        if (options.isSourceMap()) {
+            sourceMap.write(new File(dir, getMapFileName(dir.getName())));
+        }
+        if (options.isLabelMap()) {
+            labelTable.write(new File(dir, getLabelMapFileName(dir.getName())));
+        }
+        reportStack(codeWriter.getCallGraph(), dir, bootstrap, options, log);
+        if (counters != null) {
+            counters.write(new File(dir, getCountersFileName(dir.getName())), "Execution counters of "
+                    + convertFileName(dir.getName()) + ": RAM[" + counters.getBase() + ".."
+                    + (counters.getBase() + counters.size() - 1) + "]");
+        }
+        if (options.isProfileGen()) {
+            File asmFile = new File(dir, convertFileName(dir.getName()));
+            profile = Profiler.profile(asmFile, sourceMap, labelTable, filesToTranslate, bootstrap,
+                    options.getCycles(), log);
+            profile.write(profileFile, "VM profile of " + asmFile.getName() + ": "
+                    + profile.getTotalCycles() + " cycles in functions");
+        }
+        if (options.isVerify()) {
+            Verifier.verify(filesToTranslate, bootstrap, options, profile, log);
+        }
+        if (options.isRun()) {
+            runProgram(new File(dir, convertFileName(dir.getName())), bootstrap, options.getCycles(),
+                    counters, log != null ? log : System.out);
+        }
+    }
+
+    /**
+     * Translates each .vm file on its own into a relocatable module, written next to it
+     * as File.vmo [see ObjectFile], for the Linker to link into programs.
+     *
+     * PRECONDITION:	options.isObjects() is true
+     * POSTCONDITION:	a .vmo file has been written for every file
+     *
+     * @param	filesToTranslate	-	the .vm files to translate
+     * @param	options				-	the parsed command-line options
+     * @param	log					-	where to report each file written, or null for none
+     *
+     * @throws	IOException	-	if a .vm file cannot be read or a .vmo file cannot be written
+     */
+    private static void writeObjects(File[] filesToTranslate, Options options, PrintStream log)
+            throws IOException {
+        for( File file : filesToTranslate ) {
+            ObjectFile module = ObjectFile.translate(file, options.getLevel(), options.isIntrinsics());
+            File objectFile = new File(file.getAbsoluteFile().getParentFile(),
+                    ObjectFile.getObjectFileName(file.getName()));
+            module.write(objectFile);
+            if (log != null) {
+                log.println("Wrote " + objectFile.getName() + ": " + module.size() + " instructions");
+            }
+        }
+    }
+
+    /**
+     * Reports the program's worst-case stack depth [see StackDepth] to log, warning on
+     * standard error if it may run into the heap, and writes Prog.stack if asked to.
+     *
+     * PRECONDITION:	program is the call graph of the translated program
+     * POSTCONDITION:	the bound has been reported
+     *
+     * @param	program		-	the call graph of the program
+     * @param	dir			-	the directory the .asm file was written to
+     * @param	bootstrap	-	true if the program has bootstrap code
+     * @param	options		-	the parsed command-line options
+     * @param	log			-	where to report the bound, or null for nowhere
+     *
+     * @throws	IOException	-	if Prog.stack cannot be written
+     */
+    private static void reportStack(CallGraph program, File dir, boolean bootstrap, Options options,
+                                    PrintStream log) throws IOException {
+        StackDepth stack = program.getStackDepth();
+        String bound = stack.describeProgram(bootstrap);
+        if (log != null) {
+            log.println("Stack: " + bound);
+        }
+        if (StackDepth.STACK_BASE + stack.getProgramNeed(bootstrap) > StackDepth.HEAP_BASE) {
+            System.err.println("Warning: the stack of " + dir.getName() + " may overflow into the heap: "
+                    + bound);
+        }
+        if (options.isStackReport()) {
+            stack.write(new File(dir, getStackFileName(dir.getName())), bootstrap);
+        }
+    }
+
+    /**
+     * Assembles a translated program, compiles it to JVM bytecode, and runs it.
+     * A program without bootstrap code starts with SP = 256.
+     * If it was instrumented, its execution counters are listed afterwards.
+     *
+     * PRECONDITION:	asmFile holds a translated program
+     * POSTCONDITION:	the run has been reported to log
+     *
+     * @param	asmFile		-	the translated program
+     * @param	bootstrap	-	true if asmFile includes bootstrap code
+     * @param	maxCycles	-	the most instructions to execute
+     * @param	counters	-	the program's execution counters, or null for none
+     * @param	log			-	where to report on the run
+     *
+     * @throws	IOException	-	if asmFile cannot be read
+     * @throws	IllegalStateException	-	if the program accesses RAM out of range
+     */
+    private static void runProgram(File asmFile, boolean bootstrap, long maxCycles, Counters counters,
+                                   PrintStream log) throws IOException {
+        HackCompiler.Program program = HackCompiler.compile(HackAssembler.assemble(asmFile).getRom());
+        if (!bootstrap) {
+            program.poke(0, 256);
+        }
+        long start = System.nanoTime();
+        long cycles = program.run(maxCycles);
+        long millis = (System.nanoTime() - start) / 1000000;
+        log.println("Ran " + asmFile.getName() + ": " + cycles + " instructions in " + millis + " ms, "
+                + (program.isHalted() ? "halted" : "stopped") + " with SP = " + program.peek(0));
+        if (counters != null) {
+            int[] ram = new int[HackMachine.RAM_SIZE];
+            for(int address = counters.getBase(); address < counters.getBase() + counters.size(); address++) {
+                ram[address] = program.peek(address);
+            }
+            log.println("Execution counters:");
+            counters.dump(ram, log);
+        }
+    }
+
+    /**
+     * Translates each file in filesToTranslate through a single CodeWriter,
+     * as translate(File[], CodeWriter, boolean, PrintStream) does without -pipeline.
+     *
+     * PRECONDITION:	filesToTranslate & codeWriter are not null
+     * POSTCONDITION:	the translation of a file or directory has been completed
+     *
+     * @param	filesToTranslate	-	an array of files to translate into a single
+     *									.asm file (handled by codeWriter)
+     * @param	codeWriter			-	a CodeWriter object to handle translation
+     * @param	log					-	where to report each file translated, or null for none
+     *
+     * @throws	IOException	-	if a file within the filesToTranslate array cannot be read
+     */
+    static void translate(File[] filesToTranslate, CodeWriter codeWriter, PrintStream log)
+            throws IOException {
+        translate(filesToTranslate, codeWriter, false, log);
+    }
+
     /**
      * Iterates through each line of each file in the passed in array [advance()],
      * determines its' command, and calls the appropriate CodeWriter write method
@@ -157,80 +419,317 @@ class VirtualMachine {
      * @param	codeWriter			-	a CodeWriter object to handle translation
      *									of each .vm file in filesToTranslate into
      *									the appropriate assembly code
+     * @param	pipelined			-	true to read & parse each file on threads of their own
+     *									[see PipelinedTranslator]
+     * @param	log					-	where to report each file translated, or null for none
      *
-     * @throws	FileNotFoundException	-	if a Parser cannot be opened for a file
-     *										within the filesToTranslate array
+     * @throws	IOException	-	if a file within the filesToTranslate array cannot be read
      */
-    private static void translate(File[] filesToTranslate, CodeWriter codeWriter) throws FileNotFoundException {
+    static void translate(File[] filesToTranslate, CodeWriter codeWriter, boolean pipelined, PrintStream log)
+            throws IOException {
         //	Setup
         Parser parser;
-        Parser.Command commandType;
-        String command, arg1, arg2;
         String currentVMfileName;
+        codeWriter.setProgram(filesToTranslate);	//	whole-program analysis [-O2 & -Os]
 
-        /*	Iterate through each line in the selected .vm file, [advance()],
-         *	determine its' command, and call the appropriate CodeWriter method
-         *  until translation is complete.
-         */
         for( File file : filesToTranslate ) {
             //  Grab the name of each file to create a new Parser object and update codeWriter.
             currentVMfileName = file.getName();
-            System.out.println("Processing " + currentVMfileName);
+            if (log != null) {
+                log.println("Processing " + currentVMfileName);
+            }
 
-            //	Create a new Parser for every file, & update codeWriter
-            parser = new Parser(file.getPath());
+            //	Create a new Parser [or pipeline] for every file, & update codeWriter
             codeWriter.setFileName(convertFileName(currentVMfileName));
+            if (pipelined) {
+                PipelinedTranslator.translate(new FileReader(file), codeWriter);
+            } else {
+                parser = new Parser(file.getPath());
+                translate(parser, codeWriter);
+            }
+            //	file has no more lines and parser [or pipeline] has been closed
+        }
+        //	all files have been translated
+    }
 
-            //  Translate as long as lines are available
-            while(parser.hasMoreCommands()) {
-                //  Move to next line
-                parser.advance();
-
-                //  Update vars after parsing
-                command = parser.getCommand();
-                commandType = parser.getCommandType();
-                arg1 = parser.getArg1();
-                arg2 = parser.getArg2();
-
-                //  Translate based on commandType
-                if (commandType == Parser.Command.C_ARITHMETIC)
-                {
-                    codeWriter.writeArithmetic(command);
-                }
-                else if (commandType == Parser.Command.C_POP ||
-                        commandType == Parser.Command.C_PUSH)
-                {
-                    codeWriter.writePushPop(commandType, arg1, Integer.parseInt(arg2));
-                }
-                else if (commandType == Parser.Command.C_LABEL)
-                {
-                    codeWriter.writeLabel(arg1);
-                }
-                else if (commandType == Parser.Command.C_GOTO)
-                {
-                    codeWriter.writeGoto(arg1);
-                }
-                else if (commandType == Parser.Command.C_IF)
-                {
-                    codeWriter.writeIfGoto(arg1);
-                }
-                else if (commandType == Parser.Command.C_CALL)
-                {
-                    codeWriter.writeCall(arg1, Integer.parseInt(arg2));
-                }
-                else if (commandType == Parser.Command.C_FUNCTION)
-                {
-                    codeWriter.writeFunction(arg1, Integer.parseInt(arg2));
-                }
-                else if (commandType == Parser.Command.C_RETURN)
-                {
-                    codeWriter.writeReturn();
+    /**
+     * Iterates through each line the parser provides [advance()] and collects its
+     * commands one function at a time. Each function is cleaned up [FlowGraph,
+     * unless it is translated at -O0] and translated as soon as it has been read in full.
+     *
+     * PRECONDITION:	parser & codeWriter are not null, and codeWriter.setFileName()
+     *					has been called for the parser's input
+     * POSTCONDITION:	the parser's input has been translated, and the parser has been closed
+     *
+     * @param	parser		-	a Parser over a single .vm file or stream
+     * @param	codeWriter	-	a CodeWriter object to handle translation
+     */
+    static void translate(Parser parser, CodeWriter codeWriter) {
+        List<VMCommand> function = new ArrayList<>();
+
+        /*	Iterate through each line in the selected .vm file, [advance()],
+         *	and translate the function read so far whenever the next one starts.
+         */
+        while(parser.hasMoreCommands()) {
+            //  Move to next line
+            parser.advance();
+            if (parser.getCommandType() == Parser.Command.C_NONE) {
+                continue;
+            }
+            VMCommand command = new VMCommand(parser);
+            if (command.type == Parser.Command.C_FUNCTION && !function.isEmpty()) {
+                translateFunction(function, codeWriter);
+                function.clear();
+            }
+            function.add(command);
+        }
+        if (!function.isEmpty()) {
+            translateFunction(function, codeWriter);
+        }
+    }
+
+    /**
+     * Translates the commands of a single function at the function's optimization level.
+     *
+     * PRECONDITION:	function holds at most one function command, which comes first
+     * POSTCONDITION:	function has been translated
+     *
+     * @param	function	-	the commands of the function [or top-level code before any function]
+     * @param	codeWriter	-	a CodeWriter object to handle translation
+     */
+    static void translateFunction(List<VMCommand> function, CodeWriter codeWriter) {
+        VMCommand first = function.get(0);
+        String name = first.type == Parser.Command.C_FUNCTION ? first.arg1 : "";
+        Options.Level level = codeWriter.getLevel(name);
+        if (level == Options.Level.O0) {
+            translate(function, codeWriter);
+        } else {
+            List<VMCommand> optimized = FlowGraph.optimize(function, codeWriter.getCallGraph());
+            translate(optimized, codeWriter, LoopCache.find(optimized, codeWriter.hasStaticFrame(name)));
+        }
+    }
+
+    /**
+     * Determines each command's type and calls the appropriate CodeWriter write method.
+     * A call immediately followed by a return is written as a tail call [except at -O0],
+     * and a call to a trivial OS function inline, together with the constant pushed as
+     * its last argument if it can use it. The commands the Jack compiler writes for an
+     * array access are written as one indexed load or store [except at -O0]:
+     * ->	read		add, pop pointer 1, push that 0
+     * 		write		pop temp 0, pop pointer 1, push temp 0, pop that 0
+     *
+     * PRECONDITION:	commands & codeWriter are not null
+     * POSTCONDITION:	commands have been translated
+     *
+     * @param	commands	-	the commands to translate, in order
+     * @param	codeWriter	-	a CodeWriter object to handle translation
+     */
+    static void translate(List<VMCommand> commands, CodeWriter codeWriter) {
+        translate(commands, codeWriter, Collections.<LoopCache.Loop>emptyList());
+    }
+
+    /**
+     * Translates commands as translate(List, CodeWriter) does, keeping the addresses
+     * each loop caches in registers while it runs.
+     *
+     * PRECONDITION:	commands & codeWriter are not null, and loops were found in commands
+     * POSTCONDITION:	commands have been translated
+     *
+     * @param	commands	-	the commands to translate, in order
+     * @param	codeWriter	-	a CodeWriter object to handle translation
+     * @param	loops		-	the loops that cache addresses, in order [see LoopCache]
+     */
+    static void translate(List<VMCommand> commands, CodeWriter codeWriter, List<LoopCache.Loop> loops) {
+        //  Tail calls & array accesses, per function
+        boolean optimized = codeWriter.getLevel("") != Options.Level.O0;
+        int nextLoop = 0;
+        for(int i = 0; i < commands.size(); i++) {
+            VMCommand command = commands.get(i);
+            Parser.Command commandType = command.type;
+            codeWriter.setSourceLine(command.line);
+            if (nextLoop < loops.size() && loops.get(nextLoop).start == i) {
+                codeWriter.writeAddressCache(loops.get(nextLoop).registers);
+            }
+
+            //  Translate based on commandType
+            if (optimized && matches(commands, i, "add", "pop pointer 1", "push that 0"))
+            {
+                //  THAT [and temp 0] are only set if something after the access reads them
+                codeWriter.writeArrayRead(!isStoredBeforeRead(commands, i + 3, "pointer", 1));
+                i += 2;
+            }
+            else if (commandType == Parser.Command.C_ARITHMETIC)
+            {
+                codeWriter.writeArithmetic(command.command);
+            }
+            else if (optimized && matches(commands, i, "pop temp 0", "pop pointer 1", "push temp 0", "pop that 0"))
+            {
+                codeWriter.writeArrayWrite(!isStoredBeforeRead(commands, i + 4, "pointer", 1),
+                                           !isStoredBeforeRead(commands, i + 4, "temp", 0));
+                i += 3;
+            }
+            else if (commandType == Parser.Command.C_PUSH && command.arg1.equals("constant")
+                    && i + 1 < commands.size() && commands.get(i + 1).type == Parser.Command.C_CALL
+                    && codeWriter.writeIntrinsic(commands.get(i + 1).arg1, commands.get(i + 1).arg2,
+                                                 command.arg2))
+            {
+                //  e.g. push constant 10, call Math.multiply 2: both are written
+                i++;
+            }
+            else if (command.isDiscard())
+            {
+                codeWriter.writeDiscard();
+            }
+            else if (commandType == Parser.Command.C_POP ||
+                    commandType == Parser.Command.C_PUSH)
+            {
+                codeWriter.writePushPop(commandType, command.arg1, command.arg2);
+            }
+            else if (commandType == Parser.Command.C_LABEL)
+            {
+                codeWriter.writeLabel(command.arg1);
+            }
+            else if (commandType == Parser.Command.C_GOTO)
+            {
+                codeWriter.writeGoto(command.arg1);
+            }
+            else if (commandType == Parser.Command.C_IF)
+            {
+                codeWriter.writeIfGoto(command.arg1);
+            }
+            else if (commandType == Parser.Command.C_CALL)
+            {
+                //  A call followed by a return is a tail call [the return is never reached]
+                if (codeWriter.writeIntrinsic(command.arg1, command.arg2)) {
+                    continue;
+                } else if (optimized && i + 1 < commands.size()
+                        && commands.get(i + 1).type == Parser.Command.C_RETURN) {
+                    codeWriter.writeTailCall(command.arg1, command.arg2);
+                    i++;
+                } else {
+                    codeWriter.writeCall(command.arg1, command.arg2);
                 }
-                //	else commandType == Parser.Command.C_NONE
             }
-            //	file has no more lines and parser has been closed
+            else if (commandType == Parser.Command.C_FUNCTION)
+            {
+                codeWriter.writeFunction(command.arg1, command.arg2);
+                optimized = codeWriter.getLevel(command.arg1) != Options.Level.O0;
+            }
+            else if (commandType == Parser.Command.C_RETURN)
+            {
+                codeWriter.writeReturn();
+            }
+
+            if (nextLoop < loops.size() && loops.get(nextLoop).end == i) {
+                codeWriter.clearAddressCache();
+                nextLoop++;
+            }
         }
-        //	all files have been translated
+    }
+
+    /**
+     * @param	commands	-	the commands being translated
+     * @param	i			-	a position within commands
+     * @param	pattern		-	commands as they appear in a .vm file [case aside]
+     * @return				-	true if the commands from position i on are pattern
+     */
+    private static boolean matches(List<VMCommand> commands, int i, String... pattern) {
+        if (i + pattern.length > commands.size()) {
+            return false;
+        }
+        for(int k = 0; k < pattern.length; k++) {
+            if (!commands.get(i + k).toString().equalsIgnoreCase(pattern[k])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Determines whether a pointer or temp slot is stored to again before anything can
+     * read it, looking no further than the straight-line code from position start on.
+     * A label, jump, call or return ends the search [the slot may be read beyond it],
+     * and so does the end of the commands.
+     *
+     * PRECONDITION:	segment is "pointer" or "temp"
+     * POSTCONDITION:	N/A
+     *
+     * @param	commands	-	the commands being translated
+     * @param	start		-	the position to look from
+     * @param	segment		-	"pointer" or "temp"
+     * @param	index		-	the slot within segment
+     * @return				-	true if the slot's value at start is never read
+     */
+    private static boolean isStoredBeforeRead(List<VMCommand> commands, int start, String segment, int index) {
+        //	Accesses through the pointer read it, too
+        String through = !segment.equals("pointer") ? null : index == 0 ? "this" : "that";
+        for(int k = start; k < commands.size(); k++) {
+            VMCommand command = commands.get(k);
+            if (command.type == Parser.Command.C_ARITHMETIC || command.isDiscard()) {
+                continue;
+            }
+            if (command.type != Parser.Command.C_PUSH && command.type != Parser.Command.C_POP) {
+                return false;
+            }
+            if (command.arg1.equalsIgnoreCase(through)) {
+                return false;
+            }
+            if (command.arg1.equalsIgnoreCase(segment) && command.arg2 == index) {
+                return command.type == Parser.Command.C_POP;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Translates VM code read from standard input to assembly code written to
+     * standard output, so that the translator can sit inside a Unix pipeline.
+     * Nothing else is written to standard output.
+     *
+     * PRECONDITION:	options.isStdin() is true
+     * POSTCONDITION:	standard input has been translated and standard output flushed
+     *
+     * @param	options	-	the parsed command-line options
+     * @return			-	true if the translation succeeded, false otherwise
+     */
+    private static boolean translateStdin(Options options) {
+        LabelTable labelTable = options.isCompactLabels() ? new LabelTable() : null;
+        CodeWriter codeWriter = new CodeWriter(System.out, options.getStreamName(), options.isBootstrap(),
+                labelTable);
+        codeWriter.setLevel(options.getLevel());
+        codeWriter.setIntrinsics(options.isIntrinsics());
+        SourceMap sourceMap = null;
+        if (options.isSourceMap()) {
+            sourceMap = new SourceMap();
+            codeWriter.setSourceMap(sourceMap);
+        }
+        try {
+            codeWriter.setFileName(options.getStreamName());
+            if (options.isPipeline()) {
+                PipelinedTranslator.translate(new InputStreamReader(System.in), codeWriter);
+            } else {
+                translate(new Parser(new InputStreamReader(System.in)), codeWriter);
+            }
+        } catch (RuntimeException | IOException e) {
+            //	e.g. a NumberFormatException from malformed VM code
+            System.err.println("Translation failed: " + e);
+            return false;
+        } finally {
+            codeWriter.close();
+        }
+        //	stdout holds the code, so side files go to the current directory
+        try {
+            if (sourceMap != null) {
+                sourceMap.write(new File(getMapFileName(options.getStreamName())));
+            }
+            if (options.isLabelMap()) {
+                labelTable.write(new File(getLabelMapFileName(options.getStreamName())));
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write side file: " + e.getMessage());
+            return false;
+        }
+        return !codeWriter.checkError();
     }
 
     /**
@@ -263,7 +762,7 @@ class VirtualMachine {
      * @param   fileName    -   a .vm file name
      * @return              -   an .asm file name
      */
-    private static String convertFileName(String fileName) {
+    static String convertFileName(String fileName) {
         int fileExt = fileName.indexOf(".");
         if (fileExt != -1) {
             fileName = fileName.substring(0, fileExt);
@@ -271,6 +770,91 @@ class VirtualMachine {
         return fileName + ".asm";
     }
 
+    /**
+     * Returns the name of the stack depth report that goes along with a program.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   programName -   the name of the program [directory name]
+     * @return              -   the report file name, programName.stack
+     */
+    static String getStackFileName(String programName) {
+        int fileExt = programName.indexOf(".");
+        if (fileExt != -1) {
+            programName = programName.substring(0, fileExt);
+        }
+        return programName + ".stack";
+    }
+
+    /**
+     * Returns the name of the source map that goes along with a program.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   programName -   the name of the program [directory name]
+     * @return              -   the source map file name, programName.map.json
+     */
+    static String getMapFileName(String programName) {
+        int fileExt = programName.indexOf(".");
+        if (fileExt != -1) {
+            programName = programName.substring(0, fileExt);
+        }
+        return programName + ".map.json";
+    }
+
+    /**
+     * Returns the name of the execution profile that goes along with a program.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   programName -   the name of the program [directory name]
+     * @return              -   the profile file name, programName.profile
+     */
+    static String getProfileFileName(String programName) {
+        int fileExt = programName.indexOf(".");
+        if (fileExt != -1) {
+            programName = programName.substring(0, fileExt);
+        }
+        return programName + ".profile";
+    }
+
+    /**
+     * Returns the name of the label map that goes along with a program.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   programName -   the name of the program [directory name]
+     * @return              -   the label map file name, programName.labels
+     */
+    static String getLabelMapFileName(String programName) {
+        int fileExt = programName.indexOf(".");
+        if (fileExt != -1) {
+            programName = programName.substring(0, fileExt);
+        }
+        return programName + ".labels";
+    }
+
+    /**
+     * Returns the name of the execution counter table that goes along with a program.
+     *
+     * PRECONDITION:    N/A
+     * POSTCONDITION:   N/A
+     *
+     * @param   programName -   the name of the program [directory name]
+     * @return              -   the counter table file name, programName.counters
+     */
+    static String getCountersFileName(String programName) {
+        int fileExt = programName.indexOf(".");
+        if (fileExt != -1) {
+            programName = programName.substring(0, fileExt);
+        }
+        return programName + ".counters";
+    }
+
     /**
      * Determines if a String represents a file name or directory, and
      * returns an array of the files to be translated.
@@ -285,7 +869,7 @@ class VirtualMachine {
      *
      * @throws	FileNotFoundException	-	if pathname cannot be found/opened
      */
-    private static File[] getFileArray(String pathname) throws FileNotFoundException {
+    static File[] getFileArray(String pathname) throws FileNotFoundException {
         if (pathname == null) {
             //  File(String) constructor throws an NPE if null is supplied.
             return null;
@@ -302,6 +886,25 @@ class VirtualMachine {
         }
     }
 
+    /**
+     * Determines whether a program needs bootstrap code, which is the case
+     * when it defines Sys.init [by convention, in a file named Sys.vm].
+     *
+     * PRECONDITION:	filesToTranslate is not null
+     * POSTCONDITION:	N/A
+     *
+     * @param	filesToTranslate	-	the .vm files making up the program
+     * @return						-	true if one of the files is Sys.vm, false otherwise
+     */
+    static boolean hasBootstrap(File[] filesToTranslate) {
+        for( File file : filesToTranslate ) {
+            if (file.getName().equalsIgnoreCase("Sys.vm")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /****************************************
      * JFileChooser & Look and Feel Helpers *
      ****************************************/